@@ -0,0 +1,269 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Gives JNLP resources content-addressed names.
+ * <p>
+ * Each resource is copied or hard linked to a file named after the hash of its content, of the form
+ * <code>name-hash.ext</code>, in the same relative folder as its original <code>href</code>, and its
+ * <code>href</code> is rewritten to match. Since a given URL then always describes the same content, every resource
+ * can be served as immutable and cached forever by proxies and clients, while the JNLP file itself remains the only
+ * file that needs to be revalidated.
+ * </p>
+ * <p>
+ * Hard links are only attempted in <code>link</code> mode, and fall back to copies when the file system doesn't
+ * support them. Links share their content with the original files: should a later build modify an original in place
+ * rather than replace it, every content-addressed link to it silently changes content while keeping its name, and
+ * clients that cached the old URL receive mismatched data. <code>copy</code> mode is immune to this and should be
+ * preferred unless the build is known to always replace its outputs.
+ * </p>
+ * <p>
+ * Files that already exist are left untouched when their content matches their name. In <code>copy</code> mode, a
+ * matching length is trusted, since nothing else writes to these files. In <code>link</code> mode, existing files are
+ * hashed and compared with their name, and replaced if they were modified through a link. Digests are looked up in a
+ * {@link HashCache} and files are hashed and placed concurrently.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class ContentNames {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Resources are copied to their content-addressed name. */
+    static final String      COPY        = "copy";
+    /** Resources are hard linked to their content-addressed name. */
+    static final String      LINK        = "link";
+    /** Number of hexadecimal digits of the hash used in names, which makes collisions unrealistic. */
+    private static final int HASH_LENGTH = 32;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Where to write content-addressed files. */
+    private final File      folder;
+    /** Whether to hard link files rather than copy them. */
+    private final boolean   link;
+    /** Where to look for file digests. */
+    private final HashCache cache;
+    /** Maximum number of threads to use. */
+    private final int       threads;
+    /** Number of resources that have been renamed. */
+    private int             count;
+    /** Number of content-addressed files that had to be created. */
+    private int             created;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new content-addressed namer.
+     * @param folder  where to write content-addressed files.
+     * @param mode    either {@link #COPY} or {@link #LINK}.
+     * @param cache   where to look for file digests, <code>null</code> to always compute them.
+     * @param threads maximum number of threads to use.
+     */
+    ContentNames(File folder, String mode, HashCache cache, int threads) {
+        this.folder  = folder;
+        this.cache   = cache;
+        this.threads = threads;
+        link         = LINK.equals(mode);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified string is a legal mode.
+     * @param  mode string to check.
+     * @return      <code>true</code> if the specified string is a legal mode.
+     */
+    static boolean isMode(String mode) {
+        return COPY.equals(mode) || LINK.equals(mode);
+    }
+
+
+
+    // - Renaming ------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the content-addressed name of the specified file name.
+     * @param  name name of the file.
+     * @param  hash hexadecimal digest of the file's content.
+     * @return      the content-addressed name of the specified file name.
+     */
+    static String getHashedName(String name, String hash) {
+        int index;
+
+        hash = hash.substring(0, HASH_LENGTH);
+        if((index = name.lastIndexOf('.')) <= 0)
+            return name + '-' + hash;
+        return name.substring(0, index) + '-' + hash + name.substring(index);
+    }
+
+    /**
+     * Gives the specified resources content-addressed names.
+     * @param     resources      resources to rename.
+     * @param     files          local file of each resource, in the same order as <code>resources</code>.
+     * @exception BuildException thrown if any error occurs.
+     */
+    void rename(List<? extends Resource> resources, List<File> files) throws BuildException {
+        List<Callable<Placed>> work;
+        List<Placed>           results;
+
+        work = new ArrayList<Callable<Placed>>();
+        for(int i = 0; i < resources.size(); i++) {
+            final String href;
+            final File   file;
+
+            href = resources.get(i).getHref();
+            file = files.get(i);
+            work.add(new Callable<Placed>() {
+                public Placed call() throws IOException {return place(href, file);}
+            });
+        }
+        results = ParallelRunner.run(work, threads);
+
+        for(int i = 0; i < resources.size(); i++) {
+            Placed placed;
+
+            placed = results.get(i);
+            resources.get(i).setHref(placed.href);
+            if(placed.created)
+                created++;
+            count++;
+        }
+    }
+
+    /**
+     * Creates the content-addressed copy of the specified file, unless it already exists.
+     * @param     href        original <code>href</code> of the file.
+     * @param     file        file to copy.
+     * @return                where the file was placed.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private Placed place(String href, File file) throws IOException {
+        String hash;
+        File   target;
+        File   temp;
+        int    index;
+
+        if(!file.isFile())
+            throw new IOException("File not found: " + file);
+
+        hash   = cache == null ? Digests.toHex(Digests.sha256(file)) : cache.sha256(file);
+        index  = href.lastIndexOf('/') + 1;
+        href   = href.substring(0, index) + getHashedName(href.substring(index), hash);
+        target = new File(folder, href.replace('/', File.separatorChar));
+        if(target.isFile() && target.length() == file.length() && (!link || isIntact(target, file, hash)))
+            return new Placed(href, false);
+        if(!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs())
+            throw new IOException("Could not create directory " + target.getParentFile());
+
+        // Goes through a temporary file, as the same resource might be described more than once.
+        temp = new File(target.getParentFile(), ".tmp" + System.nanoTime() + Thread.currentThread().getId());
+        try {
+            if(!link || !createLink(temp, file))
+                Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {temp.delete();}
+
+        return new Placed(href, true);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified content-addressed file still has the content its name describes.
+     * <p>
+     * This guards against originals that were modified in place after being linked, which also modifies the link.
+     * </p>
+     * @param     target      existing content-addressed file.
+     * @param     file        file whose content <code>target</code> should have.
+     * @param     hash        hexadecimal digest of <code>file</code>.
+     * @return                <code>true</code> if <code>target</code> has the same digest as <code>file</code>.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private boolean isIntact(File target, File file, String hash) throws IOException {
+        if(Files.isSameFile(target.toPath(), file.toPath()))
+            return true;
+        return hash.equals(cache == null ? Digests.toHex(Digests.sha256(target)) : cache.sha256(target));
+    }
+
+    /**
+     * Attempts to create a hard link to the specified file.
+     * @param  link where to create the link.
+     * @param  file file to link to.
+     * @return      <code>true</code> if the link was created, <code>false</code> if it's not supported.
+     */
+    private static boolean createLink(File link, File file) {
+        try {
+            Files.createLink(link.toPath(), file.toPath());
+            return true;
+        }
+        catch(IOException e) {return false;}
+        catch(UnsupportedOperationException e) {return false;}
+    }
+
+    /**
+     * Returns the number of resources that have been renamed.
+     * @return the number of resources that have been renamed.
+     */
+    int getCount() {return count;}
+
+    /**
+     * Returns the number of content-addressed files that had to be created.
+     * @return the number of content-addressed files that had to be created.
+     */
+    int getCreatedCount() {return created;}
+
+
+
+    // - Placed class --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Describes where a resource was placed.
+     * @author Nicolas Rinaudo
+     */
+    private static class Placed {
+        /** Content-addressed <code>href</code> of the resource. */
+        private final String  href;
+        /** Whether the content-addressed file had to be created. */
+        private final boolean created;
+
+        /**
+         * Creates a new placement.
+         * @param href    content-addressed <code>href</code> of the resource.
+         * @param created whether the content-addressed file had to be created.
+         */
+        private Placed(String href, boolean created) {
+            this.href    = href;
+            this.created = created;
+        }
+    }
+}
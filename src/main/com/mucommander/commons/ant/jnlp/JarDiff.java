@@ -0,0 +1,265 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.RawZipWriter;
+import com.mucommander.commons.ant.util.ZipDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Difference between two versions of a JAR file, in the JarDiff format used by Java Web Start.
+ * <p>
+ * A JarDiff file is a JAR file that contains all entries of the new version that are either new or changed, as well as
+ * a <code>META-INF/INDEX.JD</code> index that lists the entries of the old version that must be removed. Entries that
+ * are not mentioned are copied from the old version by the client.
+ * </p>
+ * <p>
+ * Entries are first compared by CRC and size, as found in the central directories of both files, and only inflated
+ * and compared byte for byte when these match. Changed and new entries are copied as they are stored in the new
+ * version, without being recompressed. Renamed entries are shipped as new entries rather than as <code>move</code>
+ * commands, which keeps the index trivially compatible with all clients.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class JarDiff {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the JarDiff index. */
+    static final String         INDEX          = "META-INF/INDEX.JD";
+    /** First line of the JarDiff index. */
+    private static final String VERSION_HEADER = "version 1.0";
+    /** Index command used to remove entries. */
+    private static final String REMOVE_COMMAND = "remove";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Entries of the new version that must be shipped, in the order in which they're stored. */
+    private final List<ZipDirectory.Entry> entries;
+    /** Names of the entries of the old version that must be removed. */
+    private final List<String>             removed;
+    /** Number of shipped entries that don't exist in the old version. */
+    private int                            added;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new empty JarDiff.
+     */
+    private JarDiff() {
+        entries = new ArrayList<ZipDirectory.Entry>();
+        removed = new ArrayList<String>();
+    }
+
+
+
+    // - Diff computation ----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes the difference between two versions of a JAR file.
+     * @param     from        old version of the JAR file.
+     * @param     to          new version of the JAR file.
+     * @return                the difference between both versions.
+     * @exception IOException thrown if either file is not a supported JAR file, or if any IO related error occurs.
+     */
+    static JarDiff diff(File from, File to) throws IOException {
+        RandomAccessFile oldFile;
+        RandomAccessFile newFile;
+
+        oldFile = new RandomAccessFile(from, "r");
+        try {
+            newFile = new RandomAccessFile(to, "r");
+            try {return diff(oldFile.getChannel(), newFile.getChannel());}
+            finally {newFile.close();}
+        }
+        finally {oldFile.close();}
+    }
+
+    /**
+     * Computes the difference between two versions of a JAR file.
+     * @param     from        old version of the JAR file.
+     * @param     to          new version of the JAR file.
+     * @return                the difference between both versions.
+     * @exception IOException thrown if either file is not a supported JAR file, or if any IO related error occurs.
+     */
+    private static JarDiff diff(FileChannel from, FileChannel to) throws IOException {
+        Map<String, ZipDirectory.Entry> oldEntries;
+        Map<String, ZipDirectory.Entry> newEntries;
+        JarDiff                         diff;
+
+        diff       = new JarDiff();
+        oldEntries = index(ZipDirectory.read(from).getEntries());
+        newEntries = index(ZipDirectory.read(to).getEntriesByOffset());
+
+        for(ZipDirectory.Entry entry : newEntries.values()) {
+            ZipDirectory.Entry old;
+
+            if((old = oldEntries.get(entry.getName())) == null) {
+                diff.entries.add(entry);
+                diff.added++;
+            }
+            else if(!equals(from, old, to, entry))
+                diff.entries.add(entry);
+        }
+
+        for(String name : oldEntries.keySet())
+            if(!newEntries.containsKey(name))
+                diff.removed.add(name);
+
+        return diff;
+    }
+
+    /**
+     * Indexes the specified entries by name, keeping their order and ignoring any JarDiff index.
+     * @param  entries entries to index.
+     * @return         the specified entries, indexed by name.
+     */
+    private static Map<String, ZipDirectory.Entry> index(List<ZipDirectory.Entry> entries) {
+        Map<String, ZipDirectory.Entry> map;
+
+        map = new LinkedHashMap<String, ZipDirectory.Entry>();
+        for(ZipDirectory.Entry entry : entries)
+            if(!entry.getName().equals(INDEX))
+                map.put(entry.getName(), entry);
+
+        return map;
+    }
+
+    /**
+     * Checks whether two entries have the same content.
+     * @param     from        archive that contains <code>a</code>.
+     * @param     a           first entry.
+     * @param     to          archive that contains <code>b</code>.
+     * @param     b           second entry.
+     * @return                <code>true</code> if both entries have the same content.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static boolean equals(FileChannel from, ZipDirectory.Entry a, FileChannel to, ZipDirectory.Entry b)
+            throws IOException {
+        if(a.getCrc() != b.getCrc() || a.getSize() != b.getSize())
+            return false;
+        return Arrays.equals(ZipDirectory.readContent(from, a), ZipDirectory.readContent(to, b));
+    }
+
+
+
+    // - Diff access ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns <code>true</code> if both versions have the same content.
+     * @return <code>true</code> if both versions have the same content.
+     */
+    boolean isEmpty() {return entries.isEmpty() && removed.isEmpty();}
+
+    /**
+     * Returns the number of shipped entries that don't exist in the old version.
+     * @return the number of shipped entries that don't exist in the old version.
+     */
+    int getAddedCount() {return added;}
+
+    /**
+     * Returns the number of shipped entries that exist, with a different content, in the old version.
+     * @return the number of shipped entries that exist, with a different content, in the old version.
+     */
+    int getChangedCount() {return entries.size() - added;}
+
+    /**
+     * Returns the number of entries of the old version that must be removed.
+     * @return the number of entries of the old version that must be removed.
+     */
+    int getRemovedCount() {return removed.size();}
+
+
+
+    // - Diff storage --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes this diff in the JarDiff format.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     to          new version of the JAR file, from which entries are copied.
+     * @param     time        last modification date of the index, in milliseconds since the epoch.
+     * @param     out         where to write the diff.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    void write(File to, long time, OutputStream out) throws IOException {
+        RandomAccessFile file;
+        RawZipWriter     writer;
+
+        writer = new RawZipWriter(out);
+        writer.add(INDEX, time, getIndex());
+
+        file = new RandomAccessFile(to, "r");
+        try {
+            for(ZipDirectory.Entry entry : entries)
+                writer.copy(file.getChannel(), entry);
+        }
+        finally {file.close();}
+
+        writer.finish();
+    }
+
+    /**
+     * Returns the content of the JarDiff index.
+     * @return the content of the JarDiff index.
+     */
+    private byte[] getIndex() {
+        StringBuilder index;
+
+        index = new StringBuilder(VERSION_HEADER).append('\n');
+        for(String name : removed)
+            index.append(REMOVE_COMMAND).append(' ').append(escape(name)).append('\n');
+
+        return index.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Escapes the spaces and backslashes of the specified entry name, as expected by JarDiff indexes.
+     * @param  name name to escape.
+     * @return      the escaped name.
+     */
+    private static String escape(String name) {
+        StringBuilder buffer;
+
+        buffer = new StringBuilder(name.length());
+        for(int i = 0; i < name.length(); i++) {
+            char c;
+
+            if((c = name.charAt(i)) == ' ' || c == '\\')
+                buffer.append('\\');
+            buffer.append(c);
+        }
+
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.SourceDate;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Ant task used to generate JarDiff files, which allow Java Web Start clients to update JAR files incrementally.
+ * <p>
+ * The nested filesets describe the new versions of the JAR files, usually the same files as the resources of the JNLP
+ * file. Their old versions are looked for under the same relative paths in the folder specified by the
+ * <code>olddir</code> attribute, which should be a copy of the previous release's codebase. JAR files that don't
+ * exist in the old release are skipped.
+ * </p>
+ * <p>
+ * Each JarDiff file is written to the folder specified by the <code>todir</code> attribute, under the same relative
+ * path as its JAR file but named after both versions it bridges, <code>name__Vold__Vnew.jardiff</code>, as expected
+ * by the version-based download protocol. Versions are content hashes, computed the same way as by the
+ * <code>hashversions</code> attribute of <code>mkjnlp</code>, so that JarDiff files match the versions published in
+ * JNLP files. Since each name describes a single pair of versions, JarDiff files of earlier releases remain valid and
+ * are left untouched.
+ * </p>
+ * <p>
+ * JarDiff files that wouldn't be smaller than the JAR file they describe are useless, and are not written. JAR files
+ * are compared concurrently. File digests can be stored across builds in the file specified by the optional
+ * <code>hashcache</code> attribute. See {@link JarDiff} for details on the format.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class JarDiffTask extends Task {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Extension of JarDiff files. */
+    private static final String EXTENSION = ".jardiff";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Copy of the previous release's codebase. */
+    private File          oldDir;
+    /** Where to write JarDiff files. */
+    private File          destination;
+    /** Maximum number of threads to use. */
+    private int           threads;
+    /** Where to store file digests across builds, <code>null</code> to always compute them. */
+    private File          hashCacheFile;
+    /** New versions of the JAR files. */
+    private List<FileSet> files;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises a JarDiffTask.
+     */
+    public JarDiffTask() {}
+
+    /**
+     * Initialises the JarDiffTask.
+     */
+    public void init() {
+        oldDir        = null;
+        destination   = null;
+        threads       = ParallelRunner.getDefaultThreads();
+        hashCacheFile = null;
+        files         = new ArrayList<FileSet>();
+    }
+
+
+
+    // - Parameters ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Copy of the previous release's codebase.
+     */
+    public void setOlddir(File f) {oldDir = f;}
+
+    /**
+     * Where to write JarDiff files.
+     */
+    public void setTodir(File f) {destination = f;}
+
+    /**
+     * Maximum number of threads to use.
+     * <p>
+     * Defaults to the number of available processors.
+     * </p>
+     */
+    public void setThreads(int i) {threads = i;}
+
+    /**
+     * Where to store file digests across builds.
+     * <p>
+     * Not set by default, in which case digests are computed anew on each run.
+     * </p>
+     */
+    public void setHashcache(File f) {hashCacheFile = f;}
+
+
+
+    // - Nested elements -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    public void addFileset(FileSet f) {files.add(f);}
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure all parameters have been properly initialised.
+     */
+    private void check() throws BuildException {
+        if(oldDir == null)
+            throw new BuildException("No previous release specified. Please fill in the olddir argument.");
+        if(!oldDir.isDirectory())
+            throw new BuildException("Directory not found: " + oldDir);
+        if(destination == null)
+            throw new BuildException("No destination folder specified. Please fill in the todir argument.");
+        if(files.isEmpty())
+            throw new BuildException("No JAR file specified. Please add a nested fileset.");
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+    }
+
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs while generating JarDiff files.
+     */
+    public void execute() throws BuildException {
+        List<String>           paths;
+        List<Callable<Result>> work;
+        List<Result>           results;
+        final HashCache        cache;
+        long                   size;
+        long                   diffSize;
+        int                    count;
+
+        check();
+        cache = hashCacheFile == null ? null : HashCache.load(hashCacheFile);
+
+        // Lists the JAR files that exist in both releases.
+        paths = new ArrayList<String>();
+        work  = new ArrayList<Callable<Result>>();
+        for(FileSet set : files) {
+            DirectoryScanner scanner;
+
+            scanner = set.getDirectoryScanner(getProject());
+            for(String path : scanner.getIncludedFiles()) {
+                final File   from;
+                final File   to;
+                final String diffPath;
+
+                from = new File(oldDir, path);
+                to   = new File(set.getDir(getProject()), path);
+                if(!from.isFile()) {
+                    log("Skipped " + path + ": not found in " + oldDir + ".");
+                    continue;
+                }
+                diffPath = path;
+                paths.add(path);
+                work.add(new Callable<Result>() {
+                    public Result call() throws IOException {return diff(from, to, diffPath, cache);}
+                });
+            }
+        }
+
+        // Generates all JarDiff files concurrently and reports savings.
+        results  = ParallelRunner.run(work, threads);
+        size     = 0;
+        diffSize = 0;
+        count    = 0;
+        for(int i = 0; i < results.size(); i++) {
+            Result result;
+
+            result = results.get(i);
+            if(result.diff == null)
+                log("Skipped " + paths.get(i) + ": unchanged.", Project.MSG_VERBOSE);
+            else if(result.diffSize < 0)
+                log("Skipped " + paths.get(i) + ": JarDiff would not be smaller than the JAR file.");
+            else {
+                log("Created JarDiff for " + paths.get(i) + ": " + result.diff.getChangedCount() + " changed, "
+                    + result.diff.getAddedCount() + " added, " + result.diff.getRemovedCount() + " removed, "
+                    + result.diffSize + " bytes (" + Math.round(result.diffSize * 100.0 / result.size) + "% of "
+                    + result.size + ").");
+                size     += result.size;
+                diffSize += result.diffSize;
+                count++;
+            }
+        }
+        log("Created " + count + " JarDiff files, " + diffSize + " bytes instead of " + size + ".");
+
+        // Stores file digests for the next build.
+        if(cache != null) {
+            try {cache.save();}
+            catch(IOException e) {throw new BuildException("Could not save " + hashCacheFile, e);}
+        }
+    }
+
+    /**
+     * Returns the path of the JarDiff file between the specified versions of a JAR file.
+     * <p>
+     * This follows the naming convention of the version-based download protocol:
+     * <code>lib/name.jar</code> yields <code>lib/name__Vold__Vnew.jardiff</code>.
+     * </p>
+     * @param  path       path of the JAR file.
+     * @param  oldVersion version of the old JAR file.
+     * @param  newVersion version of the new JAR file.
+     * @return            the path of the JarDiff file between the specified versions.
+     */
+    static String getDiffPath(String path, String oldVersion, String newVersion) {
+        if(path.toLowerCase().endsWith(".jar"))
+            path = path.substring(0, path.length() - 4);
+        return path + VersionIndex.VERSION_MARKER + oldVersion + VersionIndex.VERSION_MARKER + newVersion + EXTENSION;
+    }
+
+    /**
+     * Generates the JarDiff file of the specified JAR file.
+     * <p>
+     * The JarDiff file is written next to its destination and moved in place once complete. Any previous JarDiff file
+     * between the same versions is deleted if the new one is not worth writing.
+     * </p>
+     * @param     from        old version of the JAR file.
+     * @param     to          new version of the JAR file.
+     * @param     path        path of the JAR file, relative to the codebase.
+     * @param     cache       where to look for file digests, <code>null</code> to always compute them.
+     * @return                the result of the comparison.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private Result diff(File from, File to, String path, HashCache cache) throws IOException {
+        JarDiff      diff;
+        OutputStream out;
+        String       oldVersion;
+        String       newVersion;
+        File         target;
+        File         temp;
+        Long         time;
+
+        // Identical versions need no JarDiff file, and don't even need to be compared.
+        oldVersion = ResourceStats.getHashVersion(from, cache);
+        newVersion = ResourceStats.getHashVersion(to, cache);
+        if(oldVersion.equals(newVersion) || (diff = JarDiff.diff(from, to)).isEmpty())
+            return new Result(null, to.length(), -1);
+
+        target = new File(destination, getDiffPath(path, oldVersion, newVersion).replace('/', File.separatorChar));
+
+        if(!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs())
+            throw new IOException("Could not create directory " + target.getParentFile());
+        if((time = SourceDate.getTime()) == null)
+            time = to.lastModified();
+
+        temp = new File(target.getPath() + ".tmp");
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            try {diff.write(to, time, out);}
+            finally {out.close();}
+
+            if(temp.length() >= to.length()) {
+                target.delete();
+                return new Result(diff, to.length(), -1);
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {temp.delete();}
+
+        return new Result(diff, to.length(), target.length());
+    }
+
+
+
+    // - Result class --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Describes the JarDiff file of a JAR file.
+     * @author Nicolas Rinaudo
+     */
+    private static class Result {
+        /** Difference between both versions, <code>null</code> if they're identical. */
+        private final JarDiff diff;
+        /** Size of the new version of the JAR file. */
+        private final long    size;
+        /** Size of the JarDiff file, <code>-1</code> if it wasn't written. */
+        private final long    diffSize;
+
+        /**
+         * Creates a new result.
+         * @param diff     difference between both versions, <code>null</code> if they're identical.
+         * @param size     size of the new version of the JAR file.
+         * @param diffSize size of the JarDiff file, <code>-1</code> if it wasn't written.
+         */
+        Result(JarDiff diff, long size, long diffSize) {
+            this.diff     = diff;
+            this.size     = size;
+            this.diffSize = diffSize;
+        }
+    }
+}
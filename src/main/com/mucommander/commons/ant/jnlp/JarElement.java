@@ -21,7 +21,7 @@ package com.mucommander.commons.ant.jnlp;
 /**
  * @author Nicolas Rinaudo
  */
-public class JarElement extends Downloadable {
+public class JarElement extends Downloadable implements Resource {
     private String href;
     private String version;
     private boolean main;
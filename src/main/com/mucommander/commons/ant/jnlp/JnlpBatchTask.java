@@ -0,0 +1,372 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.XmlSerializer;
+import com.mucommander.commons.ant.util.XmlWriter;
+import org.apache.tools.ant.BuildException;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Ant task used to generate several variants of a JNLP file in one go.
+ * <p>
+ * The task accepts exactly the same attributes and nested elements as the {@link JnlpTask mkjnlp} task, which
+ * describe the base JNLP file. Nested <code>axis</code> elements then describe how variants differ: each axis has a
+ * name, such as <code>locale</code> or <code>platform</code>, and a list of <code>variant</code> elements. A variant
+ * has a value and may add <code>information</code> and <code>resources</code> elements, as well as application
+ * arguments, to the base file. One JNLP file is generated for each combination of variants, and written to the file
+ * described by the <code>out</code> attribute, in which each <code>@name@</code> token is replaced by the value of
+ * the matching axis. So is the <code>href</code> attribute.
+ * </p>
+ * <p>
+ * Generating variants through this task rather than through repeated calls to <code>mkjnlp</code> has the following
+ * advantages:
+ * <ul>
+ *   <li>
+ *     Resources are examined, hashed, renamed and versioned once, however many files they appear in, and so is the
+ *     class analysis required by the <code>partition</code> and <code>packages</code> attributes.
+ *   </li>
+ *   <li>
+ *     The base file's <code>information</code> and <code>resources</code> elements, and those of each variant, are
+ *     rendered once and spliced into all the files that use them.
+ *   </li>
+ *   <li>Files are assembled and written concurrently.</li>
+ * </ul>
+ * The cost of generating variants thus grows with the amount of unique content rather than with the number of
+ * combinations.
+ * </p>
+ * <p>
+ * Partitioning and package declarations only take the base file's resources into account.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class JnlpBatchTask extends JnlpTask {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Axes along which variants differ. */
+    private List<AxisElement> axes;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Initialises the JnlpBatchTask.
+     */
+    public void init() {
+        super.init();
+        axes = new ArrayList<AxisElement>();
+    }
+
+
+
+    // - Nested elements -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Declares a new axis.
+     * @return the description of the new axis.
+     */
+    public AxisElement createAxis() {
+        AxisElement axis;
+
+        axis = new AxisElement();
+        axes.add(axis);
+
+        return axis;
+    }
+
+
+
+    // - Matrix --------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure that all axes and variants are properly described.
+     * @exception BuildException thrown if an axis or variant isn't properly described.
+     */
+    private void checkAxes() throws BuildException {
+        Set<String> names;
+
+        if(axes.isEmpty())
+            throw new BuildException("No axis specified. Please add nested axis elements.");
+        if(getTemplate() != null)
+            throw new BuildException("Templates can only be compiled by mkjnlp.");
+
+        names = new HashSet<String>();
+        for(AxisElement axis : axes) {
+            Set<String> values;
+
+            if(axis.getName() == null)
+                throw new BuildException("Missing name attribute for axis element.");
+            if(!names.add(axis.getName()))
+                throw new BuildException("Duplicate axis: " + axis.getName());
+            if(axis.getVariants().isEmpty())
+                throw new BuildException("No variant specified for axis " + axis.getName() + ".");
+
+            values = new HashSet<String>();
+            for(VariantElement variant : axis.getVariants()) {
+                if(variant.getValue() == null)
+                    throw new BuildException("Missing value attribute for variant of axis " + axis.getName() + ".");
+                if(!values.add(variant.getValue()))
+                    throw new BuildException("Duplicate variant of axis " + axis.getName() + ": " + variant.getValue());
+                if(!variant.getArguments().isEmpty() && !isApplication())
+                    throw new BuildException("Variant arguments require an application description.");
+            }
+        }
+    }
+
+    /**
+     * Returns all combinations of variants, one per axis.
+     * @return all combinations of variants, in axis order.
+     */
+    private List<VariantElement[]> getCombinations() {
+        List<VariantElement[]> combinations;
+        int[]                  indexes;
+
+        combinations = new ArrayList<VariantElement[]>();
+        indexes      = new int[axes.size()];
+        while(true) {
+            VariantElement[] combination;
+            int              axis;
+
+            combination = new VariantElement[axes.size()];
+            for(int i = 0; i < combination.length; i++)
+                combination[i] = axes.get(i).getVariants().get(indexes[i]);
+            combinations.add(combination);
+
+            // Moves to the next combination, the last axis varying fastest.
+            for(axis = indexes.length - 1; axis >= 0; axis--) {
+                if(++indexes[axis] < axes.get(axis).getVariants().size())
+                    break;
+                indexes[axis] = 0;
+            }
+            if(axis < 0)
+                return combinations;
+        }
+    }
+
+    /**
+     * Replaces the <code>@name@</code> tokens of the specified pattern by the values of the specified combination.
+     * @param  pattern     pattern to expand.
+     * @param  combination values of each axis.
+     * @return             the expanded pattern, <code>null</code> if <code>pattern</code> is.
+     */
+    private String expand(String pattern, VariantElement[] combination) {
+        if(pattern == null)
+            return null;
+        for(int i = 0; i < combination.length; i++)
+            pattern = pattern.replace('@' + axes.get(i).getName() + '@', combination[i].getValue());
+        return pattern;
+    }
+
+
+
+    // - Rendering -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Renders the specified elements once, for splicing into all the files that use them.
+     * @param     informations   information elements to render.
+     * @param     resources      resources elements to render.
+     * @return                   the rendered elements.
+     * @exception SAXException   thrown if an error occurs while rendering the elements.
+     * @exception BuildException thrown if a resource cannot be processed.
+     */
+    private Fragments render(List<InformationElement> informations, List<ResourcesElement> resources)
+            throws SAXException, BuildException {
+        ByteArrayOutputStream buffer;
+        XmlWriter             out;
+        Fragments             fragments;
+
+        buffer    = new ByteArrayOutputStream();
+        out       = new XmlWriter(new XmlSerializer(buffer, 1));
+        fragments = new Fragments();
+
+        writeInformations(out, informations);
+        fragments.informations = buffer.toByteArray();
+
+        buffer.reset();
+        writeResources(out, resources);
+        fragments.resources = buffer.toByteArray();
+
+        return fragments;
+    }
+
+    /**
+     * Writes the specified combination of variants to the specified file.
+     * @param     file         where to write the JNLP file.
+     * @param     href         <code>href</code> of the JNLP file.
+     * @param     base         fragments of the base file.
+     * @param     combination  variants to write.
+     * @param     rendered     fragments of each variant.
+     * @exception IOException  thrown if an IO error occurs.
+     * @exception SAXException thrown if an error occurs while writing the file.
+     */
+    private void write(File file, String href, Fragments base, VariantElement[] combination,
+                       Map<VariantElement, Fragments> rendered) throws IOException, SAXException {
+        OutputStream          stream;
+        XmlSerializer         serializer;
+        XmlWriter             out;
+        List<ArgumentElement> arguments;
+
+        stream = null;
+        try {
+            serializer = new XmlSerializer(stream = new BufferedOutputStream(new FileOutputStream(file)));
+            out        = new XmlWriter(serializer);
+            startJnlp(out, href);
+
+            serializer.fragment(base.informations);
+            for(VariantElement variant : combination)
+                serializer.fragment(rendered.get(variant).informations);
+
+            writeSecurity(out);
+
+            serializer.fragment(base.resources);
+            for(VariantElement variant : combination)
+                serializer.fragment(rendered.get(variant).resources);
+
+            arguments = new ArrayList<ArgumentElement>();
+            for(VariantElement variant : combination)
+                arguments.addAll(variant.getArguments());
+            writeBundleDescription(out, arguments);
+
+            endJnlp(out);
+        }
+        finally {
+            if(stream != null)
+                stream.close();
+        }
+    }
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs during JNLP files generation.
+     */
+    public void execute() throws BuildException {
+        List<ResourcesElement>   resources;
+        List<InformationElement> informations;
+        List<VariantElement[]>   combinations;
+        List<File>               outputs;
+        List<Callable<Void>>     work;
+        int                      count;
+
+        check();
+        checkAxes();
+
+        // Lists all resources and information elements, as well as the files to generate.
+        resources    = new ArrayList<ResourcesElement>(getResources());
+        informations = new ArrayList<InformationElement>(getInformations());
+        count        = 0;
+        for(AxisElement axis : axes) {
+            for(VariantElement variant : axis.getVariants()) {
+                resources.addAll(variant.getResources());
+                informations.addAll(variant.getInformations());
+                count++;
+            }
+        }
+
+        combinations = getCombinations();
+        outputs      = new ArrayList<File>(combinations.size());
+        for(VariantElement[] combination : combinations) {
+            File file;
+
+            file = new File(expand(getOutput().getPath(), combination));
+            if(outputs.contains(file))
+                throw new BuildException("Several variants would be written to " + file
+                                         + ". Please use @axis@ tokens in the out attribute.");
+            outputs.add(file);
+        }
+
+        prepare(resources);
+        try {
+            final Fragments                      base;
+            final Map<VariantElement, Fragments> fragments;
+
+            // Renders shared elements once.
+            base      = render(getInformations(), getResources());
+            fragments = new HashMap<VariantElement, Fragments>();
+            for(AxisElement axis : axes)
+                for(VariantElement variant : axis.getVariants())
+                    fragments.put(variant, render(variant.getInformations(), variant.getResources()));
+
+            // Assembles and writes all combinations concurrently.
+            work = new ArrayList<Callable<Void>>(combinations.size());
+            for(int i = 0; i < combinations.size(); i++) {
+                final File             file;
+                final String           href;
+                final VariantElement[] combination;
+
+                combination = combinations.get(i);
+                file        = outputs.get(i);
+                href        = expand(getHref(), combination);
+                work.add(new Callable<Void>() {
+                    public Void call() throws IOException, SAXException {
+                        write(file, href, base, combination, fragments);
+                        return null;
+                    }
+                });
+            }
+            ParallelRunner.run(work, getThreads());
+
+            finish();
+        }
+        catch(IOException e) {throw new BuildException(e);}
+        catch(SAXException e) {throw new BuildException(e);}
+        finally {cleanup();}
+
+        log("Generated " + outputs.size() + " JNLP files from " + count + " variants.");
+
+        // Compresses the JNLP files and the descriptors they refer to, now that they're complete.
+        if(isGzip()) {
+            gzipDescriptors(outputs, informations, resources);
+            log("Generated " + getGzipped() + " gzip siblings.");
+        }
+    }
+
+
+
+    // - Fragments class -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Elements of a JNLP file, rendered at the depth of the root element's children.
+     * @author Nicolas Rinaudo
+     */
+    private static class Fragments {
+        /** Rendered information elements. */
+        private byte[] informations;
+        /** Rendered resources elements. */
+        private byte[] resources;
+    }
+}
@@ -18,6 +18,10 @@
 
 package com.mucommander.commons.ant.jnlp;
 
+import com.mucommander.commons.ant.util.Gzip;
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.XmlSerializer;
 import com.mucommander.commons.ant.util.XmlWriter;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
@@ -25,16 +29,71 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- *
+ * Ant task used to generate JNLP files.
+ * <p>
+ * When the <code>basedir</code> attribute points to a local copy of the codebase, the <code>size</code> attribute of
+ * <code>jar</code> and <code>nativelib</code> elements with a relative <code>href</code> is filled in automatically.
+ * If the <code>hashversions</code> attribute is set, so is their <code>version</code> attribute, which becomes a hash
+ * of the file's content. Explicit values always take precedence. Files are examined concurrently.
+ * </p>
+ * <p>
+ * Large numbers of resources are best described through <code>jarset</code> and <code>nativelibset</code> elements,
+ * which accept filesets and paths. These are only expanded while the JNLP file is being written and streamed to it in
+ * bounded batches, so that memory usage doesn't depend on the number of resources. Their sizes are always filled in,
+ * and so are their versions if <code>hashversions</code> is set, whether or not <code>basedir</code> is.
+ * </p>
+ * <p>
+ * If the <code>versiondir</code> attribute is set, the task also generates the files used by the version-based
+ * download protocol: each local resource is copied to that folder as <code>name__Vversion.ext</code> and listed in
+ * the <code>version.xml</code> file of its folder. This implies <code>hashversions</code>, so that resources keep
+ * their version, and clients their cached copy, for as long as their content doesn't change. See
+ * {@link VersionIndex} for details.
+ * </p>
+ * <p>
+ * If the <code>hashnames</code> attribute is set to either <code>copy</code> or <code>link</code>, local resources are
+ * also copied or hard linked to content-addressed names, and their <code>href</code> rewritten to match. Their URLs
+ * then always describe the same content, and can be cached as immutable. Files are written to the folder specified
+ * by the <code>hashdir</code> attribute, which defaults to <code>basedir</code>. See {@link ContentNames} for details.
+ * </p>
+ * <p>
+ * File digests can be stored across builds in the file specified by the optional <code>hashcache</code> attribute,
+ * in which case they are only recomputed for files whose size or last modification date changed.
+ * </p>
+ * <p>
+ * If the <code>gzip</code> attribute is set, <code>.gz</code> siblings are generated at maximum compression for the
+ * JNLP file and for all the local files it refers to, so that web servers can send precompressed content. Siblings
+ * that are up to date are left untouched. See {@link Gzip} for details.
+ * </p>
+ * <p>
+ * If the <code>partition</code> attribute is set, the local JAR files of an application are analysed from its main
+ * class to decide which must be downloaded eagerly, and the others are made lazy and grouped in parts whose packages
+ * are declared automatically. This overrides the <code>download</code> and <code>part</code> attributes of lazy JAR
+ * files. See {@link LazyPartition} for details.
+ * </p>
+ * <p>
+ * If the <code>template</code> attribute is set, the JNLP file is also compiled into a template, in which servers can
+ * splice per-request properties and arguments without the cost of an XML pipeline. See {@link JnlpTemplate} for
+ * details.
+ * </p>
+ * <p>
+ * If the <code>packages</code> attribute is set, or when partitioning, the <code>package</code> elements of each part
+ * that has lazy local JAR files are generated from their content, unless some are already declared for that part.
+ * Packages are collapsed into recursive declarations where that's safe. See {@link PackageIndex} for details.
+ * </p>
  * @author Nicolas Rinaudo
  */
 public class JnlpTask extends Task {
@@ -42,6 +101,8 @@ public class JnlpTask extends Task {
     // -----------------------------------------------------------------------------------------------------------------
     /** Default value of the {@link #spec} field. */
     private static final String     DEFAULT_SPEC     = "1.0+";
+    /** Number of resources examined at once when expanding resource sets. */
+    private static final int        BATCH_SIZE       = 256;
 
 
 
@@ -133,6 +194,40 @@ public class JnlpTask extends Task {
     private AppletDescElement        appletDesc;
     /** Contains the description of installer bundles. */
     private InstallerDescElement     installerDesc;
+    /** Local copy of the codebase, used to fill in resource sizes and versions. */
+    private File                     baseDir;
+    /** Whether to set resource versions to the hash of their content. */
+    private boolean                  hashVersions;
+    /** Maximum number of threads to use. */
+    private int                      threads;
+    /** Where to write the files used by the version-based download protocol. */
+    private File                     versionDir;
+    /** Version index being generated, <code>null</code> if none. */
+    private VersionIndex             versions;
+    /** How to give resources content-addressed names, <code>null</code> if they should keep their names. */
+    private String                   hashNames;
+    /** Where to write content-addressed files, defaults to {@link #baseDir}. */
+    private File                     hashDir;
+    /** Where to store file digests across builds. */
+    private File                     hashCacheFile;
+    /** File digests, <code>null</code> if no file needs to be hashed. */
+    private HashCache                hashCache;
+    /** Content-addressed namer being used, <code>null</code> if none. */
+    private ContentNames             names;
+    /** Whether to generate gzip siblings of the JNLP file and of the files it refers to. */
+    private boolean                  gzip;
+    /** Number of gzip siblings generated so far. */
+    private int                      gzipped;
+    /** Whether to compute which JAR files are eager and how lazy ones are grouped. */
+    private boolean                  partition;
+    /** Partition of local JAR files, <code>null</code> if none. */
+    private LazyPartition            lazyPartition;
+    /** Whether to declare the packages of lazy parts. */
+    private boolean                  packages;
+    /** Where to write the compiled template of the JNLP file, <code>null</code> if none. */
+    private File                     template;
+    /** Compiler recording the JNLP file, <code>null</code> if no template is being compiled. */
+    private JnlpTemplate.Compiler    compiler;
 
 
 
@@ -155,6 +250,23 @@ public class JnlpTask extends Task {
         applicationDesc = null;
         appletDesc      = null;
         installerDesc   = null;
+        baseDir         = null;
+        hashVersions    = false;
+        threads         = ParallelRunner.getDefaultThreads();
+        versionDir      = null;
+        versions        = null;
+        hashNames       = null;
+        hashDir         = null;
+        hashCacheFile   = null;
+        hashCache       = null;
+        names           = null;
+        gzip            = false;
+        gzipped         = 0;
+        partition       = false;
+        lazyPartition   = null;
+        packages        = false;
+        template        = null;
+        compiler        = null;
     }
 
 
@@ -218,6 +330,50 @@ public class JnlpTask extends Task {
         href = s;
     }
 
+    public void setBaseDir(File f) {
+        baseDir = f;
+    }
+
+    public void setHashVersions(boolean b) {
+        hashVersions = b;
+    }
+
+    public void setThreads(int i) {
+        threads = i;
+    }
+
+    public void setVersionDir(File f) {
+        versionDir = f;
+    }
+
+    public void setHashNames(String s) {
+        hashNames = s;
+    }
+
+    public void setHashDir(File f) {
+        hashDir = f;
+    }
+
+    public void setHashCache(File f) {
+        hashCacheFile = f;
+    }
+
+    public void setGzip(boolean b) {
+        gzip = b;
+    }
+
+    public void setPartition(boolean b) {
+        partition = b;
+    }
+
+    public void setPackages(boolean b) {
+        packages = b;
+    }
+
+    public void setTemplate(File f) {
+        template = f;
+    }
+
     public void setAllPermissions(boolean b) {
         allPermissions = b;
     }
@@ -243,7 +399,7 @@ public class JnlpTask extends Task {
         attr.addAttribute("", name, name, "string", value);
     }
 
-    private Attributes getRootAttributes() {
+    private Attributes getRootAttributes(String href) {
         AttributesImpl attr;
 
         attr = new AttributesImpl();
@@ -355,7 +511,7 @@ public class JnlpTask extends Task {
         out.endElement(ELEMENT_INFORMATION);
     }
 
-    private static void writeJ2se(XmlWriter out, J2seElement j2se) throws SAXException {
+    private void writeJ2se(XmlWriter out, J2seElement j2se) throws SAXException {
         AttributesImpl             attr;
         Iterator<ResourcesElement> iterator;
 
@@ -426,6 +582,279 @@ public class JnlpTask extends Task {
         out.addElement(ELEMENT_NATIVE_LIB, attr);
     }
 
+    private boolean isHashingVersions() {
+        return hashVersions || versionDir != null;
+    }
+
+    private void processLocalResources(ResourcesElement resources) throws BuildException {
+        List<Resource>             list;
+        List<File>                 files;
+        Iterator<JarElement>       jars;
+        Iterator<NativeLibElement> nativeLibs;
+
+        list  = new ArrayList<Resource>();
+        files = new ArrayList<File>();
+
+        jars = resources.jars();
+        while(jars.hasNext())
+            addLocalResource(jars.next(), list, files);
+
+        nativeLibs = resources.nativeLibs();
+        while(nativeLibs.hasNext())
+            addLocalResource(nativeLibs.next(), list, files);
+
+        processLocalResources(resources, list, files);
+    }
+
+    private void processLocalResources(ResourcesElement resources, List<? extends Resource> list, List<File> files)
+            throws BuildException {
+        if(names != null)
+            names.rename(list, files);
+        if(versions != null)
+            versions.add(list, files, resources);
+
+        // Compresses the files that are actually served.
+        if(gzip) {
+            List<File> served;
+
+            if(names == null)
+                served = files;
+            else {
+                served = new ArrayList<File>(list.size());
+                for(Resource resource : list)
+                    served.add(new File(hashDir, resource.getHref().replace('/', File.separatorChar)));
+            }
+            gzipped += Gzip.compressSiblings(served, threads);
+        }
+    }
+
+    private void listDescriptors(Iterator<ResourcesElement> resources, List<File> files) throws BuildException {
+        while(resources.hasNext()) {
+            ResourcesElement           element;
+            Iterator<ExtensionElement> extensions;
+            Iterator<J2seElement>      j2ses;
+
+            element    = resources.next();
+            extensions = element.extensions();
+            while(extensions.hasNext())
+                addDescriptor(extensions.next().getHref(), files);
+
+            j2ses = element.j2ses();
+            while(j2ses.hasNext())
+                listDescriptors(j2ses.next().resources(), files);
+        }
+    }
+
+    private void addDescriptor(String href, List<File> files) throws BuildException {
+        File file;
+
+        if(href != null && (file = ResourceStats.getFile(baseDir, href)) != null && file.isFile())
+            files.add(file);
+    }
+
+    void gzipDescriptors(List<File> outputs, List<InformationElement> informations, List<ResourcesElement> resources)
+            throws BuildException {
+        List<File> files;
+
+        files = new ArrayList<File>(outputs);
+        if(baseDir != null) {
+            for(InformationElement information : informations) {
+                Iterator<IconElement> icons;
+
+                icons = information.icons();
+                while(icons.hasNext())
+                    addDescriptor(icons.next().getHref(), files);
+            }
+            listDescriptors(resources.iterator(), files);
+        }
+        gzipped += Gzip.compressSiblings(files, threads);
+    }
+
+    private void addLocalResource(Resource resource, List<Resource> list, List<File> files) throws BuildException {
+        File file;
+
+        if(baseDir == null || resource.getHref() == null)
+            return;
+        if((file = ResourceStats.getFile(baseDir, resource.getHref())) != null) {
+            list.add(resource);
+            files.add(file);
+        }
+    }
+
+    private void writeResourceSet(XmlWriter out, ResourcesElement resources, ResourceSetElement set, boolean nativeLib)
+            throws SAXException {
+        Iterator<org.apache.tools.ant.types.Resource> iterator;
+        List<Resource>                                batch;
+        List<File>                                    files;
+        String                                        download;
+
+        download = set.getDownload() == Downloadable.DOWNLOAD_LAZY ? Downloadable.LAZY_LABEL : Downloadable.EAGER_LABEL;
+        iterator = set.resources();
+        batch    = new ArrayList<Resource>(BATCH_SIZE);
+        files    = new ArrayList<File>(BATCH_SIZE);
+        while(iterator.hasNext()) {
+            org.apache.tools.ant.types.Resource resource;
+            File                                file;
+            String                              href;
+
+            resource = iterator.next();
+            file     = ResourceSetElement.getFile(resource);
+            href     = set.getHref(resource, file, baseDir);
+            if(nativeLib) {
+                NativeLibElement element;
+
+                element = new NativeLibElement();
+                element.setHref(href);
+                element.setPart(set.getPart());
+                element.setDownload(download);
+                batch.add(element);
+            }
+            else {
+                JarElement element;
+
+                element = new JarElement();
+                element.setHref(href);
+                element.setPart(set.getPart());
+                element.setDownload(download);
+                if(lazyPartition != null)
+                    applyPartition(element, file);
+                batch.add(element);
+            }
+            files.add(file);
+
+            // Examines and writes resources a batch at a time, which keeps memory usage bounded while still
+            // allowing files to be hashed concurrently.
+            if(batch.size() == BATCH_SIZE || !iterator.hasNext()) {
+                ResourceStats.fill(batch, files, isHashingVersions(), hashCache, threads);
+                processLocalResources(resources, batch, files);
+                for(Resource element : batch) {
+                    if(nativeLib)
+                        writeNativeLib(out, (NativeLibElement)element);
+                    else
+                        writeJar(out, (JarElement)element);
+                }
+                batch.clear();
+                files.clear();
+            }
+        }
+    }
+
+    private static String getDeclaredPart(Downloadable element, String part) {
+        return element.getDownload() == Downloadable.DOWNLOAD_LAZY ? part : null;
+    }
+
+    private void listJars(Iterator<ResourcesElement> resources, LocalJars jars) throws BuildException {
+        while(resources.hasNext()) {
+            ResourcesElement             element;
+            Iterator<JarElement>         explicit;
+            Iterator<ResourceSetElement> sets;
+            Iterator<PackageElement>     packages;
+            Iterator<J2seElement>        j2ses;
+
+            element  = resources.next();
+            explicit = element.jars();
+            while(explicit.hasNext()) {
+                JarElement jar;
+                File       file;
+
+                jar = explicit.next();
+                if(baseDir == null || jar.getHref() == null)
+                    continue;
+                if((file = ResourceStats.getFile(baseDir, jar.getHref())) != null) {
+                    jars.elements.add(jar);
+                    jars.elementFiles.add(file);
+                    jars.add(file, getDeclaredPart(jar, jar.getPart()), element);
+                }
+            }
+
+            sets = element.jarSets();
+            while(sets.hasNext()) {
+                ResourceSetElement                            set;
+                Iterator<org.apache.tools.ant.types.Resource> iterator;
+
+                set      = sets.next();
+                iterator = set.resources();
+                while(iterator.hasNext())
+                    jars.add(ResourceSetElement.getFile(iterator.next()), getDeclaredPart(set, set.getPart()), element);
+            }
+
+            packages = element.packages();
+            while(packages.hasNext())
+                jars.declared.add(packages.next().getPart());
+
+            j2ses = element.j2ses();
+            while(j2ses.hasNext())
+                listJars(j2ses.next().resources(), jars);
+        }
+    }
+
+    private void applyPartition(JarElement jar, File file) {
+        String part;
+
+        if((part = lazyPartition.getPart(file)) == null)
+            jar.setDownload(Downloadable.EAGER_LABEL);
+        else {
+            jar.setDownload(Downloadable.LAZY_LABEL);
+            jar.setPart(part);
+        }
+    }
+
+    private void computePartition(LocalJars jars) throws BuildException {
+        List<File> mainFiles;
+        long       total;
+
+        if(applicationDesc == null || applicationDesc.getMain() == null)
+            throw new BuildException("Partitioning requires the " + ATTR_MAIN_CLASS + " attribute of the "
+                                     + ELEMENT_APPLICATION_DESC + " element.");
+
+        mainFiles = new ArrayList<File>();
+        for(int i = 0; i < jars.elements.size(); i++)
+            if(jars.elements.get(i).getMain())
+                mainFiles.add(jars.elementFiles.get(i));
+
+        lazyPartition = LazyPartition.compute(applicationDesc.getMain(), jars.files, mainFiles, threads);
+
+        // Explicit JAR elements are updated now, JAR sets as they're written.
+        for(int i = 0; i < jars.elements.size(); i++)
+            applyPartition(jars.elements.get(i), jars.elementFiles.get(i));
+        for(int i = 0; i < jars.files.size(); i++)
+            jars.parts.set(i, lazyPartition.getPart(jars.files.get(i)));
+
+        total = lazyPartition.getTotalSize();
+        log("Partitioned " + (lazyPartition.getEagerCount() + lazyPartition.getLazyCount()) + " JAR files: "
+            + lazyPartition.getEagerCount() + " eager (" + lazyPartition.getEagerSize() + " of " + total + " bytes, "
+            + (total == 0 ? 100 : lazyPartition.getEagerSize() * 100 / total) + "%), " + lazyPartition.getLazyCount()
+            + " lazy in " + lazyPartition.getPartCount() + " parts.");
+    }
+
+    private void declarePackages(LocalJars jars) throws BuildException {
+        PackageIndex index;
+        Set<String>  done;
+        int          count;
+
+        index = PackageIndex.read(jars.files, jars.parts, threads);
+
+        // Declares the packages of each part with its first JAR file, unless they're already declared explicitly.
+        done  = new HashSet<String>(jars.declared);
+        count = 0;
+        for(int i = 0; i < jars.files.size(); i++) {
+            String part;
+
+            if((part = jars.parts.get(i)) == null || !done.add(part))
+                continue;
+            for(Map.Entry<String, Boolean> declaration : index.getDeclarations(part).entrySet()) {
+                PackageElement element;
+
+                element = jars.owners.get(i).createPackage();
+                element.setName(declaration.getKey() + ".*");
+                element.setPart(part);
+                element.setRecursive(declaration.getValue());
+                count++;
+            }
+        }
+        log("Declared " + count + " packages for " + (done.size() - jars.declared.size()) + " parts.");
+    }
+
     private static void writeExtensionDownload(XmlWriter out, ExtDownloadElement ext) throws SAXException {
         AttributesImpl attr;
 
@@ -501,7 +930,7 @@ public class JnlpTask extends Task {
         out.addElement(ELEMENT_PACKAGE, attr);
     }
 
-    private static void writeResources(XmlWriter out, ResourcesElement resources) throws SAXException {
+    private void writeResources(XmlWriter out, ResourcesElement resources) throws SAXException {
         AttributesImpl attr;
         Iterator<?>    iterator;
 
@@ -511,10 +940,13 @@ public class JnlpTask extends Task {
         if(resources.getArch() != null)
             addAttribute(attr, ATTR_ARCH, resources.getArch());
         if(resources.getLocale() != null)
-            addAttribute(attr, ATTR_ARCH, resources.getLocale());
+            addAttribute(attr, ATTR_LOCALE, resources.getLocale());
 
         out.startElement(ELEMENT_RESOURCES, attr);
 
+        if(names != null || versions != null || gzip)
+            processLocalResources(resources);
+
         iterator = resources.j2ses();
         while(iterator.hasNext())
             writeJ2se(out, (J2seElement)iterator.next());
@@ -523,10 +955,18 @@ public class JnlpTask extends Task {
         while(iterator.hasNext())
             writeJar(out, (JarElement)iterator.next());
 
+        iterator = resources.jarSets();
+        while(iterator.hasNext())
+            writeResourceSet(out, resources, (ResourceSetElement)iterator.next(), false);
+
         iterator = resources.nativeLibs();
         while(iterator.hasNext())
             writeNativeLib(out, (NativeLibElement)iterator.next());
 
+        iterator = resources.nativeLibSets();
+        while(iterator.hasNext())
+            writeResourceSet(out, resources, (ResourceSetElement)iterator.next(), true);
+
         iterator = resources.extensions();
         while(iterator.hasNext())
             writeExtension(out, (ExtensionElement)iterator.next());
@@ -542,28 +982,38 @@ public class JnlpTask extends Task {
         out.endElement(ELEMENT_RESOURCES);
     }
 
-    private static void writeApplicationDesc(XmlWriter out, ApplicationDescElement desc) throws SAXException {
+    private void writeApplicationDesc(XmlWriter out, ApplicationDescElement desc, List<ArgumentElement> extra)
+            throws SAXException {
         AttributesImpl attr;
 
         attr = new AttributesImpl();
         if(desc.getMain() != null)
             addAttribute(attr, ATTR_MAIN_CLASS, desc.getMain());
-        if(desc.hasArguments()) {
+        if(desc.hasArguments() || !extra.isEmpty() || compiler != null) {
             Iterator<ArgumentElement> iterator;
 
             out.startElement(ELEMENT_APPLICATION_DESC, attr);
             iterator = desc.arguments();
-            while(iterator.hasNext()) {
-                out.startElement(ELEMENT_ARGUMENT);
-                out.characters(iterator.next().getText());
-                out.endElement(ELEMENT_ARGUMENT);
-            }
+            while(iterator.hasNext())
+                writeArgument(out, iterator.next());
+            for(ArgumentElement argument : extra)
+                writeArgument(out, argument);
+
+            // Per-request arguments follow static ones.
+            if(compiler != null)
+                compiler.mark();
             out.endElement(ELEMENT_APPLICATION_DESC);
         }
         else
             out.addElement(ELEMENT_APPLICATION_DESC, attr);
     }
 
+    private static void writeArgument(XmlWriter out, ArgumentElement argument) throws SAXException {
+        out.startElement(ELEMENT_ARGUMENT);
+        out.characters(argument.getText());
+        out.endElement(ELEMENT_ARGUMENT);
+    }
+
     private static void writeAppletDesc(XmlWriter out, AppletDescElement desc) throws SAXException {
         AttributesImpl attr;
 
@@ -608,66 +1058,228 @@ public class JnlpTask extends Task {
         out.addElement(ELEMENT_INSTALLER_DESC, attr);
     }
 
-    public void execute() throws BuildException {
-        XmlWriter out;
-        OutputStream stream;
-        Iterator<?>  iterator;
-
-        // Makes sure everything is properly initialised.
+    void check() throws BuildException {
         if(informations.isEmpty())
             throw new BuildException(ELEMENT_INFORMATION + " element not found.");
         if(output == null)
             throw new BuildException("Unspecified output file.");
         if(!isComponent && applicationDesc == null && appletDesc == null && installerDesc == null)
             throw new BuildException("Unspecified bundle type.");
+        if(baseDir != null && !baseDir.isDirectory())
+            throw new BuildException("Directory not found: " + baseDir);
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+        if(hashNames != null && !ContentNames.isMode(hashNames))
+            throw new BuildException("Illegal hashnames value: " + hashNames);
+        if(hashNames != null && hashDir == null && (hashDir = baseDir) == null)
+            throw new BuildException("Content-addressed names require the basedir or hashdir attribute to be set.");
+        if(template != null && applicationDesc == null)
+            throw new BuildException("Templates require an " + ELEMENT_APPLICATION_DESC + " element.");
+    }
 
-        stream = null;
-        try {
-            // Root element.
-            out = new XmlWriter(stream = new FileOutputStream(output));
-            out.startDocument();
-            out.startElement(ELEMENT_JNLP, getRootAttributes());
+    void prepare(List<ResourcesElement> all) throws BuildException {
+        gzipped = 0;
 
-            // Information elements.
-            iterator = informations.iterator();
-            while(iterator.hasNext())
-                writeInformation(out, (InformationElement)iterator.next());
+        // Loads known file digests.
+        if(hashCacheFile != null && (isHashingVersions() || hashNames != null))
+            hashCache = HashCache.load(hashCacheFile);
 
-            // Security element (if necessary).
-            if(allPermissions || j2eePermissions) {
-                out.startElement(ELEMENT_SECURITY);
+        // Fills in resource sizes and versions.
+        if(baseDir != null)
+            ResourceStats.fill(ResourceStats.list(all.iterator()), baseDir, isHashingVersions(), hashCache, threads);
 
-                if(allPermissions)
-                    out.addElement(ELEMENT_ALL_PERMISSIONS);
-                if(j2eePermissions)
-                    out.addElement(ELEMENT_J2EE_PERMISSIONS);
+        // Decides which JAR files are eager and declares the packages of lazy ones, before their hrefs are rewritten.
+        if(partition || packages) {
+            LocalJars jars;
 
-                out.endElement(ELEMENT_SECURITY);
-            }
+            jars = new LocalJars();
+            listJars(resources.iterator(), jars);
+            if(partition)
+                computePartition(jars);
+            declarePackages(jars);
+        }
 
-            // Resources elements.
-            iterator = resources.iterator();
-            while(iterator.hasNext())
-                writeResources(out, (ResourcesElement)iterator.next());
+        if(versionDir != null)
+            versions = new VersionIndex(versionDir, hashCache, threads);
+        if(hashNames != null)
+            names = new ContentNames(hashDir, hashNames, hashCache, threads);
+    }
+
+    void finish() throws IOException {
+        // Version indexes.
+        if(versions != null) {
+            versions.close(true);
+            log("Indexed " + versions.getCount() + " versioned resources, copied " + versions.getCopiedCount()
+                + " new files to " + versionDir + ".");
+        }
+        if(names != null)
+            log("Renamed " + names.getCount() + " resources, created " + names.getCreatedCount()
+                + " new content-addressed files in " + hashDir + ".");
+
+        // Stores file digests for the next build.
+        if(hashCache != null)
+            hashCache.save();
+    }
 
-            // Application description.
-            if(applicationDesc != null)
-                writeApplicationDesc(out, applicationDesc);
+    void cleanup() {
+        if(versions != null) {
+            try {versions.close(false);}
+            catch(Exception e) {}
+            versions = null;
+        }
+        names         = null;
+        hashCache     = null;
+        lazyPartition = null;
+    }
+
+    void startJnlp(XmlWriter out, String href) throws SAXException {
+        out.startDocument();
+        out.startElement(ELEMENT_JNLP, getRootAttributes(href));
+    }
 
-                // Applet description.
-            else if(appletDesc != null)
-                writeAppletDesc(out, appletDesc);
+    void endJnlp(XmlWriter out) throws SAXException {
+        out.endElement(ELEMENT_JNLP);
+        out.endDocument();
+    }
 
-                // Component description.
-            else if(isComponent)
-                out.addElement(ELEMENT_COMPONENT_DESC);
+    void writeInformations(XmlWriter out, List<InformationElement> list) throws SAXException {
+        for(InformationElement information : list)
+            writeInformation(out, information);
+    }
+
+    void writeSecurity(XmlWriter out) throws SAXException {
+        if(allPermissions || j2eePermissions) {
+            out.startElement(ELEMENT_SECURITY);
+
+            if(allPermissions)
+                out.addElement(ELEMENT_ALL_PERMISSIONS);
+            if(j2eePermissions)
+                out.addElement(ELEMENT_J2EE_PERMISSIONS);
+
+            out.endElement(ELEMENT_SECURITY);
+        }
+    }
+
+    void writeResources(XmlWriter out, List<ResourcesElement> list) throws SAXException {
+        for(ResourcesElement element : list)
+            writeResources(out, element);
+    }
+
+    void writeBundleDescription(XmlWriter out, List<ArgumentElement> arguments) throws SAXException {
+        // Application description.
+        if(applicationDesc != null)
+            writeApplicationDesc(out, applicationDesc, arguments);
+
+            // Applet description.
+        else if(appletDesc != null)
+            writeAppletDesc(out, appletDesc);
+
+            // Component description.
+        else if(isComponent)
+            out.addElement(ELEMENT_COMPONENT_DESC);
+
+            // Installer description.
+        else
+            writeInstallerDesc(out, installerDesc);
+    }
+
+    File getOutput() {
+        return output;
+    }
+
+    String getHref() {
+        return href;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    File getTemplate() {
+        return template;
+    }
+
+    boolean isApplication() {
+        return applicationDesc != null;
+    }
 
-                // Installer description.
+    boolean isGzip() {
+        return gzip;
+    }
+
+    int getGzipped() {
+        return gzipped;
+    }
+
+    List<InformationElement> getInformations() {
+        return informations;
+    }
+
+    List<ResourcesElement> getResources() {
+        return resources;
+    }
+
+    private void writeJnlp(XmlWriter out) throws SAXException {
+        startJnlp(out, href);
+        writeInformations(out, informations);
+        writeSecurity(out);
+        writeResources(out, resources);
+
+        // Per-request properties follow static resources.
+        if(compiler != null)
+            compiler.mark();
+        writeBundleDescription(out, Collections.<ArgumentElement>emptyList());
+        endJnlp(out);
+    }
+
+    private void writeTemplate() throws IOException, SAXException {
+        JnlpTemplate compiled;
+        OutputStream stream;
+
+        compiler = new JnlpTemplate.Compiler();
+        try {
+            writeJnlp(new XmlWriter(compiler.getSerializer()));
+            compiled = compiler.compile();
+        }
+        finally {compiler = null;}
+
+        // The JNLP file is the template rendered without per-request values.
+        stream = null;
+        try {
+            compiled.render(stream = new BufferedOutputStream(new FileOutputStream(output)),
+                            Collections.<String, String>emptyMap(), Collections.<String>emptyList());
+        }
+        finally {
+            if(stream != null)
+                stream.close();
+        }
+
+        stream = null;
+        try {compiled.write(stream = new BufferedOutputStream(new FileOutputStream(template)));}
+        finally {
+            if(stream != null)
+                stream.close();
+        }
+        log("Compiled template to " + template + " (" + compiled.getStaticSize() + " bytes of static content).");
+    }
+
+    public void execute() throws BuildException {
+        OutputStream stream;
+
+        // Makes sure everything is properly initialised.
+        check();
+        prepare(resources);
+
+        stream = null;
+        try {
+            if(template == null) {
+                stream = new BufferedOutputStream(new FileOutputStream(output));
+                writeJnlp(new XmlWriter(new XmlSerializer(stream)));
+            }
             else
-                writeInstallerDesc(out, installerDesc);
+                writeTemplate();
 
-            out.endElement(ELEMENT_JNLP);
-            out.endDocument();
+            finish();
         }
         catch(IOException e) {throw new BuildException(e);}
         catch(SAXException e) {throw new BuildException(e);}
@@ -676,6 +1288,57 @@ public class JnlpTask extends Task {
                 try {stream.close();}
                 catch(Exception e) {}
             }
+            cleanup();
+        }
+
+        // Compresses the JNLP file and the descriptors it refers to, now that it's complete.
+        if(gzip) {
+            gzipDescriptors(Collections.singletonList(output), informations, resources);
+            log("Generated " + gzipped + " gzip siblings.");
+        }
+    }
+
+
+
+    // - Local JAR files -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Lists the local JAR files of a JNLP file, along with where and how they're declared.
+     * @author Nicolas Rinaudo
+     */
+    private static class LocalJars {
+        /** Explicit JAR elements that describe local files. */
+        private final List<JarElement>       elements;
+        /** Local file of each explicit JAR element. */
+        private final List<File>             elementFiles;
+        /** All local JAR files, in declaration order. */
+        private final List<File>             files;
+        /** Part of each JAR file, <code>null</code> for eager ones and lazy ones that don't belong to a part. */
+        private final List<String>           parts;
+        /** Element in which each JAR file is declared. */
+        private final List<ResourcesElement> owners;
+        /** Parts whose packages are declared explicitly. */
+        private final Set<String>            declared;
+
+        private LocalJars() {
+            elements     = new ArrayList<JarElement>();
+            elementFiles = new ArrayList<File>();
+            files        = new ArrayList<File>();
+            parts        = new ArrayList<String>();
+            owners       = new ArrayList<ResourcesElement>();
+            declared     = new HashSet<String>();
+        }
+
+        /**
+         * Adds the specified JAR file to the list.
+         * @param file  JAR file to add.
+         * @param part  part of the JAR file, <code>null</code> if it's eager or doesn't belong to a part.
+         * @param owner element in which the JAR file is declared.
+         */
+        private void add(File file, String part, ResourcesElement owner) {
+            files.add(file);
+            parts.add(part);
+            owners.add(owner);
         }
     }
 }
@@ -0,0 +1,296 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.XmlSerializer;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled JNLP file, in which per-request properties and application arguments can be spliced.
+ * <p>
+ * Templates are generated by the {@link JnlpTask mkjnlp} task when its <code>template</code> attribute is set, and
+ * meant to be used by servers that generate a slightly different JNLP file for each user. Everything the task
+ * describes is rendered at build time and stored as pre-encoded bytes. Rendering a template then boils down to
+ * copying these bytes and escaping the per-request values, straight to the output stream:
+ * <ul>
+ *   <li>properties are written in an additional <code>resources</code> element, which follows all others.</li>
+ *   <li>arguments are written after those of the <code>application-desc</code> element.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Templates are immutable, and can be shared by any number of threads. They don't depend on Ant, so that servers
+ * only need this class and {@link XmlSerializer} on their classpath. A typical servlet would read its template once:
+ * <pre>
+ * template = JnlpTemplate.read(getServletContext().getResourceAsStream("/app.jnlpt"));
+ * </pre>
+ * and render it for each request:
+ * <pre>
+ * response.setContentType("application/x-java-jnlp-file");
+ * template.render(response.getOutputStream(), properties, arguments);
+ * </pre>
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class JnlpTemplate {
+    // - Constants -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Identifies template files: <code>JNLT</code> in ASCII. */
+    private static final int    MAGIC           = 0x4a4e4c54;
+    /** Version of the template file format. */
+    private static final int    FORMAT_VERSION  = 1;
+    /** Number of static segments in a template. */
+    private static final int    SEGMENTS        = 3;
+    private static final byte[] EMPTY           = new byte[0];
+    private static final byte[] RESOURCES_START = ascii("    <resources>\n");
+    private static final byte[] RESOURCES_END   = ascii("    </resources>\n");
+    private static final byte[] PROPERTY_START  = ascii("        <property name=\"");
+    private static final byte[] PROPERTY_VALUE  = ascii("\" value=\"");
+    private static final byte[] PROPERTY_END    = ascii("\"/>\n");
+    private static final byte[] ARGUMENT_START  = ascii("        <argument>");
+    private static final byte[] ARGUMENT_END    = ascii("</argument>\n");
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Static segments, between which properties and arguments are spliced. */
+    private final byte[][] segments;
+    /** Total size of the static segments. */
+    private final int      size;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new template from the specified segments.
+     * @param segments static segments, between which properties and arguments are spliced.
+     */
+    private JnlpTemplate(byte[][] segments) {
+        int total;
+
+        total = 0;
+        for(byte[] segment : segments)
+            total += segment.length;
+
+        this.segments = segments;
+        size          = total;
+    }
+
+    /**
+     * Returns the bytes of the specified ASCII string.
+     * @param  s string to encode.
+     * @return   the bytes of the specified ASCII string.
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(XmlSerializer.UTF8);
+    }
+
+
+
+    // - Serialisation -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads a template from the specified stream.
+     * <p>
+     * The stream is not closed by this method.
+     * </p>
+     * @param     in          where to read the template from.
+     * @return                the template.
+     * @exception IOException thrown if an IO error occurs or the stream doesn't contain a valid template.
+     */
+    public static JnlpTemplate read(InputStream in) throws IOException {
+        DataInputStream data;
+        byte[][]        segments;
+
+        data = new DataInputStream(in);
+        if(data.readInt() != MAGIC)
+            throw new IOException("Not a JNLP template");
+        if(data.readInt() != FORMAT_VERSION)
+            throw new IOException("Unsupported JNLP template version");
+
+        segments = new byte[SEGMENTS][];
+        for(int i = 0; i < segments.length; i++) {
+            int length;
+
+            if((length = data.readInt()) < 0)
+                throw new IOException("Corrupt JNLP template");
+            data.readFully(segments[i] = new byte[length]);
+        }
+
+        return new JnlpTemplate(segments);
+    }
+
+    /**
+     * Writes this template to the specified stream.
+     * <p>
+     * The stream is flushed but not closed by this method.
+     * </p>
+     * @param     out         where to write the template.
+     * @exception IOException thrown if an IO error occurs.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data;
+
+        data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        for(byte[] segment : segments) {
+            data.writeInt(segment.length);
+            data.write(segment);
+        }
+        data.flush();
+    }
+
+
+
+    // - Rendering -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the total size of the template's static content.
+     * <p>
+     * This is the size of a JNLP file rendered without properties or arguments, and a good estimate of the size of
+     * others, which callers can use to size their buffers.
+     * </p>
+     * @return the total size of the template's static content.
+     */
+    public int getStaticSize() {return size;}
+
+    /**
+     * Renders this template with the specified properties and arguments.
+     * <p>
+     * Values are escaped as they're written, and don't need to be valid XML. Since most of their characters are
+     * written one at a time, <code>out</code> should be buffered. The stream is neither flushed nor closed by this
+     * method.
+     * </p>
+     * @param     out         where to write the JNLP file.
+     * @param     properties  system properties to set, by name. Neither names nor values can be <code>null</code>.
+     * @param     arguments   additional application arguments, none of which can be <code>null</code>.
+     * @exception IOException thrown if an IO error occurs.
+     */
+    public void render(OutputStream out, Map<String, String> properties, List<String> arguments) throws IOException {
+        out.write(segments[0]);
+
+        if(!properties.isEmpty()) {
+            out.write(RESOURCES_START);
+            for(Map.Entry<String, String> property : properties.entrySet()) {
+                out.write(PROPERTY_START);
+                XmlSerializer.escape(out, property.getKey(), true);
+                out.write(PROPERTY_VALUE);
+                XmlSerializer.escape(out, property.getValue(), true);
+                out.write(PROPERTY_END);
+            }
+            out.write(RESOURCES_END);
+        }
+
+        out.write(segments[1]);
+
+        for(int i = 0; i < arguments.size(); i++) {
+            out.write(ARGUMENT_START);
+            XmlSerializer.escape(out, arguments.get(i), false);
+            out.write(ARGUMENT_END);
+        }
+
+        out.write(segments[2]);
+    }
+
+
+
+    // - Compiler class ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Records a JNLP file as it's written, and splits it into a template's static segments.
+     * @author Nicolas Rinaudo
+     */
+    static class Compiler {
+        /** Content written so far. */
+        private final ByteArrayOutputStream buffer;
+        /** Serialiser that writes to {@link #buffer}. */
+        private final XmlSerializer         serializer;
+        /** Offsets at which per-request values are spliced. */
+        private final int[]                 marks;
+        /** Number of offsets recorded so far. */
+        private int                         count;
+
+        /**
+         * Creates a new compiler.
+         */
+        Compiler() {
+            buffer     = new ByteArrayOutputStream();
+            serializer = new XmlSerializer(buffer);
+            marks      = new int[SEGMENTS - 1];
+        }
+
+        /**
+         * Returns the serialiser through which the JNLP file must be written.
+         * @return the serialiser through which the JNLP file must be written.
+         */
+        XmlSerializer getSerializer() {return serializer;}
+
+        /**
+         * Records the current position as the next place where per-request values are spliced.
+         * <p>
+         * Properties must be marked first, between two children of the root element, and arguments second, as the
+         * last children of the <code>application-desc</code> element.
+         * </p>
+         * @exception SAXException thrown if an error occurs while closing the current start tag.
+         */
+        void mark() throws SAXException {
+            if(count == marks.length)
+                throw new IllegalStateException("All template slots have already been marked");
+
+            // Makes sure the current element can receive children.
+            serializer.fragment(EMPTY);
+            marks[count++] = buffer.size();
+        }
+
+        /**
+         * Splits the recorded JNLP file into a template.
+         * @return the compiled template.
+         */
+        JnlpTemplate compile() {
+            byte[]   data;
+            byte[][] segments;
+            int      start;
+
+            if(count != marks.length)
+                throw new IllegalStateException("Not all template slots have been marked");
+
+            data     = buffer.toByteArray();
+            segments = new byte[SEGMENTS][];
+            start    = 0;
+            for(int i = 0; i < marks.length; i++) {
+                segments[i] = Arrays.copyOfRange(data, start, marks[i]);
+                start       = marks[i];
+            }
+            segments[marks.length] = Arrays.copyOfRange(data, start, data.length);
+
+            return new JnlpTemplate(segments);
+        }
+    }
+}
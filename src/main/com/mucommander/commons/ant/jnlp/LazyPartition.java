@@ -0,0 +1,447 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.ClassShrinker;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Splits the JAR files of a JNLP application in an eager set and lazy parts.
+ * <p>
+ * The eager set is made of the JAR files that contain at least one class reachable from the application's main
+ * class, as computed by {@link ClassShrinker}, and of the JAR files that are explicitly marked as main. Since
+ * reachability is computed from constant pools, this is the smallest set of JAR files that guarantees that the
+ * application can start without downloading anything else.
+ * </p>
+ * <p>
+ * Remaining JAR files are lazy, and grouped in parts such that:
+ * <ul>
+ *   <li>JAR files that depend on each other, directly or not, belong to the same part, as neither can be used
+ *   without downloading the other.</li>
+ *   <li>JAR files that share a package belong to the same part, as a package can only be declared in one part.</li>
+ * </ul>
+ * Each part is named after the first of its JAR files. Declaring the packages of each part is left to
+ * {@link PackageIndex}.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class LazyPartition {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Part of each lazy JAR file, indexed by absolute file. */
+    private final Map<File, String> parts;
+    /** Names of all parts. */
+    private final Set<String>       names;
+    /** Number of eager JAR files. */
+    private int                     eagerCount;
+    /** Number of lazy JAR files. */
+    private int                     lazyCount;
+    /** Total size of eager JAR files. */
+    private long                    eagerSize;
+    /** Total size of all JAR files. */
+    private long                    totalSize;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new empty partition.
+     */
+    private LazyPartition() {
+        parts = new HashMap<File, String>();
+        names = new HashSet<String>();
+    }
+
+
+
+    // - Partitioning --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Partitions the specified JAR files.
+     * @param     main           fully qualified name of the application's main class.
+     * @param     files          JAR files to partition, in the order in which they're declared.
+     * @param     mainFiles      JAR files that must be eager, whatever their content.
+     * @param     threads        maximum number of threads to use.
+     * @return                   the partition of the specified JAR files.
+     * @exception BuildException thrown if a JAR file cannot be read or the main class cannot be found.
+     */
+    static LazyPartition compute(String main, Collection<File> files, Collection<File> mainFiles, int threads)
+            throws BuildException {
+        LazyPartition               partition;
+        ClassShrinker               shrinker;
+        List<File>                  jars;
+        Set<File>                   forced;
+        List<Callable<Set<String>>> work;
+        List<Set<String>>           classes;
+        Map<String, Integer>        owners;
+        boolean[]                   eager;
+
+        partition = new LazyPartition();
+        jars      = new ArrayList<File>(getAbsoluteFiles(files));
+        forced    = getAbsoluteFiles(mainFiles);
+
+        // Computes reachable classes and lists the classes of each JAR file.
+        shrinker = new ClassShrinker();
+        shrinker.addRoot(main);
+        shrinker.analyse(jars, threads);
+
+        work = new ArrayList<Callable<Set<String>>>();
+        for(final File jar : jars) {
+            work.add(new Callable<Set<String>>() {
+                public Set<String> call() throws IOException {return ClassShrinker.getClassNames(jar);}
+            });
+        }
+        classes = ParallelRunner.run(work, threads);
+
+        // Finds eager JAR files.
+        owners = new HashMap<String, Integer>();
+        eager  = new boolean[jars.size()];
+        for(int i = 0; i < jars.size(); i++) {
+            long size;
+
+            eager[i] = forced.contains(jars.get(i));
+            for(String name : classes.get(i)) {
+                if(!owners.containsKey(name))
+                    owners.put(name, i);
+                if(shrinker.isReachable(name))
+                    eager[i] = true;
+            }
+
+            size = jars.get(i).length();
+            partition.totalSize += size;
+            if(eager[i]) {
+                partition.eagerSize += size;
+                partition.eagerCount++;
+            }
+            else
+                partition.lazyCount++;
+        }
+
+        // Groups lazy JAR files in parts.
+        partition.name(jars, group(getDependencies(shrinker, classes, owners, eager), classes, eager));
+
+        return partition;
+    }
+
+    /**
+     * Returns the absolute version of the specified files, without duplicates.
+     * @param  files files to analyse.
+     * @return       the absolute version of the specified files, in the same order.
+     */
+    private static Set<File> getAbsoluteFiles(Collection<File> files) {
+        Set<File> set;
+
+        set = new LinkedHashSet<File>();
+        for(File file : files)
+            set.add(file.getAbsoluteFile());
+
+        return set;
+    }
+
+    /**
+     * Returns the lazy JAR files each lazy JAR file depends on.
+     * @param  shrinker used to analyse the JAR files.
+     * @param  classes  classes of each JAR file.
+     * @param  owners   index of the JAR file that contains each class.
+     * @param  eager    whether each JAR file is eager.
+     * @return          the indexes of the lazy JAR files each JAR file depends on, empty for eager ones.
+     */
+    private static List<Set<Integer>> getDependencies(ClassShrinker shrinker, List<Set<String>> classes,
+                                                      Map<String, Integer> owners, boolean[] eager) {
+        List<Set<Integer>> dependencies;
+
+        dependencies = new ArrayList<Set<Integer>>(classes.size());
+        for(int i = 0; i < classes.size(); i++) {
+            Set<Integer> set;
+
+            dependencies.add(set = new HashSet<Integer>());
+            if(eager[i])
+                continue;
+
+            for(String name : classes.get(i)) {
+                Set<String> references;
+
+                if((references = shrinker.getReferences(name)) == null)
+                    continue;
+                for(String reference : references) {
+                    Integer owner;
+
+                    if((owner = owners.get(reference)) != null && owner != i && !eager[owner])
+                        set.add(owner);
+                }
+            }
+        }
+
+        return dependencies;
+    }
+
+    /**
+     * Groups lazy JAR files that depend on each other or share packages.
+     * @param  dependencies lazy JAR files each JAR file depends on.
+     * @param  classes      classes of each JAR file.
+     * @param  eager        whether each JAR file is eager.
+     * @return              the group of each JAR file, identified by the index of one of its JAR files, or
+     *                      <code>-1</code> for eager JAR files.
+     */
+    private static int[] group(List<Set<Integer>> dependencies, List<Set<String>> classes, boolean[] eager) {
+        Map<String, Integer> packageOwners;
+        int[]                components;
+        int[]                groups;
+
+        // Merges strongly connected JAR files.
+        groups     = new int[eager.length];
+        components = new Components(dependencies, eager).components;
+        for(int i = 0; i < groups.length; i++)
+            groups[i] = i;
+        for(int i = 0; i < groups.length; i++)
+            if(!eager[i])
+                union(groups, i, components[i]);
+
+        // Merges JAR files that share a package.
+        packageOwners = new HashMap<String, Integer>();
+        for(int i = 0; i < groups.length; i++) {
+            if(eager[i])
+                continue;
+            for(String name : classes.get(i)) {
+                String  pkg;
+                Integer owner;
+
+                if((pkg = PackageIndex.getPackage(name)) == null)
+                    continue;
+                if((owner = packageOwners.get(pkg)) == null)
+                    packageOwners.put(pkg, i);
+                else
+                    union(groups, owner, i);
+            }
+        }
+
+        for(int i = 0; i < groups.length; i++)
+            groups[i] = eager[i] ? -1 : find(groups, i);
+
+        return groups;
+    }
+
+    /**
+     * Returns the representative of the specified element's group.
+     * @param  groups parent of each element.
+     * @param  i      element whose group should be returned.
+     * @return        the representative of the specified element's group.
+     */
+    private static int find(int[] groups, int i) {
+        while(groups[i] != i)
+            i = groups[i] = groups[groups[i]];
+        return i;
+    }
+
+    /**
+     * Merges the groups of the specified elements.
+     * @param groups parent of each element.
+     * @param a      first element.
+     * @param b      second element.
+     */
+    private static void union(int[] groups, int a, int b) {
+        a = find(groups, a);
+        b = find(groups, b);
+
+        // Keeps the first element as the representative, which keeps part names stable.
+        if(a < b)
+            groups[b] = a;
+        else
+            groups[a] = b;
+    }
+
+    /**
+     * Names the parts of the specified JAR files.
+     * @param jars   JAR files to analyse.
+     * @param groups group of each JAR file, <code>-1</code> for eager JAR files.
+     */
+    private void name(List<File> jars, int[] groups) {
+        Map<Integer, String> groupNames;
+
+        groupNames = new HashMap<Integer, String>();
+        for(int i = 0; i < jars.size(); i++) {
+            String part;
+
+            if(groups[i] == -1)
+                continue;
+
+            // Groups are represented by their first JAR file, which is always met first.
+            if((part = groupNames.get(groups[i])) == null) {
+                groupNames.put(groups[i], part = getPartName(jars.get(i)));
+                names.add(part);
+            }
+            parts.put(jars.get(i), part);
+        }
+    }
+
+    /**
+     * Returns a unique part name for the specified JAR file.
+     * @param  jar JAR file after which to name the part.
+     * @return     a unique part name for the specified JAR file.
+     */
+    private String getPartName(File jar) {
+        String base;
+        String name;
+        int    index;
+
+        base = jar.getName();
+        if((index = base.lastIndexOf('.')) > 0)
+            base = base.substring(0, index);
+
+        name = base;
+        for(int i = 2; names.contains(name); i++)
+            name = base + '-' + i;
+
+        return name;
+    }
+
+
+
+    // - Partition access ----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the part of the specified JAR file.
+     * @param  jar JAR file whose part should be returned.
+     * @return     the part of the specified JAR file, <code>null</code> if it's eager or wasn't partitioned.
+     */
+    String getPart(File jar) {return parts.get(jar.getAbsoluteFile());}
+
+    /**
+     * Returns the number of parts.
+     * @return the number of parts.
+     */
+    int getPartCount() {return names.size();}
+
+    /**
+     * Returns the number of eager JAR files.
+     * @return the number of eager JAR files.
+     */
+    int getEagerCount() {return eagerCount;}
+
+    /**
+     * Returns the number of lazy JAR files.
+     * @return the number of lazy JAR files.
+     */
+    int getLazyCount() {return lazyCount;}
+
+    /**
+     * Returns the total size of eager JAR files, which is what clients must download before the application starts.
+     * @return the total size of eager JAR files.
+     */
+    long getEagerSize() {return eagerSize;}
+
+    /**
+     * Returns the total size of all JAR files.
+     * @return the total size of all JAR files.
+     */
+    long getTotalSize() {return totalSize;}
+
+
+
+    // - Components class ----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes the strongly connected components of the lazy JAR files' dependency graph, using Tarjan's algorithm.
+     * @author Nicolas Rinaudo
+     */
+    private static class Components {
+        /** Lazy JAR files each JAR file depends on. */
+        private final List<Set<Integer>> dependencies;
+        /** Order in which each JAR file was visited, <code>-1</code> if it wasn't. */
+        private final int[]              index;
+        /** Lowest visit order reachable from each JAR file. */
+        private final int[]              low;
+        /** Whether each JAR file is on {@link #stack}. */
+        private final boolean[]          onStack;
+        /** JAR files whose component hasn't been found yet. */
+        private final Deque<Integer>     stack;
+        /** Component of each JAR file, identified by one of its JAR files. */
+        private final int[]              components;
+        /** Number of JAR files visited so far. */
+        private int                      count;
+
+        /**
+         * Computes the strongly connected components of the specified graph.
+         * @param dependencies lazy JAR files each JAR file depends on.
+         * @param eager        whether each JAR file is eager, in which case it's ignored.
+         */
+        private Components(List<Set<Integer>> dependencies, boolean[] eager) {
+            this.dependencies = dependencies;
+            index             = new int[eager.length];
+            low               = new int[eager.length];
+            onStack           = new boolean[eager.length];
+            stack             = new ArrayDeque<Integer>();
+            components        = new int[eager.length];
+
+            for(int i = 0; i < eager.length; i++) {
+                index[i]      = -1;
+                components[i] = i;
+            }
+            for(int i = 0; i < eager.length; i++)
+                if(!eager[i] && index[i] == -1)
+                    visit(i);
+        }
+
+        /**
+         * Visits the specified JAR file.
+         * @param node JAR file to visit.
+         */
+        private void visit(int node) {
+            index[node] = low[node] = count++;
+            stack.push(node);
+            onStack[node] = true;
+
+            for(int next : dependencies.get(node)) {
+                if(index[next] == -1) {
+                    visit(next);
+                    low[node] = Math.min(low[node], low[next]);
+                }
+                else if(onStack[next])
+                    low[node] = Math.min(low[node], index[next]);
+            }
+
+            // Pops the component rooted at this JAR file.
+            if(low[node] == index[node]) {
+                int member;
+
+                do {
+                    member             = stack.pop();
+                    onStack[member]    = false;
+                    components[member] = node;
+                }
+                while(member != node);
+            }
+        }
+    }
+}
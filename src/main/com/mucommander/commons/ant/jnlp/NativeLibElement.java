@@ -21,7 +21,7 @@ package com.mucommander.commons.ant.jnlp;
 /**
  * @author Nicolas Rinaudo
  */
-public class NativeLibElement extends Downloadable {
+public class NativeLibElement extends Downloadable implements Resource {
     private String href;
     private String version;
     private int    size;
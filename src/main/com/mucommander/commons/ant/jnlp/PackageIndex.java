@@ -0,0 +1,258 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.ClassShrinker;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+/**
+ * Generates the <code>package</code> declarations of JNLP parts from the content of their JAR files.
+ * <p>
+ * The central directory of each JAR file is read, concurrently, to find out which packages it contains. Each part
+ * then declares the packages of its lazy JAR files, collapsed into a single recursive declaration whenever that is
+ * safe: a prefix is only declared recursive if every known class under it belongs to the part. Classes of eager JAR
+ * files, of lazy JAR files that don't belong to a part and of other parts all prevent collapsing.
+ * </p>
+ * <p>
+ * Prefixes of less than {@link #MIN_DEPTH} segments, such as <code>com.*</code> or <code>org.*</code>, are never
+ * declared recursive, since they would claim the classes of unrelated libraries loaded from elsewhere.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class PackageIndex {
+    // - Constants -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Minimum number of segments of a recursive declaration. */
+    static final int MIN_DEPTH = 2;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Owners of each known package, <code>null</code> standing for anything that isn't a part. */
+    private final TreeMap<String, Set<String>> owners;
+    /** Packages of each part, in the order in which parts were met. */
+    private final Map<String, TreeSet<String>> packages;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new empty index.
+     */
+    private PackageIndex() {
+        owners   = new TreeMap<String, Set<String>>();
+        packages = new LinkedHashMap<String, TreeSet<String>>();
+    }
+
+    /**
+     * Indexes the packages of the specified JAR files.
+     * @param     files          JAR files to index.
+     * @param     parts          part of each JAR file, <code>null</code> for eager JAR files and lazy ones that don't
+     *                           belong to a part.
+     * @param     threads        maximum number of threads to use.
+     * @return                   an index of the packages of the specified JAR files.
+     * @exception BuildException thrown if a JAR file cannot be read.
+     */
+    static PackageIndex read(List<File> files, List<String> parts, int threads) throws BuildException {
+        PackageIndex                index;
+        List<Callable<Set<String>>> work;
+        List<Set<String>>           contents;
+
+        work = new ArrayList<Callable<Set<String>>>(files.size());
+        for(final File file : files) {
+            work.add(new Callable<Set<String>>() {
+                public Set<String> call() throws IOException {return getPackages(file);}
+            });
+        }
+        contents = ParallelRunner.run(work, threads);
+
+        index = new PackageIndex();
+        for(int i = 0; i < files.size(); i++) {
+            String part;
+
+            part = parts.get(i);
+            if(part != null && !index.packages.containsKey(part))
+                index.packages.put(part, new TreeSet<String>());
+
+            for(String name : contents.get(i)) {
+                Set<String> set;
+
+                if((set = index.owners.get(name)) == null)
+                    index.owners.put(name, set = new HashSet<String>());
+                set.add(part);
+                if(part != null)
+                    index.packages.get(part).add(name);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the packages of the classes stored in the specified JAR file.
+     * @param     jar         JAR file to analyse.
+     * @return                the packages of the classes stored in the specified JAR file, in dotted form.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static Set<String> getPackages(File jar) throws IOException {
+        Set<String> names;
+
+        names = new HashSet<String>();
+        for(String name : ClassShrinker.getClassNames(jar)) {
+            String pkg;
+
+            if((pkg = getPackage(name)) != null)
+                names.add(pkg);
+        }
+
+        return names;
+    }
+
+    /**
+     * Returns the package of the specified class, in dotted form.
+     * @param  name internal name of the class.
+     * @return      the package of the specified class, <code>null</code> if it's in the default package.
+     */
+    static String getPackage(String name) {
+        int index;
+
+        if((index = name.lastIndexOf('/')) == -1)
+            return null;
+        return name.substring(0, index).replace('/', '.');
+    }
+
+
+
+    // - Declarations --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the package declarations of the specified part.
+     * <p>
+     * Keys are package names, without the trailing <code>.*</code>, and values whether they're recursive.
+     * </p>
+     * @param  part part whose package declarations should be computed.
+     * @return      the package declarations of the specified part, empty if it contains no package.
+     */
+    SortedMap<String, Boolean> getDeclarations(String part) {
+        SortedMap<String, Boolean> declarations;
+        TreeSet<String>            set;
+        String                     collapsed;
+
+        declarations = new TreeMap<String, Boolean>();
+        if((set = packages.get(part)) == null)
+            return declarations;
+
+        // Packages are sorted, which means that those covered by a recursive declaration generally follow it. The
+        // others yield the same declaration again.
+        collapsed = null;
+        for(String name : set) {
+            String prefix;
+
+            if(collapsed != null && isUnder(name, collapsed))
+                continue;
+
+            if((prefix = getCollapsedPrefix(name, part)) != null)
+                declarations.put(collapsed = prefix, true);
+            else
+                declarations.put(name, false);
+        }
+
+        return declarations;
+    }
+
+    /**
+     * Returns the shortest prefix of the specified package that can safely be declared recursive.
+     * @param  name package to analyse.
+     * @param  part part to which the package belongs.
+     * @return      the shortest prefix that can safely be declared recursive, <code>null</code> if none.
+     */
+    private String getCollapsedPrefix(String name, String part) {
+        int index;
+        int depth;
+
+        index = -1;
+        depth = 0;
+        do {
+            String prefix;
+
+            index  = name.indexOf('.', index + 1);
+            prefix = index == -1 ? name : name.substring(0, index);
+            if(++depth >= MIN_DEPTH && isOwnedBy(prefix, part))
+                return prefix;
+        }
+        while(index != -1);
+
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified prefix and all its sub-packages only belong to the specified part.
+     * @param  prefix prefix to check.
+     * @param  part   part that should own the prefix.
+     * @return        <code>true</code> if the specified prefix only belongs to the specified part.
+     */
+    private boolean isOwnedBy(String prefix, String part) {
+        Set<String> set;
+
+        if((set = owners.get(prefix)) != null && !isOnlyOwner(set, part))
+            return false;
+
+        // '/' immediately follows '.', which makes this the range of all sub-packages.
+        for(Set<String> children : owners.subMap(prefix + '.', prefix + '/').values())
+            if(!isOnlyOwner(children, part))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified part is the only element of the specified set.
+     * @param  set  set to check.
+     * @param  part part that should be the only element of the set.
+     * @return      <code>true</code> if the specified part is the only element of the specified set.
+     */
+    private static boolean isOnlyOwner(Set<String> set, String part) {
+        return set.size() == 1 && set.contains(part);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified package is the specified prefix or one of its sub-packages.
+     * @param  name   package to check.
+     * @param  prefix prefix to check against.
+     * @return        <code>true</code> if the specified package is under the specified prefix.
+     */
+    private static boolean isUnder(String name, String prefix) {
+        return name.startsWith(prefix) && (name.length() == prefix.length() || name.charAt(prefix.length()) == '.');
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Path;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.types.resources.FileResource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Describes a set of JAR files or native libraries through filesets and paths.
+ * <p>
+ * Collections are only expanded when the JNLP file is written, one after the other, which saves Ant from keeping
+ * an element per file in memory. Files selected by a fileset are referred to by their path relative to the
+ * fileset's directory, other files by their path relative to the task's base directory. Either is prefixed by
+ * {@link #getPrefix() prefix}, if set.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ResourceSetElement extends Downloadable {
+    private       String                   prefix;
+    private       String                   part;
+    private final List<ResourceCollection> collections;
+
+    public ResourceSetElement() {
+        collections = new ArrayList<ResourceCollection>();
+    }
+
+    public String getPrefix() {return prefix;}
+    public String getPart() {return part;}
+    public void setPrefix(String s) {prefix = s;}
+    public void setPart(String s) {part = s;}
+    public void addFileset(FileSet set) {collections.add(set);}
+    public void addPath(Path path) {collections.add(path);}
+
+    /**
+     * Returns an iterator on all resources described by this set.
+     * <p>
+     * Each collection is only expanded once the iterator reaches it.
+     * </p>
+     * @return an iterator on all resources described by this set.
+     */
+    Iterator<org.apache.tools.ant.types.Resource> resources() {
+        final Iterator<ResourceCollection> iterator;
+
+        iterator = collections.iterator();
+        return new Iterator<org.apache.tools.ant.types.Resource>() {
+            private Iterator<org.apache.tools.ant.types.Resource> current;
+
+            public boolean hasNext() {
+                while(current == null || !current.hasNext()) {
+                    if(!iterator.hasNext())
+                        return false;
+                    current = iterator.next().iterator();
+                }
+                return true;
+            }
+
+            public org.apache.tools.ant.types.Resource next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the local file described by the specified resource.
+     * @param     resource       resource to analyse.
+     * @return                   the local file described by the specified resource.
+     * @exception BuildException thrown if the resource is not a file.
+     */
+    static File getFile(org.apache.tools.ant.types.Resource resource) throws BuildException {
+        FileProvider provider;
+
+        if((provider = resource.as(FileProvider.class)) == null)
+            throw new BuildException("Not a file: " + resource);
+        return provider.getFile();
+    }
+
+    /**
+     * Returns the <code>href</code> of the specified resource.
+     * @param     resource       resource whose <code>href</code> should be computed.
+     * @param     file           local file described by <code>resource</code>.
+     * @param     base           local copy of the codebase, used for files that weren't selected by a fileset.
+     * @return                   the <code>href</code> of the specified resource.
+     * @exception BuildException thrown if the file's path cannot be made relative.
+     */
+    String getHref(org.apache.tools.ant.types.Resource resource, File file, File base) throws BuildException {
+        String path;
+        String root;
+
+        if(resource instanceof FileResource && ((FileResource)resource).getBaseDir() != null)
+            base = ((FileResource)resource).getBaseDir();
+        if(base == null)
+            throw new BuildException("Cannot compute the href of " + file + ": basedir is not set.");
+
+        path = file.getAbsolutePath();
+        root = base.getAbsolutePath();
+        if(!root.endsWith(File.separator))
+            root = root + File.separator;
+        if(!path.startsWith(root))
+            throw new BuildException("Cannot compute the href of " + file + ": not in " + base);
+
+        path = path.substring(root.length()).replace(File.separatorChar, '/');
+        return prefix == null ? path : prefix + path;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Fills in the size and version of JNLP resources from the local copies of their files.
+ * <p>
+ * Relative <code>href</code> attributes are resolved against a local base directory, which is expected to mirror the
+ * JNLP file's codebase. Absolute URLs and host relative paths are left alone. Files are examined concurrently, as
+ * JNLP files can list thousands of resources.
+ * </p>
+ * <p>
+ * Content hash versions are made of the first {@value #VERSION_LENGTH} hexadecimal digits of the file's SHA-256
+ * digest, which keeps them stable for as long as the file doesn't change. Digests can be looked up in a
+ * {@link HashCache}, which spares hashing files that haven't changed since the previous build.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class ResourceStats {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Number of hexadecimal digits in content hash versions. */
+    static final int VERSION_LENGTH = 16;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private ResourceStats() {}
+
+
+
+    // - Resource listing ----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns all JAR files and native libraries described by the specified elements, including those of nested
+     * <code>j2se</code> elements.
+     * @param  resources elements to explore.
+     * @return           all JAR files and native libraries described by the specified elements.
+     */
+    static List<Resource> list(Iterator<ResourcesElement> resources) {
+        List<Resource> list;
+
+        list = new ArrayList<Resource>();
+        while(resources.hasNext())
+            list(resources.next(), list);
+
+        return list;
+    }
+
+    /**
+     * Adds all JAR files and native libraries described by the specified element to the specified list.
+     * @param resources element to explore.
+     * @param list      where to store resources.
+     */
+    private static void list(ResourcesElement resources, List<Resource> list) {
+        Iterator<J2seElement>      j2ses;
+        Iterator<JarElement>       jars;
+        Iterator<NativeLibElement> nativeLibs;
+
+        j2ses = resources.j2ses();
+        while(j2ses.hasNext()) {
+            Iterator<ResourcesElement> nested;
+
+            nested = j2ses.next().resources();
+            while(nested.hasNext())
+                list(nested.next(), list);
+        }
+
+        jars = resources.jars();
+        while(jars.hasNext())
+            list.add(jars.next());
+
+        nativeLibs = resources.nativeLibs();
+        while(nativeLibs.hasNext())
+            list.add(nativeLibs.next());
+    }
+
+    /**
+     * Returns the local file described by the specified <code>href</code>.
+     * @param     base           local copy of the codebase.
+     * @param     href           <code>href</code> to resolve.
+     * @return                   the matching local file, <code>null</code> if <code>href</code> is not relative.
+     * @exception BuildException thrown if <code>href</code> is not a legal URI.
+     */
+    static File getFile(File base, String href) throws BuildException {
+        URI uri;
+
+        try {uri = new URI(href);}
+        catch(URISyntaxException e) {throw new BuildException("Illegal href: " + href, e);}
+
+        if(uri.isAbsolute() || uri.getPath() == null || uri.getPath().startsWith("/"))
+            return null;
+        return new File(base, uri.getPath().replace('/', File.separatorChar));
+    }
+
+
+
+    // - Statistics ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Fills in the size, and optionally the version, of the specified resources.
+     * <p>
+     * Values that are already set are left untouched.
+     * </p>
+     * @param     resources      resources to analyse.
+     * @param     base           local copy of the codebase.
+     * @param     hashVersions   whether to set versions to the hash of each file's content.
+     * @param     cache          where to look for file digests, <code>null</code> to always compute them.
+     * @param     threads        maximum number of threads to use.
+     * @exception BuildException thrown if a file cannot be found or read.
+     */
+    static void fill(List<Resource> resources, File base, boolean hashVersions, HashCache cache, int threads)
+            throws BuildException {
+        List<Resource> targets;
+        List<File>     files;
+
+        targets = new ArrayList<Resource>();
+        files   = new ArrayList<File>();
+        for(Resource resource : resources) {
+            File file;
+
+            if(resource.getHref() != null && (file = getFile(base, resource.getHref())) != null) {
+                targets.add(resource);
+                files.add(file);
+            }
+        }
+        fill(targets, files, hashVersions, cache, threads);
+    }
+
+    /**
+     * Fills in the size, and optionally the version, of the specified resources from the matching local files.
+     * <p>
+     * Values that are already set are left untouched.
+     * </p>
+     * @param     resources      resources to analyse.
+     * @param     files          local file of each resource, in the same order as <code>resources</code>.
+     * @param     hashVersions   whether to set versions to the hash of each file's content.
+     * @param     cache          where to look for file digests, <code>null</code> to always compute them.
+     * @param     threads        maximum number of threads to use.
+     * @exception BuildException thrown if a file cannot be found or read.
+     */
+    static void fill(List<? extends Resource> resources, List<File> files, boolean hashVersions,
+                     final HashCache cache, int threads) throws BuildException {
+        List<Resource>       targets;
+        List<Callable<Stat>> work;
+        List<Stat>           stats;
+
+        targets = new ArrayList<Resource>();
+        work    = new ArrayList<Callable<Stat>>();
+        for(int i = 0; i < resources.size(); i++) {
+            Resource      resource;
+            final File    file;
+            final boolean hash;
+
+            resource = resources.get(i);
+            file     = files.get(i);
+            hash     = hashVersions && resource.getVersion() == null;
+            if(resource.getSize() != 0 && !hash)
+                continue;
+
+            targets.add(resource);
+            work.add(new Callable<Stat>() {
+                public Stat call() throws IOException {return Stat.read(file, hash, cache);}
+            });
+        }
+        stats = ParallelRunner.run(work, threads);
+
+        for(int i = 0; i < targets.size(); i++) {
+            Resource resource;
+            Stat     stat;
+
+            resource = targets.get(i);
+            stat     = stats.get(i);
+            if(resource.getSize() == 0) {
+                if(stat.size > Integer.MAX_VALUE)
+                    throw new BuildException("Resource too large: " + resource.getHref());
+                resource.setSize((int)stat.size);
+            }
+            if(stat.version != null)
+                resource.setVersion(stat.version);
+        }
+    }
+
+
+    /**
+     * Returns the content hash version of the specified file.
+     * @param     file        file to hash.
+     * @param     cache       where to look for the file's digest, <code>null</code> to always compute it.
+     * @return                the content hash version of the specified file.
+     * @exception IOException thrown if the file cannot be read.
+     */
+    static String getHashVersion(File file, HashCache cache) throws IOException {
+        String digest;
+
+        digest = cache == null ? Digests.toHex(Digests.sha256(file)) : cache.sha256(file);
+        return digest.substring(0, VERSION_LENGTH);
+    }
+
+
+
+    // - Stat class ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Size and content hash version of a file.
+     * @author Nicolas Rinaudo
+     */
+    private static class Stat {
+        /** Size of the file. */
+        private final long   size;
+        /** Content hash version of the file, <code>null</code> if not computed. */
+        private final String version;
+
+        /**
+         * Creates a new stat.
+         * @param size    size of the file.
+         * @param version content hash version of the file, <code>null</code> if not computed.
+         */
+        private Stat(long size, String version) {
+            this.size    = size;
+            this.version = version;
+        }
+
+        /**
+         * Examines the specified file.
+         * @param     file        file to examine.
+         * @param     hash        whether to compute the file's content hash version.
+         * @param     cache       where to look for the file's digest, <code>null</code> to always compute it.
+         * @return                the size and, optionally, the content hash version of the file.
+         * @exception IOException thrown if the file doesn't exist or cannot be read.
+         */
+        static Stat read(File file, boolean hash, HashCache cache) throws IOException {
+            if(!file.isFile())
+                throw new IOException("File not found: " + file);
+            if(!hash)
+                return new Stat(file.length(), null);
+
+            return new Stat(file.length(), getHashVersion(file, cache));
+        }
+    }
+}
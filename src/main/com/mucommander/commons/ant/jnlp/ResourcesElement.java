@@ -26,23 +26,27 @@ import java.util.List;
  * @author Nicolas Rinaudo
  */
 public class ResourcesElement {
-    private       String                 os;
-    private       String                 arch;
-    private       String                 locale;
-    private final List<J2seElement>      j2ses;
-    private final List<JarElement>       jars;
-    private final List<NativeLibElement> nativeLibs;
-    private final List<ExtensionElement> extensions;
-    private final List<PropertyElement>  properties;
-    private final List<PackageElement>   packages;
+    private       String                   os;
+    private       String                   arch;
+    private       String                   locale;
+    private final List<J2seElement>        j2ses;
+    private final List<JarElement>         jars;
+    private final List<ResourceSetElement> jarSets;
+    private final List<NativeLibElement>   nativeLibs;
+    private final List<ResourceSetElement> nativeLibSets;
+    private final List<ExtensionElement>   extensions;
+    private final List<PropertyElement>    properties;
+    private final List<PackageElement>     packages;
 
     public ResourcesElement() {
-        j2ses      = new ArrayList<J2seElement>();
-        jars       = new ArrayList<JarElement>();
-        nativeLibs = new ArrayList<NativeLibElement>();
-        extensions = new ArrayList<ExtensionElement>();
-        properties = new ArrayList<PropertyElement>();
-        packages   = new ArrayList<PackageElement>();
+        j2ses         = new ArrayList<J2seElement>();
+        jars          = new ArrayList<JarElement>();
+        jarSets       = new ArrayList<ResourceSetElement>();
+        nativeLibs    = new ArrayList<NativeLibElement>();
+        nativeLibSets = new ArrayList<ResourceSetElement>();
+        extensions    = new ArrayList<ExtensionElement>();
+        properties    = new ArrayList<PropertyElement>();
+        packages      = new ArrayList<PackageElement>();
     }
 
     public String getOs() {
@@ -65,10 +69,18 @@ public class ResourcesElement {
         return jars.iterator();
     }
 
+    public Iterator<ResourceSetElement> jarSets() {
+        return jarSets.iterator();
+    }
+
     public Iterator<NativeLibElement> nativeLibs() {
         return nativeLibs.iterator();
     }
 
+    public Iterator<ResourceSetElement> nativeLibSets() {
+        return nativeLibSets.iterator();
+    }
+
     public Iterator<ExtensionElement> extensions() {
         return extensions.iterator();
     }
@@ -111,6 +123,15 @@ public class ResourcesElement {
         return buffer;
     }
 
+    public ResourceSetElement createJarSet() {
+        ResourceSetElement buffer;
+
+        buffer = new ResourceSetElement();
+        jarSets.add(buffer);
+
+        return buffer;
+    }
+
     public NativeLibElement createNativeLib() {
         NativeLibElement buffer;
 
@@ -120,6 +141,15 @@ public class ResourcesElement {
         return buffer;
     }
 
+    public ResourceSetElement createNativeLibSet() {
+        ResourceSetElement buffer;
+
+        buffer = new ResourceSetElement();
+        nativeLibSets.add(buffer);
+
+        return buffer;
+    }
+
     public ExtensionElement createExtension() {
         ExtensionElement buffer;
 
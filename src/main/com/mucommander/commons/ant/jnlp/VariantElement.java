@@ -0,0 +1,71 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes what one value of an {@link AxisElement axis} adds to the base JNLP file.
+ * @author Nicolas Rinaudo
+ */
+public class VariantElement {
+    private       String                   value;
+    private final List<InformationElement> informations;
+    private final List<ResourcesElement>   resources;
+    private final List<ArgumentElement>    arguments;
+
+    public VariantElement() {
+        informations = new ArrayList<InformationElement>();
+        resources    = new ArrayList<ResourcesElement>();
+        arguments    = new ArrayList<ArgumentElement>();
+    }
+
+    public String getValue() {return value;}
+    public void setValue(String s) {value = s;}
+    public List<InformationElement> getInformations() {return informations;}
+    public List<ResourcesElement> getResources() {return resources;}
+    public List<ArgumentElement> getArguments() {return arguments;}
+
+    public InformationElement createInformation() {
+        InformationElement buffer;
+
+        buffer = new InformationElement();
+        informations.add(buffer);
+
+        return buffer;
+    }
+
+    public ResourcesElement createResources() {
+        ResourcesElement buffer;
+
+        buffer = new ResourcesElement();
+        resources.add(buffer);
+
+        return buffer;
+    }
+
+    public ArgumentElement createArgument() {
+        ArgumentElement buffer;
+
+        buffer = new ArgumentElement();
+        arguments.add(buffer);
+
+        return buffer;
+    }
+}
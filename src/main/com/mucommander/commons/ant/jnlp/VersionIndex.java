@@ -0,0 +1,365 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.XmlWriter;
+import org.apache.tools.ant.BuildException;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Generates the files used by the version-based download protocol of Java Web Start.
+ * <p>
+ * Each versioned resource is copied to the output folder, under the same relative path as its <code>href</code> but
+ * with a name of the form <code>name__Vversion.ext</code>, and is described by the <code>version.xml</code> file of
+ * its folder. A servlet such as <code>JnlpDownloadServlet</code> can then answer requests for specific versions of a
+ * resource without having to look at the files themselves.
+ * </p>
+ * <p>
+ * Versions are expected to be content hashes, but aren't required to be: files that already exist in the output folder
+ * are only left alone if their content matches that of the resource, and copied again otherwise. Digests are read
+ * from the optional {@link HashCache}, which makes regenerating a release that mostly consists of unchanged resources
+ * cheap. <code>version.xml</code> files are written as resources are added, so that only one entry per folder needs to
+ * be kept in memory.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class VersionIndex {
+    // - XML format ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of version index files. */
+    static final String         FILE_NAME        = "version.xml";
+    /** Separator between the name of a file and its version. */
+    static final String         VERSION_MARKER   = "__V";
+    private static final String ELEMENT_ROOT     = "jnlp-versions";
+    private static final String ELEMENT_RESOURCE = "resource";
+    private static final String ELEMENT_PATTERN  = "pattern";
+    private static final String ELEMENT_NAME     = "name";
+    private static final String ELEMENT_VERSION  = "version-id";
+    private static final String ELEMENT_OS       = "os";
+    private static final String ELEMENT_ARCH     = "arch";
+    private static final String ELEMENT_LOCALE   = "locale";
+    private static final String ELEMENT_FILE     = "file";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Where to write versioned files. */
+    private final File                  folder;
+    /** Cache of file digests, <code>null</code> if digests should always be computed. */
+    private final HashCache             cache;
+    /** Maximum number of threads to use. */
+    private final int                   threads;
+    /** Open version index of each folder, by path relative to {@link #folder}. */
+    private final Map<String, Document> documents;
+    /** Number of resources that have been indexed. */
+    private int                         count;
+    /** Number of resources that had to be copied. */
+    private int                         copied;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new version index.
+     * @param folder  where to write versioned files.
+     * @param cache   cache of file digests, <code>null</code> if digests should always be computed.
+     * @param threads maximum number of threads to use.
+     */
+    VersionIndex(File folder, HashCache cache, int threads) {
+        this.folder  = folder;
+        this.cache   = cache;
+        this.threads = threads;
+        documents    = new HashMap<String, Document>();
+    }
+
+
+
+    // - Indexing ------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the versioned name of the specified file name.
+     * @param  name    name of the file.
+     * @param  version version of the file.
+     * @return         the versioned name of the specified file name.
+     */
+    static String getVersionedName(String name, String version) {
+        int index;
+
+        if((index = name.lastIndexOf('.')) <= 0)
+            return name + VERSION_MARKER + version;
+        return name.substring(0, index) + VERSION_MARKER + version + name.substring(index);
+    }
+
+    /**
+     * Copies the specified resources and adds them to the version index of their folder.
+     * <p>
+     * Resources without a version are ignored.
+     * </p>
+     * @param     list           resources to add.
+     * @param     files          local file of each resource, in the same order as <code>list</code>.
+     * @param     resources      element that contains the resources, which describes their platform.
+     * @exception BuildException thrown if any error occurs.
+     */
+    void add(List<? extends Resource> list, List<File> files, ResourcesElement resources) throws BuildException {
+        List<Callable<Boolean>> work;
+        List<Resource>          targets;
+        List<Boolean>           results;
+
+        // Copies all new versioned files concurrently.
+        work    = new ArrayList<Callable<Boolean>>();
+        targets = new ArrayList<Resource>();
+        for(int i = 0; i < list.size(); i++) {
+            final File source;
+            final File target;
+            Resource   resource;
+
+            resource = list.get(i);
+            if(resource.getVersion() == null)
+                continue;
+
+            source = files.get(i);
+            target = new File(folder, getVersionedHref(resource).replace('/', File.separatorChar));
+            targets.add(resource);
+            work.add(new Callable<Boolean>() {
+                public Boolean call() throws IOException {return copy(source, target);}
+            });
+        }
+        results = ParallelRunner.run(work, threads);
+
+        // Indexes them in order.
+        try {
+            for(int i = 0; i < targets.size(); i++) {
+                index(targets.get(i), resources);
+                if(results.get(i))
+                    copied++;
+                count++;
+            }
+        }
+        catch(IOException e) {throw new BuildException(e);}
+        catch(SAXException e) {throw new BuildException(e);}
+    }
+
+    /**
+     * Returns the <code>href</code> of the versioned copy of the specified resource.
+     * @param  resource resource whose versioned <code>href</code> should be computed.
+     * @return          the <code>href</code> of the versioned copy of the specified resource.
+     */
+    private static String getVersionedHref(Resource resource) {
+        String href;
+        int    index;
+
+        href  = resource.getHref();
+        index = href.lastIndexOf('/') + 1;
+
+        return href.substring(0, index) + getVersionedName(href.substring(index), resource.getVersion());
+    }
+
+    /**
+     * Copies the specified file, unless an identical versioned copy already exists.
+     * @param     source      file to copy.
+     * @param     target      where to copy it.
+     * @return                <code>true</code> if the file had to be copied.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private boolean copy(File source, File target) throws IOException {
+        File temp;
+
+        if(target.isFile() && target.length() == source.length() && sha256(target).equals(sha256(source)))
+            return false;
+        if(!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs())
+            throw new IOException("Could not create directory " + target.getParentFile());
+
+        // Copies through a temporary file, as the same resource might be described more than once.
+        temp = File.createTempFile(".tmp", null, target.getParentFile());
+        try {
+            Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {temp.delete();}
+
+        return true;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the specified file, using the cache if available.
+     * @param     file        file whose digest should be returned.
+     * @return                the hexadecimal SHA-256 digest of the specified file.
+     * @exception IOException thrown if the file cannot be read.
+     */
+    private String sha256(File file) throws IOException {
+        return cache == null ? Digests.toHex(Digests.sha256(file)) : cache.sha256(file);
+    }
+
+    /**
+     * Adds the specified resource to the version index of its folder.
+     * @param     resource    resource to add.
+     * @param     resources   element that contains the resource, which describes its platform.
+     * @exception IOException  thrown if the version index cannot be created.
+     * @exception SAXException thrown if any error occurs while writing the version index.
+     */
+    private void index(Resource resource, ResourcesElement resources) throws IOException, SAXException {
+        XmlWriter out;
+        String    href;
+        String    path;
+        int       index;
+
+        href  = resource.getHref();
+        index = href.lastIndexOf('/') + 1;
+        path  = href.substring(0, index);
+        out   = getDocument(path).out;
+
+        out.startElement(ELEMENT_RESOURCE);
+        out.startElement(ELEMENT_PATTERN);
+        writeElement(out, ELEMENT_NAME, href.substring(index));
+        writeElement(out, ELEMENT_VERSION, resource.getVersion());
+        writeElement(out, ELEMENT_OS, resources.getOs());
+        writeElement(out, ELEMENT_ARCH, resources.getArch());
+        writeElement(out, ELEMENT_LOCALE, resources.getLocale());
+        out.endElement(ELEMENT_PATTERN);
+        writeElement(out, ELEMENT_FILE, getVersionedName(href.substring(index), resource.getVersion()));
+        out.endElement(ELEMENT_RESOURCE);
+    }
+
+    /**
+     * Writes the specified text element, if its value is set.
+     * @param     out          where to write the element.
+     * @param     name         name of the element.
+     * @param     value        value of the element, <code>null</code> if not set.
+     * @exception SAXException thrown if any error occurs while writing the element.
+     */
+    private static void writeElement(XmlWriter out, String name, String value) throws SAXException {
+        if(value != null) {
+            out.startElement(name);
+            out.characters(value);
+            out.endElement(name);
+        }
+    }
+
+    /**
+     * Returns the version index of the specified folder, creating it if necessary.
+     * @param     path         path of the folder, relative to {@link #folder}.
+     * @return                 the version index of the specified folder.
+     * @exception IOException  thrown if the version index cannot be created.
+     * @exception SAXException thrown if any error occurs while writing the version index.
+     */
+    private Document getDocument(String path) throws IOException, SAXException {
+        Document document;
+
+        if((document = documents.get(path)) == null) {
+            File file;
+
+            file = new File(new File(folder, path.replace('/', File.separatorChar)), FILE_NAME);
+            if(!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+                throw new IOException("Could not create directory " + file.getParentFile());
+
+            documents.put(path, document = new Document(new BufferedOutputStream(new FileOutputStream(file))));
+            document.out.startDocument();
+            document.out.startElement(ELEMENT_ROOT);
+        }
+        return document;
+    }
+
+    /**
+     * Returns the number of resources that have been indexed.
+     * @return the number of resources that have been indexed.
+     */
+    int getCount() {return count;}
+
+    /**
+     * Returns the number of resources that had to be copied.
+     * @return the number of resources that had to be copied.
+     */
+    int getCopiedCount() {return copied;}
+
+    /**
+     * Completes and closes all version indexes.
+     * @param     complete       whether to complete indexes before closing them, <code>false</code> if an error
+     *                           occurred and they're about to be discarded.
+     * @exception BuildException thrown if any error occurs while writing the indexes.
+     */
+    void close(boolean complete) throws BuildException {
+        BuildException error;
+
+        error = null;
+        for(Document document : documents.values()) {
+            try {
+                if(complete) {
+                    document.out.endElement(ELEMENT_ROOT);
+                    document.out.endDocument();
+                }
+            }
+            catch(SAXException e) {
+                if(error == null)
+                    error = new BuildException(e);
+            }
+            finally {
+                try {document.stream.close();}
+                catch(IOException e) {
+                    if(error == null)
+                        error = new BuildException(e);
+                }
+            }
+        }
+        documents.clear();
+
+        if(error != null)
+            throw error;
+    }
+
+
+
+    // - Document class ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Version index being written.
+     * @author Nicolas Rinaudo
+     */
+    private static class Document {
+        /** Underlying stream. */
+        private final OutputStream stream;
+        /** Where to write the index. */
+        private final XmlWriter    out;
+
+        /**
+         * Creates a new document.
+         * @param stream where to write the index.
+         */
+        private Document(OutputStream stream) {
+            this.stream = stream;
+            out         = new XmlWriter(stream);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Ant task used to create several Mac OS X app packages in one go.
+ * <p>
+ * Each nested <code>app</code> element accepts exactly the same attributes and nested elements as the
+ * {@link AppTask mkapp} task. Building bundles through this task rather than through repeated calls to
+ * <code>mkapp</code> has the following advantages:
+ * <ul>
+ *   <li>The <code>JavaApplicationStub</code> is loaded from the classpath once and kept in memory.</li>
+ *   <li>
+ *     Files shared by several bundles, such as a common jar or icon, are copied once. Other bundles get a hard
+ *     link to that copy, or a copy of the copy if hard links are not supported.
+ *   </li>
+ *   <li>Bundles are built concurrently.</li>
+ * </ul>
+ * The cost of building bundles thus grows with the amount of unique data rather than with the number of bundles.
+ * </p>
+ * <p>
+ * Note that since shared files are hard linked, modifying one of them in a bundle will modify it in all bundles.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class AppBatchTask extends Task {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Bundles to build. */
+    private List<AppTask> apps;
+    /** Maximum number of bundles to build concurrently. */
+    private int           threads;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises an AppBatchTask.
+     */
+    public AppBatchTask() {}
+
+    /**
+     * Initialises the AppBatchTask.
+     */
+    public void init() {
+        apps    = new ArrayList<AppTask>();
+        threads = ParallelRunner.getDefaultThreads();
+    }
+
+
+
+    // - Parameters ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Maximum number of bundles to build concurrently.
+     * <p>
+     * Defaults to the number of available processors.
+     * </p>
+     */
+    public void setThreads(int i) {threads = i;}
+
+
+
+    // - Nested elements -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Declares a new bundle.
+     * @return the description of the new bundle.
+     */
+    public AppTask createApp() {
+        AppTask app;
+
+        app = new AppTask();
+        app.bindToOwner(this);
+        app.init();
+        apps.add(app);
+
+        return app;
+    }
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs during application file generation.
+     */
+    public void execute() throws BuildException {
+        BundleCache          cache;
+        List<Callable<Void>> bundles;
+
+        if(apps.isEmpty())
+            throw new BuildException("No bundle specified. Please add nested app elements.");
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+
+        cache   = new BundleCache();
+        bundles = new ArrayList<Callable<Void>>();
+        for(final AppTask app : apps) {
+            app.setCache(cache);
+            bundles.add(new Callable<Void>() {
+                public Void call() {app.execute(); return null;}
+            });
+        }
+        ParallelRunner.run(bundles, threads);
+    }
+}
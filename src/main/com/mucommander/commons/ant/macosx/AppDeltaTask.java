@@ -0,0 +1,498 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.BinaryDiff;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.Streams;
+import com.mucommander.commons.ant.util.ZipDirectory;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Ant task used to create a delta package between two versions of a Mac OS X application bundle.
+ * <p>
+ * The package describes how to create each file of the new bundle:
+ * <ul>
+ *   <li>Files whose content already exists in the old bundle, possibly under another path, are referenced by hash.</li>
+ *   <li>Changed JAR files are diffed entry by entry, and only changed entries are shipped.</li>
+ *   <li>
+ *     Other changed files are diffed with a <code>bsdiff</code>-style binary diff, provided they're smaller than
+ *     the <code>difflimit</code> attribute.
+ *   </li>
+ *   <li>All other files are shipped whole.</li>
+ * </ul>
+ * The package also contains the manifest of the new bundle, against which the result is verified when the package is
+ * applied by the {@link AppPatchTask applydelta} task.
+ * </p>
+ * <p>
+ * The old bundle can be described by its directory, its manifest as written by {@link AppTask mkapp}, or both. When
+ * only the manifest is available, unchanged files are still referenced by hash but changed files cannot be diffed.
+ * The new bundle's directory is always required, but supplying its manifest spares hashing it.
+ * </p>
+ * <p>
+ * Binary diffs are computed concurrently, and JAR files are compared using all available processors.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class AppDeltaTask extends Task {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Default maximum size of files that are diffed with the binary diff. */
+    private static final long   DEFAULT_DIFF_LIMIT = 16 * 1024 * 1024;
+    /** Extension of JAR files. */
+    private static final String JAR_EXTENSION      = ".jar";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Old version of the bundle. */
+    private File from;
+    /** Manifest of the old version of the bundle. */
+    private File fromManifest;
+    /** New version of the bundle. */
+    private File to;
+    /** Manifest of the new version of the bundle. */
+    private File toManifest;
+    /** Where to write the delta package. */
+    private File destination;
+    /** Maximum number of threads to use. */
+    private int  threads;
+    /** Maximum size of files that are diffed with the binary diff. */
+    private long diffLimit;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises an AppDeltaTask.
+     */
+    public AppDeltaTask() {}
+
+    /**
+     * Initialises the AppDeltaTask.
+     */
+    public void init() {
+        from         = null;
+        fromManifest = null;
+        to           = null;
+        toManifest   = null;
+        destination  = null;
+        threads      = ParallelRunner.getDefaultThreads();
+        diffLimit    = DEFAULT_DIFF_LIMIT;
+    }
+
+
+
+    // - Parameters ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Old version of the bundle.
+     * <p>
+     * Changed files can only be diffed if this is set.
+     * </p>
+     */
+    public void setFrom(File f) {from = f;}
+
+    /**
+     * Manifest of the old version of the bundle.
+     * <p>
+     * If not set, the old bundle is hashed.
+     * </p>
+     */
+    public void setFromManifest(File f) {fromManifest = f;}
+
+    /**
+     * New version of the bundle.
+     */
+    public void setTo(File f) {to = f;}
+
+    /**
+     * Manifest of the new version of the bundle.
+     * <p>
+     * If not set, the new bundle is hashed.
+     * </p>
+     */
+    public void setToManifest(File f) {toManifest = f;}
+
+    /**
+     * Where to write the delta package.
+     */
+    public void setDest(File f) {destination = f;}
+
+    /**
+     * Maximum number of threads to use.
+     * <p>
+     * Defaults to the number of available processors.
+     * </p>
+     */
+    public void setThreads(int i) {threads = i;}
+
+    /**
+     * Maximum size, in bytes, of files that are diffed with the binary diff.
+     * <p>
+     * Binary diffs need about 10 bytes of memory per byte of the old file, and each thread diffs its own file.
+     * Larger files are shipped whole. Defaults to 16MB.
+     * </p>
+     */
+    public void setDiffLimit(long l) {diffLimit = l;}
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure all parameters have been properly initialised.
+     */
+    private void check() throws BuildException {
+        if(to == null)
+            throw new BuildException("No new bundle specified. Please fill in the to argument.");
+        if(!to.isDirectory())
+            throw new BuildException("Not a directory: " + to);
+        if(from == null && fromManifest == null)
+            throw new BuildException("No old bundle specified. Please fill in the from or frommanifest argument.");
+        if(from != null && !from.isDirectory())
+            throw new BuildException("Not a directory: " + from);
+        if(destination == null)
+            throw new BuildException("No destination file specified. Please fill in the dest argument.");
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+    }
+
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs during delta generation.
+     */
+    public void execute() throws BuildException {
+        BundleManifest                      oldManifest;
+        BundleManifest                      newManifest;
+        List<BundleDelta.Operation>         operations;
+        Map<String, BinaryDiff.Patch>       patches;
+        Map<String, List<JarDelta.Segment>> jars;
+
+        check();
+
+        // Describes both bundles.
+        oldManifest = getManifest(from, fromManifest);
+        newManifest = getManifest(to, toManifest);
+
+        // Decides how to create each file, and computes the diffs.
+        operations = getOperations(oldManifest, newManifest);
+        patches    = getPatches(operations);
+        jars       = getJarDeltas(operations);
+
+        write(newManifest, operations, patches, jars);
+    }
+
+    /**
+     * Returns the manifest of the specified bundle, reading it if possible and hashing the bundle otherwise.
+     * @param     bundle         bundle whose manifest should be returned, possibly <code>null</code>.
+     * @param     manifest       manifest of the bundle, possibly <code>null</code>.
+     * @return                   the manifest of the specified bundle.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private static BundleManifest getManifest(File bundle, File manifest) throws BuildException {
+        BundleManifest result;
+
+        if(manifest != null)
+            return BundleManifest.read(manifest, bundle);
+
+        result = new BundleManifest(bundle);
+        result.scan(null);
+
+        return result;
+    }
+
+    /**
+     * Decides how to create each file of the new bundle.
+     * @param     oldManifest    manifest of the old bundle.
+     * @param     newManifest    manifest of the new bundle.
+     * @return                   how to create each file of the new bundle.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private List<BundleDelta.Operation> getOperations(BundleManifest oldManifest, BundleManifest newManifest)
+            throws BuildException {
+        List<BundleDelta.Operation>       operations;
+        Map<String, BundleManifest.Entry> oldEntries;
+        Map<String, String>               digests;
+
+        // Indexes the old bundle by content.
+        oldEntries = oldManifest.getEntries();
+        digests    = new HashMap<String, String>();
+        for(Map.Entry<String, BundleManifest.Entry> entry : oldEntries.entrySet())
+            if(!digests.containsKey(entry.getValue().getDigest()))
+                digests.put(entry.getValue().getDigest(), entry.getKey());
+
+        operations = new ArrayList<BundleDelta.Operation>();
+        for(Map.Entry<String, BundleManifest.Entry> entry : newManifest.getEntries().entrySet()) {
+            BundleManifest.Entry oldEntry;
+            String               path;
+            String               source;
+            File                 file;
+            File                 oldFile;
+            int                  type;
+
+            path     = entry.getKey();
+            file     = new File(to, path);
+            oldEntry = oldEntries.get(path);
+            oldFile  = from == null ? null : new File(from, path);
+
+            // Unchanged content, possibly moved.
+            if(oldEntry != null && oldEntry.getDigest().equals(entry.getValue().getDigest()))
+                source = path;
+            else
+                source = digests.get(entry.getValue().getDigest());
+
+            if(source != null)
+                type = BundleDelta.KEEP;
+
+            // Changed content that can be diffed.
+            else if(oldEntry != null && oldFile != null && oldFile.isFile()) {
+                source = path;
+                if(isJar(oldFile) && isJar(file))
+                    type = BundleDelta.JAR;
+                else if(oldFile.length() <= diffLimit && file.length() <= diffLimit)
+                    type = BundleDelta.PATCH;
+                else {
+                    type   = BundleDelta.ADD;
+                    source = null;
+                }
+            }
+
+            // New content.
+            else
+                type = BundleDelta.ADD;
+
+            operations.add(new BundleDelta.Operation(type, file.canExecute(), path, source));
+        }
+
+        return operations;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified file is a JAR file that can be diffed entry by entry.
+     * @param  file file to check.
+     * @return      <code>true</code> if the specified file is a JAR file that can be diffed entry by entry.
+     */
+    private boolean isJar(File file) {
+        if(!file.getName().toLowerCase().endsWith(JAR_EXTENSION))
+            return false;
+
+        try {
+            ZipDirectory.read(file);
+            return true;
+        }
+        catch(ZipException e) {
+            log("Diffing " + file + " as a plain file: " + e.getMessage(), Project.MSG_VERBOSE);
+            return false;
+        }
+        catch(IOException e) {throw new BuildException("Could not read " + file, e);}
+    }
+
+    /**
+     * Computes all binary patches, concurrently.
+     * @param     operations     operations of the delta.
+     * @return                   binary patches, indexed by path in the new bundle.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private Map<String, BinaryDiff.Patch> getPatches(List<BundleDelta.Operation> operations) throws BuildException {
+        List<Callable<BinaryDiff.Patch>> work;
+        List<String>                     paths;
+        List<BinaryDiff.Patch>           results;
+        Map<String, BinaryDiff.Patch>    patches;
+
+        work  = new ArrayList<Callable<BinaryDiff.Patch>>();
+        paths = new ArrayList<String>();
+        for(final BundleDelta.Operation operation : operations) {
+            if(operation.getType() != BundleDelta.PATCH)
+                continue;
+
+            paths.add(operation.getPath());
+            work.add(new Callable<BinaryDiff.Patch>() {
+                public BinaryDiff.Patch call() throws IOException {
+                    return BinaryDiff.diff(readFile(new File(from, operation.getSource())),
+                                           readFile(new File(to, operation.getPath())));
+                }
+            });
+        }
+
+        results = ParallelRunner.run(work, threads);
+        patches = new HashMap<String, BinaryDiff.Patch>();
+        for(int i = 0; i < paths.size(); i++)
+            patches.put(paths.get(i), results.get(i));
+
+        return patches;
+    }
+
+    /**
+     * Computes all JAR deltas, one JAR file at a time but using all threads for each of them.
+     * @param     operations     operations of the delta.
+     * @return                   JAR deltas, indexed by path in the new bundle.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private Map<String, List<JarDelta.Segment>> getJarDeltas(List<BundleDelta.Operation> operations)
+            throws BuildException {
+        Map<String, List<JarDelta.Segment>> deltas;
+
+        deltas = new HashMap<String, List<JarDelta.Segment>>();
+        for(BundleDelta.Operation operation : operations) {
+            if(operation.getType() != BundleDelta.JAR)
+                continue;
+
+            try {
+                deltas.put(operation.getPath(), JarDelta.diff(new File(from, operation.getSource()),
+                                                              new File(to, operation.getPath()), threads));
+            }
+            catch(IOException e) {throw new BuildException("Could not diff " + operation.getPath(), e);}
+        }
+
+        return deltas;
+    }
+
+    /**
+     * Writes the delta package.
+     * @param     manifest       manifest of the new bundle.
+     * @param     operations     operations of the delta.
+     * @param     patches        binary patches, indexed by path in the new bundle.
+     * @param     jars           JAR deltas, indexed by path in the new bundle.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private void write(BundleManifest manifest, List<BundleDelta.Operation> operations,
+                       Map<String, BinaryDiff.Patch> patches, Map<String, List<JarDelta.Segment>> jars)
+            throws BuildException {
+        ZipOutputStream out;
+        int[]           counts;
+        long            literals;
+
+        out      = null;
+        counts   = new int[BundleDelta.JAR + 1];
+        literals = 0;
+        try {
+            out = new ZipOutputStream(new FileOutputStream(destination));
+
+            out.putNextEntry(new ZipEntry(BundleDelta.MANIFEST_ENTRY));
+            manifest.store(out);
+            out.putNextEntry(new ZipEntry(BundleDelta.INDEX_ENTRY));
+            BundleDelta.writeIndex(operations, out);
+
+            for(int i = 0; i < operations.size(); i++) {
+                BundleDelta.Operation operation;
+                BinaryDiff.Patch      patch;
+
+                operation = operations.get(i);
+                counts[operation.getType()]++;
+                switch(operation.getType()) {
+                case BundleDelta.ADD:
+                    out.putNextEntry(new ZipEntry(Integer.toString(i)));
+                    literals += copyFile(new File(to, operation.getPath()), out);
+                    break;
+
+                case BundleDelta.PATCH:
+                    patch = patches.get(operation.getPath());
+                    out.putNextEntry(new ZipEntry(i + BundleDelta.CONTROL_SUFFIX));
+                    out.write(patch.getControl());
+                    out.putNextEntry(new ZipEntry(i + BundleDelta.DIFF_SUFFIX));
+                    out.write(patch.getDiff());
+                    out.putNextEntry(new ZipEntry(i + BundleDelta.EXTRA_SUFFIX));
+                    out.write(patch.getExtra());
+                    literals += patch.getExtra().length;
+                    break;
+
+                case BundleDelta.JAR:
+                    out.putNextEntry(new ZipEntry(i + BundleDelta.JAR_SUFFIX));
+                    literals += JarDelta.write(jars.get(operation.getPath()), new File(to, operation.getPath()), out);
+                    break;
+                }
+            }
+            out.closeEntry();
+        }
+        catch(IOException e) {throw new BuildException("Could not write " + destination, e);}
+
+        // Releases resources.
+        finally {
+            if(out != null) {
+                try {out.close();}
+                catch(Exception e) {}
+            }
+        }
+
+        log("Delta of " + operations.size() + " files: " + counts[BundleDelta.KEEP] + " kept, "
+            + counts[BundleDelta.JAR] + " JAR deltas, " + counts[BundleDelta.PATCH] + " patched, "
+            + counts[BundleDelta.ADD] + " added (" + literals + " new bytes, " + destination.length()
+            + " bytes compressed).");
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads the whole content of the specified file.
+     * @param     file        file to read.
+     * @return                the content of the file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in;
+
+        in = new FileInputStream(file);
+        try {return Streams.readFully(in, file.length());}
+        finally {
+            try {in.close();}
+            catch(Exception e) {}
+        }
+    }
+
+    /**
+     * Copies the content of the specified file to the specified stream.
+     * @param     file        file to copy.
+     * @param     out         where to copy the file.
+     * @return                the number of bytes copied.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static long copyFile(File file, ZipOutputStream out) throws IOException {
+        InputStream in;
+
+        in = new FileInputStream(file);
+        try {AppTask.transfer(in, out);}
+        finally {
+            try {in.close();}
+            catch(Exception e) {}
+        }
+
+        return file.length();
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.BinaryDiff;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.Streams;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Ant task used to apply a delta package created by {@link AppDeltaTask mkdelta} to an application bundle.
+ * <p>
+ * The new bundle is created next to the old one, which is left untouched. Files are created concurrently and hashed
+ * as they're written; the task fails unless the result matches the manifest stored in the delta package exactly.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class AppPatchTask extends Task {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Old version of the bundle. */
+    private File from;
+    /** Delta package to apply. */
+    private File delta;
+    /** Where to create the new version of the bundle. */
+    private File destination;
+    /** Maximum number of threads to use. */
+    private int  threads;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises an AppPatchTask.
+     */
+    public AppPatchTask() {}
+
+    /**
+     * Initialises the AppPatchTask.
+     */
+    public void init() {
+        from        = null;
+        delta       = null;
+        destination = null;
+        threads     = ParallelRunner.getDefaultThreads();
+    }
+
+
+
+    // - Parameters ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Old version of the bundle.
+     */
+    public void setFrom(File f) {from = f;}
+
+    /**
+     * Delta package to apply.
+     */
+    public void setDelta(File f) {delta = f;}
+
+    /**
+     * Where to create the new version of the bundle.
+     * <p>
+     * This must be either a non-existing or an empty directory.
+     * </p>
+     */
+    public void setDest(File f) {destination = f;}
+
+    /**
+     * Maximum number of threads to use.
+     * <p>
+     * Defaults to the number of available processors.
+     * </p>
+     */
+    public void setThreads(int i) {threads = i;}
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure all parameters have been properly initialised.
+     */
+    private void check() throws BuildException {
+        String[] children;
+
+        if(from == null)
+            throw new BuildException("No old bundle specified. Please fill in the from argument.");
+        if(!from.isDirectory())
+            throw new BuildException("Not a directory: " + from);
+        if(delta == null)
+            throw new BuildException("No delta package specified. Please fill in the delta argument.");
+        if(!delta.isFile())
+            throw new BuildException("File not found: " + delta);
+        if(destination == null)
+            throw new BuildException("No destination folder specified. Please fill in the dest argument.");
+        if(destination.exists() && ((children = destination.list()) == null || children.length != 0))
+            throw new BuildException(destination + " is not an empty directory.");
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+    }
+
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs while applying the delta.
+     */
+    public void execute() throws BuildException {
+        final ZipFile                     zip;
+        final BundleCache                 cache;
+        final BundleManifest              result;
+        BundleManifest                    expected;
+        Map<String, BundleManifest.Entry> sizes;
+        List<BundleDelta.Operation>       operations;
+        List<Callable<Void>>              work;
+
+        check();
+
+        try {zip = new ZipFile(delta);}
+        catch(IOException e) {throw new BuildException("Could not open " + delta, e);}
+
+        try {
+            // Reads the description of the new bundle.
+            try {
+                expected   = BundleManifest.read(zip.getInputStream(getEntry(zip, BundleDelta.MANIFEST_ENTRY)), destination);
+                operations = BundleDelta.readIndex(zip.getInputStream(getEntry(zip, BundleDelta.INDEX_ENTRY)));
+            }
+            catch(IOException e) {throw new BuildException("Could not read " + delta, e);}
+
+            // Creates the directory structure sequentially, to avoid concurrent threads racing for the same folders.
+            for(BundleDelta.Operation operation : operations)
+                mkdirs(new File(destination, operation.getPath()).getParentFile());
+
+            // Creates all files concurrently.
+            cache  = new BundleCache();
+            result = new BundleManifest(destination);
+            sizes  = expected.getEntries();
+            work   = new ArrayList<Callable<Void>>();
+            for(int i = 0; i < operations.size(); i++) {
+                final BundleDelta.Operation operation;
+                final int                   index;
+                final long                  size;
+
+                operation = operations.get(i);
+                index     = i;
+                if(!sizes.containsKey(operation.getPath()))
+                    throw new BuildException("Corrupt delta package, no manifest entry for " + operation.getPath());
+                size = sizes.get(operation.getPath()).getSize();
+                work.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        apply(zip, index, operation, size, cache, result);
+                        return null;
+                    }
+                });
+            }
+            ParallelRunner.run(work, threads);
+        }
+        finally {
+            try {zip.close();}
+            catch(Exception e) {}
+        }
+
+        verify(expected, result);
+        log("Applied " + operations.size() + " operations to " + destination + ".");
+    }
+
+    /**
+     * Creates a file of the new bundle.
+     * @param     zip         delta package.
+     * @param     index       index of the operation.
+     * @param     operation   operation to apply.
+     * @param     size        expected size of the file.
+     * @param     cache       used to copy files of the old bundle.
+     * @param     result      where to record the created file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private void apply(ZipFile zip, int index, BundleDelta.Operation operation, long size, BundleCache cache,
+                       BundleManifest result) throws IOException {
+        File         file;
+        OutputStream out;
+        InputStream  in;
+        byte[]       digest;
+
+        file = new File(destination, operation.getPath());
+
+        // Unchanged files are copied, and hashed in the process.
+        if(operation.getType() == BundleDelta.KEEP) {
+            digest = cache.copy(new File(from, operation.getSource()), file);
+            result.add(file, file.length(), digest);
+        }
+
+        // Other files are written through a stream that records them when closed.
+        else {
+            out = result.open(file);
+            try {
+                switch(operation.getType()) {
+                case BundleDelta.ADD:
+                    transfer(zip, Integer.toString(index), out);
+                    break;
+
+                case BundleDelta.PATCH:
+                    out.write(patch(zip, index, new File(from, operation.getSource()), size));
+                    break;
+
+                case BundleDelta.JAR:
+                    in = zip.getInputStream(getEntry(zip, index + BundleDelta.JAR_SUFFIX));
+                    try {JarDelta.apply(new File(from, operation.getSource()), in, out);}
+                    finally {in.close();}
+                    break;
+                }
+            }
+            finally {out.close();}
+        }
+
+        if(!file.setExecutable(operation.isExecutable(), false))
+            throw new IOException("Could not set the permissions of " + file);
+    }
+
+    /**
+     * Applies a binary patch.
+     * @param     zip         delta package.
+     * @param     index       index of the operation.
+     * @param     source      file to patch.
+     * @param     size        size of the patched content.
+     * @return                the patched content.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static byte[] patch(ZipFile zip, int index, File source, long size) throws IOException {
+        InputStream in;
+        InputStream control;
+        InputStream diff;
+        InputStream extra;
+        byte[]      content;
+
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Corrupt delta package, patched file too large: " + source);
+
+        in = new FileInputStream(source);
+        try {content = Streams.readFully(in, source.length());}
+        finally {in.close();}
+
+        control = zip.getInputStream(getEntry(zip, index + BundleDelta.CONTROL_SUFFIX));
+        try {
+            diff = zip.getInputStream(getEntry(zip, index + BundleDelta.DIFF_SUFFIX));
+            try {
+                extra = zip.getInputStream(getEntry(zip, index + BundleDelta.EXTRA_SUFFIX));
+                try {return BinaryDiff.apply(content, (int)size, control, diff, extra);}
+                finally {extra.close();}
+            }
+            finally {diff.close();}
+        }
+        finally {control.close();}
+    }
+
+    /**
+     * Verifies that the new bundle matches its expected manifest.
+     * @param     expected       expected manifest of the new bundle.
+     * @param     result         actual manifest of the new bundle.
+     * @exception BuildException thrown if the new bundle doesn't match its manifest.
+     */
+    private static void verify(BundleManifest expected, BundleManifest result) throws BuildException {
+        Map<String, BundleManifest.Entry> files;
+
+        files = result.getEntries();
+        for(Map.Entry<String, BundleManifest.Entry> entry : expected.getEntries().entrySet()) {
+            BundleManifest.Entry actual;
+
+            if((actual = files.remove(entry.getKey())) == null)
+                throw new BuildException("Verification failed, missing file: " + entry.getKey());
+            if(actual.getSize() != entry.getValue().getSize() || !actual.getDigest().equals(entry.getValue().getDigest()))
+                throw new BuildException("Verification failed, " + entry.getKey() + " should have SHA-256 "
+                                         + entry.getValue().getDigest() + " but has " + actual.getDigest());
+        }
+        if(!files.isEmpty())
+            throw new BuildException("Verification failed, unexpected file: " + files.keySet().iterator().next());
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the specified entry of the delta package.
+     * @param     zip         delta package.
+     * @param     name        name of the entry.
+     * @return                the requested entry.
+     * @exception IOException thrown if the entry doesn't exist.
+     */
+    private static ZipEntry getEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry;
+
+        if((entry = zip.getEntry(name)) == null)
+            throw new IOException("Corrupt delta package, missing entry: " + name);
+
+        return entry;
+    }
+
+    /**
+     * Copies the content of the specified entry to the specified stream.
+     * @param     zip         delta package.
+     * @param     name        name of the entry.
+     * @param     out         where to copy the entry.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static void transfer(ZipFile zip, String name, OutputStream out) throws IOException {
+        InputStream in;
+
+        in = zip.getInputStream(getEntry(zip, name));
+        try {AppTask.transfer(in, out);}
+        finally {in.close();}
+    }
+
+    /**
+     * Makes sure the specified directory exists.
+     * @param     dir            directory to create.
+     * @exception BuildException thrown if the directory could not be created.
+     */
+    private static void mkdirs(File dir) throws BuildException {
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new BuildException("Could not create directory " + dir);
+    }
+}
@@ -18,14 +18,28 @@
 
 package com.mucommander.commons.ant.macosx;
 
+import com.mucommander.commons.ant.util.ClassShrinker;
+import com.mucommander.commons.ant.util.ClassStripper;
+import com.mucommander.commons.ant.util.JarSignatures;
+import com.mucommander.commons.ant.util.KeepElement;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.SourceDate;
 import com.mucommander.commons.ant.util.XmlWriter;
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.Path;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Ant task used to create Mac OS X app package for Java applications.
@@ -61,7 +75,10 @@ import java.net.URL;
  * This will be used by Mac OS X to display the application in the Dock, Finder, Task switcher...<br/>
  * While other formats might work, it's always best to use the native <code>.icns</code> format.
  * To create a <code>.icns</code> file from your images, use the Icon Composer application that comes
- * with the <a href="http://developer.apple.com/tools/">Apple Developers Tools</a>.
+ * with the <a href="http://developer.apple.com/tools/">Apple Developers Tools</a>.<br/>
+ * Alternatively, the icon can be a single PNG image, ideally 1024 pixels wide, from which the task will generate
+ * a <code>.icns</code> file containing all standard sizes. Generated icons are cached in the folder described by
+ * the <code>iconcache</code> attribute, which defaults to <code>~/.mkapp/icons</code>.
  * </p>
  * <p>
  * <h4>Info.plist</h4>
@@ -69,6 +86,103 @@ import java.net.URL;
  * pairs, and can be used for purposes as diverse as setting a classpath and forcing the value of Java
  * properties.
  * </p>
+ * <p>
+ * <h4>Reproducible bundles</h4>
+ * When the <code>reproducible</code> attribute is set, two runs of the task on the same input yield byte-identical
+ * bundles: all files and directories are given the modification date described by the <code>SOURCE_DATE_EPOCH</code>
+ * environment variable, and their permissions are normalised to <code>rwxr-xr-x</code> for directories and executable
+ * files, <code>rw-r--r--</code> for all other files. Combined with the <code>sortkeys</code> attribute, which sorts all
+ * dictionaries of the <code>Info.plist</code> file by key name, this allows bundles to be cached and deduplicated by
+ * content.
+ * </p>
+ * <p>
+ * <h4>Class data sharing</h4>
+ * When the <code>cds</code> attribute is set, the bundled JAR file is launched on the build host once the bundle
+ * has been assembled. This training run records the list of loaded classes and dumps them in a CDS archive, which
+ * is stored next to the JAR file. The matching <code>-XX:SharedArchiveFile</code> option is added to the
+ * <code>VMOptions</code> key of the <code>Java</code> dictionary, which saves the bundled application most of its
+ * class loading time at startup.<br/>
+ * The application must exit on its own during the training run, which is usually achieved through the
+ * <code>cdsargs</code> attribute. Note that CDS archives are only valid for the exact JVM build that created them: the
+ * JVM used for the training run, specified through the <code>cdsjvm</code> attribute, must match the one that will run
+ * the application. It defaults to the embedded runtime when there is one, and to the JVM running Ant otherwise. An
+ * embedded runtime for another platform cannot run on the build host, and <code>cdsjvm</code> is then mandatory. JVMs
+ * silently ignore archives they cannot use, which includes archives whose class path has moved on JVMs older than Java
+ * 21: these only benefit from the archive when the application is run from the exact location it was built in. Also
+ * note that CDS archives are not byte-for-byte reproducible, even when the <code>reproducible</code> attribute is set.
+ * </p>
+ * <p>
+ * <h4>Uncompressed JAR file</h4>
+ * When the <code>store</code> attribute is set, the bundled JAR file is an uncompressed copy of the one specified by
+ * the <code>jar</code> attribute, which is left untouched and remains suitable for downloads. Installed applications
+ * don't benefit from compression, while inflating classes costs CPU every time they're loaded. Entries are inflated
+ * concurrently and checked against their CRC before being written.
+ * </p>
+ * <p>
+ * <h4>Merged classpath</h4>
+ * The JAR files listed in the nested <code>merge</code> path are merged into the bundled JAR file, which is then
+ * the only one the application needs. Entries are copied without being recompressed. When an entry is found in more
+ * than one JAR file, nested <code>duplicate</code> elements decide, by entry name pattern, whether to keep the
+ * first occurrence (<code>first</code>), concatenate all of them (<code>concat</code>) or fail the build
+ * (<code>fail</code>). <code>META-INF/services</code> files are concatenated unless specified otherwise, while all
+ * other entries use the strategy described by the <code>duplicates</code> attribute, <code>first</code> by default.
+ * Identical entries are never considered duplicates.<br/>
+ * Signatures are removed, as merging invalidates them, and the manifest of the application's JAR file is marked as
+ * <code>Multi-Release</code> if any of the merged JAR files is. Merged JAR files are removed from the
+ * <code>ClassPath</code> key and from the manifest's <code>Class-Path</code> attribute.
+ * </p>
+ * <p>
+ * <h4>Class shrinking</h4>
+ * When the <code>shrink</code> attribute is set, classes of the bundled JAR file that cannot be reached from its
+ * <code>Main-Class</code>, or from the <code>MainClass</code> key of the <code>Java</code> dictionary if its manifest
+ * doesn't declare one, are removed, which is mostly useful once the classpath has been merged into it. Reachability is
+ * computed from the constant pool of each class, and classes that are only loaded through reflection must be described
+ * by nested <code>keep</code> elements, such as <code>&lt;keep pattern="com.foo.plugins.**"/&gt;</code>. Classpath JAR
+ * files that are not merged are analysed as well, and all their classes are considered reachable: they must thus
+ * already be in the bundle, or shrinking fails. The number of bytes saved is logged. Shrinking happens before
+ * reordering and CDS archive generation, whose training runs thus double as a check that no needed class was removed.
+ * </p>
+ * <p>
+ * <h4>Debugging attributes</h4>
+ * When the <code>strip</code> attribute is set, debugging attributes are removed from the classes of the bundled JAR
+ * file, which makes it smaller and faster to parse. The attributes to remove are listed by the
+ * <code>stripattributes</code> attribute and default to <code>LineNumberTable</code>, <code>LocalVariableTable</code>,
+ * <code>LocalVariableTypeTable</code>, <code>SourceFile</code> and <code>SourceDebugExtension</code>. Note that
+ * stack traces lose their line numbers. Classes are stripped concurrently, and stripped JAR files are cached by
+ * content in the folder described by the <code>stripcache</code> attribute, <code>~/.mkapp/stripped</code> by
+ * default.
+ * </p>
+ * <p>
+ * <h4>Class load order</h4>
+ * When the <code>reorder</code> attribute is set, the bundled JAR file is launched with <code>-Xlog:class+load</code>
+ * in a training run configured by the same attributes as the CDS one, and its entries are then rewritten in the order
+ * in which classes were loaded. Classes needed at startup thus sit contiguously at the beginning of the file, which
+ * turns the random reads of a cold start into sequential ones. Entries are moved, not recompressed.<br/>
+ * Alternatively, the <code>classorder</code> attribute can point to a class loading log recorded beforehand, either
+ * by <code>-Xlog:class+load</code> or <code>-XX:DumpLoadedClassList</code>, in which case no training run is needed.
+ * Reordering happens before the CDS archive is generated, as CDS archives are tied to the exact JAR file they were
+ * created from.
+ * </p>
+ * <p>
+ * <h4>Embedded runtime</h4>
+ * When the <code>runtimemodules</code> attribute is set, a runtime image containing these modules is created with
+ * <code>jlink</code> and embedded in <code>Contents/PlugIns/runtime/Contents/Home</code>. The
+ * <code>JVMRuntime</code> key is set accordingly for launchers that support it.<br/>
+ * Runtime images are cached by JDK build, module set and <code>jlink</code> options, in the folder specified by the
+ * <code>runtimecache</code> attribute. <code>jlink</code> thus only runs the first time a given runtime is needed,
+ * which is typically once per JDK update.<br/>
+ * In order to embed a runtime for a platform other than the build host, the <code>runtimejmods</code> attribute must
+ * point to the <code>jmods</code> folder of a JDK for the target platform, of the same version as the one used to run
+ * <code>jlink</code>. Runtimes for the build host are given the default CDS archive that <code>jlink</code> leaves out,
+ * which is not byte-for-byte reproducible either.
+ * </p>
+ * <p>
+ * <h4>Manifest</h4>
+ * When the <code>manifest</code> attribute is set, the task writes the path, size and SHA-256 digest of every file
+ * in the bundle to the specified file, one line per file, sorted by path. Files are hashed as they are copied, so
+ * the manifest costs little more than the final listing of the bundle; files that the task did not write itself,
+ * such as CDS archives, are hashed concurrently.
+ * </p>
  * @author Nicolas Rinaudo
  */
 public class AppTask extends Task {
@@ -82,10 +196,16 @@ public class AppTask extends Task {
     private static final String KEY_SIGNATURE     = "CFBundleSignature";
     /** Label of the 'bundle icon' in Info.plist. */
     private static final String KEY_ICON          = "CFBundleIconFile";
+    /** Label of the 'embedded runtime' key in Info.plist. */
+    private static final String KEY_RUNTIME       = "JVMRuntime";
     /** Label of the 'java' list of properties in Info.plist. */
     private static final String DICT_JAVA         = "Java";
     /** Label of the 'classpath' key in Info.plist. */
     private static final String KEY_CLASSPATH     = "ClassPath";
+    /** Label of the 'main class' key in Info.plist. */
+    private static final String KEY_MAIN_CLASS    = "MainClass";
+    /** Label of the 'JVM options' key in Info.plist. */
+    private static final String KEY_VM_OPTIONS    = "VMOptions";
 
 
 
@@ -116,31 +236,93 @@ public class AppTask extends Task {
     private static final String JAVA_FOLDER      = "Java";
     /** Name of the MacOS folder. */
     private static final String MACOS_FOLDER     = "MacOS";
+    /** Name of the PlugIns folder. */
+    private static final String PLUGINS_FOLDER   = "PlugIns";
+    /** Name of the embedded runtime's plugin. */
+    private static final String RUNTIME_PLUGIN   = "runtime";
+    /** Path of the embedded runtime's home, relative to its plugin folder. */
+    private static final String RUNTIME_HOME     = CONTENTS_FOLDER + File.separator + "Home";
     /** Name of the propery list file. */
     private static final String PROPERTIES_LIST  = "Info.plist";
     /** Default bundle type. */
     private static final String TYPE_APPL        = "APPL";
+    /** Extension of the CDS archive, appended to the name of the JAR file. */
+    private static final String CDS_ARCHIVE      = ".jsa";
+    /** Extension of the CDS class list, appended to the name of the JAR file. */
+    private static final String CDS_CLASS_LIST   = ".classlist";
 
 
 
     // - Instance fields -----------------------------------------------------------------------------------------------
     // -----------------------------------------------------------------------------------------------------------------
     /** Where to store the resulting .app. */
-    private File           destination;
+    private File                   destination;
     /** Application bundle type. */
-    private String         type;
+    private String                 type;
     /** Application bundle creator code. */
-    private String         creator;
+    private String                 creator;
     /** Path to the application's icon. */
-    private File           icon;
+    private File                   icon;
+    /** Where to cache icons generated from PNG images. */
+    private File                   iconCache;
     /** Application's info description. */
-    private DictValue      properties;
+    private DictValue              properties;
     /** Path to the application's JAR file. */
-    private File           jar;
+    private File                   jar;
     /** DTD version of the <code>Info.plist</code> file. */
-    private String         infoVersion;
+    private String                 infoVersion;
     /** Additional classpath elements. */
-    private String         classpath;
+    private String                 classpath;
+    /** JAR files merged into the bundled one. */
+    private Path                   merge;
+    /** Rules used to resolve duplicate entries when merging JAR files. */
+    private List<DuplicateElement> duplicateRules;
+    /** Default strategy used to resolve duplicate entries when merging JAR files. */
+    private String                 duplicates;
+    /** Whether to remove unreachable classes from the bundled JAR file. */
+    private boolean                shrink;
+    /** Classes that must be kept when shrinking the bundled JAR file. */
+    private List<KeepElement>      keeps;
+    /** Whether to remove debugging attributes from the bundled JAR file. */
+    private boolean                strip;
+    /** Comma separated list of the attributes to remove from the bundled JAR file. */
+    private String                 stripAttributes;
+    /** Where to cache stripped JAR files. */
+    private File                   stripCache;
+    /** Whether to store the bundled JAR file uncompressed. */
+    private boolean                store;
+    /** Whether to normalise file dates and permissions. */
+    private boolean                reproducible;
+    /** Whether to sort the <code>Info.plist</code> dictionaries by key name. */
+    private boolean                sortKeys;
+    /** Resources shared with other bundles built in the same batch. */
+    private BundleCache            cache;
+    /** Whether to generate a CDS archive. */
+    private boolean                cds;
+    /** JVM used for the CDS training run. */
+    private File                   cdsJvm;
+    /** Application arguments used for the CDS training run. */
+    private String                 cdsArgs;
+    /** Maximum duration of the CDS training run, in milliseconds. */
+    private long                   cdsTimeout;
+    /** Whether to reorder the JAR file's entries by class load order. */
+    private boolean                reorder;
+    /** Class loading log used to reorder the JAR file's entries, <code>null</code> to record one. */
+    private File                   classOrder;
+    /** Modules of the embedded runtime, <code>null</code> if no runtime should be embedded. */
+    private String                 runtimeModules;
+    /** JDK used to create the embedded runtime. */
+    private File                   runtimeJdk;
+    /** Folder that contains the modules of the embedded runtime. */
+    private File                   runtimeJmods;
+    /** Options passed to <code>jlink</code>. */
+    private String                 runtimeOptions;
+    /** Where to cache runtime images. */
+    private File                   runtimeCache;
+    /** Where to write the bundle's manifest, <code>null</code> if no manifest should be written. */
+    private File                   manifest;
+    /** Files written to the bundle so far. */
+    private BundleManifest         content;
 
 
 
@@ -155,15 +337,51 @@ public class AppTask extends Task {
      * Initialises the Apptask.
      */
     public void init() {
-        destination = null;
-        type        = null;
-        creator     = null;
-        icon        = null;
-        properties  = new DictValue();
-        jar         = null;
-        classpath   = null;
+        destination     = null;
+        type            = null;
+        creator         = null;
+        icon            = null;
+        iconCache       = IconGenerator.getDefaultFolder();
+        properties      = new DictValue();
+        jar             = null;
+        classpath       = null;
+        merge           = null;
+        duplicateRules  = new ArrayList<DuplicateElement>();
+        duplicates      = JarMerger.FIRST;
+        shrink          = false;
+        keeps           = new ArrayList<KeepElement>();
+        strip           = false;
+        stripAttributes = ClassStripper.DEFAULT_ATTRIBUTES;
+        stripCache      = ClassStripper.getDefaultFolder();
+        store           = false;
+        reproducible    = false;
+        sortKeys        = false;
+        cache           = null;
+        cds             = false;
+        cdsJvm          = null;
+        cdsArgs         = null;
+        cdsTimeout      = TrainingRun.DEFAULT_TIMEOUT;
+        reorder         = false;
+        classOrder      = null;
+        runtimeModules  = null;
+        runtimeJdk      = RuntimeCache.getDefaultJdk();
+        runtimeJmods    = null;
+        runtimeOptions  = RuntimeCache.DEFAULT_OPTIONS;
+        runtimeCache    = RuntimeCache.getDefaultFolder();
+        manifest        = null;
+        content         = null;
     }
 
+    /**
+     * Sets the resources this bundle shares with other bundles.
+     * <p>
+     * This is used by {@link AppBatchTask} to avoid loading the same resources and copying the same files
+     * for each bundle. If not set, the task will use its own private cache.
+     * </p>
+     * @param c resources this bundle shares with other bundles.
+     */
+    void setCache(BundleCache c) {cache = c;}
+
 
 
     // - Parameters ----------------------------------------------------------------------------------------------------
@@ -211,6 +429,14 @@ public class AppTask extends Task {
      */
     public void setIcon(File f) {icon = f;}
 
+    /**
+     * Where to cache icons generated from PNG images.
+     * <p>
+     * Defaults to <code>~/.mkapp/icons</code>.
+     * </p>
+     */
+    public void setIconCache(File f) {iconCache = f;}
+
     /**
      * Path to your application's JAR file.
      * <p>
@@ -221,6 +447,57 @@ public class AppTask extends Task {
      */
     public void setJar(File f) {jar = f;}
 
+    /**
+     * Whether to remove unreachable classes from the bundled JAR file.
+     * <p>
+     * Classes that are only loaded through reflection must be described by nested <code>keep</code> elements.
+     * Defaults to <code>false</code>.
+     * </p>
+     */
+    public void setShrink(boolean b) {shrink = b;}
+
+    /**
+     * Whether to remove debugging attributes from the bundled JAR file.
+     * <p>
+     * Defaults to <code>false</code>.
+     * </p>
+     */
+    public void setStrip(boolean b) {strip = b;}
+
+    /**
+     * Comma separated list of the attributes to remove from the bundled JAR file.
+     * <p>
+     * Defaults to all debugging attributes.
+     * </p>
+     */
+    public void setStripAttributes(String s) {stripAttributes = s;}
+
+    /**
+     * Where to cache stripped JAR files.
+     * <p>
+     * Defaults to <code>~/.mkapp/stripped</code>.
+     * </p>
+     */
+    public void setStripCache(File f) {stripCache = f;}
+
+    /**
+     * Whether to store the bundled JAR file uncompressed.
+     * <p>
+     * If set to <code>true</code>, the bundle will contain an uncompressed copy of the JAR file, which loads faster.
+     * The original JAR file is left untouched. Defaults to <code>false</code>.
+     * </p>
+     */
+    public void setStore(boolean b) {store = b;}
+
+    /**
+     * Strategy used to resolve duplicate entries when merging JAR files.
+     * <p>
+     * This must be one of <code>first</code>, <code>fail</code> or <code>concat</code>, and applies to all entries
+     * that are not matched by a nested <code>duplicate</code> element. Defaults to <code>first</code>.
+     * </p>
+     */
+    public void setDuplicates(String s) {duplicates = s;}
+
     /**
      * Adds entries to the default <code>ClassPath</code> key.
      * <p>
@@ -230,7 +507,8 @@ public class AppTask extends Task {
      * </p>
      * <p>
      * If more than one path must be added to the <code>ClassPath</code> key, they should
-     * all be separated by a <code>:</code> character.
+     * all be separated by a <code>:</code> character. Paths to JAR files merged into the
+     * application's are ignored.
      * </p>
      */
     public void setClasspath(String path) {classpath = path;}
@@ -245,6 +523,131 @@ public class AppTask extends Task {
      */
     public void setInfoVersion(String s) {infoVersion = s;}
 
+    /**
+     * Whether the generated bundle should be reproducible.
+     * <p>
+     * If set to <code>true</code>, the modification date of all files and directories in the bundle will be set
+     * to the value of the <code>SOURCE_DATE_EPOCH</code> environment variable, which must then be defined, and
+     * their permissions will be normalised. Defaults to <code>false</code>.
+     * </p>
+     */
+    public void setReproducible(boolean b) {reproducible = b;}
+
+    /**
+     * Whether dictionaries in the <code>Info.plist</code> file should be sorted by key name.
+     * <p>
+     * By default, keys are written in the order in which they were declared, followed by the keys generated
+     * by this task.
+     * </p>
+     */
+    public void setSortKeys(boolean b) {sortKeys = b;}
+
+    /**
+     * Whether to generate a CDS archive for the application.
+     * <p>
+     * If set to <code>true</code>, the bundled JAR file will be run on the build host in order to generate
+     * a class data sharing archive, which will be stored in the bundle and used by the application at startup.
+     * Defaults to <code>false</code>.
+     * </p>
+     */
+    public void setCds(boolean b) {cds = b;}
+
+    /**
+     * Path to the <code>java</code> executable used for the CDS and class load order training runs.
+     * <p>
+     * CDS archives can only be used by the exact JVM build that created them. Defaults to the embedded runtime's
+     * <code>java</code> if the <code>runtimemodules</code> attribute is set and <code>runtimejmods</code> isn't, and
+     * to the JVM running Ant otherwise.
+     * </p>
+     */
+    public void setCdsJvm(File f) {cdsJvm = f;}
+
+    /**
+     * Arguments passed to the application during the CDS and class load order training runs.
+     * <p>
+     * The application must exit on its own: these arguments will usually tell it to exit as soon as it has started.
+     * </p>
+     */
+    public void setCdsArgs(String s) {cdsArgs = s;}
+
+    /**
+     * Maximum duration of the CDS and class load order training runs, in milliseconds.
+     * <p>
+     * The application will be killed, and the task will fail, if it's still running after that delay.
+     * Defaults to two minutes.
+     * </p>
+     */
+    public void setCdsTimeout(long l) {cdsTimeout = l;}
+
+    /**
+     * Whether to reorder the entries of the bundled JAR file by class load order.
+     * <p>
+     * If set to <code>true</code> and <code>classorder</code> is not set, the bundled JAR file will be run on the
+     * build host with <code>-Xlog:class+load</code>, which requires Java 9 or later. Defaults to <code>false</code>.
+     * </p>
+     */
+    public void setReorder(boolean b) {reorder = b;}
+
+    /**
+     * Class loading log used to reorder the entries of the bundled JAR file.
+     * <p>
+     * This can be the output of either <code>-Xlog:class+load</code> or <code>-XX:DumpLoadedClassList</code>.
+     * Setting this attribute implies <code>reorder</code>, but no training run is performed.
+     * </p>
+     */
+    public void setClassOrder(File f) {classOrder = f;}
+
+    /**
+     * Modules of the runtime to embed in the bundle.
+     * <p>
+     * Modules can be separated by commas or whitespace. If this parameter is not specified, no runtime will be
+     * embedded and the application will use the system's Java.
+     * </p>
+     */
+    public void setRuntimeModules(String s) {runtimeModules = s;}
+
+    /**
+     * Home of the JDK whose <code>jlink</code> creates the embedded runtime.
+     * <p>
+     * Defaults to the JDK running Ant.
+     * </p>
+     */
+    public void setRuntimeJdk(File f) {runtimeJdk = f;}
+
+    /**
+     * Folder that contains the modules of the embedded runtime.
+     * <p>
+     * Defaults to the <code>jmods</code> folder of <code>runtimejdk</code>. This must be set when creating
+     * bundles for a platform other than the build host.
+     * </p>
+     */
+    public void setRuntimeJmods(File f) {runtimeJmods = f;}
+
+    /**
+     * Options passed to <code>jlink</code> when creating the embedded runtime.
+     * <p>
+     * Defaults to <code>--strip-debug --no-header-files --no-man-pages</code>.
+     * </p>
+     */
+    public void setRuntimeOptions(String s) {runtimeOptions = s;}
+
+    /**
+     * Folder in which runtime images are cached.
+     * <p>
+     * Defaults to <code>.mkapp/runtimes</code> in the user's home folder.
+     * </p>
+     */
+    public void setRuntimeCache(File f) {runtimeCache = f;}
+
+    /**
+     * Where to write the bundle's manifest.
+     * <p>
+     * The manifest lists the path, size and SHA-256 digest of every file in the bundle. It's best written outside
+     * of the bundle, as it would otherwise not be covered by the <code>reproducible</code> attribute.
+     * </p>
+     */
+    public void setManifest(File f) {manifest = f;}
+
 
 
     // - Nested elements -----------------------------------------------------------------------------------------------
@@ -258,6 +661,30 @@ public class AppTask extends Task {
     public DateKey createDate() {return properties.createDate();}
     public DataKey createData() {return properties.createData();}
 
+    public Path createMerge() {
+        if(merge == null)
+            merge = new Path(getProject());
+        return merge.createPath();
+    }
+
+    public KeepElement createKeep() {
+        KeepElement keep;
+
+        keep = new KeepElement();
+        keeps.add(keep);
+
+        return keep;
+    }
+
+    public DuplicateElement createDuplicate() {
+        DuplicateElement duplicate;
+
+        duplicate = new DuplicateElement();
+        duplicateRules.add(duplicate);
+
+        return duplicate;
+    }
+
 
 
     // - Execution -----------------------------------------------------------------------------------------------------
@@ -291,6 +718,62 @@ public class AppTask extends Task {
             throw new BuildException("No application jar specified. Please fill in the jar argument.");
         else if(!jar.isFile())
             throw new BuildException("File not found: " + jar);
+
+        // Makes sure the JAR files to merge exist and that we know how to resolve duplicates.
+        if(merge != null) {
+            for(File file : getMergedJars())
+                if(!file.isFile())
+                    throw new BuildException("File not found: " + file);
+            if(!JarMerger.isStrategy(duplicates))
+                throw new BuildException("Illegal duplicate strategy: " + duplicates);
+            for(DuplicateElement duplicate : duplicateRules) {
+                if(duplicate.getPattern() == null)
+                    throw new BuildException("No pattern specified for duplicate element.");
+                if(!JarMerger.isStrategy(duplicate.getStrategy()))
+                    throw new BuildException("Illegal duplicate strategy: " + duplicate.getStrategy());
+            }
+        }
+
+        // Makes sure keep patterns are complete.
+        for(KeepElement keep : keeps)
+            if(keep.getPattern() == null)
+                throw new BuildException("No pattern specified for keep element.");
+
+        // Makes sure we know which attributes to strip.
+        if(strip && ClassStripper.parseAttributes(stripAttributes).isEmpty())
+            throw new BuildException("No attribute to strip specified. Please fill in the stripattributes argument.");
+
+        // Makes sure the class loading log exists.
+        if(classOrder != null) {
+            if(!classOrder.isFile())
+                throw new BuildException("File not found: " + classOrder);
+            reorder = true;
+        }
+
+        // Makes sure training runs can be performed.
+        if(cds || (reorder && classOrder == null)) {
+            if(cdsJvm != null && !cdsJvm.isFile())
+                throw new BuildException("File not found: " + cdsJvm);
+            if(cds && cdsJvm == null && runtimeModules != null && runtimeJmods != null)
+                throw new BuildException("The embedded runtime cannot create its CDS archive on the build host. "
+                                         + "Please fill in the cdsjvm argument.");
+            if(cdsTimeout <= 0)
+                throw new BuildException("Illegal CDS timeout: " + cdsTimeout);
+        }
+
+        // Makes sure the embedded runtime can be created.
+        if(runtimeModules != null) {
+            if(getRuntimeModules().isEmpty())
+                throw new BuildException("No runtime module specified.");
+            if(!new File(new File(runtimeJdk, "bin"), "jlink").isFile())
+                throw new BuildException("jlink not found in " + runtimeJdk);
+            if(runtimeJmods != null && !runtimeJmods.isDirectory())
+                throw new BuildException("Directory not found: " + runtimeJmods);
+        }
+
+        // Makes sure we know which date to use for reproducible bundles.
+        if(reproducible && SourceDate.getTime() == null)
+            throw new BuildException("Reproducible bundles require the " + SourceDate.VARIABLE + " environment variable to be set.");
     }
 
     /**
@@ -298,22 +781,80 @@ public class AppTask extends Task {
      * @exception BuildException thrown if any error occurs during application file generation.
      */
     public void execute() throws BuildException {
-        File current; // Used to create the various directories needed by the .app.
+        final File           contents;  // Path to the Contents folder.
+        final File           macos;     // Path to the Contents/MacOS folder.
+        final File           resources; // Path to the Contents/Resources folder.
+        final File           java;      // Path to the Contents/Resources/Java folder.
+        final File           runtime;   // Path to the embedded runtime's home.
+        List<Callable<Void>> steps;     // Independent steps of the bundle's creation.
 
         // Checks whether the task was properly initialised.
         check();
+        if(cache == null)
+            cache = new BundleCache();
+        content = new BundleManifest(destination);
 
-        // Creates the bundle.
+        // Creates the bundle's directory structure.
         mkdir(destination);
-        mkdir(current = new File(destination, CONTENTS_FOLDER));
-        writePkgInfo(current);
-        writeJavaStub(current);
-        writeInfo(current);
-        mkdir(current = new File(current, RESOURCES_FOLDER));
-        if(icon != null)
-            writeIcon(current);
-        mkdir(current = new File(current, JAVA_FOLDER));
-        writeJar(current);
+        mkdir(contents = new File(destination, CONTENTS_FOLDER));
+        mkdir(macos = new File(contents, MACOS_FOLDER));
+        mkdir(resources = new File(contents, RESOURCES_FOLDER));
+        mkdir(java = new File(resources, JAVA_FOLDER));
+        if(runtimeModules != null)
+            mkdir(runtime = getRuntimeHome());
+        else
+            runtime = null;
+
+        // Fills the bundle. None of these steps depend on each other, which allows them to run concurrently:
+        // the whole process should take about as long as the largest copy.
+        steps = new ArrayList<Callable<Void>>();
+        steps.add(new Callable<Void>() {
+            public Void call() {writePkgInfo(contents); return null;}
+        });
+        steps.add(new Callable<Void>() {
+            public Void call() {writeJavaStub(macos); return null;}
+        });
+        steps.add(new Callable<Void>() {
+            public Void call() {writeInfo(contents); return null;}
+        });
+        if(icon != null) {
+            steps.add(new Callable<Void>() {
+                public Void call() {writeIcon(resources); return null;}
+            });
+        }
+        steps.add(new Callable<Void>() {
+            public Void call() {writeJar(java); return null;}
+        });
+        if(runtime != null) {
+            steps.add(new Callable<Void>() {
+                public Void call() {writeRuntime(runtime); return null;}
+            });
+        }
+        ParallelRunner.run(steps);
+
+        // Removes unreachable classes before the JAR file's final layout is decided.
+        if(shrink)
+            shrinkJar(java);
+
+        // Removes debugging attributes from the remaining classes.
+        if(strip)
+            stripJar(java);
+
+        // Reorders the JAR file, which must happen before the CDS archive is generated.
+        if(reorder)
+            reorderJar(java);
+
+        // Generates the CDS archive, which requires the JAR file to be in place.
+        if(cds)
+            writeCdsArchive(java);
+
+        // Normalises the bundle if necessary.
+        if(reproducible)
+            normalise(destination, SourceDate.getTime());
+
+        // Writes the manifest, hashing the files that were not written by this task.
+        if(manifest != null)
+            content.write(manifest);
     }
 
 
@@ -358,7 +899,14 @@ public class AppTask extends Task {
         if(icon != null) {
             buffer = properties.createString();
             buffer.setName(KEY_ICON);
-            buffer.setValue(icon.getName());
+            buffer.setValue(getIconName());
+        }
+
+        // Adds the KEY_RUNTIME key.
+        if(runtimeModules != null) {
+            buffer = properties.createString();
+            buffer.setName(KEY_RUNTIME);
+            buffer.setValue(RUNTIME_PLUGIN);
         }
 
         // If the DICT_JAVA dictionary hasn't been created yet,
@@ -371,8 +919,48 @@ public class AppTask extends Task {
         // Adds the DICT_JAVA/KEY_CLASSPATH key.
         buffer = java.createString();
         buffer.setName(KEY_CLASSPATH);
-        buffer.setValue("$JAVAROOT/" + jar.getName() + (classpath == null ? "" : ':' + classpath));
+        buffer.setValue(getClassPath());
 
+        // Adds the CDS archive to the DICT_JAVA/KEY_VM_OPTIONS key.
+        if(cds)
+            addVmOption(java, "-XX:SharedArchiveFile=$JAVAROOT/" + jar.getName() + CDS_ARCHIVE);
+    }
+
+    /**
+     * Adds the specified option to the {@link #KEY_VM_OPTIONS} key of the specified dictionary.
+     * <p>
+     * If the key already exists, the option will be appended to it. Otherwise, it will be created.
+     * </p>
+     * @param     java           dictionary in which to add the option.
+     * @param     option         option to add.
+     * @exception BuildException thrown if the existing key is neither a string nor an array.
+     */
+    private static void addVmOption(DictKey java, String option) throws BuildException {
+        NamedInfoElement key;
+
+        // Creates the key if it doesn't exist yet.
+        if((key = ((DictValue)java.getValue()).getKey(KEY_VM_OPTIONS)) == null) {
+            StringKey buffer;
+
+            buffer = java.createString();
+            buffer.setName(KEY_VM_OPTIONS);
+            buffer.setValue(option);
+        }
+
+        // Appends the option to an existing string key.
+        else if(key instanceof StringKey) {
+            StringValue value;
+
+            value = (StringValue)key.getValue();
+            value.setValue(value.getValue() == null ? option : value.getValue() + ' ' + option);
+        }
+
+        // Appends the option to an existing array key.
+        else if(key instanceof ArrayKey)
+            ((ArrayKey)key).createString().setValue(option);
+
+        else
+            throw new BuildException(KEY_VM_OPTIONS + " must be either a string or an array.");
     }
 
     /**
@@ -388,9 +976,11 @@ public class AppTask extends Task {
         stream = null;
 
         try {
-            out = new XmlWriter(stream = new FileOutputStream(new File(contents, PROPERTIES_LIST)), URL_PLIST_DTD);
+            out = new XmlWriter(stream = content.open(new File(contents, PROPERTIES_LIST)), URL_PLIST_DTD);
             out.startDocument();
             addDefaultKeys();
+            if(sortKeys)
+                properties.sortKeys();
 
             // Makes sure we have an Info.plist version.
             if(infoVersion == null)
@@ -436,7 +1026,7 @@ public class AppTask extends Task {
 
         try {
             // Writes the applications PkgInfo file.
-            out = new PrintStream(new FileOutputStream(new File(contents, PACKAGE_INFO)));
+            out = new PrintStream(content.open(new File(contents, PACKAGE_INFO)));
             out.print(type);
             out.print(creator);
             out.close();
@@ -458,14 +1048,11 @@ public class AppTask extends Task {
     // -----------------------------------------------------------------------------------------------------------------
     /**
      * Writes the JavaApplicationStub in the proper folder.
-     * @param     file           Path to the .app's Contents folder.
+     * @param     file           Path to the .app's Contents/MacOS folder.
      * @exception BuildException thrown if anything goes wrong.
      */
     private void writeJavaStub(File file) throws BuildException {
-        // Makes sure the MacOS folder exists.
-        mkdir(file = new File(file, MACOS_FOLDER));
-
-        try {transfer(this.getClass().getResource("/com/mucommander/commons/ant/" + APPLICATION_STUB), file = new File(file, APPLICATION_STUB));}
+        try {content.add(file = new File(file, APPLICATION_STUB), cache.getStub().length, cache.writeStub(file));}
         catch(Exception e) {throw new BuildException("Could not generate " + APPLICATION_STUB, e);}
         if(!file.setExecutable(true, false))
             throw new BuildException("Couldn't make " + APPLICATION_STUB + " executable.");
@@ -475,14 +1062,42 @@ public class AppTask extends Task {
 
     // - Icon.icns generation ------------------------------------------------------------------------------------------
     // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns <code>true</code> if the application's icon is a PNG image that must be converted.
+     * @return <code>true</code> if the application's icon is a PNG image that must be converted.
+     */
+    private boolean isPngIcon() {
+        return icon.getName().toLowerCase().endsWith(".png");
+    }
+
+    /**
+     * Returns the name of the application's icon once in the bundle.
+     * @return the name of the application's icon once in the bundle.
+     */
+    private String getIconName() {
+        String name;
+
+        name = icon.getName();
+        if(isPngIcon())
+            return name.substring(0, name.length() - 4) + IconGenerator.EXTENSION;
+        return name;
+    }
+
     /**
      * Writes the application's icon.
+     * <p>
+     * PNG images are first converted to the <code>.icns</code> format, or retrieved from the icon cache.
+     * </p>
      * @param     resources      path to the application's Resources folder.
      * @exception BuildException thrown if any error occurs.
      */
     private void writeIcon(File resources) throws BuildException {
+        File source;
+
+        source = isPngIcon() ? IconGenerator.getIcon(icon, iconCache) : icon;
+
         // Copies the icon.
-        try {transfer(icon.toURI().toURL(), new File(resources, icon.getName()));}
+        try {copy(source, new File(resources, getIconName()));}
         catch(Exception e) {throw new BuildException("Could not generate application icon", e);}
     }
 
@@ -496,9 +1111,459 @@ public class AppTask extends Task {
      * @exception BuildException thrown if any error occurs.
      */
     private void writeJar(File java) throws BuildException {
-        // Copies the jar.
-        try {transfer(jar.toURI().toURL(), new File(java, jar.getName()));}
+        OutputStream out;
+        File         bundled;
+        File         source;
+        File         merged;
+
+        bundled = new File(java, jar.getName());
+        source  = jar;
+        merged  = null;
+        try {
+            // Merges the classpath into a single jar. If it must also be uncompressed, the merged jar is only a
+            // temporary file.
+            if(merge != null) {
+                if(store) {
+                    merged = new File(java, jar.getName() + ".merged");
+                    source = merged;
+                    out    = new FileOutputStream(merged);
+                }
+                else
+                    out = content.open(bundled);
+                try {
+                    int count;
+
+                    count = new JarMerger(this, duplicateRules, duplicates).merge(getMergedJars(), out);
+                    log("Resolved " + count + " duplicate entries while merging " + bundled.getName() + ".",
+                        Project.MSG_VERBOSE);
+                }
+                finally {out.close();}
+            }
+
+            // Writes an uncompressed copy of the jar.
+            if(store) {
+                out = content.open(bundled);
+                try {StoredJar.write(source, out, ParallelRunner.getDefaultThreads());}
+                finally {out.close();}
+            }
+
+            // Copies the jar. A jar that is rewritten later must not be shared with other bundles, which would
+            // otherwise link to the rewritten version.
+            else if(merge == null) {
+                if(shrink || strip || reorder)
+                    copyPrivate(jar, bundled);
+                else
+                    copy(jar, bundled);
+            }
+        }
         catch(Exception e) {throw new BuildException("Could not generate application jar", e);}
+        finally {
+            if(merged != null)
+                merged.delete();
+        }
+    }
+
+    /**
+     * Returns the JAR files to merge, starting with the application's.
+     * @return the JAR files to merge, starting with the application's.
+     */
+    private List<File> getMergedJars() {
+        List<File> jars;
+
+        jars = new ArrayList<File>();
+        jars.add(jar);
+        for(String path : merge.list())
+            jars.add(new File(path));
+
+        return jars;
+    }
+
+    /**
+     * Returns the value of the {@link #KEY_CLASSPATH} key.
+     * <p>
+     * This is the bundled JAR file followed by the paths specified through {@link #setClasspath(String)}, minus
+     * those that point to JAR files merged into the bundled one.
+     * </p>
+     * @return the value of the {@link #KEY_CLASSPATH} key.
+     */
+    private String getClassPath() {
+        StringBuilder buffer;
+
+        buffer = new StringBuilder("$JAVAROOT/").append(jar.getName());
+        for(String element : getClassPathElements())
+            buffer.append(':').append(element);
+
+        return buffer.toString();
+    }
+
+    /**
+     * Returns the paths specified through {@link #setClasspath(String)}, minus those that point to JAR files merged
+     * into the bundled one.
+     * @return the paths specified through {@link #setClasspath(String)}, minus merged JAR files.
+     */
+    private List<String> getClassPathElements() {
+        List<String> elements;
+        List<String> merged;
+
+        elements = new ArrayList<String>();
+        if(classpath != null) {
+            merged = new ArrayList<String>();
+            if(merge != null)
+                for(File file : getMergedJars())
+                    merged.add(file.getName());
+
+            for(String element : classpath.split(":"))
+                if(element.length() != 0 && !merged.contains(element.substring(element.lastIndexOf('/') + 1)))
+                    elements.add(element);
+        }
+
+        return elements;
+    }
+
+
+
+    // - Class shrinking -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Removes the classes of the bundled JAR file that cannot be reached from its main class.
+     * @param     java           path to the application's Resources/Java folder.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private void shrinkJar(File java) throws BuildException {
+        ClassShrinker shrinker;
+        List<File>    jars;
+        File          bundled;
+        File          temp;
+        OutputStream  out;
+        String        main;
+        long          size;
+        int           count;
+
+        bundled = new File(java, jar.getName());
+        size    = bundled.length();
+
+        // Computes which classes are reachable from the main class. The manifest's takes precedence, as it's the one
+        // used by training runs.
+        try {main = ClassShrinker.getMainClass(bundled);}
+        catch(IOException e) {throw new BuildException("Could not read " + bundled, e);}
+        if(main == null && (main = getPlistMainClass()) == null)
+            throw new BuildException("No Main-Class found in " + jar + " nor " + KEY_MAIN_CLASS + " key in "
+                                     + DICT_JAVA + ", cannot shrink it.");
+        shrinker = new ClassShrinker();
+        shrinker.addRoot(main);
+        for(KeepElement keep : keeps)
+            shrinker.addKeep(keep.getPattern());
+
+        // Classpath JAR files are left as they are, and all their classes can thus reach those of the bundled one.
+        jars = new ArrayList<File>();
+        jars.add(bundled);
+        for(File file : getClassPathJars(java)) {
+            jars.add(file);
+            try {
+                for(String name : ClassShrinker.getClassNames(file))
+                    shrinker.addRoot(name);
+            }
+            catch(IOException e) {throw new BuildException("Could not read " + file, e);}
+        }
+        shrinker.analyse(jars, ParallelRunner.getDefaultThreads());
+
+        // Writes the shrunk JAR file next to the bundled one, and replaces it once complete.
+        temp = new File(java, jar.getName() + ".tmp");
+        try {
+            out = content.open(temp, bundled);
+            try {count = shrinker.write(bundled, out);}
+            finally {out.close();}
+            Files.move(temp.toPath(), bundled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {throw new BuildException("Could not shrink " + bundled, e);}
+        finally {temp.delete();}
+
+        log("Removed " + count + " unreachable classes from " + bundled.getName() + ", saving "
+            + (size - bundled.length()) + " bytes.");
+    }
+
+    /**
+     * Returns the value of the {@link #KEY_MAIN_CLASS} key of the {@link #DICT_JAVA} dictionary.
+     * @return the value of the {@link #KEY_MAIN_CLASS} key, <code>null</code> if not set.
+     */
+    private String getPlistMainClass() {
+        DictKey          java;
+        NamedInfoElement key;
+
+        if((java = properties.getDict(DICT_JAVA)) == null)
+            return null;
+        if((key = ((DictValue)java.getValue()).getKey(KEY_MAIN_CLASS)) instanceof StringKey)
+            return ((StringValue)key.getValue()).getValue();
+        return null;
+    }
+
+    /**
+     * Returns the JAR files of the classpath that are not merged into the bundled one.
+     * <p>
+     * <code>$JAVAROOT</code> and <code>$APP_PACKAGE</code> are resolved against the bundle. Elements that are not
+     * JAR files, such as <code>/System/Library/Java</code>, are ignored.
+     * </p>
+     * @param     java           path to the application's Resources/Java folder.
+     * @return                   the JAR files of the classpath that are not merged into the bundled one.
+     * @exception BuildException thrown if one of the JAR files cannot be found.
+     */
+    private List<File> getClassPathJars(File java) throws BuildException {
+        List<File> jars;
+
+        jars = new ArrayList<File>();
+        for(String element : getClassPathElements()) {
+            File file;
+
+            if(!element.toLowerCase().endsWith(".jar"))
+                continue;
+            file = new File(element.replace("$JAVAROOT", java.getPath()).replace("$APP_PACKAGE",
+                                                                                 destination.getPath()));
+            if(!file.isFile())
+                throw new BuildException("Cannot shrink " + jar.getName() + ": classpath element " + element
+                                         + " not found. It must either be in the bundle or merged into "
+                                         + jar.getName() + ".");
+            jars.add(file);
+        }
+
+        return jars;
+    }
+
+    /**
+     * Removes debugging attributes from the classes of the bundled JAR file.
+     * @param     java           path to the application's Resources/Java folder.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private void stripJar(File java) throws BuildException {
+        File         bundled;
+        File         temp;
+        OutputStream out;
+        long         size;
+
+        bundled = new File(java, jar.getName());
+        size    = bundled.length();
+
+        // Copies the cached stripped JAR file next to the bundled one, and replaces it once complete.
+        temp = new File(java, jar.getName() + ".tmp");
+        try {
+            File stripped;
+
+            if(JarSignatures.isSigned(bundled))
+                log(bundled.getName() + " is signed: its signature was removed and it must be signed again.",
+                    Project.MSG_WARN);
+            stripped = new ClassStripper(ClassStripper.parseAttributes(stripAttributes))
+                    .getStripped(bundled, stripCache, ParallelRunner.getDefaultThreads());
+            out = content.open(temp, bundled);
+            try {Files.copy(stripped.toPath(), out);}
+            finally {out.close();}
+            Files.move(temp.toPath(), bundled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {throw new BuildException("Could not strip " + bundled, e);}
+        finally {temp.delete();}
+
+        log("Stripped debugging attributes from " + bundled.getName() + ", saving " + (size - bundled.length())
+            + " bytes.");
+    }
+
+    /**
+     * Reorders the entries of the bundled JAR file by class load order, recording it through a training run if
+     * necessary.
+     * @param     java           path to the application's Resources/Java folder.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private void reorderJar(File java) throws BuildException {
+        File         bundled;
+        File         log;
+        File         temp;
+        OutputStream out;
+        List<String> order;
+        int          count;
+
+        bundled = new File(java, jar.getName());
+
+        // Records the class loading order if necessary.
+        if((log = classOrder) == null) {
+            try {log = File.createTempFile("classload", ".log");}
+            catch(IOException e) {throw new BuildException("Could not create temporary file", e);}
+        }
+        try {
+            if(classOrder == null)
+                new TrainingRun(this, getTrainingJvm(), cdsArgs, cdsTimeout).run(bundled, Collections.singletonList(
+                        "-Xlog:class+load=info:file=" + log.getAbsolutePath()));
+            order = ClassLoadOrder.read(log);
+        }
+        finally {
+            if(classOrder == null)
+                log.delete();
+        }
+
+        // Writes the reordered JAR file next to the bundled one, and replaces it once complete. The bundled JAR file
+        // is never shared with other bundles, see writeJar.
+        temp = new File(java, jar.getName() + ".tmp");
+        try {
+            out = content.open(temp, bundled);
+            try {count = ClassLoadOrder.reorder(bundled, order, out);}
+            finally {out.close();}
+            Files.move(temp.toPath(), bundled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e) {throw new BuildException("Could not reorder " + bundled, e);}
+        finally {temp.delete();}
+
+        log("Moved " + count + " classes to the front of " + bundled.getName() + ".", Project.MSG_VERBOSE);
+    }
+
+
+
+    // - Embedded runtime generation -----------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the list of modules of the embedded runtime.
+     * @return the list of modules of the embedded runtime.
+     */
+    private List<String> getRuntimeModules() {
+        List<String> modules;
+
+        modules = new ArrayList<String>();
+        for(String module : runtimeModules.split("[,\\s]+"))
+            if(module.length() != 0)
+                modules.add(module);
+
+        return modules;
+    }
+
+    /**
+     * Returns the home of the embedded runtime.
+     * @return the home of the embedded runtime.
+     */
+    private File getRuntimeHome() {
+        return new File(new File(new File(new File(destination, CONTENTS_FOLDER), PLUGINS_FOLDER), RUNTIME_PLUGIN),
+                        RUNTIME_HOME);
+    }
+
+    /**
+     * Returns the <code>java</code> executable used for training runs.
+     * <p>
+     * This is the one specified through {@link #setCdsJvm(File)} if any, the embedded runtime's if it runs on the
+     * build host and, failing that, <code>null</code> for the JVM running Ant.
+     * </p>
+     * @return the <code>java</code> executable used for training runs.
+     */
+    File getTrainingJvm() {
+        if(cdsJvm == null && runtimeModules != null && runtimeJmods == null)
+            return new File(new File(getRuntimeHome(), "bin"), "java");
+        return cdsJvm;
+    }
+
+    /**
+     * Copies the embedded runtime to the bundle, creating it first if it's not in the cache.
+     * @param     home           path to the embedded runtime's home.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private void writeRuntime(File home) throws BuildException {
+        List<Callable<Void>> copies;
+
+        copies = new ArrayList<Callable<Void>>();
+        listCopies(new RuntimeCache(this, runtimeJdk, runtimeJmods, runtimeCache, runtimeOptions)
+                           .getImage(getRuntimeModules()), home, copies);
+        ParallelRunner.run(copies);
+    }
+
+    /**
+     * Creates the directory structure of <code>from</code> in <code>to</code>, and lists the file copies needed
+     * to complete it.
+     * @param     from           folder to copy.
+     * @param     to             where to copy the folder.
+     * @param     copies         where to store file copies.
+     * @exception BuildException thrown if a directory could not be created or listed.
+     */
+    private void listCopies(File from, File to, List<Callable<Void>> copies) throws BuildException {
+        File[] children;
+
+        mkdir(to);
+        if((children = from.listFiles()) == null)
+            throw new BuildException("Could not list the content of " + from);
+
+        for(final File child : children) {
+            final File copy;
+
+            copy = new File(to, child.getName());
+            if(child.isDirectory())
+                listCopies(child, copy, copies);
+            else {
+                copies.add(new Callable<Void>() {
+                    public Void call() throws IOException {AppTask.this.copy(child, copy); return null;}
+                });
+            }
+        }
+    }
+
+
+
+    // - CDS archive generation ----------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Generates the application's CDS archive and class list through a training run.
+     * @param     java           path to the application's Resources/Java folder.
+     * @exception BuildException thrown if any error occurs.
+     */
+    private void writeCdsArchive(File java) throws BuildException {
+        File         archive;
+        File         classList;
+        List<String> options;
+
+        archive   = new File(java, jar.getName() + CDS_ARCHIVE);
+        classList = new File(java, jar.getName() + CDS_CLASS_LIST);
+
+        // Gets rid of the results of previous runs, if any.
+        if(archive.exists() && !archive.delete())
+            throw new BuildException("Could not delete " + archive);
+        if(classList.exists() && !classList.delete())
+            throw new BuildException("Could not delete " + classList);
+
+        options = new ArrayList<String>();
+        options.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        options.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+        new TrainingRun(this, getTrainingJvm(), cdsArgs, cdsTimeout).run(new File(java, jar.getName()), options);
+
+        if(!archive.isFile())
+            throw new BuildException("The training run did not produce a CDS archive - dynamic archives require "
+                                     + "Java 13 or later.");
+    }
+
+
+
+    // - Bundle normalisation ------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Normalises the modification date and permissions of the specified file and, recursively, of its children.
+     * <p>
+     * Directories and executable files are made <code>rwxr-xr-x</code>, other files <code>rw-r--r--</code>.
+     * Directories are dated after their content, as updating a child's date would otherwise change theirs.
+     * </p>
+     * @param     file           file to normalise.
+     * @param     time           modification date to apply, in milliseconds since the epoch.
+     * @exception BuildException thrown if any file could not be normalised.
+     */
+    private static void normalise(File file, long time) throws BuildException {
+        File[]  children;
+        boolean executable;
+
+        if(file.isDirectory()) {
+            if((children = file.listFiles()) == null)
+                throw new BuildException("Could not list the content of " + file);
+            for(File child : children)
+                normalise(child, time);
+            executable = true;
+        }
+        else
+            executable = file.canExecute();
+
+        // Resets the permissions to rw-r--r--, adding x for all if necessary.
+        if(!file.setReadable(true, false) || !file.setWritable(false, false) || !file.setWritable(true, true)
+           || !file.setExecutable(false, false) || (executable && !file.setExecutable(true, false)))
+            throw new BuildException("Could not normalise the permissions of " + file);
+
+        if(!file.setLastModified(time))
+            throw new BuildException("Could not set the modification date of " + file);
     }
 
 
@@ -521,22 +1586,46 @@ public class AppTask extends Task {
             throw new BuildException("Could not create directory " + dir);
     }
 
+    /**
+     * Copies the specified file to the bundle, recording it in the bundle's manifest.
+     * @param     from        file to copy.
+     * @param     to          where to copy the file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private void copy(File from, File to) throws IOException {
+        byte[] digest;
+
+        digest = cache.copy(from, to);
+        content.add(to, to.length(), digest);
+    }
+
+    /**
+     * Copies the specified file to the bundle without sharing it with other bundles, recording it in the bundle's
+     * manifest.
+     * @param     from        file to copy.
+     * @param     to          where to copy the file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private void copyPrivate(File from, File to) throws IOException {
+        byte[] digest;
+
+        digest = cache.copyPrivate(from, to);
+        content.add(to, to.length(), digest);
+    }
+
     /**
      * Transfers the content of the specified URL to the specified file.
      * @param     from        where to read data from.
      * @param     to          where to write data to.
      * @exception IOException thrown if any IO related error occurs.
      */
-    private static void transfer(URL from, File to) throws IOException {
+    static void transfer(URL from, File to) throws IOException {
         InputStream  in;  // Stream on the input URL.
         OutputStream out; // Stream on the output file.
-        int    count;     // Number of bytes read in the latest iteration.
-        byte[] buffer;    // Stores bytes before they're transfered.
 
         // Initialises reading.
-        buffer = new byte[1024];
-        in     = null;
-        out    = null;
+        in  = null;
+        out = null;
 
         try {
             // Opens the streams.
@@ -544,11 +1633,7 @@ public class AppTask extends Task {
             out = new FileOutputStream(to);
 
             // Transfers the content of in to out.
-            while(true) {
-                if((count = in.read(buffer)) == -1)
-                    break;
-                out.write(buffer, 0, count);
-            }
+            transfer(in, out);
         }
         // Releases resources.
         finally {
@@ -563,4 +1648,25 @@ public class AppTask extends Task {
             }
         }
     }
+
+    /**
+     * Transfers the content of the specified input stream to the specified output stream.
+     * <p>
+     * Neither stream is closed by this method.
+     * </p>
+     * @param     in          where to read data from.
+     * @param     out         where to write data to.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    static void transfer(InputStream in, OutputStream out) throws IOException {
+        int    count;  // Number of bytes read in the latest iteration.
+        byte[] buffer; // Stores bytes before they're transfered.
+
+        buffer = new byte[8192];
+        while(true) {
+            if((count = in.read(buffer)) == -1)
+                break;
+            out.write(buffer, 0, count);
+        }
+    }
 }
@@ -97,6 +97,21 @@ public class ArrayValue implements InfoElement {
         return value;
     }
 
+    /**
+     * Sorts the keys of all dictionaries contained by this array.
+     * <p>
+     * The array's own values are left in their original order.
+     * </p>
+     */
+    void sortKeys() {
+        for(InfoElement el : keys) {
+            if(el instanceof DictValue)
+                ((DictValue)el).sortKeys();
+            else if(el instanceof ArrayValue)
+                ((ArrayValue)el).sortKeys();
+        }
+    }
+
     public void write(XmlWriter out) throws SAXException {
         out.startElement(ELEMENT_ARRAY);
 
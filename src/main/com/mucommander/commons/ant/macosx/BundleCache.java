@@ -0,0 +1,280 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.Digests;
+import org.apache.tools.ant.BuildException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Resources shared by all bundles created in the same build.
+ * <p>
+ * This class serves two purposes:
+ * <ul>
+ *   <li>It loads the <code>JavaApplicationStub</code> from the classpath once and keeps it in memory.</li>
+ *   <li>
+ *     It makes sure that each source file is only copied once: the first bundle that needs a file gets an actual
+ *     copy, all subsequent bundles get a hard link to that copy. If hard links are not supported, for example
+ *     because bundles are on different file systems, a copy of the first copy is made instead. Executable files
+ *     remain executable.
+ *   </li>
+ *   <li>
+ *     Files that a bundle rewrites after copying them must be obtained through {@link #copyPrivate(File, File)}
+ *     instead, which neither registers nor links them: rewriting a shared copy would change the content of every
+ *     bundle that links to it.
+ *   </li>
+ * </ul>
+ * </p>
+ * <p>
+ * Files are hashed while they're copied, so that bundles can record their content in a {@link BundleManifest}
+ * without reading it again.
+ * </p>
+ * <p>
+ * Instances of this class are thread safe: bundles can be built concurrently.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class BundleCache {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Path to the Java application stub in the classpath. */
+    private static final String STUB_RESOURCE = "/com/mucommander/commons/ant/JavaApplicationStub";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Content of the Java application stub, loaded on first use. */
+    private       byte[]                                  stub;
+    /** SHA-256 digest of the Java application stub. */
+    private       byte[]                                  stubDigest;
+    /** First copy of each source file, indexed by canonical source path. */
+    private final ConcurrentMap<String, FutureTask<Copy>> copies;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new, empty cache.
+     */
+    BundleCache() {copies = new ConcurrentHashMap<String, FutureTask<Copy>>();}
+
+
+
+    // - Stub access ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the content of the Java application stub.
+     * @return                the content of the Java application stub.
+     * @exception IOException thrown if the stub could not be loaded.
+     */
+    synchronized byte[] getStub() throws IOException {
+        if(stub == null) {
+            InputStream           in;
+            ByteArrayOutputStream out;
+
+            if((in = BundleCache.class.getResourceAsStream(STUB_RESOURCE)) == null)
+                throw new IOException("Resource not found: " + STUB_RESOURCE);
+
+            try {
+                out = new ByteArrayOutputStream();
+                AppTask.transfer(in, out);
+                stub       = out.toByteArray();
+                stubDigest = Digests.newSha256().digest(stub);
+            }
+            finally {
+                try {in.close();}
+                catch(Exception e) {}
+            }
+        }
+        return stub;
+    }
+
+    /**
+     * Writes the Java application stub to the specified file.
+     * @param     to          where to write the stub.
+     * @return                the SHA-256 digest of the stub.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    byte[] writeStub(File to) throws IOException {
+        OutputStream out;
+
+        out = new FileOutputStream(to);
+        try {out.write(getStub());}
+        finally {out.close();}
+
+        return stubDigest;
+    }
+
+
+
+    // - File copy -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Copies <code>from</code> to <code>to</code>, or links <code>to</code> to a previous copy of <code>from</code>.
+     * @param     from           file to copy.
+     * @param     to             where to copy the file.
+     * @return                   the SHA-256 digest of the file.
+     * @exception IOException    thrown if any IO related error occurs.
+     * @exception BuildException thrown if the first copy of <code>from</code> failed.
+     */
+    byte[] copy(final File from, final File to) throws IOException, BuildException {
+        FutureTask<Copy> task;
+        FutureTask<Copy> previous;
+        Copy             original;
+
+        // Registers this copy as the original one if no other copy was made yet.
+        task = new FutureTask<Copy>(new Callable<Copy>() {
+            public Copy call() throws IOException {
+                byte[] digest;
+
+                digest = transfer(from, to);
+                if(from.canExecute() && !to.setExecutable(true, false))
+                    throw new IOException("Could not make " + to + " executable");
+                return new Copy(to, digest);
+            }
+        });
+        if((previous = copies.putIfAbsent(from.getCanonicalPath(), task)) == null) {
+            task.run();
+            previous = task;
+        }
+
+        // Waits for the original copy to be done.
+        try {original = previous.get();}
+        catch(ExecutionException e) {throw new BuildException("Could not copy " + from, e.getCause());}
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while copying " + from, e);
+        }
+
+        // Nothing left to do if we just made the original copy.
+        if(original.file.getCanonicalFile().equals(to.getCanonicalFile()))
+            return original.digest;
+
+        // Links the original copy, falling back to a plain copy if links are not supported.
+        Files.deleteIfExists(to.toPath());
+        try {Files.createLink(to.toPath(), original.file.toPath());}
+        catch(IOException e) {copyOriginal(original.file, to);}
+        catch(UnsupportedOperationException e) {copyOriginal(original.file, to);}
+
+        return original.digest;
+    }
+
+    /**
+     * Copies <code>from</code> to <code>to</code> without sharing the copy with other bundles.
+     * <p>
+     * This must be used for files that the bundle rewrites after copying them. The copy is never linked to, and
+     * doesn't link to a previous copy.
+     * </p>
+     * @param     from        file to copy.
+     * @param     to          where to copy the file.
+     * @return                the SHA-256 digest of the file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    byte[] copyPrivate(File from, File to) throws IOException {
+        byte[] digest;
+
+        Files.deleteIfExists(to.toPath());
+        digest = transfer(from, to);
+        if(from.canExecute() && !to.setExecutable(true, false))
+            throw new IOException("Could not make " + to + " executable");
+
+        return digest;
+    }
+
+    /**
+     * Copies <code>from</code> to <code>to</code>, computing the SHA-256 digest of the data as it goes.
+     * @param     from        file to copy.
+     * @param     to          where to copy the file.
+     * @return                the SHA-256 digest of the file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static byte[] transfer(File from, File to) throws IOException {
+        InputStream   in;
+        OutputStream  out;
+        MessageDigest digest;
+
+        digest = Digests.newSha256();
+        in     = new DigestInputStream(new FileInputStream(from), digest);
+        try {
+            out = new FileOutputStream(to);
+            try {AppTask.transfer(in, out);}
+            finally {out.close();}
+        }
+        finally {
+            try {in.close();}
+            catch(Exception e) {}
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Copies the original copy of a file, including its executable bit.
+     * @param     original    original copy of the file.
+     * @param     to          where to copy the file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static void copyOriginal(File original, File to) throws IOException {
+        AppTask.transfer(original.toURI().toURL(), to);
+        if(original.canExecute() && !to.setExecutable(true, false))
+            throw new IOException("Could not make " + to + " executable");
+    }
+
+
+
+    // - Copy class ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Original copy of a file.
+     * @author Nicolas Rinaudo
+     */
+    private static class Copy {
+        /** Path to the copy. */
+        final File   file;
+        /** SHA-256 digest of the file. */
+        final byte[] digest;
+
+        /**
+         * Creates a new copy.
+         * @param file   path to the copy.
+         * @param digest SHA-256 digest of the file.
+         */
+        Copy(File file, byte[] digest) {
+            this.file   = file;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Format of the delta packages created by {@link AppDeltaTask} and applied by {@link AppPatchTask}.
+ * <p>
+ * A delta package is a ZIP file that contains:
+ * <ul>
+ *   <li>{@link #MANIFEST_ENTRY}: the {@link BundleManifest manifest} of the new bundle, used to verify the result.</li>
+ *   <li>{@link #INDEX_ENTRY}: the list of {@link Operation operations} needed to create each file of the new bundle.</li>
+ *   <li>
+ *     The data needed by each operation, in entries named after the operation's index: <code>n</code> for the
+ *     content of added files, <code>n.control</code>, <code>n.diff</code> and <code>n.extra</code> for
+ *     {@link com.mucommander.commons.ant.util.BinaryDiff binary patches}, <code>n.jar</code> for
+ *     {@link JarDelta JAR deltas}.
+ *   </li>
+ * </ul>
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class BundleDelta {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the entry that contains the manifest of the new bundle. */
+    static final String MANIFEST_ENTRY = "manifest";
+    /** Name of the entry that contains the list of operations. */
+    static final String INDEX_ENTRY    = "index";
+    /** Suffix of the entries that contain the control stream of binary patches. */
+    static final String CONTROL_SUFFIX = ".control";
+    /** Suffix of the entries that contain the diff stream of binary patches. */
+    static final String DIFF_SUFFIX    = ".diff";
+    /** Suffix of the entries that contain the extra stream of binary patches. */
+    static final String EXTRA_SUFFIX   = ".extra";
+    /** Suffix of the entries that contain JAR deltas. */
+    static final String JAR_SUFFIX     = ".jar";
+    /** Version of the index format. */
+    static final int    VERSION        = 1;
+    /** Operation: copies a file of the old bundle. */
+    static final int    KEEP           = 0;
+    /** Operation: extracts a file from the delta package. */
+    static final int    ADD            = 1;
+    /** Operation: applies a binary patch to a file of the old bundle. */
+    static final int    PATCH          = 2;
+    /** Operation: applies a JAR delta to a file of the old bundle. */
+    static final int    JAR            = 3;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private BundleDelta() {}
+
+
+
+    // - Index access --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the specified operations to the specified stream.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     operations  operations to write.
+     * @param     out         where to write the operations.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    static void writeIndex(List<Operation> operations, OutputStream out) throws IOException {
+        DataOutputStream stream;
+
+        stream = new DataOutputStream(out);
+        stream.writeInt(VERSION);
+        stream.writeInt(operations.size());
+        for(Operation operation : operations) {
+            stream.writeByte(operation.type);
+            stream.writeBoolean(operation.executable);
+            stream.writeUTF(operation.path);
+            stream.writeUTF(operation.source == null ? "" : operation.source);
+        }
+        stream.flush();
+    }
+
+    /**
+     * Reads operations from the specified stream.
+     * <p>
+     * The stream is not closed by this method.
+     * </p>
+     * @param     in          where to read the operations from.
+     * @return                the operations read from the stream.
+     * @exception IOException thrown if the index is invalid or if any IO related error occurs.
+     */
+    static List<Operation> readIndex(InputStream in) throws IOException {
+        DataInputStream stream;
+        List<Operation> operations;
+        int             version;
+        int             count;
+
+        stream = new DataInputStream(in);
+        if((version = stream.readInt()) != VERSION)
+            throw new IOException("Unsupported delta version: " + version);
+        count      = stream.readInt();
+        operations = new ArrayList<Operation>(count);
+        for(int i = 0; i < count; i++) {
+            int     type;
+            boolean executable;
+            String  path;
+            String  source;
+
+            type       = stream.readUnsignedByte();
+            executable = stream.readBoolean();
+            path       = stream.readUTF();
+            source     = stream.readUTF();
+            if(type < KEEP || type > JAR)
+                throw new IOException("Unknown operation " + type + " for " + path);
+            operations.add(new Operation(type, executable, path, source.length() == 0 ? null : source));
+        }
+
+        return operations;
+    }
+
+
+
+    // - Operation class -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Describes how to create a file of the new bundle.
+     * @author Nicolas Rinaudo
+     */
+    static class Operation {
+        /** Type of the operation, one of {@link #KEEP}, {@link #ADD}, {@link #PATCH} or {@link #JAR}. */
+        private final int     type;
+        /** Whether the file is executable. */
+        private final boolean executable;
+        /** Path of the file in the new bundle. */
+        private final String  path;
+        /** Path of the file in the old bundle the operation works from, <code>null</code> if none. */
+        private final String  source;
+
+        /**
+         * Creates a new operation.
+         * @param type       type of the operation.
+         * @param executable whether the file is executable.
+         * @param path       path of the file in the new bundle.
+         * @param source     path of the file in the old bundle the operation works from, <code>null</code> if none.
+         */
+        Operation(int type, boolean executable, String path, String source) {
+            this.type       = type;
+            this.executable = executable;
+            this.path       = path;
+            this.source     = source;
+        }
+
+        /**
+         * Returns the type of the operation.
+         * @return the type of the operation.
+         */
+        int getType() {return type;}
+
+        /**
+         * Returns <code>true</code> if the file is executable.
+         * @return <code>true</code> if the file is executable.
+         */
+        boolean isExecutable() {return executable;}
+
+        /**
+         * Returns the path of the file in the new bundle.
+         * @return the path of the file in the new bundle.
+         */
+        String getPath() {return path;}
+
+        /**
+         * Returns the path of the file in the old bundle the operation works from.
+         * @return the path of the file in the old bundle the operation works from, <code>null</code> if none.
+         */
+        String getSource() {return source;}
+    }
+}
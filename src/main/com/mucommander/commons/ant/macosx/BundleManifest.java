@@ -0,0 +1,383 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lists the path, size and SHA-256 digest of every file in a bundle.
+ * <p>
+ * Files are meant to be recorded while they're written, using the digest computed as their content is copied:
+ * see {@link #add(File, long, byte[])} and {@link #open(File)}. Files that were not recorded that way, such as
+ * those created by external processes or left over from previous builds, are hashed concurrently when the manifest
+ * is written.
+ * </p>
+ * <p>
+ * Manifests are UTF-8 text files containing one line per file, sorted by path:
+ * <pre>
+ * &lt;sha-256&gt; &lt;size&gt; &lt;path&gt;
+ * </pre>
+ * where paths are relative to the bundle's root and use <code>/</code> as a separator.
+ * </p>
+ * <p>
+ * Instances of this class are thread safe.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class BundleManifest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Encoding of manifest files. */
+    private static final String ENCODING = "UTF-8";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Root of the bundle. */
+    private final File                         root;
+    /** Known entries, indexed by relative path. */
+    private final ConcurrentMap<String, Entry> entries;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new, empty manifest for the specified bundle.
+     * @param root root of the bundle.
+     */
+    BundleManifest(File root) {
+        this.root = root;
+        entries   = new ConcurrentHashMap<String, Entry>();
+    }
+
+
+
+    // - Input ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads the specified manifest.
+     * @param     file           manifest to read.
+     * @param     root           root of the bundle described by the manifest.
+     * @return                   the content of the manifest.
+     * @exception BuildException thrown if the manifest could not be read or is invalid.
+     */
+    static BundleManifest read(File file, File root) throws BuildException {
+        InputStream in;
+
+        in = null;
+        try {return read(in = new FileInputStream(file), root);}
+        catch(IOException e) {throw new BuildException("Could not read " + file, e);}
+
+        // Releases resources.
+        finally {
+            if(in != null) {
+                try {in.close();}
+                catch(Exception e) {}
+            }
+        }
+    }
+
+    /**
+     * Reads a manifest from the specified stream.
+     * <p>
+     * The stream is not closed by this method.
+     * </p>
+     * @param     in          stream from which to read the manifest.
+     * @param     root        root of the bundle described by the manifest.
+     * @return                the content of the manifest.
+     * @exception IOException thrown if the manifest could not be read or is invalid.
+     */
+    static BundleManifest read(InputStream in, File root) throws IOException {
+        BundleManifest manifest;
+        BufferedReader reader;
+        String         line;
+
+        manifest = new BundleManifest(root);
+        reader   = new BufferedReader(new InputStreamReader(in, ENCODING));
+        while((line = reader.readLine()) != null) {
+            String[] fields;
+
+            if(line.length() == 0)
+                continue;
+            if((fields = line.split(" ", 3)).length != 3)
+                throw new IOException("Invalid manifest entry: " + line);
+            try {manifest.entries.put(fields[2], new Entry(Long.parseLong(fields[1]), fields[0]));}
+            catch(NumberFormatException e) {throw new IOException("Invalid manifest entry: " + line);}
+        }
+
+        return manifest;
+    }
+
+
+
+    // - Recording -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Records the specified file.
+     * @param     file           file to record.
+     * @param     size           size of the file, in bytes.
+     * @param     digest         SHA-256 digest of the file.
+     * @exception BuildException thrown if <code>file</code> is not in the bundle.
+     */
+    void add(File file, long size, byte[] digest) throws BuildException {
+        entries.put(getPath(file), new Entry(size, Digests.toHex(digest)));
+    }
+
+    /**
+     * Opens a stream on the specified file that records it in the manifest when closed.
+     * @param     file        file to open.
+     * @return                a stream on the specified file.
+     * @exception IOException thrown if the file could not be opened.
+     */
+    OutputStream open(File file) throws IOException {return open(file, file);}
+
+    /**
+     * Opens a stream on the specified file that records it in the manifest, under another name, when closed.
+     * <p>
+     * This is meant for files that are written to a temporary location before being moved to their final one.
+     * </p>
+     * @param     file        file to open.
+     * @param     target      file under which to record <code>file</code>.
+     * @return                a stream on the specified file.
+     * @exception IOException thrown if the file could not be opened.
+     */
+    OutputStream open(File file, final File target) throws IOException {
+        return new DigestOutputStream(new FileOutputStream(file), Digests.newSha256()) {
+            private long    size;
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                super.write(b);
+                size++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                size += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed)
+                    return;
+                closed = true;
+                super.close();
+                add(target, size, getMessageDigest().digest());
+            }
+        };
+    }
+
+    /**
+     * Returns the path of the specified file relative to the bundle's root.
+     * @param     file           file whose path should be computed.
+     * @return                   the path of the specified file relative to the bundle's root.
+     * @exception BuildException thrown if <code>file</code> is not in the bundle.
+     */
+    private String getPath(File file) throws BuildException {
+        String path;
+        String prefix;
+
+        path   = file.getAbsolutePath();
+        prefix = root.getAbsolutePath() + File.separator;
+        if(!path.startsWith(prefix))
+            throw new BuildException(file + " is not in " + root);
+
+        return path.substring(prefix.length()).replace(File.separatorChar, '/');
+    }
+
+
+
+    // - Content access ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the root of the bundle.
+     * @return the root of the bundle.
+     */
+    File getRoot() {return root;}
+
+    /**
+     * Returns the entries of the manifest, sorted by path.
+     * @return the entries of the manifest, sorted by path.
+     */
+    SortedMap<String, Entry> getEntries() {return new TreeMap<String, Entry>(entries);}
+
+
+
+    // - Output --------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Hashes all files of the bundle that were not recorded yet, and writes the manifest to the specified file.
+     * <p>
+     * If <code>to</code> is inside the bundle, it's not part of the manifest.
+     * </p>
+     * @param     to             where to write the manifest.
+     * @exception BuildException thrown if any error occurs.
+     */
+    void write(File to) throws BuildException {
+        OutputStream out;
+
+        scan(to);
+
+        // Writes the manifest.
+        out = null;
+        try {store(out = new FileOutputStream(to));}
+        catch(IOException e) {throw new BuildException("Could not write " + to, e);}
+
+        // Releases resources.
+        finally {
+            if(out != null) {
+                try {out.close();}
+                catch(Exception e) {}
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of the manifest to the specified stream.
+     * <p>
+     * Unlike {@link #write(File)}, this method doesn't look for files that were not recorded yet. The stream is
+     * flushed but not closed.
+     * </p>
+     * @param     out         where to write the manifest.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    void store(OutputStream out) throws IOException {
+        Writer writer;
+
+        writer = new BufferedWriter(new OutputStreamWriter(out, ENCODING));
+        for(Map.Entry<String, Entry> entry : getEntries().entrySet()) {
+            writer.write(entry.getValue().getDigest());
+            writer.write(' ');
+            writer.write(Long.toString(entry.getValue().getSize()));
+            writer.write(' ');
+            writer.write(entry.getKey());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Hashes all files of the bundle that were not recorded yet, and forgets about recorded files that have since
+     * been deleted.
+     * @param     exclude        file that should not be part of the manifest, <code>null</code> if none.
+     * @exception BuildException thrown if any error occurs.
+     */
+    void scan(File exclude) throws BuildException {
+        List<Callable<Void>> work;
+
+        work = new ArrayList<Callable<Void>>();
+        listMissing(root, exclude == null ? null : exclude.getAbsoluteFile(), work);
+        ParallelRunner.run(work);
+
+        for(String path : entries.keySet())
+            if(!new File(root, path).isFile())
+                entries.remove(path);
+    }
+
+    /**
+     * Lists the files of the specified folder that were not recorded yet, and adds the work required to hash them.
+     * @param     folder         folder to explore.
+     * @param     exclude        file that should not be part of the manifest, <code>null</code> if none.
+     * @param     work           where to add the work required to hash missing files.
+     * @exception BuildException thrown if the folder could not be listed.
+     */
+    private void listMissing(File folder, File exclude, List<Callable<Void>> work) throws BuildException {
+        File[] children;
+
+        if((children = folder.listFiles()) == null)
+            throw new BuildException("Could not list the content of " + folder);
+
+        for(final File child : children) {
+            if(child.isDirectory())
+                listMissing(child, exclude, work);
+            else if(child.isFile() && !child.getAbsoluteFile().equals(exclude) && !entries.containsKey(getPath(child))) {
+                work.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        add(child, child.length(), Digests.sha256(child));
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+
+
+    // - Entry class ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Size and digest of a file.
+     * @author Nicolas Rinaudo
+     */
+    static class Entry {
+        /** Size of the file, in bytes. */
+        private final long   size;
+        /** Lowercase hexadecimal representation of the file's SHA-256 digest. */
+        private final String digest;
+
+        /**
+         * Creates a new entry.
+         * @param size   size of the file, in bytes.
+         * @param digest lowercase hexadecimal representation of the file's SHA-256 digest.
+         */
+        Entry(long size, String digest) {
+            this.size   = size;
+            this.digest = digest;
+        }
+
+        /**
+         * Returns the size of the file, in bytes.
+         * @return the size of the file, in bytes.
+         */
+        long getSize() {return size;}
+
+        /**
+         * Returns the lowercase hexadecimal representation of the file's SHA-256 digest.
+         * @return the lowercase hexadecimal representation of the file's SHA-256 digest.
+         */
+        String getDigest() {return digest;}
+    }
+}
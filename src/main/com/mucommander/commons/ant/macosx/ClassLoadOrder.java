@@ -0,0 +1,197 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.RawZipWriter;
+import com.mucommander.commons.ant.util.ZipDirectory;
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * Reorders the entries of a JAR file according to the order in which a JVM loaded its classes.
+ * <p>
+ * Class loading reads JAR entries in whatever order the application needs them, which on a cold cache translates to
+ * random reads all over the file. Storing classes in load order makes these reads sequential: the classes needed at
+ * startup sit contiguously at the beginning of the file, where read-ahead does the rest.
+ * </p>
+ * <p>
+ * The order is read from a class loading log, in either of the following formats:
+ * <ul>
+ *   <li>The output of <code>-Xlog:class+load</code>: <code>[0.150s][info][class,load] com.foo.Bar source: ...</code></li>
+ *   <li>
+ *     A plain class list, one class per line, such as the output of <code>-XX:DumpLoadedClassList</code>:
+ *     <code>com/foo/Bar id: 42</code>
+ *   </li>
+ * </ul>
+ * The manifest and its folder are always stored first, as required by <code>JarInputStream</code>, followed by the
+ * classes found in the log, in order, then by all other entries in their original order. Entries are copied without
+ * being recompressed.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class ClassLoadOrder {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Entries that must come first in a JAR file. */
+    private static final String[] FIRST_ENTRIES   = {"META-INF/", "META-INF/MANIFEST.MF"};
+    /** Marks the end of the class name in <code>-Xlog:class+load</code> lines. */
+    private static final String   SOURCE_MARKER   = " source: ";
+    /** Extension of class files. */
+    private static final String   CLASS_EXTENSION = ".class";
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private ClassLoadOrder() {}
+
+
+
+    // - Log parsing ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads the order in which classes were loaded from the specified log.
+     * @param     log            class loading log.
+     * @return                   the names of the JAR entries of the loaded classes, in load order.
+     * @exception BuildException thrown if the log could not be read.
+     */
+    static List<String> read(File log) throws BuildException {
+        Set<String>    entries;
+        BufferedReader in;
+        String         line;
+
+        entries = new LinkedHashSet<String>();
+        in      = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+            while((line = in.readLine()) != null) {
+                String name;
+
+                if((name = getClassName(line)) != null)
+                    entries.add(name.replace('.', '/') + CLASS_EXTENSION);
+            }
+        }
+        catch(IOException e) {throw new BuildException("Could not read " + log, e);}
+
+        // Releases resources.
+        finally {
+            if(in != null) {
+                try {in.close();}
+                catch(Exception e) {}
+            }
+        }
+
+        return new ArrayList<String>(entries);
+    }
+
+    /**
+     * Extracts the name of the loaded class from the specified log line.
+     * @param  line log line to analyse.
+     * @return      the name of the loaded class, <code>null</code> if the line doesn't describe a loaded class.
+     */
+    private static String getClassName(String line) {
+        int index;
+
+        // -Xlog:class+load output.
+        if((index = line.indexOf(SOURCE_MARKER)) != -1) {
+            line = line.substring(0, index);
+            if((index = line.lastIndexOf("] ")) == -1)
+                return null;
+            return line.substring(index + 2).trim();
+        }
+
+        // Plain class list, where comments start with #.
+        line = line.trim();
+        if(line.length() == 0 || line.startsWith("#") || line.startsWith("["))
+            return null;
+        if((index = line.indexOf(' ')) != -1)
+            line = line.substring(0, index);
+
+        return line;
+    }
+
+
+
+    // - Reordering ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes a copy of the specified JAR file with its entries stored in the specified order.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     jar         JAR file to reorder.
+     * @param     order       names of the entries that must come first, in order.
+     * @param     out         where to write the reordered JAR file.
+     * @return                the number of entries that were found in <code>order</code>.
+     * @exception IOException thrown if the JAR file is not supported or if any IO related error occurs.
+     */
+    static int reorder(File jar, List<String> order, OutputStream out) throws IOException {
+        RandomAccessFile                in;
+        Map<String, ZipDirectory.Entry> entries;
+        RawZipWriter                    writer;
+        int                             found;
+
+        in = new RandomAccessFile(jar, "r");
+        try {
+            entries = new LinkedHashMap<String, ZipDirectory.Entry>();
+            for(ZipDirectory.Entry entry : ZipDirectory.read(in.getChannel()).getEntriesByOffset())
+                if(entries.put(entry.getName(), entry) != null)
+                    throw new ZipException("Duplicate entry: " + entry.getName());
+
+            writer = new RawZipWriter(out);
+            found  = 0;
+
+            // Manifest first, then classes in load order.
+            for(String name : FIRST_ENTRIES)
+                if(entries.containsKey(name))
+                    writer.copy(in.getChannel(), entries.remove(name));
+            for(String name : order) {
+                if(entries.containsKey(name)) {
+                    writer.copy(in.getChannel(), entries.remove(name));
+                    found++;
+                }
+            }
+
+            // Everything else in the original order.
+            for(ZipDirectory.Entry entry : entries.values())
+                writer.copy(in.getChannel(), entry);
+            writer.finish();
+        }
+        finally {in.close();}
+
+        return found;
+    }
+}
@@ -18,6 +18,8 @@
 
 package com.mucommander.commons.ant.macosx;
 
+import java.io.File;
+
 /**
  * @author Nicolas Rinaudo
  */
@@ -29,4 +31,5 @@ public class DataKey extends NamedInfoElement {
 
 
     public void addText(String str) {((DataValue)getValue()).addText(str);}
+    public void setFile(File f) {((DataValue)getValue()).setFile(f);}
 }
@@ -18,21 +18,139 @@
 
 package com.mucommander.commons.ant.macosx;
 
+import com.mucommander.commons.ant.util.Base64Encoder;
 import com.mucommander.commons.ant.util.XmlWriter;
+import org.apache.tools.ant.BuildException;
 import org.xml.sax.SAXException;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Represents the value part of a data property.
+ * <p>
+ * Data can either be specified inline, in which case it's expected to already be base64 encoded, or
+ * through the <code>file</code> attribute. In the later case, the file's content will be streamed through
+ * a chunked base64 encoder straight to the output, which means that memory usage doesn't depend on the
+ * size of the file.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
 public class DataValue implements InfoElement {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Label of the 'data' XML element. */
     private static final String DATA_ELEMENT = "data";
+    /** Number of bytes read from <code>file</code> at each iteration. Must be a multiple of 3. */
+    private static final int    CHUNK_SIZE   = 3 * 8192;
+
 
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Inline, base64 encoded data. */
     private final StringBuilder data;
+    /** File whose content should be used as data. */
+    private       File          file;
+
 
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates an empty data value.
+     */
     public DataValue() {data = new StringBuilder();}
 
+
+
+    // - Ant interaction -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Allows Ant to set the data's inline, base64 encoded content.
+     * @param txt base64 encoded data.
+     */
     public void addText(String txt) {data.append(txt);}
 
+    /**
+     * Allows Ant to set the file whose content will be used as data.
+     * <p>
+     * The file's content will be base64 encoded on the fly. It's not legal to specify both this attribute
+     * and inline data.
+     * </p>
+     * @param f file whose content will be used as data.
+     */
+    public void setFile(File f) {file = f;}
+
+
+
+    // - XML output ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the XML representation of this data value.
+     * @param     out            where to write the data's value to.
+     * @exception BuildException thrown if anything wrong happens.
+     */
     public void write(XmlWriter out) throws SAXException {
+        if(file != null) {
+            if(data.toString().trim().length() != 0)
+                throw new BuildException("Data elements cannot have both a file attribute and inline content.");
+            if(!file.isFile())
+                throw new BuildException("File not found: " + file);
+        }
+
         out.startElement(DATA_ELEMENT);
-        out.characters(data.toString());
+        if(file == null)
+            out.characters(data.toString());
+        else {
+            try {writeFile(out);}
+            catch(IOException e) {throw new BuildException("Could not read " + file, e);}
+        }
         out.endElement(DATA_ELEMENT);
     }
+
+    /**
+     * Streams the base64 encoded content of {@link #file} to the specified XML output.
+     * @param     out          where to write the file's content.
+     * @exception IOException  thrown if an error occurs while reading the file.
+     * @exception SAXException thrown if an error occurs while writing the encoded data.
+     */
+    private void writeFile(XmlWriter out) throws IOException, SAXException {
+        InputStream in;      // Stream on the data file.
+        byte[]      buffer;  // Raw bytes read from the file.
+        char[]      encoded; // Base64 representation of buffer.
+        int         length;  // Number of bytes currently stored in buffer.
+        int         count;   // Number of bytes read in the latest iteration.
+
+        buffer  = new byte[CHUNK_SIZE];
+        encoded = new char[Base64Encoder.getEncodedLength(CHUNK_SIZE)];
+        in      = null;
+
+        try {
+            in = new FileInputStream(file);
+            while(true) {
+                // Fills the buffer completely, as only the last chunk is allowed not to be a multiple of 3.
+                length = 0;
+                while(length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) != -1)
+                    length += count;
+
+                if(length == 0)
+                    break;
+
+                out.characters(encoded, 0, Base64Encoder.encode(buffer, length, encoded));
+
+                if(length < buffer.length)
+                    break;
+            }
+        }
+        // Releases resources.
+        finally {
+            if(in != null) {
+                try {in.close();}
+                catch(Exception e) {}
+            }
+        }
+    }
 }
@@ -18,14 +18,20 @@
 
 package com.mucommander.commons.ant.macosx;
 
+import com.mucommander.commons.ant.util.SourceDate;
 import com.mucommander.commons.ant.util.XmlWriter;
 import org.apache.tools.ant.BuildException;
 import org.xml.sax.SAXException;
 
 import java.util.Calendar;
+import java.util.TimeZone;
 
 /**
  * Represents the value part of a date property.
+ * <p>
+ * Fields that are not specified default to the current date. If the <code>SOURCE_DATE_EPOCH</code> environment
+ * variable is set, however, its value is used instead so that builds are reproducible.
+ * </p>
  * @author Nicolas Rinaudo
  */
 public class DateValue implements InfoElement {
@@ -136,7 +142,7 @@ public class DateValue implements InfoElement {
     public void write(XmlWriter out) throws SAXException {
         Calendar now; // Used to fill in default values.
 
-        now = Calendar.getInstance();
+        now = getDefaultDate();
 
         // Makes sure year is initialised properly.
         if(year == null) {
@@ -206,6 +212,27 @@ public class DateValue implements InfoElement {
 
     // - Helper methods ------------------------------------------------------------------------------------------------
     // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the date used to fill in default values.
+     * <p>
+     * This is the date described by the <code>SOURCE_DATE_EPOCH</code> environment variable, in UTC, if it's set.
+     * Otherwise, this is the current date.
+     * </p>
+     * @return the date used to fill in default values.
+     */
+    private static Calendar getDefaultDate() {
+        Calendar date;
+        Long     time;
+
+        if((time = SourceDate.getTime()) == null)
+            return Calendar.getInstance();
+
+        date = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        date.setTimeInMillis(time);
+
+        return date;
+    }
+
     /**
      * Writes a 0-padded integer value to the specified XML output stream.
      * @param out    where to write the integer value.
@@ -19,9 +19,12 @@
 package com.mucommander.commons.ant.macosx;
 
 import com.mucommander.commons.ant.util.XmlWriter;
+import org.apache.tools.ant.BuildException;
 import org.xml.sax.SAXException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
@@ -100,6 +103,13 @@ public class DictValue implements InfoElement {
         return value;
     }
 
+    NamedInfoElement getKey(String name) {
+        for(NamedInfoElement key : keys)
+            if(name.equals(key.getName()))
+                return key;
+        return null;
+    }
+
     DictKey getDict(String name) {
         Iterator<NamedInfoElement> iterator;
         NamedInfoElement           key;
@@ -114,6 +124,32 @@ public class DictValue implements InfoElement {
         return null;
     }
 
+    /**
+     * Sorts this dictionary's keys by name, as well as those of all nested dictionaries.
+     * <p>
+     * The order of array values is meaningful and left untouched, but dictionaries they contain are sorted.
+     * </p>
+     * @exception BuildException thrown if one of the keys doesn't have a name.
+     */
+    void sortKeys() throws BuildException {
+        for(NamedInfoElement key : keys)
+            if(key.getName() == null)
+                throw new BuildException("Unnamed key - please fill in the name attribute.");
+
+        Collections.sort(keys, new Comparator<NamedInfoElement>() {
+            public int compare(NamedInfoElement a, NamedInfoElement b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        for(NamedInfoElement key : keys) {
+            if(key.getValue() instanceof DictValue)
+                ((DictValue)key.getValue()).sortKeys();
+            else if(key.getValue() instanceof ArrayValue)
+                ((ArrayValue)key.getValue()).sortKeys();
+        }
+    }
+
     public void write(XmlWriter out) throws SAXException {
         Iterator<NamedInfoElement> iterator;
 
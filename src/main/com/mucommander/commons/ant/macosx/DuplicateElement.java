@@ -0,0 +1,36 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+/**
+ * Describes how <code>mkapp</code> resolves a set of duplicate entries when merging JAR files.
+ * <p>
+ * The <code>pattern</code> attribute is matched against entry names using the same syntax as fileset includes, and
+ * the <code>strategy</code> attribute is one of <code>first</code>, <code>fail</code> or <code>concat</code>.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class DuplicateElement {
+    private String pattern;
+    private String strategy;
+
+    public String getPattern() {return pattern;}
+    public String getStrategy() {return strategy;}
+    public void setPattern(String s) {pattern = s;}
+    public void setStrategy(String s) {strategy = s;}
+}
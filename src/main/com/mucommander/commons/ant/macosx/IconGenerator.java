@@ -0,0 +1,283 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import org.apache.tools.ant.BuildException;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Creates Mac OS X <code>.icns</code> files from a single master PNG image.
+ * <p>
+ * The <code>.icns</code> format is a simple container: a header followed by a list of typed images. Since Mac OS X
+ * 10.7, all standard sizes can be stored as PNG data, which means that generating an icon only requires scaling
+ * the master image to each size and encoding the result. Sizes are generated concurrently, and sizes that are larger
+ * than the master image are skipped rather than upscaled.
+ * </p>
+ * <p>
+ * Generated icons are cached by a hash of the master image: as long as it doesn't change, later builds simply reuse
+ * the cached file.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class IconGenerator {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Magic number of <code>.icns</code> files. */
+    private static final String MAGIC     = "icns";
+    /** Size of the header of the file and of each of its images. */
+    private static final int    HEADER    = 8;
+    /** Extension of <code>.icns</code> files. */
+    static final String         EXTENSION = ".icns";
+    /** Version of the generator, part of the cache key so that changes to the generator invalidate the cache. */
+    private static final String VERSION   = "1";
+    /** <code>.icns</code> types of all standard sizes, in the order in which they're written. */
+    private static final String[] TYPES   = {"icp4", "icp5", "ic11", "ic12", "ic07", "ic13", "ic08", "ic14", "ic09", "ic10"};
+    /** Size in pixels of each of the {@link #TYPES}. */
+    private static final int[]    SIZES   = {16,     32,     32,     64,     128,    256,    256,    512,    512,    1024};
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private IconGenerator() {}
+
+    /**
+     * Returns the default cache folder.
+     * @return the default cache folder.
+     */
+    static File getDefaultFolder() {
+        return new File(System.getProperty("user.home"), ".mkapp" + File.separator + "icons");
+    }
+
+
+
+    // - Icon generation -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns an <code>.icns</code> version of the specified PNG image, generating it if it's not in the cache.
+     * @param     png            master PNG image.
+     * @param     folder         cache folder.
+     * @return                   the cached <code>.icns</code> file.
+     * @exception BuildException thrown if any error occurs.
+     */
+    static File getIcon(File png, File folder) throws BuildException {
+        File          icon;
+        File          temp;
+        OutputStream  out;
+        MessageDigest digest;
+
+        // Looks for the icon in the cache.
+        digest = Digests.newSha256();
+        try {Digests.update(digest, png);}
+        catch(IOException e) {throw new BuildException("Could not read " + png, e);}
+        digest.update(VERSION.getBytes());
+        if((icon = new File(folder, Digests.toHex(digest.digest()) + EXTENSION)).isFile())
+            return icon;
+
+        // Generates the icon in a temporary file, and moves it to the cache once complete.
+        if(!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory())
+            throw new BuildException("Could not create directory " + folder);
+        temp = new File(folder, icon.getName() + ".tmp" + System.nanoTime());
+        try {
+            out = new FileOutputStream(temp);
+            try {write(png, out);}
+            finally {out.close();}
+
+            if(!temp.renameTo(icon) && !icon.isFile())
+                throw new BuildException("Could not move " + temp + " to " + icon);
+        }
+        catch(IOException e) {throw new BuildException("Could not generate icon from " + png, e);}
+        finally {temp.delete();}
+
+        return icon;
+    }
+
+    /**
+     * Writes the <code>.icns</code> version of the specified PNG image to the specified stream.
+     * @param     png         master PNG image.
+     * @param     out         where to write the icon.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static void write(File png, OutputStream out) throws IOException {
+        final BufferedImage    master;
+        List<Callable<byte[]>> work;
+        List<byte[]>           images;
+        List<String>           types;
+        List<Integer>          sizes;
+        DataOutputStream       stream;
+        int                    length;
+        int                    max;
+
+        if((master = ImageIO.read(png)) == null)
+            throw new IOException("Not a supported image: " + png);
+        max = Math.max(master.getWidth(), master.getHeight());
+
+        // Scales and encodes all sizes that fit in the master image, concurrently. Sizes shared by more than one
+        // type are only generated once.
+        work  = new ArrayList<Callable<byte[]>>();
+        types = new ArrayList<String>();
+        sizes = new ArrayList<Integer>();
+        for(int i = 0; i < TYPES.length; i++) {
+            final int size;
+
+            if((size = SIZES[i]) > max)
+                continue;
+            types.add(TYPES[i]);
+            if(!sizes.contains(size)) {
+                sizes.add(size);
+                work.add(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {return encode(scale(master, size));}
+                });
+            }
+        }
+        if(work.isEmpty())
+            throw new IOException("Icons must be at least " + SIZES[0] + " pixels wide");
+        images = ParallelRunner.run(work);
+
+        // Writes the container.
+        length = HEADER;
+        for(int i = 0; i < types.size(); i++)
+            length += HEADER + images.get(sizes.indexOf(getSize(types.get(i)))).length;
+
+        stream = new DataOutputStream(out);
+        stream.writeBytes(MAGIC);
+        stream.writeInt(length);
+        for(String type : types) {
+            byte[] image;
+
+            image = images.get(sizes.indexOf(getSize(type)));
+            stream.writeBytes(type);
+            stream.writeInt(HEADER + image.length);
+            stream.write(image);
+        }
+        stream.flush();
+    }
+
+    /**
+     * Returns the size in pixels of the specified type.
+     * @param  type <code>.icns</code> image type.
+     * @return      the size in pixels of the specified type.
+     */
+    private static int getSize(String type) {
+        for(int i = 0; i < TYPES.length; i++)
+            if(TYPES[i].equals(type))
+                return SIZES[i];
+        throw new IllegalArgumentException(type);
+    }
+
+    /**
+     * Scales the specified image to a square of the specified size.
+     * <p>
+     * The image is halved repeatedly before being scaled to its final size, which gives much better results than
+     * a single bilinear scaling. Non square images are centered.
+     * </p>
+     * @param  image image to scale.
+     * @param  size  size of the scaled image.
+     * @return       the scaled image.
+     */
+    private static BufferedImage scale(BufferedImage image, int size) {
+        BufferedImage scaled;
+        Graphics2D    graphics;
+        int           width;
+        int           height;
+
+        // Halves the image until it's less than twice as big as required.
+        width  = image.getWidth();
+        height = image.getHeight();
+        while(Math.max(width, height) >= size * 2) {
+            width  = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            image  = draw(image, width, height);
+        }
+
+        // Scales the image to its final size, centered in a transparent square.
+        scaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        graphics = scaled.createGraphics();
+        try {
+            double ratio;
+
+            ratio  = (double)size / Math.max(width, height);
+            width  = (int)Math.round(width * ratio);
+            height = (int)Math.round(height * ratio);
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, (size - width) / 2, (size - height) / 2, width, height, null);
+        }
+        finally {graphics.dispose();}
+
+        return scaled;
+    }
+
+    /**
+     * Draws the specified image, scaled to the specified size, in a new image.
+     * @param  image  image to draw.
+     * @param  width  width of the new image.
+     * @param  height height of the new image.
+     * @return        the new image.
+     */
+    private static BufferedImage draw(BufferedImage image, int width, int height) {
+        BufferedImage result;
+        Graphics2D    graphics;
+
+        result   = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        graphics = result.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        }
+        finally {graphics.dispose();}
+
+        return result;
+    }
+
+    /**
+     * Encodes the specified image as PNG.
+     * @param     image       image to encode.
+     * @return                the PNG representation of the image.
+     * @exception IOException thrown if the image could not be encoded.
+     */
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out;
+
+        out = new ByteArrayOutputStream();
+        if(!ImageIO.write(image, "png", out))
+            throw new IOException("No PNG encoder available");
+
+        return out.toByteArray();
+    }
+}
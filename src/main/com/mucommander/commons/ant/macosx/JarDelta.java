@@ -0,0 +1,430 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.ZipDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Entry-aware delta between two versions of a JAR file.
+ * <p>
+ * Compressed JAR files defeat generic binary diffs: changing a single class changes the compressed bytes of its entry,
+ * which are unrelated to the previous ones. On the other hand, most entries of a JAR file are usually untouched from
+ * one version to the next, and their compressed data can be copied as is. This class describes the new version of a
+ * JAR file as a sequence of:
+ * <ul>
+ *   <li><i>copies</i>: ranges of bytes that can be copied from the old version.</li>
+ *   <li><i>literals</i>: ranges of bytes that must be shipped, such as changed entries and the central directory.</li>
+ * </ul>
+ * Entries are matched by CRC, sizes and compression method, then compared byte for byte, which means that renamed
+ * entries are matched as well. Whole entries, local header included, are copied when possible, and runs of unchanged
+ * entries collapse into a single copy. Since the delta describes the exact bytes of the new version, the result of
+ * applying it can be verified by hash.
+ * </p>
+ * <p>
+ * Entries are compared concurrently, in slices, which allows large JAR files to use all available processors.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class JarDelta {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Operation: copies bytes from the old version. */
+    private static final int COPY        = 0;
+    /** Operation: copies bytes from the delta. */
+    private static final int LITERAL     = 1;
+    /** Operation: end of the delta. */
+    private static final int END         = 2;
+    /** Number of entries compared by each unit of work. */
+    private static final int SLICE       = 512;
+    /** Matches shorter than this are not worth a copy operation. */
+    private static final int MIN_COPY    = 32;
+    /** Size of the buffers used to compare and copy data. */
+    private static final int BUFFER_SIZE = 65536;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private JarDelta() {}
+
+
+
+    // - Delta computation ---------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes the segments that make up <code>to</code>.
+     * @param     from        old version of the JAR file.
+     * @param     to          new version of the JAR file.
+     * @param     threads     maximum number of threads to use.
+     * @return                the segments that make up <code>to</code>, in order.
+     * @exception IOException thrown if either file is not a supported JAR file, or if any IO related error occurs.
+     */
+    static List<Segment> diff(File from, File to, int threads) throws IOException {
+        RandomAccessFile oldFile;
+        RandomAccessFile newFile;
+
+        oldFile = new RandomAccessFile(from, "r");
+        try {
+            newFile = new RandomAccessFile(to, "r");
+            try {return diff(oldFile.getChannel(), newFile.getChannel(), threads);}
+            finally {newFile.close();}
+        }
+        finally {oldFile.close();}
+    }
+
+    /**
+     * Computes the segments that make up <code>to</code>.
+     * @param     from        old version of the JAR file.
+     * @param     to          new version of the JAR file.
+     * @param     threads     maximum number of threads to use.
+     * @return                the segments that make up <code>to</code>, in order.
+     * @exception IOException thrown if either file is not a supported JAR file, or if any IO related error occurs.
+     */
+    private static List<Segment> diff(final FileChannel from, final FileChannel to, int threads) throws IOException {
+        ZipDirectory                     oldDirectory;
+        ZipDirectory                     newDirectory;
+        final List<ZipDirectory.Entry>   oldEntries;
+        final List<ZipDirectory.Entry>   newEntries;
+        final Map<String, List<Integer>> candidates;
+        List<Callable<List<Segment>>>    work;
+        List<Segment>                    segments;
+        long                             position;
+
+        oldDirectory = ZipDirectory.read(from);
+        newDirectory = ZipDirectory.read(to);
+        oldEntries   = oldDirectory.getEntriesByOffset();
+        newEntries   = newDirectory.getEntriesByOffset();
+
+        // Indexes old entries by content.
+        candidates = new HashMap<String, List<Integer>>();
+        for(int i = 0; i < oldEntries.size(); i++) {
+            List<Integer> list;
+            String        key;
+
+            if((list = candidates.get(key = getKey(oldEntries.get(i)))) == null)
+                candidates.put(key, list = new ArrayList<Integer>(1));
+            list.add(i);
+        }
+
+        // Matches new entries, one slice at a time.
+        work = new ArrayList<Callable<List<Segment>>>();
+        for(int start = 0; start < newEntries.size(); start += SLICE) {
+            final int first;
+            final int last;
+
+            first = start;
+            last  = Math.min(newEntries.size(), start + SLICE);
+            work.add(new Callable<List<Segment>>() {
+                public List<Segment> call() throws IOException {
+                    List<Segment> matches;
+                    ByteBuffer    oldBuffer;
+                    ByteBuffer    newBuffer;
+
+                    matches   = new ArrayList<Segment>();
+                    oldBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    newBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    for(int i = first; i < last; i++) {
+                        Segment match;
+
+                        if((match = match(from, oldEntries, candidates, to, newEntries.get(i), oldBuffer, newBuffer)) != null)
+                            matches.add(match);
+                    }
+                    return matches;
+                }
+            });
+        }
+
+        // Fills the gaps between matches with literals.
+        segments = new ArrayList<Segment>();
+        position = 0;
+        for(List<Segment> matches : ParallelRunner.run(work, threads)) {
+            for(Segment match : matches) {
+                Segment last;
+
+                if(match.target > position)
+                    segments.add(new Segment(false, position, position, match.target - position));
+
+                // Merges contiguous copies.
+                last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if(last != null && last.copy && last.target + last.length == match.target
+                   && last.offset + last.length == match.offset)
+                    last.length += match.length;
+                else
+                    segments.add(match);
+                position = match.target + match.length;
+            }
+        }
+        if(position < to.size())
+            segments.add(new Segment(false, position, position, to.size() - position));
+
+        return segments;
+    }
+
+    /**
+     * Returns the key used to look for entries with the same content.
+     * @param  entry entry whose key should be computed.
+     * @return       the key used to look for entries with the same content.
+     */
+    private static String getKey(ZipDirectory.Entry entry) {
+        return entry.getCrc() + ":" + entry.getCompressedSize() + ":" + entry.getSize() + ":" + entry.getMethod();
+    }
+
+    /**
+     * Looks for a copy of the specified entry in the old version.
+     * @param     from        old version of the JAR file.
+     * @param     oldEntries  entries of the old version, sorted by offset.
+     * @param     candidates  indexes of the old entries, by content key.
+     * @param     to          new version of the JAR file.
+     * @param     entry       entry to match.
+     * @param     oldBuffer   buffer used to read the old version.
+     * @param     newBuffer   buffer used to read the new version.
+     * @return                the copy to use, <code>null</code> if none was found.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static Segment match(FileChannel from, List<ZipDirectory.Entry> oldEntries,
+                                 Map<String, List<Integer>> candidates, FileChannel to, ZipDirectory.Entry entry,
+                                 ByteBuffer oldBuffer, ByteBuffer newBuffer) throws IOException {
+        List<Integer> list;
+        Segment       dataMatch;
+
+        if(entry.getCompressedSize() < MIN_COPY || (list = candidates.get(getKey(entry))) == null)
+            return null;
+
+        // Looks for a whole block first, and remembers the first data match in case none is found.
+        dataMatch = null;
+        for(int index : list) {
+            ZipDirectory.Entry candidate;
+            long               length;
+
+            candidate = oldEntries.get(index);
+            length    = entry.getEndOffset() - entry.getHeaderOffset();
+            if(candidate.getEndOffset() - candidate.getHeaderOffset() == length
+               && equals(from, candidate.getHeaderOffset(), to, entry.getHeaderOffset(), length, oldBuffer, newBuffer))
+                return new Segment(true, candidate.getHeaderOffset(), entry.getHeaderOffset(), length);
+            if(dataMatch == null && equals(from, candidate.getDataOffset(), to, entry.getDataOffset(),
+                                           entry.getCompressedSize(), oldBuffer, newBuffer))
+                dataMatch = new Segment(true, candidate.getDataOffset(), entry.getDataOffset(), entry.getCompressedSize());
+        }
+
+        return dataMatch;
+    }
+
+    /**
+     * Compares two regions of two files.
+     * @param     from        first file.
+     * @param     fromOffset  where the region starts in the first file.
+     * @param     to          second file.
+     * @param     toOffset    where the region starts in the second file.
+     * @param     length      length of the regions.
+     * @param     fromBuffer  buffer used to read the first file.
+     * @param     toBuffer    buffer used to read the second file.
+     * @return                <code>true</code> if both regions contain the same bytes.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static boolean equals(FileChannel from, long fromOffset, FileChannel to, long toOffset, long length,
+                                  ByteBuffer fromBuffer, ByteBuffer toBuffer) throws IOException {
+        while(length > 0) {
+            int count;
+
+            count = (int)Math.min(length, BUFFER_SIZE);
+            fromBuffer.clear().limit(count);
+            toBuffer.clear().limit(count);
+            ZipDirectory.readFully(from, fromBuffer, fromOffset);
+            ZipDirectory.readFully(to, toBuffer, toOffset);
+            if(!fromBuffer.equals(toBuffer))
+                return false;
+
+            fromOffset += count;
+            toOffset   += count;
+            length     -= count;
+        }
+        return true;
+    }
+
+
+
+    // - Delta storage -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the specified delta to the specified stream.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     segments    segments that make up the new version.
+     * @param     to          new version of the JAR file, from which literals are read.
+     * @param     out         where to write the delta.
+     * @return                the number of literal bytes in the delta.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    static long write(List<Segment> segments, File to, OutputStream out) throws IOException {
+        DataOutputStream stream;
+        RandomAccessFile in;
+        ByteBuffer       buffer;
+        long             literals;
+
+        stream   = new DataOutputStream(out);
+        buffer   = ByteBuffer.allocate(BUFFER_SIZE);
+        literals = 0;
+        in       = new RandomAccessFile(to, "r");
+        try {
+            for(Segment segment : segments) {
+                if(segment.copy) {
+                    stream.writeByte(COPY);
+                    stream.writeLong(segment.offset);
+                    stream.writeLong(segment.length);
+                }
+                else {
+                    stream.writeByte(LITERAL);
+                    stream.writeLong(segment.length);
+                    transfer(in.getChannel(), segment.offset, segment.length, buffer, stream);
+                    literals += segment.length;
+                }
+            }
+            stream.writeByte(END);
+            stream.flush();
+        }
+        finally {in.close();}
+
+        return literals;
+    }
+
+    /**
+     * Rebuilds the new version of a JAR file from its old version and a delta.
+     * <p>
+     * Neither stream is closed by this method.
+     * </p>
+     * @param     from        old version of the JAR file.
+     * @param     delta       delta to apply.
+     * @param     out         where to write the new version.
+     * @exception IOException thrown if the delta is corrupt or if any IO related error occurs.
+     */
+    static void apply(File from, InputStream delta, OutputStream out) throws IOException {
+        DataInputStream  in;
+        RandomAccessFile file;
+        ByteBuffer       buffer;
+        byte[]           literal;
+
+        in      = new DataInputStream(delta);
+        buffer  = ByteBuffer.allocate(BUFFER_SIZE);
+        literal = new byte[BUFFER_SIZE];
+        file    = new RandomAccessFile(from, "r");
+        try {
+            while(true) {
+                int  operation;
+                long length;
+
+                if((operation = in.readUnsignedByte()) == END)
+                    break;
+
+                if(operation == COPY) {
+                    long offset;
+
+                    offset = in.readLong();
+                    transfer(file.getChannel(), offset, in.readLong(), buffer, out);
+                }
+                else if(operation == LITERAL) {
+                    for(length = in.readLong(); length > 0; length -= literal.length) {
+                        int count;
+
+                        in.readFully(literal, 0, count = (int)Math.min(length, literal.length));
+                        out.write(literal, 0, count);
+                    }
+                }
+                else
+                    throw new IOException("Corrupt JAR delta: unknown operation " + operation);
+            }
+        }
+        finally {file.close();}
+    }
+
+    /**
+     * Copies a region of a file to the specified stream.
+     * @param     from        file to copy from.
+     * @param     offset      where the region starts.
+     * @param     length      length of the region.
+     * @param     buffer      buffer used to read the file.
+     * @param     out         where to copy the region.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static void transfer(FileChannel from, long offset, long length, ByteBuffer buffer, OutputStream out)
+            throws IOException {
+        while(length > 0) {
+            int count;
+
+            count = (int)Math.min(length, buffer.capacity());
+            buffer.clear().limit(count);
+            ZipDirectory.readFully(from, buffer, offset);
+            out.write(buffer.array(), 0, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+
+
+    // - Segment class -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Range of bytes of the new version of a JAR file.
+     * @author Nicolas Rinaudo
+     */
+    static class Segment {
+        /** Whether the range is copied from the old version or shipped in the delta. */
+        private final boolean copy;
+        /** Offset of the range in the old version for copies, in the new version for literals. */
+        private final long    offset;
+        /** Offset of the range in the new version. */
+        private final long    target;
+        /** Length of the range. */
+        private long          length;
+
+        /**
+         * Creates a new segment.
+         * @param copy   whether the range is copied from the old version or shipped in the delta.
+         * @param offset offset of the range in the old version for copies, in the new version for literals.
+         * @param target offset of the range in the new version.
+         * @param length length of the range.
+         */
+        Segment(boolean copy, long offset, long target, long length) {
+            this.copy   = copy;
+            this.offset = offset;
+            this.target = target;
+            this.length = length;
+        }
+    }
+}
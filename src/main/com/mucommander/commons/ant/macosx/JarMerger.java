@@ -0,0 +1,400 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.JarSignatures;
+import com.mucommander.commons.ant.util.RawZipWriter;
+import com.mucommander.commons.ant.util.ZipDirectory;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+/**
+ * Merges a set of JAR files into a single one.
+ * <p>
+ * Entries are copied as they're stored, without being inflated or recompressed, in the order in which the JAR files
+ * are specified. When an entry is found in more than one of them, it's resolved through the first of the following
+ * rules that matches its name:
+ * <ul>
+ *   <li>The rules specified through {@link DuplicateElement}, in order.</li>
+ *   <li><code>META-INF/services/**</code> entries are concatenated.</li>
+ *   <li><code>module-info.class</code> entries are taken from the first JAR file.</li>
+ *   <li>The default strategy.</li>
+ * </ul>
+ * Directories and entries whose content is identical in all JAR files are never considered duplicates. Versioned
+ * entries of multi-release JAR files are resolved by full name, which means that
+ * <code>META-INF/versions/9/a.class</code> is never a duplicate of <code>a.class</code>.
+ * </p>
+ * <p>
+ * The manifest of the first JAR file is the only one kept. Signatures, which the merged JAR file would invalidate,
+ * are removed along with the digests they cover, the manifest is marked as <code>Multi-Release</code> if any of the
+ * merged JAR files is, and merged JAR files are removed from its <code>Class-Path</code> attribute. The manifest is
+ * only rewritten if any of these changes is necessary.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class JarMerger {
+    // - Strategies ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Keeps the entry of the first JAR file that contains it. */
+    static final String FIRST  = "first";
+    /** Fails on duplicate entries. */
+    static final String FAIL   = "fail";
+    /** Concatenates all duplicate entries, separated by line breaks. */
+    static final String CONCAT = "concat";
+
+
+
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the manifest entry. */
+    private static final String          MANIFEST      = "META-INF/MANIFEST.MF";
+    /** Name of the JAR index entry, which would not describe the merged JAR file. */
+    private static final String          INDEX         = "META-INF/INDEX.LIST";
+    /** Service provider configuration files, which are concatenated by default. */
+    private static final String          SERVICES      = "META-INF/services/**";
+    /** Module descriptors, which are taken from the first JAR file by default. */
+    private static final String          MODULE_INFO   = "**/module-info.class";
+    /** Manifest attribute that marks multi-release JAR files. */
+    private static final Attributes.Name MULTI_RELEASE = new Attributes.Name("Multi-Release");
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Task on behalf of which JAR files are merged. */
+    private final Task                   owner;
+    /** Rules used to resolve duplicate entries. */
+    private final List<DuplicateElement> rules;
+    /** Strategy used for duplicate entries that match none of the rules. */
+    private final String                 strategy;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new merger.
+     * @param owner    task on behalf of which JAR files are merged.
+     * @param rules    rules used to resolve duplicate entries.
+     * @param strategy strategy used for duplicate entries that match none of the rules.
+     */
+    JarMerger(Task owner, List<DuplicateElement> rules, String strategy) {
+        this.owner    = owner;
+        this.rules    = rules;
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified string is a valid duplicate resolution strategy.
+     * @param  s string to check.
+     * @return   <code>true</code> if the specified string is a valid duplicate resolution strategy.
+     */
+    static boolean isStrategy(String s) {
+        return FIRST.equals(s) || FAIL.equals(s) || CONCAT.equals(s);
+    }
+
+
+
+    // - JAR merging ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Merges the specified JAR files into the specified stream.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     jars         JAR files to merge, the first one being the application's.
+     * @param     out          where to write the merged JAR file.
+     * @return                 the number of duplicate entries that were resolved.
+     * @exception ZipException thrown if a JAR file is not supported or corrupt, or if a duplicate entry cannot be
+     *                         resolved.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    int merge(List<File> jars, OutputStream out) throws IOException {
+        RandomAccessFile[]        files;
+        Map<String, List<Source>> entries;
+        Set<String>               merged;
+        RawZipWriter              writer;
+        boolean                   multiRelease;
+        int                       count;
+
+        files = new RandomAccessFile[jars.size()];
+        try {
+            // Collects the entries of all JAR files, in order.
+            entries      = new LinkedHashMap<String, List<Source>>();
+            merged       = new HashSet<String>();
+            multiRelease = false;
+            for(int i = 0; i < files.length; i++) {
+                files[i] = new RandomAccessFile(jars.get(i), "r");
+                if(i > 0)
+                    merged.add(jars.get(i).getName());
+
+                for(ZipDirectory.Entry entry : ZipDirectory.read(files[i].getChannel()).getEntriesByOffset()) {
+                    List<Source> sources;
+
+                    if(JarSignatures.isSignature(entry.getName()) || entry.getName().equals(INDEX))
+                        continue;
+                    if(i > 0 && entry.getName().equals(MANIFEST)) {
+                        multiRelease |= isMultiRelease(readManifest(files[i], entry));
+                        continue;
+                    }
+                    if((sources = entries.get(entry.getName())) == null)
+                        entries.put(entry.getName(), sources = new ArrayList<Source>(1));
+                    sources.add(new Source(i, entry));
+                }
+            }
+            if(multiRelease && !entries.containsKey(MANIFEST))
+                throw new ZipException("Cannot mark " + jars.get(0) + " as multi-release: no manifest found");
+
+            // Writes the merged JAR file.
+            writer = new RawZipWriter(out);
+            count  = 0;
+            for(Map.Entry<String, List<Source>> entry : entries.entrySet()) {
+                if(entry.getKey().equals(MANIFEST))
+                    writeManifest(writer, files[0], entry.getValue().get(0).entry, multiRelease, merged);
+                else if(write(writer, files, jars, entry.getKey(), entry.getValue()))
+                    count++;
+            }
+            writer.finish();
+        }
+        finally {
+            for(RandomAccessFile file : files) {
+                if(file != null) {
+                    try {file.close();}
+                    catch(Exception e) {}
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes the specified entry, resolving duplicates if necessary.
+     * @param     writer       where to write the entry.
+     * @param     files        JAR files being merged.
+     * @param     jars         paths to the JAR files being merged.
+     * @param     name         name of the entry.
+     * @param     sources      all occurrences of the entry, in order.
+     * @return                 <code>true</code> if the entry was a duplicate that needed to be resolved.
+     * @exception ZipException thrown if the entry is a duplicate that must not be resolved.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    private boolean write(RawZipWriter writer, RandomAccessFile[] files, List<File> jars, String name,
+                          List<Source> sources) throws IOException {
+        Source first;
+        String resolution;
+
+        first = sources.get(0);
+        if(sources.size() == 1 || first.entry.isDirectory() || isIdentical(sources)) {
+            writer.copy(files[first.jar].getChannel(), first.entry);
+            return false;
+        }
+
+        resolution = getStrategy(name);
+        if(resolution.equals(FAIL))
+            throw new ZipException("Duplicate entry " + name + " in " + jars.get(first.jar) + " and "
+                                   + jars.get(sources.get(1).jar));
+
+        // Concatenates all occurrences, making sure each of them ends with a line break.
+        if(resolution.equals(CONCAT)) {
+            ByteArrayOutputStream buffer;
+
+            buffer = new ByteArrayOutputStream();
+            for(Source source : sources) {
+                byte[] data;
+
+                data = ZipDirectory.readContent(files[source.jar].getChannel(), source.entry);
+                buffer.write(data);
+                if(data.length != 0 && data[data.length - 1] != '\n')
+                    buffer.write('\n');
+            }
+            writer.replace(first.entry, buffer.toByteArray());
+        }
+        else
+            writer.copy(files[first.jar].getChannel(), first.entry);
+
+        owner.log("Resolved duplicate entry " + name + " (" + resolution + ", " + sources.size() + " occurrences)",
+                  Project.MSG_VERBOSE);
+        return true;
+    }
+
+    /**
+     * Writes the manifest of the merged JAR file.
+     * @param     writer       where to write the manifest.
+     * @param     file         JAR file that contains the manifest.
+     * @param     entry        manifest entry.
+     * @param     multiRelease whether any of the merged JAR files is a multi-release one.
+     * @param     merged       names of the JAR files merged into the first one.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    private static void writeManifest(RawZipWriter writer, RandomAccessFile file, ZipDirectory.Entry entry,
+                                      boolean multiRelease, Set<String> merged) throws IOException {
+        Manifest              manifest;
+        Attributes            main;
+        String                classPath;
+        ByteArrayOutputStream buffer;
+        boolean               changed;
+
+        manifest = readManifest(file, entry);
+        main     = manifest.getMainAttributes();
+
+        // Removes signature digests, and the sections that only contained them.
+        changed = JarSignatures.removeDigests(manifest);
+
+        // Marks the merged JAR file as multi-release if necessary.
+        if(multiRelease && !isMultiRelease(manifest)) {
+            main.put(MULTI_RELEASE, "true");
+            changed = true;
+        }
+
+        // Removes merged JAR files from the classpath.
+        if((classPath = main.getValue(Attributes.Name.CLASS_PATH)) != null) {
+            StringBuilder filtered;
+
+            filtered = new StringBuilder();
+            for(String element : classPath.trim().split("\\s+")) {
+                if(merged.contains(element.substring(element.lastIndexOf('/') + 1)))
+                    changed = true;
+                else if(element.length() != 0)
+                    filtered.append(filtered.length() == 0 ? "" : " ").append(element);
+            }
+            if(filtered.length() == 0)
+                main.remove(Attributes.Name.CLASS_PATH);
+            else
+                main.put(Attributes.Name.CLASS_PATH, filtered.toString());
+        }
+
+        if(changed) {
+            buffer = new ByteArrayOutputStream();
+            manifest.write(buffer);
+            writer.replace(entry, buffer.toByteArray());
+        }
+        else
+            writer.copy(file.getChannel(), entry);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the strategy used to resolve duplicates of the specified entry.
+     * @param  name name of the entry.
+     * @return      the strategy used to resolve duplicates of the specified entry.
+     */
+    private String getStrategy(String name) {
+        for(DuplicateElement rule : rules)
+            if(matches(rule.getPattern(), name))
+                return rule.getStrategy();
+        if(matches(SERVICES, name))
+            return CONCAT;
+        if(matches(MODULE_INFO, name))
+            return FIRST;
+        return strategy;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified entry name matches the specified pattern.
+     * <p>
+     * Patterns follow the syntax of fileset includes, which Ant matches against platform dependent paths.
+     * </p>
+     * @param  pattern pattern to match.
+     * @param  name    entry name to match.
+     * @return         <code>true</code> if the specified entry name matches the specified pattern.
+     */
+    private static boolean matches(String pattern, String name) {
+        return SelectorUtils.matchPath(pattern.replace('/', File.separatorChar), name.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Returns <code>true</code> if all the specified entries have the same content.
+     * @param  sources entries to compare.
+     * @return         <code>true</code> if all the specified entries have the same content.
+     */
+    private static boolean isIdentical(List<Source> sources) {
+        ZipDirectory.Entry first;
+
+        first = sources.get(0).entry;
+        for(Source source : sources)
+            if(source.entry.getCrc() != first.getCrc() || source.entry.getSize() != first.getSize())
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified manifest describes a multi-release JAR file.
+     * @param  manifest manifest to analyse.
+     * @return          <code>true</code> if the specified manifest describes a multi-release JAR file.
+     */
+    private static boolean isMultiRelease(Manifest manifest) {
+        return "true".equalsIgnoreCase(manifest.getMainAttributes().getValue(MULTI_RELEASE));
+    }
+
+    /**
+     * Reads the specified manifest entry.
+     * @param     file        JAR file that contains the manifest.
+     * @param     entry       manifest entry.
+     * @return                the content of the manifest.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static Manifest readManifest(RandomAccessFile file, ZipDirectory.Entry entry) throws IOException {
+        return new Manifest(new ByteArrayInputStream(ZipDirectory.readContent(file.getChannel(), entry)));
+    }
+
+
+
+    // - Source class --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Occurrence of an entry in one of the JAR files being merged.
+     * @author Nicolas Rinaudo
+     */
+    private static class Source {
+        /** Index of the JAR file that contains the entry. */
+        private final int                jar;
+        /** Entry as read from its JAR file. */
+        private final ZipDirectory.Entry entry;
+
+        /**
+         * Creates a new source.
+         * @param jar   index of the JAR file that contains the entry.
+         * @param entry entry as read from its JAR file.
+         */
+        Source(int jar, ZipDirectory.Entry entry) {
+            this.jar   = jar;
+            this.entry = entry;
+        }
+    }
+}
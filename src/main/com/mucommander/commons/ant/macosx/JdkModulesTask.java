@@ -0,0 +1,517 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.ClassFile;
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.Streams;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Ant task used to compute the minimal set of JDK modules needed by an application.
+ * <p>
+ * This task analyses the bytecode of all the classes in a set of JAR files and class files, collects the packages they
+ * reference and resolves them to JDK modules through the JDK's <code>jrt:/</code> image. Classes are never loaded:
+ * their constant pool and member descriptors are parsed directly, and JAR files are analysed in parallel, which
+ * allows the task to process tens of thousands of classes in a few seconds.
+ * </p>
+ * <p>
+ * The resulting list is minimal: modules that are already required at run time, directly or not, by another module of
+ * the list are removed, as are <code>java.base</code> and packages that are not part of the JDK. <code>requires
+ * static</code> dependencies are not followed, since they are not resolved at run time. It's stored, comma separated,
+ * in the specified property, and can be fed as is to <code>jlink --add-modules</code> or to the
+ * <code>runtimemodules</code> attribute of the {@link AppTask mkapp} task.
+ * </p>
+ * <p>
+ * Note that classes that are only accessed through reflection cannot be detected. Modules used that way must be
+ * added by hand.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class JdkModulesTask extends Task {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the module that is always part of a runtime. */
+    private static final String BASE_MODULE       = "java.base";
+    /** Maximum number of JAR entries analysed by a single unit of work. */
+    private static final int    SLICE_SIZE        = 1024;
+    /** Extension of class files. */
+    private static final String CLASS_SUFFIX      = ".class";
+    /** Name of module descriptors. */
+    private static final String MODULE_DESCRIPTOR = "module-info.class";
+    /** Flag of requirements that are only mandatory at compile time. */
+    private static final int    ACC_STATIC_PHASE  = 0x0040;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the property in which to store the list of modules. */
+    private String        propertyName;
+    /** Application JAR file to analyse. */
+    private File          jar;
+    /** JAR files and class files to analyse. */
+    private List<FileSet> files;
+    /** Home of the JDK whose modules should be used, <code>null</code> to use the current one. */
+    private File          jdk;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises a JdkModulesTask.
+     */
+    public JdkModulesTask() {}
+
+    /**
+     * Initialises the JdkModulesTask.
+     */
+    public void init() {
+        propertyName = null;
+        jar          = null;
+        files        = new ArrayList<FileSet>();
+        jdk          = null;
+    }
+
+
+
+    // - Ant interaction -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Sets the name of the property in which to store the list of modules.
+     * @param s name of the property in which to store the list of modules.
+     */
+    public void setProperty(String s) {propertyName = s;}
+
+    /**
+     * Sets the application JAR file to analyse.
+     * @param f application JAR file to analyse.
+     */
+    public void setJar(File f) {jar = f;}
+
+    /**
+     * Sets the home of the JDK whose modules should be used.
+     * <p>
+     * This JDK must be Java 9 or later. Defaults to the JDK running Ant.
+     * </p>
+     * @param f home of the JDK whose modules should be used.
+     */
+    public void setJdk(File f) {jdk = f;}
+
+    /**
+     * Adds JAR files and class files to analyse.
+     * @param f JAR files and class files to analyse.
+     */
+    public void addConfiguredFileSet(FileSet f) {files.add(f);}
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs.
+     */
+    public void execute() throws BuildException {
+        List<File>           inputs;
+        List<ZipFile>        jars;
+        List<Callable<Void>> work;
+        Set<String>          packages;
+        SortedSet<String>    modules;
+        StringBuilder        list;
+
+        // Makes sure the task has been properly initialised.
+        if(propertyName == null)
+            throw new BuildException("Unspecified property - please fill in the property attribute.");
+        if(jar == null && files.isEmpty())
+            throw new BuildException("Nothing to analyse - please fill in the jar attribute or add nested filesets.");
+        if(jar != null && !jar.isFile())
+            throw new BuildException("File not found: " + jar);
+
+        // Lists all the files to analyse.
+        inputs = new ArrayList<File>();
+        if(jar != null)
+            inputs.add(jar);
+        for(FileSet set : files) {
+            DirectoryScanner scanner;
+
+            scanner = set.getDirectoryScanner(getProject());
+            for(String name : scanner.getIncludedFiles())
+                inputs.add(new File(set.getDir(getProject()), name));
+        }
+
+        // Collects the packages referenced by all classes.
+        packages = Collections.synchronizedSet(new HashSet<String>());
+        jars     = new ArrayList<ZipFile>();
+        work     = new ArrayList<Callable<Void>>();
+        try {
+            for(File input : inputs) {
+                if(input.getName().endsWith(CLASS_SUFFIX))
+                    work.add(new ClassFileAnalysis(input, packages));
+                else {
+                    ZipFile zip;
+
+                    try {jars.add(zip = new ZipFile(input));}
+                    catch(IOException e) {throw new BuildException("Could not open " + input, e);}
+                    addJarAnalyses(zip, packages, work);
+                }
+            }
+            ParallelRunner.run(work);
+        }
+        // Releases resources.
+        finally {
+            for(ZipFile zip : jars) {
+                try {zip.close();}
+                catch(Exception e) {}
+            }
+        }
+
+        // Resolves the packages to modules and stores them.
+        modules = resolveModules(packages);
+        list    = new StringBuilder();
+        for(String module : modules) {
+            if(list.length() != 0)
+                list.append(',');
+            list.append(module);
+        }
+        log(inputs.size() + " file(s) analysed, " + packages.size() + " package(s) referenced, modules: " + list,
+            Project.MSG_VERBOSE);
+        getProject().setNewProperty(propertyName, list.length() == 0 ? BASE_MODULE : list.toString());
+    }
+
+    /**
+     * Splits the analysis of the specified JAR file in units of work of at most {@link #SLICE_SIZE} classes.
+     * @param zip      JAR file to analyse.
+     * @param packages where to store referenced packages.
+     * @param work     where to store the units of work.
+     */
+    private static void addJarAnalyses(ZipFile zip, Set<String> packages, List<Callable<Void>> work) {
+        Enumeration<? extends ZipEntry> entries;
+        List<ZipEntry>                  slice;
+
+        slice   = new ArrayList<ZipEntry>();
+        entries = zip.entries();
+        while(entries.hasMoreElements()) {
+            ZipEntry entry;
+
+            entry = entries.nextElement();
+            if(!entry.isDirectory() && entry.getName().endsWith(CLASS_SUFFIX)
+               && !entry.getName().endsWith(MODULE_DESCRIPTOR)) {
+                slice.add(entry);
+                if(slice.size() == SLICE_SIZE) {
+                    work.add(new JarAnalysis(zip, slice, packages));
+                    slice = new ArrayList<ZipEntry>();
+                }
+            }
+        }
+        if(!slice.isEmpty())
+            work.add(new JarAnalysis(zip, slice, packages));
+    }
+
+
+
+    // - Module resolution ---------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Resolves the specified packages to the minimal list of JDK modules that contains them all.
+     * @param     packages       packages to resolve, in internal form.
+     * @return                   the minimal list of JDK modules that contains all the specified packages.
+     * @exception BuildException thrown if the JDK's image could not be read.
+     */
+    private SortedSet<String> resolveModules(Set<String> packages) throws BuildException {
+        FileSystem               image;
+        Path                     root;
+        SortedSet<String>        modules;
+        Map<String, Set<String>> requires;
+        Set<String>              implied;
+
+        image = openImage();
+        try {
+            // Finds the module of each package, through the image's /packages/<package>/<module> folders.
+            // These also list modules that merely contain sub-packages, which we need to filter out.
+            modules = new TreeSet<String>();
+            root    = image.getPath("/packages");
+            for(String pkg : packages) {
+                Path folder;
+
+                if(Files.isDirectory(folder = root.resolve(pkg.replace('/', '.')))) {
+                    DirectoryStream<Path> stream;
+
+                    stream = Files.newDirectoryStream(folder);
+                    try {
+                        for(Path module : stream)
+                            if(hasClasses(image.getPath("/modules", module.getFileName().toString(), pkg)))
+                                modules.add(module.getFileName().toString());
+                    }
+                    finally {stream.close();}
+                }
+            }
+
+            // Removes the modules that will be pulled in by others.
+            requires = new HashMap<String, Set<String>>();
+            implied  = new HashSet<String>();
+            implied.add(BASE_MODULE);
+            for(String module : modules)
+                for(String required : getRequires(image, module, requires))
+                    addClosure(image, required, requires, implied);
+            modules.removeAll(implied);
+        }
+        catch(IOException e) {throw new BuildException("Could not read the JDK's modules image", e);}
+        finally {
+            try {
+                if(jdk != null)
+                    image.close();
+            }
+            catch(Exception e) {}
+        }
+
+        return modules;
+    }
+
+    /**
+     * Checks whether the specified folder contains at least one class file.
+     * @param     folder      folder to check.
+     * @return                <code>true</code> if the folder contains at least one class file.
+     * @exception IOException thrown if the folder could not be listed.
+     */
+    private static boolean hasClasses(Path folder) throws IOException {
+        DirectoryStream<Path> stream;
+
+        if(!Files.isDirectory(folder))
+            return false;
+
+        stream = Files.newDirectoryStream(folder);
+        try {
+            for(Path file : stream)
+                if(file.getFileName().toString().endsWith(CLASS_SUFFIX) && Files.isRegularFile(file))
+                    return true;
+        }
+        finally {stream.close();}
+
+        return false;
+    }
+
+    /**
+     * Opens the <code>jrt:/</code> image of the JDK whose modules should be used.
+     * @return                   the <code>jrt:/</code> image of the JDK whose modules should be used.
+     * @exception BuildException thrown if the image could not be opened.
+     */
+    private FileSystem openImage() throws BuildException {
+        try {
+            if(jdk == null)
+                return FileSystems.getFileSystem(URI.create("jrt:/"));
+            return FileSystems.newFileSystem(URI.create("jrt:/"),
+                                             Collections.singletonMap("java.home", jdk.getAbsolutePath()));
+        }
+        catch(Exception e) {
+            throw new BuildException("Could not open the jrt:/ image - Java 9 or later is required", e);
+        }
+    }
+
+    /**
+     * Adds the specified module and, recursively, all the modules it requires to the specified set.
+     * @param     image       JDK image in which to look for modules.
+     * @param     module      module to add.
+     * @param     requires    cache of the modules required by each module.
+     * @param     closure     where to add modules.
+     * @exception IOException thrown if a module descriptor could not be read.
+     */
+    private static void addClosure(FileSystem image, String module, Map<String, Set<String>> requires,
+                                   Set<String> closure) throws IOException {
+        if(closure.add(module))
+            for(String required : getRequires(image, module, requires))
+                addClosure(image, required, requires, closure);
+    }
+
+    /**
+     * Returns the modules directly required by the specified module at run time.
+     * <p>
+     * This is read from the <code>Module</code> attribute of the module's descriptor. <code>requires static</code>
+     * modules are skipped: they are not resolved at run time, and must therefore be kept in the list if the
+     * application needs them.
+     * </p>
+     * @param     image       JDK image in which to look for modules.
+     * @param     module      module whose requirements should be returned.
+     * @param     requires    cache of the modules required by each module.
+     * @return                the modules directly required by the specified module.
+     * @exception IOException thrown if the module descriptor could not be read.
+     */
+    static Set<String> getRequires(FileSystem image, String module, Map<String, Set<String>> requires)
+            throws IOException {
+        Set<String> modules;
+        ClassFile   descriptor;
+        byte[]      attribute;
+
+        if((modules = requires.get(module)) != null)
+            return modules;
+
+        modules    = new HashSet<String>();
+        descriptor = ClassFile.parse(Files.readAllBytes(image.getPath("/modules", module, MODULE_DESCRIPTOR)));
+        if((attribute = descriptor.getAttribute("Module")) == null)
+            throw new IOException("Missing Module attribute in " + module + " descriptor");
+
+        // Module attribute: name, flags, version, requires count, then (module, flags, version) for each requirement.
+        for(int i = 0, count = ClassFile.readUnsignedShort(attribute, 6); i < count; i++)
+            if((ClassFile.readUnsignedShort(attribute, 10 + i * 6) & ACC_STATIC_PHASE) == 0)
+                modules.add(descriptor.getClassName(ClassFile.readUnsignedShort(attribute, 8 + i * 6)));
+        requires.put(module, modules);
+
+        return modules;
+    }
+
+
+
+    // - Class analysis ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Adds the packages referenced by the specified class to the specified set.
+     * @param     data        raw content of the class to analyse.
+     * @param     packages    where to store referenced packages, in internal form.
+     * @exception IOException thrown if the class is not valid.
+     */
+    private static void analyse(byte[] data, Set<String> packages) throws IOException {
+        for(String name : ClassFile.parse(data).getReferencedClasses()) {
+            int index;
+
+            if((index = name.lastIndexOf('/')) != -1)
+                packages.add(name.substring(0, index));
+        }
+    }
+
+    /**
+     * Analyses a slice of the classes of a JAR file.
+     * <p>
+     * Packages are first collected locally, then added to the shared set in one go to limit contention.
+     * </p>
+     * @author Nicolas Rinaudo
+     */
+    private static class JarAnalysis implements Callable<Void> {
+        /** JAR file that contains the classes, shared with the other slices. */
+        private final ZipFile        zip;
+        /** Class entries to analyse. */
+        private final List<ZipEntry> entries;
+        /** Where to store referenced packages, shared with the other slices and synchronized. */
+        private final Set<String>    packages;
+
+        /**
+         * Creates a new analysis.
+         * @param zip      JAR file that contains the classes.
+         * @param entries  class entries to analyse.
+         * @param packages where to store referenced packages, must be synchronized.
+         */
+        JarAnalysis(ZipFile zip, List<ZipEntry> entries, Set<String> packages) {
+            this.zip      = zip;
+            this.entries  = entries;
+            this.packages = packages;
+        }
+
+        /**
+         * Analyses the slice's classes.
+         * @return                <code>null</code>.
+         * @exception IOException thrown if a class cannot be read or is not a valid class file.
+         */
+        public Void call() throws IOException {
+            Set<String> local;
+
+            local = new HashSet<String>();
+            for(ZipEntry entry : entries) {
+                InputStream in;
+
+                in = zip.getInputStream(entry);
+                try {analyse(Streams.readFully(in, entry.getSize()), local);}
+                catch(IOException e) {
+                    throw new IOException("Could not analyse " + entry.getName() + " in " + zip.getName(), e);
+                }
+                finally {in.close();}
+            }
+            packages.addAll(local);
+
+            return null;
+        }
+    }
+
+    /**
+     * Analyses a single class file.
+     * @author Nicolas Rinaudo
+     */
+    private static class ClassFileAnalysis implements Callable<Void> {
+        /** Class file to analyse. */
+        private final File        file;
+        /** Where to store referenced packages, shared with the other analyses and synchronized. */
+        private final Set<String> packages;
+
+        /**
+         * Creates a new analysis.
+         * @param file     class file to analyse.
+         * @param packages where to store referenced packages, must be synchronized.
+         */
+        ClassFileAnalysis(File file, Set<String> packages) {
+            this.file     = file;
+            this.packages = packages;
+        }
+
+        /**
+         * Analyses the class file.
+         * @return                <code>null</code>.
+         * @exception IOException thrown if the file cannot be read or is not a valid class file.
+         */
+        public Void call() throws IOException {
+            Set<String> local;
+            InputStream in;
+
+            local = new HashSet<String>();
+            in    = new FileInputStream(file);
+            try {analyse(Streams.readFully(in, file.length()), local);}
+            catch(IOException e) {throw new IOException("Could not analyse " + file, e);}
+            finally {in.close();}
+            packages.addAll(local);
+
+            return null;
+        }
+    }
+}
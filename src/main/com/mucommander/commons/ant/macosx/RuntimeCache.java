@@ -0,0 +1,296 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.Digests;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.types.Commandline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Persistent cache of runtime images built by <code>jlink</code>.
+ * <p>
+ * Runtime images are expensive to create, but only depend on the JDK used to create them, the set of modules they
+ * contain and the options passed to <code>jlink</code>. This class stores each image in a sub-folder of the cache
+ * folder, named after a hash of these three items, and only runs <code>jlink</code> if no such folder exists.
+ * </p>
+ * <p>
+ * Images are created in a temporary folder and renamed once complete, which means that the cache can safely be shared
+ * by concurrent builds and is never left in an inconsistent state by a failed build.
+ * </p>
+ * <p>
+ * <code>jlink</code> doesn't give images the default CDS archive of the JDK they come from, without which they cannot
+ * use dynamic CDS archives either. Images that run on the build host, those linked from the JDK's own modules, are
+ * thus given one through <code>java -Xshare:dump</code>.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class RuntimeCache {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Options passed to <code>jlink</code> if none are specified. */
+    static final String         DEFAULT_OPTIONS = "--strip-debug --no-header-files --no-man-pages";
+    /** Name of the file that describes a JDK build. */
+    private static final String RELEASE         = "release";
+    /** Version of the image layout, part of the cache key so that images created by older versions are not reused. */
+    private static final int    IMAGE_VERSION   = 2;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Task on behalf of which images are created. */
+    private final Task   owner;
+    /** Home of the JDK whose <code>jlink</code> is used. */
+    private final File   jdk;
+    /** Folder that contains the modules to link, <code>null</code> to use those of {@link #jdk}. */
+    private final File   jmods;
+    /** Folder in which images are stored. */
+    private final File   folder;
+    /** Options passed to <code>jlink</code>. */
+    private final String options;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new runtime cache.
+     * @param owner   task on behalf of which images are created.
+     * @param jdk     home of the JDK whose <code>jlink</code> is used.
+     * @param jmods   folder that contains the modules to link, <code>null</code> to use those of <code>jdk</code>.
+     * @param folder  folder in which images are stored.
+     * @param options options passed to <code>jlink</code>.
+     */
+    RuntimeCache(Task owner, File jdk, File jmods, File folder, String options) {
+        this.owner   = owner;
+        this.jdk     = jdk;
+        this.jmods   = jmods;
+        this.folder  = folder;
+        this.options = options;
+    }
+
+    /**
+     * Returns the home of the JDK running Ant.
+     * <p>
+     * Before Java 9, <code>java.home</code> points to the JRE folder of the JDK.
+     * </p>
+     * @return the home of the JDK running Ant.
+     */
+    static File getDefaultJdk() {
+        File home;
+
+        home = new File(System.getProperty("java.home"));
+        if(!new File(home, RELEASE).isFile() && new File(home.getParentFile(), RELEASE).isFile())
+            return home.getParentFile();
+        return home;
+    }
+
+    /**
+     * Returns the default cache folder.
+     * @return the default cache folder.
+     */
+    static File getDefaultFolder() {
+        return new File(System.getProperty("user.home"), ".mkapp" + File.separator + "runtimes");
+    }
+
+
+
+    // - Image access --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns a runtime image containing the specified modules, creating it if necessary.
+     * @param     modules        modules the image must contain.
+     * @return                   the folder that contains the runtime image.
+     * @exception BuildException thrown if the image could not be created.
+     */
+    File getImage(Collection<String> modules) throws BuildException {
+        SortedSet<String> sorted;
+        File              image;
+        File              temp;
+
+        sorted = new TreeSet<String>(modules);
+        image  = new File(folder, getKey(sorted));
+
+        // Cache hit.
+        if(image.isDirectory()) {
+            owner.log("Using cached runtime image " + image, Project.MSG_VERBOSE);
+            return image;
+        }
+
+        // Cache miss: links the image in a temporary folder and moves it to its final location.
+        if(!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory())
+            throw new BuildException("Could not create directory " + folder);
+        temp = new File(folder, image.getName() + ".tmp" + System.nanoTime());
+        try {
+            link(sorted, temp);
+            if(jmods == null)
+                dumpBaseArchive(temp);
+            if(!temp.renameTo(image) && !image.isDirectory())
+                throw new BuildException("Could not move " + temp + " to " + image);
+        }
+        // Gets rid of the temporary folder, whether we failed or lost a race against a concurrent build.
+        finally {delete(temp);}
+
+        return image;
+    }
+
+    /**
+     * Runs <code>jlink</code> to create a runtime image.
+     * @param     modules        modules the image must contain.
+     * @param     output         where to create the image.
+     * @exception BuildException thrown if <code>jlink</code> failed.
+     */
+    private void link(SortedSet<String> modules, File output) throws BuildException {
+        List<String>  command;
+        StringBuilder list;
+        Execute       execute;
+        int           status;
+
+        list = new StringBuilder();
+        for(String module : modules) {
+            if(list.length() != 0)
+                list.append(',');
+            list.append(module);
+        }
+
+        command = new ArrayList<String>();
+        command.add(new File(new File(jdk, "bin"), "jlink").getAbsolutePath());
+        if(jmods != null) {
+            command.add("--module-path");
+            command.add(jmods.getAbsolutePath());
+        }
+        command.add("--add-modules");
+        command.add(list.toString());
+        command.add("--output");
+        command.add(output.getAbsolutePath());
+        for(String option : Commandline.translateCommandline(options))
+            command.add(option);
+
+        owner.log("Creating runtime image with modules " + list, Project.MSG_INFO);
+        owner.log("Running " + command, Project.MSG_VERBOSE);
+        execute = new Execute(new LogStreamHandler(owner, Project.MSG_VERBOSE, Project.MSG_WARN));
+        execute.setAntRun(owner.getProject());
+        execute.setCommandline(command.toArray(new String[command.size()]));
+
+        try {status = execute.execute();}
+        catch(IOException e) {throw new BuildException("Could not run jlink", e);}
+        if(Execute.isFailure(status))
+            throw new BuildException("jlink failed with status " + status);
+    }
+
+    /**
+     * Creates the default CDS archive of the specified runtime image.
+     * <p>
+     * Images without one still work, if a bit more slowly, which is why failures are only logged.
+     * </p>
+     * @param image runtime image in which to create the archive.
+     */
+    private void dumpBaseArchive(File image) {
+        Execute execute;
+        String  command;
+        int     status;
+
+        command = new File(new File(image, "bin"), "java").getAbsolutePath();
+        owner.log("Creating the default CDS archive of " + image, Project.MSG_VERBOSE);
+        execute = new Execute(new LogStreamHandler(owner, Project.MSG_VERBOSE, Project.MSG_VERBOSE));
+        execute.setAntRun(owner.getProject());
+        execute.setCommandline(new String[] {command, "-Xshare:dump"});
+
+        try {status = execute.execute();}
+        catch(IOException e) {
+            owner.log("Could not create the default CDS archive of " + image + ": " + e.getMessage(),
+                      Project.MSG_WARN);
+            return;
+        }
+        if(Execute.isFailure(status))
+            owner.log("Could not create the default CDS archive of " + image + ": java exited with status " + status,
+                      Project.MSG_WARN);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes the cache key of the specified set of modules.
+     * <p>
+     * The key is a hash of the content of the JDK's <code>release</code> file, which identifies its build,
+     * of the modules folder, of the modules, of the <code>jlink</code> options and of the image layout version.
+     * </p>
+     * @param     modules        modules the image must contain.
+     * @return                   the cache key of the specified set of modules.
+     * @exception BuildException thrown if the JDK's <code>release</code> file could not be read.
+     */
+    private String getKey(SortedSet<String> modules) throws BuildException {
+        MessageDigest digest;
+
+        digest = Digests.newSha256();
+        try {
+            Digests.update(digest, new File(jdk, RELEASE));
+            if(jmods != null) {
+                File release;
+
+                digest.update(jmods.getCanonicalPath().getBytes("UTF-8"));
+                if((release = new File(jmods.getParentFile(), RELEASE)).isFile())
+                    Digests.update(digest, release);
+            }
+            digest.update((byte)0);
+            for(String module : modules) {
+                digest.update(module.getBytes("UTF-8"));
+                digest.update((byte)0);
+            }
+            digest.update(options.getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update((byte)IMAGE_VERSION);
+        }
+        catch(IOException e) {throw new BuildException("Could not identify JDK " + jdk, e);}
+
+        return Digests.toHex(digest.digest());
+    }
+
+    /**
+     * Deletes the specified file and, recursively, its content.
+     * <p>
+     * Symbolic links are deleted, not followed.
+     * </p>
+     * @param file file to delete.
+     */
+    private static void delete(File file) {
+        File[] children;
+
+        if(!Files.isSymbolicLink(file.toPath()) && (children = file.listFiles()) != null)
+            for(File child : children)
+                delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.ParallelRunner;
+import com.mucommander.commons.ant.util.RawZipWriter;
+import com.mucommander.commons.ant.util.ZipDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Re-emits JAR files with uncompressed entries.
+ * <p>
+ * JAR files installed locally don't need to be compressed, and reading stored entries spares the JVM inflating each
+ * class it loads. Entries are processed in batches of bounded size: each batch is inflated and checked against its
+ * CRCs concurrently, then written in the original order. Entries that are already stored are copied as is.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class StoredJar {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Maximum amount of uncompressed data held in memory at any given time. */
+    private static final long BATCH_SIZE    = 32 * 1024 * 1024;
+    /** Maximum number of entries in a batch. */
+    private static final int  BATCH_ENTRIES = 1024;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private StoredJar() {}
+
+
+
+    // - JAR writing ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes an uncompressed copy of the specified JAR file to the specified stream.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     jar         JAR file to copy.
+     * @param     out         where to write the copy.
+     * @param     threads     maximum number of threads to use.
+     * @exception IOException thrown if the JAR file is not supported or corrupt, or if any IO related error occurs.
+     */
+    static void write(File jar, OutputStream out, int threads) throws IOException {
+        RandomAccessFile         in;
+        List<ZipDirectory.Entry> entries;
+        RawZipWriter             writer;
+
+        in = new RandomAccessFile(jar, "r");
+        try {
+            final FileChannel channel;
+
+            channel = in.getChannel();
+            entries = ZipDirectory.read(channel).getEntriesByOffset();
+            writer  = new RawZipWriter(out);
+
+            for(int start = 0; start < entries.size(); ) {
+                List<Callable<byte[]>> work;
+                List<byte[]>           data;
+                long                   size;
+                int                    end;
+
+                // Inflates the next batch concurrently.
+                work = new ArrayList<Callable<byte[]>>();
+                size = 0;
+                for(end = start; end < entries.size() && end - start < BATCH_ENTRIES && size < BATCH_SIZE; end++) {
+                    final ZipDirectory.Entry entry;
+
+                    entry = entries.get(end);
+                    size += entry.getSize();
+                    work.add(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {return inflate(channel, entry);}
+                    });
+                }
+                data = ParallelRunner.run(work, threads);
+
+                // Writes it in order.
+                for(int i = start; i < end; i++) {
+                    byte[] content;
+
+                    if((content = data.get(i - start)) == null)
+                        writer.copy(channel, entries.get(i));
+                    else
+                        writer.store(entries.get(i), content);
+                }
+                start = end;
+            }
+            writer.finish();
+        }
+        finally {in.close();}
+    }
+
+    /**
+     * Inflates the specified entry and checks its CRC.
+     * @param     channel      archive that contains the entry.
+     * @param     entry        entry to inflate.
+     * @return                 the uncompressed content of the entry, <code>null</code> if it's already stored.
+     * @exception ZipException thrown if the entry is corrupt or uses an unsupported compression method.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    private static byte[] inflate(FileChannel channel, ZipDirectory.Entry entry) throws IOException {
+        if(entry.getMethod() == ZipEntry.STORED)
+            return null;
+        return ZipDirectory.readContent(channel, entry);
+    }
+}
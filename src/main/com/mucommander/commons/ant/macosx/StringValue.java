@@ -33,6 +33,7 @@ public class StringValue implements InfoElement {
     public StringValue(String s) {setValue(s);}
 
     public void setValue(String s) {value = s;}
+    String getValue() {return value;}
 
     public void write(XmlWriter out) throws SAXException {
         if(value == null)
@@ -0,0 +1,136 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.macosx;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.ExecuteWatchdog;
+import org.apache.tools.ant.taskdefs.LogStreamHandler;
+import org.apache.tools.ant.types.Commandline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Launches a bundled application on the build host in order to record information about its startup.
+ * <p>
+ * The application is started with <code>java -jar</code>, using the JVM options needed by whatever is being recorded
+ * and the training arguments specified by the user. The JAR file is passed by absolute path, as that's how bundled
+ * applications reference it through <code>$JAVAROOT</code>: CDS archives record the class path of the training run, and
+ * JVMs refuse to use them with a class path that was written differently. It is expected to exit on its own -
+ * typically, applications offer a command line switch that makes them exit as soon as they're done starting up. If it
+ * doesn't exit within the allotted time, it's killed and the training run fails.
+ * </p>
+ * <p>
+ * The application's output is forwarded to Ant's log at verbose level.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class TrainingRun {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Default maximum duration of a training run, in milliseconds. */
+    static final long DEFAULT_TIMEOUT = 120000;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Task on behalf of which the training run is performed. */
+    private final Task   owner;
+    /** Path to the <code>java</code> executable to use. */
+    private final File   jvm;
+    /** Arguments passed to the application. */
+    private final String arguments;
+    /** Maximum duration of the training run, in milliseconds. */
+    private final long   timeout;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new training run.
+     * @param owner     task on behalf of which the training run is performed.
+     * @param jvm       path to the <code>java</code> executable to use, <code>null</code> to use the current one.
+     * @param arguments arguments passed to the application, <code>null</code> if none.
+     * @param timeout   maximum duration of the training run, in milliseconds.
+     */
+    TrainingRun(Task owner, File jvm, String arguments, long timeout) {
+        this.owner     = owner;
+        this.jvm       = jvm == null ? getDefaultJvm() : jvm;
+        this.arguments = arguments;
+        this.timeout   = timeout;
+    }
+
+    /**
+     * Returns the path to the <code>java</code> executable of the current JVM.
+     * @return the path to the <code>java</code> executable of the current JVM.
+     */
+    private static File getDefaultJvm() {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java");
+    }
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Runs the specified jar with the specified JVM options.
+     * @param     jar            jar file to run. Its folder is used as the working directory.
+     * @param     options        JVM options to use.
+     * @exception BuildException thrown if the application couldn't be started or didn't exit in time.
+     */
+    void run(File jar, List<String> options) throws BuildException {
+        List<String>    command;
+        Execute         execute;
+        ExecuteWatchdog watchdog;
+        int             status;
+
+        // Builds the command line.
+        command = new ArrayList<String>();
+        command.add(jvm.getAbsolutePath());
+        command.addAll(options);
+        command.add("-jar");
+        command.add(jar.getAbsolutePath());
+        if(arguments != null)
+            for(String argument : Commandline.translateCommandline(arguments))
+                command.add(argument);
+
+        // Runs the application.
+        watchdog = new ExecuteWatchdog(timeout);
+        execute  = new Execute(new LogStreamHandler(owner, Project.MSG_VERBOSE, Project.MSG_VERBOSE), watchdog);
+        execute.setAntRun(owner.getProject());
+        execute.setWorkingDirectory(jar.getParentFile());
+        execute.setCommandline(command.toArray(new String[command.size()]));
+        owner.log("Training run: " + command, Project.MSG_VERBOSE);
+
+        try {status = execute.execute();}
+        catch(IOException e) {throw new BuildException("Could not start training run of " + jar, e);}
+
+        if(watchdog.killedProcess())
+            throw new BuildException("Training run of " + jar + " did not exit within " + timeout + " ms.");
+        if(Execute.isFailure(status))
+            owner.log("Training run of " + jar + " exited with status " + status, Project.MSG_WARN);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+/**
+ * Chunk based base64 encoder.
+ * <p>
+ * This class is meant to encode arbitrarily large streams of data using a fixed amount of memory: callers
+ * read their input in chunks whose length is a multiple of {@link #INPUT_BLOCK}, encode each of them
+ * in the same output buffer and flush that buffer before encoding the next chunk. Only the last chunk
+ * may have a length that is not a multiple of {@link #INPUT_BLOCK}, in which case the output will be padded.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class Base64Encoder {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Number of input bytes encoded in a single output block. */
+    public static final int     INPUT_BLOCK  = 3;
+    /** Number of characters in a single output block. */
+    public static final int     OUTPUT_BLOCK = 4;
+    /** Base64 alphabet. */
+    private static final char[] ALPHABET     = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    /** Character used to pad incomplete output blocks. */
+    private static final char   PADDING      = '=';
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private Base64Encoder() {}
+
+
+
+    // - Encoding ------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the number of characters needed to encode the specified number of bytes.
+     * @param  length number of bytes to encode.
+     * @return        the number of characters needed to encode the specified number of bytes.
+     */
+    public static int getEncodedLength(int length) {
+        return ((length + INPUT_BLOCK - 1) / INPUT_BLOCK) * OUTPUT_BLOCK;
+    }
+
+    /**
+     * Encodes the first <code>length</code> bytes of <code>in</code> into <code>out</code>.
+     * <p>
+     * <code>out</code> must be at least {@link #getEncodedLength(int) getEncodedLength(length)} characters long.
+     * </p>
+     * @param  in     bytes to encode.
+     * @param  length number of bytes to encode.
+     * @param  out    where to store the encoded characters.
+     * @return        the number of characters that were written to <code>out</code>.
+     */
+    public static int encode(byte[] in, int length, char[] out) {
+        int inOffset;  // Current position in the input buffer.
+        int outOffset; // Current position in the output buffer.
+        int block;     // 24 bits block being encoded.
+
+        inOffset  = 0;
+        outOffset = 0;
+
+        // Encodes all complete blocks.
+        while(length - inOffset >= INPUT_BLOCK) {
+            block = ((in[inOffset] & 0xFF) << 16) | ((in[inOffset + 1] & 0xFF) << 8) | (in[inOffset + 2] & 0xFF);
+            out[outOffset++] = ALPHABET[(block >>> 18) & 0x3F];
+            out[outOffset++] = ALPHABET[(block >>> 12) & 0x3F];
+            out[outOffset++] = ALPHABET[(block >>> 6) & 0x3F];
+            out[outOffset++] = ALPHABET[block & 0x3F];
+            inOffset += INPUT_BLOCK;
+        }
+
+        // Encodes and pads the trailing bytes, if any.
+        if(inOffset < length) {
+            block = (in[inOffset] & 0xFF) << 16;
+            if(inOffset + 1 < length)
+                block |= (in[inOffset + 1] & 0xFF) << 8;
+
+            out[outOffset++] = ALPHABET[(block >>> 18) & 0x3F];
+            out[outOffset++] = ALPHABET[(block >>> 12) & 0x3F];
+            out[outOffset++] = inOffset + 1 < length ? ALPHABET[(block >>> 6) & 0x3F] : PADDING;
+            out[outOffset++] = PADDING;
+        }
+
+        return outOffset;
+    }
+}
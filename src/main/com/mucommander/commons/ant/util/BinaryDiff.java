@@ -0,0 +1,583 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Binary diff and patch, following the algorithm of Colin Percival's <code>bsdiff</code>.
+ * <p>
+ * A patch is made of three streams:
+ * <ul>
+ *   <li>
+ *     <i>control</i>: a list of <code>(x, y, z)</code> integer triplets, meaning: add <code>x</code> bytes from the
+ *     <i>diff</i> stream to the same number of bytes of the old file, copy <code>y</code> bytes from the
+ *     <i>extra</i> stream, then move <code>z</code> bytes forward (or backward) in the old file.
+ *   </li>
+ *   <li><i>diff</i>: byte-wise differences between approximately matching regions of both files.</li>
+ *   <li><i>extra</i>: bytes of the new file that don't match anything in the old one.</li>
+ * </ul>
+ * Since code changes tend to shift addresses and offsets by constant amounts, the <i>diff</i> stream is mostly
+ * made of zeros and a handful of repeated values, and compresses very well. Patches are meant to be stored
+ * compressed - typically, each stream in its own deflated ZIP entry - which is why this class does not compress
+ * them itself.
+ * </p>
+ * <p>
+ * Diffing requires a suffix array of the old file, which costs 8 bytes of memory per byte of the old file. Callers
+ * should only diff files of reasonable size.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class BinaryDiff {
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private BinaryDiff() {}
+
+
+
+    // - Diff ----------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes the patch that turns <code>from</code> into <code>to</code>.
+     * @param  from old content.
+     * @param  to   new content.
+     * @return      the patch that turns <code>from</code> into <code>to</code>.
+     */
+    public static Patch diff(byte[] from, byte[] to) {
+        int[]                 suffixes;
+        int[]                 match;
+        ByteArrayOutputStream control;
+        DataOutputStream      out;
+        byte[]                diff;
+        byte[]                extra;
+        int                   diffLength;
+        int                   extraLength;
+        int                   scan;
+        int                   length;
+        int                   position;
+        int                   lastScan;
+        int                   lastPosition;
+        int                   lastOffset;
+
+        suffixes     = sort(from);
+        match        = new int[1];
+        control      = new ByteArrayOutputStream();
+        out          = new DataOutputStream(control);
+        diff         = new byte[to.length];
+        extra        = new byte[to.length];
+        diffLength   = 0;
+        extraLength  = 0;
+        scan         = 0;
+        length       = 0;
+        position     = 0;
+        lastScan     = 0;
+        lastPosition = 0;
+        lastOffset   = 0;
+
+        try {
+            while(scan < to.length) {
+                int oldScore;
+                int scsc;
+
+                // Looks for the next exact match that is noticeably better than simply extending the previous one.
+                oldScore = 0;
+                for(scsc = scan += length; scan < to.length; scan++) {
+                    length   = search(suffixes, from, to, scan, 0, from.length, match);
+                    position = match[0];
+
+                    for(; scsc < scan + length; scsc++)
+                        if(scsc + lastOffset < from.length && from[scsc + lastOffset] == to[scsc])
+                            oldScore++;
+
+                    if((length == oldScore && length != 0) || length > oldScore + 8)
+                        break;
+
+                    if(scan + lastOffset < from.length && from[scan + lastOffset] == to[scan])
+                        oldScore--;
+                }
+
+                if(length != oldScore || scan == to.length) {
+                    int forward;
+                    int backward;
+                    int score;
+                    int best;
+
+                    // Extends the previous match forward as long as at least half of the bytes match.
+                    score   = 0;
+                    best    = 0;
+                    forward = 0;
+                    for(int i = 0; lastScan + i < scan && lastPosition + i < from.length; ) {
+                        if(from[lastPosition + i] == to[lastScan + i])
+                            score++;
+                        i++;
+                        if(score * 2 - i > best * 2 - forward) {
+                            best    = score;
+                            forward = i;
+                        }
+                    }
+
+                    // Extends the new match backward in the same fashion.
+                    backward = 0;
+                    if(scan < to.length) {
+                        score = 0;
+                        best  = 0;
+                        for(int i = 1; scan >= lastScan + i && position >= i; i++) {
+                            if(from[position - i] == to[scan - i])
+                                score++;
+                            if(score * 2 - i > best * 2 - backward) {
+                                best     = score;
+                                backward = i;
+                            }
+                        }
+                    }
+
+                    // Resolves overlaps between both extensions.
+                    if(lastScan + forward > scan - backward) {
+                        int overlap;
+                        int split;
+
+                        overlap = (lastScan + forward) - (scan - backward);
+                        score   = 0;
+                        best    = 0;
+                        split   = 0;
+                        for(int i = 0; i < overlap; i++) {
+                            if(to[lastScan + forward - overlap + i] == from[lastPosition + forward - overlap + i])
+                                score++;
+                            if(to[scan - backward + i] == from[position - backward + i])
+                                score--;
+                            if(score > best) {
+                                best  = score;
+                                split = i + 1;
+                            }
+                        }
+                        forward  += split - overlap;
+                        backward -= split;
+                    }
+
+                    // Stores the differences and the unmatched bytes.
+                    for(int i = 0; i < forward; i++)
+                        diff[diffLength + i] = (byte)(to[lastScan + i] - from[lastPosition + i]);
+                    for(int i = 0; i < (scan - backward) - (lastScan + forward); i++)
+                        extra[extraLength + i] = to[lastScan + forward + i];
+                    diffLength  += forward;
+                    extraLength += (scan - backward) - (lastScan + forward);
+
+                    out.writeInt(forward);
+                    out.writeInt((scan - backward) - (lastScan + forward));
+                    out.writeInt((position - backward) - (lastPosition + forward));
+
+                    lastScan     = scan - backward;
+                    lastPosition = position - backward;
+                    lastOffset   = position - scan;
+                }
+            }
+            out.flush();
+        }
+        // Writing to memory can't fail.
+        catch(IOException e) {throw new IllegalStateException(e);}
+
+        return new Patch(to.length, control.toByteArray(), trim(diff, diffLength), trim(extra, extraLength));
+    }
+
+    /**
+     * Returns the first <code>length</code> bytes of the specified array.
+     * @param  data   array to trim.
+     * @param  length number of bytes to keep.
+     * @return        the first <code>length</code> bytes of the specified array.
+     */
+    private static byte[] trim(byte[] data, int length) {
+        byte[] result;
+
+        System.arraycopy(data, 0, result = new byte[length], 0, length);
+
+        return result;
+    }
+
+    /**
+     * Looks for the longest prefix of <code>to[start..]</code> in <code>from</code>.
+     * @param  suffixes suffix array of <code>from</code>.
+     * @param  from     old content.
+     * @param  to       new content.
+     * @param  start    where the prefix starts in <code>to</code>.
+     * @param  low      lower bound of the suffix array range to explore.
+     * @param  high     upper bound of the suffix array range to explore.
+     * @param  position where to store the position of the match in <code>from</code>.
+     * @return          the length of the match.
+     */
+    private static int search(int[] suffixes, byte[] from, byte[] to, int start, int low, int high, int[] position) {
+        int lowLength;
+        int highLength;
+
+        // Narrows the range down to two candidates by binary search.
+        while(high - low >= 2) {
+            int middle;
+
+            middle = low + (high - low) / 2;
+            if(compare(from, suffixes[middle], to, start) < 0)
+                low = middle;
+            else
+                high = middle;
+        }
+
+        // Keeps the best of the remaining candidates.
+        lowLength  = matchLength(from, suffixes[low], to, start);
+        highLength = matchLength(from, suffixes[high], to, start);
+        if(lowLength > highLength) {
+            position[0] = suffixes[low];
+            return lowLength;
+        }
+        position[0] = suffixes[high];
+        return highLength;
+    }
+
+    /**
+     * Returns the length of the common prefix of <code>from[i..]</code> and <code>to[j..]</code>.
+     * @param  from old content.
+     * @param  i    offset in <code>from</code>.
+     * @param  to   new content.
+     * @param  j    offset in <code>to</code>.
+     * @return      the length of the common prefix.
+     */
+    private static int matchLength(byte[] from, int i, byte[] to, int j) {
+        int length;
+
+        for(length = 0; i + length < from.length && j + length < to.length; length++)
+            if(from[i + length] != to[j + length])
+                break;
+
+        return length;
+    }
+
+    /**
+     * Compares <code>from[i..]</code> and <code>to[j..]</code> as unsigned bytes, up to the length of the
+     * shortest one.
+     * @param  from old content.
+     * @param  i    offset in <code>from</code>.
+     * @param  to   new content.
+     * @param  j    offset in <code>to</code>.
+     * @return      a negative, zero or positive value as the first range is smaller, equal or larger.
+     */
+    private static int compare(byte[] from, int i, byte[] to, int j) {
+        int length;
+
+        length = Math.min(from.length - i, to.length - j);
+        for(int k = 0; k < length; k++) {
+            int difference;
+
+            if((difference = (from[i + k] & 0xFF) - (to[j + k] & 0xFF)) != 0)
+                return difference;
+        }
+
+        return 0;
+    }
+
+
+
+    // - Suffix sorting ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes the suffix array of the specified data using Larsson and Sadakane's <code>qsufsort</code> algorithm.
+     * @param  data data whose suffix array should be computed.
+     * @return      the suffix array of <code>data</code>, including the empty suffix.
+     */
+    private static int[] sort(byte[] data) {
+        int[] suffixes;
+        int[] ranks;
+        int[] buckets;
+        int   length;
+
+        suffixes = new int[data.length + 1];
+        ranks    = new int[data.length + 1];
+
+        // Sorts suffixes by their first byte.
+        buckets = new int[256];
+        for(byte b : data)
+            buckets[b & 0xFF]++;
+        for(int i = 1; i < 256; i++)
+            buckets[i] += buckets[i - 1];
+        for(int i = 255; i > 0; i--)
+            buckets[i] = buckets[i - 1];
+        buckets[0] = 0;
+
+        for(int i = 0; i < data.length; i++)
+            suffixes[++buckets[data[i] & 0xFF]] = i;
+        suffixes[0] = data.length;
+        for(int i = 0; i < data.length; i++)
+            ranks[i] = buckets[data[i] & 0xFF];
+        ranks[data.length] = 0;
+        for(int i = 1; i < 256; i++)
+            if(buckets[i] == buckets[i - 1] + 1)
+                suffixes[buckets[i]] = -1;
+        suffixes[0] = -1;
+
+        // Doubles the sorted prefix length until all suffixes are in their own group.
+        for(int h = 1; suffixes[0] != -(data.length + 1); h += h) {
+            int i;
+
+            length = 0;
+            for(i = 0; i < data.length + 1; ) {
+                if(suffixes[i] < 0) {
+                    length -= suffixes[i];
+                    i      -= suffixes[i];
+                }
+                else {
+                    if(length != 0)
+                        suffixes[i - length] = -length;
+                    length = ranks[suffixes[i]] + 1 - i;
+                    split(suffixes, ranks, i, length, h);
+                    i      += length;
+                    length  = 0;
+                }
+            }
+            if(length != 0)
+                suffixes[i - length] = -length;
+        }
+
+        for(int i = 0; i < data.length + 1; i++)
+            suffixes[ranks[i]] = i;
+
+        return suffixes;
+    }
+
+    /**
+     * Refines the order of the specified group of suffixes by comparing them on their next <code>h</code> bytes.
+     * @param suffixes suffix array being sorted.
+     * @param ranks    current rank of each suffix.
+     * @param start    start of the group in <code>suffixes</code>.
+     * @param length   length of the group.
+     * @param h        number of bytes by which suffixes are already sorted.
+     */
+    private static void split(int[] suffixes, int[] ranks, int start, int length, int h) {
+        while(true) {
+            int pivot;
+            int lower;
+            int upper;
+            int i;
+            int j;
+            int k;
+
+            // Small groups are selection sorted.
+            if(length < 16) {
+                for(k = start; k < start + length; k += j) {
+                    j     = 1;
+                    pivot = ranks[suffixes[k] + h];
+                    for(i = 1; k + i < start + length; i++) {
+                        if(ranks[suffixes[k + i] + h] < pivot) {
+                            pivot = ranks[suffixes[k + i] + h];
+                            j     = 0;
+                        }
+                        if(ranks[suffixes[k + i] + h] == pivot) {
+                            swap(suffixes, k + j, k + i);
+                            j++;
+                        }
+                    }
+                    for(i = 0; i < j; i++)
+                        ranks[suffixes[k + i]] = k + j - 1;
+                    if(j == 1)
+                        suffixes[k] = -1;
+                }
+                return;
+            }
+
+            // Larger groups are split in three around a pivot.
+            pivot = ranks[suffixes[start + length / 2] + h];
+            lower = 0;
+            upper = 0;
+            for(i = start; i < start + length; i++) {
+                if(ranks[suffixes[i] + h] < pivot)
+                    lower++;
+                if(ranks[suffixes[i] + h] == pivot)
+                    upper++;
+            }
+            lower += start;
+            upper += lower;
+
+            i = start;
+            j = 0;
+            k = 0;
+            while(i < lower) {
+                if(ranks[suffixes[i] + h] < pivot)
+                    i++;
+                else if(ranks[suffixes[i] + h] == pivot) {
+                    swap(suffixes, i, lower + j);
+                    j++;
+                }
+                else {
+                    swap(suffixes, i, upper + k);
+                    k++;
+                }
+            }
+            while(lower + j < upper) {
+                if(ranks[suffixes[lower + j] + h] == pivot)
+                    j++;
+                else {
+                    swap(suffixes, lower + j, upper + k);
+                    k++;
+                }
+            }
+
+            if(lower > start)
+                split(suffixes, ranks, start, lower - start, h);
+            for(i = 0; i < upper - lower; i++)
+                ranks[suffixes[lower + i]] = upper - 1;
+            if(lower == upper - 1)
+                suffixes[lower] = -1;
+
+            // Handles the last group iteratively to limit recursion depth.
+            if(start + length <= upper)
+                return;
+            length = start + length - upper;
+            start  = upper;
+        }
+    }
+
+    /**
+     * Swaps two elements of the specified array.
+     * @param array array in which to swap elements.
+     * @param i     index of the first element.
+     * @param j     index of the second element.
+     */
+    private static void swap(int[] array, int i, int j) {
+        int tmp;
+
+        tmp      = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
+
+
+    // - Patch ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Applies a patch to the specified content.
+     * @param     from        old content.
+     * @param     length      length of the new content.
+     * @param     control     control stream of the patch.
+     * @param     diff        diff stream of the patch.
+     * @param     extra       extra stream of the patch.
+     * @return                the new content.
+     * @exception IOException thrown if the patch is corrupt or could not be read.
+     */
+    public static byte[] apply(byte[] from, int length, InputStream control, InputStream diff, InputStream extra)
+            throws IOException {
+        DataInputStream controlIn;
+        DataInputStream diffIn;
+        DataInputStream extraIn;
+        byte[]          to;
+        int             oldPosition;
+        int             newPosition;
+
+        controlIn   = new DataInputStream(control);
+        diffIn      = new DataInputStream(diff);
+        extraIn     = new DataInputStream(extra);
+        to          = new byte[length];
+        oldPosition = 0;
+        newPosition = 0;
+
+        while(newPosition < length) {
+            int x;
+            int y;
+
+            x = controlIn.readInt();
+            y = controlIn.readInt();
+            if(x < 0 || y < 0 || newPosition + x + y > length)
+                throw new IOException("Corrupt patch");
+
+            // Adds the differences to the old content.
+            diffIn.readFully(to, newPosition, x);
+            for(int i = 0; i < x; i++)
+                if(oldPosition + i >= 0 && oldPosition + i < from.length)
+                    to[newPosition + i] += from[oldPosition + i];
+            newPosition += x;
+            oldPosition += x;
+
+            // Copies the extra bytes.
+            extraIn.readFully(to, newPosition, y);
+            newPosition += y;
+            oldPosition += controlIn.readInt();
+        }
+
+        return to;
+    }
+
+
+
+    // - Patch class ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Result of a binary diff.
+     * @author Nicolas Rinaudo
+     */
+    public static class Patch {
+        /** Length of the new content. */
+        private final int    length;
+        /** Control stream. */
+        private final byte[] control;
+        /** Diff stream. */
+        private final byte[] diff;
+        /** Extra stream. */
+        private final byte[] extra;
+
+        /**
+         * Creates a new patch.
+         * @param length  length of the new content.
+         * @param control control stream.
+         * @param diff    diff stream.
+         * @param extra   extra stream.
+         */
+        Patch(int length, byte[] control, byte[] diff, byte[] extra) {
+            this.length  = length;
+            this.control = control;
+            this.diff    = diff;
+            this.extra   = extra;
+        }
+
+        /**
+         * Returns the length of the new content.
+         * @return the length of the new content.
+         */
+        public int getLength() {return length;}
+
+        /**
+         * Returns the control stream.
+         * @return the control stream.
+         */
+        public byte[] getControl() {return control;}
+
+        /**
+         * Returns the diff stream.
+         * @return the diff stream.
+         */
+        public byte[] getDiff() {return diff;}
+
+        /**
+         * Returns the extra stream.
+         * @return the extra stream.
+         */
+        public byte[] getExtra() {return extra;}
+    }
+}
@@ -0,0 +1,619 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Minimal, read-only view of a Java class file.
+ * <p>
+ * This class parses the constant pool and the structure of a class file without loading it, which makes it suitable
+ * for analysing large numbers of classes quickly and from any thread. Constant pool strings are only decoded when
+ * they're actually requested.
+ * </p>
+ * <p>
+ * Class names are always returned in their internal form, using <code>/</code> as a package separator.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ClassFile {
+    // - Constant pool tags --------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    public static final int CONSTANT_UTF8                 = 1;
+    public static final int CONSTANT_INTEGER              = 3;
+    public static final int CONSTANT_FLOAT                = 4;
+    public static final int CONSTANT_LONG                 = 5;
+    public static final int CONSTANT_DOUBLE               = 6;
+    public static final int CONSTANT_CLASS                = 7;
+    public static final int CONSTANT_STRING               = 8;
+    public static final int CONSTANT_FIELD_REF            = 9;
+    public static final int CONSTANT_METHOD_REF           = 10;
+    public static final int CONSTANT_INTERFACE_METHOD_REF = 11;
+    public static final int CONSTANT_NAME_AND_TYPE        = 12;
+    public static final int CONSTANT_METHOD_HANDLE        = 15;
+    public static final int CONSTANT_METHOD_TYPE          = 16;
+    public static final int CONSTANT_DYNAMIC              = 17;
+    public static final int CONSTANT_INVOKE_DYNAMIC       = 18;
+    public static final int CONSTANT_MODULE               = 19;
+    public static final int CONSTANT_PACKAGE              = 20;
+
+    /** Magic number that starts all class files. */
+    private static final int MAGIC                        = 0xCAFEBABE;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Raw content of the class file. */
+    private final byte[]              data;
+    /** Tag of each constant pool entry, 0 for unusable entries. */
+    private final int[]               tags;
+    /** Offset in {@link #data} of each constant pool entry's content, right after its tag. */
+    private final int[]               offsets;
+    /** Decoded constant pool strings, indexed by constant pool index. */
+    private final String[]            strings;
+    /** Offset in {@link #data} of the class' access flags, right after the constant pool. */
+    private       int                 structureOffset;
+    /** Constant pool index of this class. */
+    private       int                 thisClass;
+    /** Constant pool index of this class' super class, 0 if none. */
+    private       int                 superClass;
+    /** Constant pool indexes of this class' interfaces. */
+    private       int[]               interfaces;
+    /** Constant pool indexes of the descriptors of this class' fields and methods. */
+    private       int[]               memberDescriptors;
+    /** Class level attributes, indexed by name, as offsets in {@link #data} of their content. */
+    private final Map<String, int[]>  attributes;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new class file from the specified data.
+     * @param data  raw content of the class file.
+     * @param count number of slots in the constant pool.
+     */
+    private ClassFile(byte[] data, int count) {
+        this.data  = data;
+        tags       = new int[count];
+        offsets    = new int[count];
+        strings    = new String[count];
+        attributes = new HashMap<String, int[]>();
+    }
+
+    /**
+     * Parses the specified class file.
+     * @param     data        raw content of the class file.
+     * @return                a view of the specified class file.
+     * @exception IOException thrown if <code>data</code> is not a valid class file.
+     */
+    public static ClassFile parse(byte[] data) throws IOException {
+        ClassFile file;
+        int       offset;
+        int       count;
+
+        try {
+            if(readInt(data, 0) != MAGIC)
+                throw new IOException("Not a class file");
+
+            // Parses the constant pool.
+            file   = new ClassFile(data, count = readUnsignedShort(data, 8));
+            offset = 10;
+            for(int i = 1; i < count; i++) {
+                int tag;
+
+                file.tags[i]    = tag = data[offset++] & 0xFF;
+                file.offsets[i] = offset;
+                switch(tag) {
+                case CONSTANT_UTF8:
+                    offset += 2 + readUnsignedShort(data, offset);
+                    break;
+
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    offset += 2;
+                    break;
+
+                case CONSTANT_METHOD_HANDLE:
+                    offset += 3;
+                    break;
+
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELD_REF:
+                case CONSTANT_METHOD_REF:
+                case CONSTANT_INTERFACE_METHOD_REF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    offset += 4;
+                    break;
+
+                // Longs and doubles take two slots.
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    offset += 8;
+                    i++;
+                    break;
+
+                default:
+                    throw new IOException("Illegal constant pool tag: " + tag);
+                }
+            }
+
+            // Parses the class' structure.
+            file.structureOffset = offset;
+            file.thisClass       = readUnsignedShort(data, offset + 2);
+            file.superClass      = readUnsignedShort(data, offset + 4);
+            count                = readUnsignedShort(data, offset + 6);
+            offset              += 8;
+            file.interfaces      = new int[count];
+            for(int i = 0; i < count; i++, offset += 2)
+                file.interfaces[i] = readUnsignedShort(data, offset);
+
+            file.parseAttributes(file.parseMembers(offset));
+        }
+        catch(ArrayIndexOutOfBoundsException e) {throw new IOException("Truncated class file");}
+
+        return file;
+    }
+
+    /**
+     * Parses the fields and methods of the class, starting at the specified offset.
+     * @param  offset offset of the fields count.
+     * @return        the offset of the class level attributes count.
+     */
+    private int parseMembers(int offset) {
+        int fields;
+        int methods;
+
+        // Counts members first, in order to allocate the descriptors array.
+        fields            = readUnsignedShort(data, offset);
+        methods           = readUnsignedShort(data, skipMembers(offset + 2, fields));
+        memberDescriptors = new int[fields + methods];
+
+        // Fields and methods share the same structure.
+        offset = parseMembers(offset + 2, fields, 0);
+        return parseMembers(offset + 2, methods, fields);
+    }
+
+    /**
+     * Stores the descriptors of the specified number of fields or methods.
+     * @param  offset offset of the first member.
+     * @param  count  number of members to parse.
+     * @param  index  index in {@link #memberDescriptors} of the first member.
+     * @return        the offset of the first byte after the parsed members.
+     */
+    private int parseMembers(int offset, int count, int index) {
+        for(int i = 0; i < count; i++) {
+            memberDescriptors[index + i] = readUnsignedShort(data, offset + 4);
+            offset                       = skipMembers(offset, 1);
+        }
+        return offset;
+    }
+
+    /**
+     * Skips the specified number of fields or methods.
+     * @param  offset offset of the first member to skip.
+     * @param  count  number of members to skip.
+     * @return        the offset of the first byte after the skipped members.
+     */
+    private int skipMembers(int offset, int count) {
+        for(int i = 0; i < count; i++) {
+            int attributes;
+
+            attributes = readUnsignedShort(data, offset + 6);
+            offset    += 8;
+            for(int j = 0; j < attributes; j++)
+                offset += 6 + readInt(data, offset + 2);
+        }
+        return offset;
+    }
+
+    /**
+     * Parses the class level attributes.
+     * @param offset offset of the attributes count.
+     */
+    private void parseAttributes(int offset) {
+        int count;
+
+        count   = readUnsignedShort(data, offset);
+        offset += 2;
+        for(int i = 0; i < count; i++) {
+            int length;
+
+            length = readInt(data, offset + 2);
+            attributes.put(getUtf8(readUnsignedShort(data, offset)), new int[] {offset + 6, length});
+            offset += 6 + length;
+        }
+    }
+
+
+
+    // - Class structure -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the offset of the class' access flags, which immediately follow the constant pool.
+     * <p>
+     * This allows tools to rewrite the structure of a class without having to parse its constant pool again.
+     * </p>
+     * @return the offset of the class' access flags.
+     */
+    public int getStructureOffset() {return structureOffset;}
+
+    /**
+     * Returns the internal name of this class.
+     * @return the internal name of this class.
+     */
+    public String getName() {return getClassName(thisClass);}
+
+    /**
+     * Returns the internal name of this class' super class.
+     * @return the internal name of this class' super class, <code>null</code> if it doesn't have one.
+     */
+    public String getSuperName() {return superClass == 0 ? null : getClassName(superClass);}
+
+    /**
+     * Returns the internal names of the interfaces implemented by this class.
+     * @return the internal names of the interfaces implemented by this class.
+     */
+    public String[] getInterfaceNames() {
+        String[] names;
+
+        names = new String[interfaces.length];
+        for(int i = 0; i < interfaces.length; i++)
+            names[i] = getClassName(interfaces[i]);
+
+        return names;
+    }
+
+    /**
+     * Returns the names of the class level attributes of this class.
+     * @return the names of the class level attributes of this class.
+     */
+    public Set<String> getAttributeNames() {return Collections.unmodifiableSet(attributes.keySet());}
+
+    /**
+     * Returns the content of the specified class level attribute.
+     * @param  name name of the attribute to retrieve.
+     * @return      the content of the attribute, <code>null</code> if this class doesn't have it.
+     */
+    public byte[] getAttribute(String name) {
+        int[]  position;
+        byte[] content;
+
+        if((position = attributes.get(name)) == null)
+            return null;
+
+        content = new byte[position[1]];
+        System.arraycopy(data, position[0], content, 0, position[1]);
+
+        return content;
+    }
+
+    /**
+     * Returns the internal names of all classes referenced by this class.
+     * <p>
+     * This includes classes referenced through constant pool class entries, as well as classes that only appear
+     * in field and method descriptors, whether of this class' members or of referenced members. Array types
+     * are reduced to their element type, primitive types are ignored. This class' own name is included.
+     * </p>
+     * <p>
+     * Annotations and generic signatures refer to classes through plain <code>CONSTANT_Utf8</code> entries, such
+     * as <code>Lcom/example/Annotation;</code> or <code>Ljava/util/List&lt;Lcom/example/Item;&gt;;</code>. Rather
+     * than parsing every attribute that might contain them, all <code>CONSTANT_Utf8</code> entries that are valid
+     * descriptors or signatures are analysed, which errs on the side of finding too many classes.
+     * </p>
+     * @return the internal names of all classes referenced by this class.
+     */
+    public Set<String> getReferencedClasses() {
+        Set<String> classes;
+        String      name;
+
+        classes = new HashSet<String>();
+        for(int i = 1; i < tags.length; i++) {
+            switch(tags[i]) {
+            case CONSTANT_CLASS:
+                // Array classes are named after their descriptor.
+                if((name = getClassName(i)).charAt(0) == '[')
+                    addDescriptorClasses(name, classes);
+                else
+                    classes.add(name);
+                break;
+
+            case CONSTANT_NAME_AND_TYPE:
+                addDescriptorClasses(getUtf8(readUnsignedShort(data, offsets[i] + 2)), classes);
+                break;
+
+            case CONSTANT_METHOD_TYPE:
+                addDescriptorClasses(getUtf8(readUnsignedShort(data, offsets[i])), classes);
+                break;
+            }
+        }
+
+        for(int descriptor : memberDescriptors)
+            addDescriptorClasses(getUtf8(descriptor), classes);
+
+        // Annotation types, enum constant types, class literals and generic signatures.
+        for(int i = 1; i < tags.length; i++)
+            if(tags[i] == CONSTANT_UTF8 && readUnsignedShort(data, offsets[i]) != 0
+               && isSignatureStart(data[offsets[i] + 2]))
+                addSignatureClasses(getUtf8(i), classes);
+
+        return classes;
+    }
+
+    /**
+     * Returns the values of all <code>CONSTANT_String</code> entries of this class.
+     * <p>
+     * These are the string literals used by the class, which is where the names of reflectively loaded classes are
+     * usually found.
+     * </p>
+     * @return the values of all <code>CONSTANT_String</code> entries of this class.
+     */
+    public Set<String> getStringConstants() {
+        Set<String> values;
+
+        values = new HashSet<String>();
+        for(int i = 1; i < tags.length; i++)
+            if(tags[i] == CONSTANT_STRING)
+                values.add(getUtf8(readUnsignedShort(data, offsets[i])));
+
+        return values;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified character can start a descriptor or signature that refers to classes.
+     * @param  c first character of a <code>CONSTANT_Utf8</code> entry.
+     * @return   <code>true</code> if the specified character can start a descriptor or signature.
+     */
+    private static boolean isSignatureStart(byte c) {
+        return c == 'L' || c == '[' || c == '(' || c == '<';
+    }
+
+    /**
+     * Adds all classes found in the specified descriptor or generic signature to the specified set.
+     * <p>
+     * Nothing is added unless the whole string is a well-formed descriptor or signature.
+     * </p>
+     * @param signature descriptor or signature to analyse.
+     * @param classes   where to store class names.
+     */
+    private static void addSignatureClasses(String signature, Set<String> classes) {
+        Set<String> found;
+        int         length;
+        int         i;
+
+        found  = new HashSet<String>();
+        length = signature.length();
+        i      = 0;
+
+        // Formal type parameters: names are skipped, bounds are analysed.
+        if(signature.charAt(0) == '<') {
+            i = 1;
+            while(i < length && signature.charAt(i) != '>') {
+                if((i = signature.indexOf(':', i)) == -1)
+                    return;
+                while(i != -1 && i < length && signature.charAt(i) == ':') {
+                    if(++i < length && signature.charAt(i) != ':')
+                        i = addTypeClasses(signature, i, found);
+                }
+                if(i == -1)
+                    return;
+            }
+            i++;
+        }
+
+        while(i != -1 && i < length)
+            i = addTypeClasses(signature, i, found);
+        if(i == length)
+            classes.addAll(found);
+    }
+
+    /**
+     * Adds the classes found in the signature element that starts at the specified offset.
+     * <p>
+     * Class types, including their type arguments and inner classes, and type variables are read whole; any other
+     * character is read on its own.
+     * </p>
+     * @param  signature signature to analyse.
+     * @param  offset    offset of the element to analyse.
+     * @param  classes   where to store class names.
+     * @return           the offset of the first character after the element, -1 if the signature is malformed.
+     */
+    private static int addTypeClasses(String signature, int offset, Set<String> classes) {
+        StringBuilder name;
+        int           length;
+        int           end;
+
+        switch(signature.charAt(offset)) {
+        case 'L':
+            break;
+
+        case 'T':
+            return (end = signature.indexOf(';', offset)) == -1 ? -1 : end + 1;
+
+        case 'B': case 'C': case 'D': case 'F': case 'I': case 'J': case 'S': case 'Z': case 'V':
+        case '[': case '(': case ')': case '^': case '*': case '+': case '-':
+            return offset + 1;
+
+        default:
+            return -1;
+        }
+
+        // Class type, possibly generic and possibly followed by inner classes.
+        name   = new StringBuilder();
+        length = signature.length();
+        offset++;
+        while(true) {
+            char c;
+
+            for(end = offset; end < length && ";<.".indexOf(signature.charAt(end)) == -1; end++);
+            if(end == offset || end == length)
+                return -1;
+            name.append(signature, offset, end);
+
+            if((c = signature.charAt(end)) == '<') {
+                end++;
+                while(end != -1 && end < length && signature.charAt(end) != '>')
+                    end = addTypeClasses(signature, end, classes);
+                if(end == -1 || ++end >= length)
+                    return -1;
+                c = signature.charAt(end);
+            }
+
+            classes.add(name.toString());
+            if(c == ';')
+                return end + 1;
+            if(c != '.')
+                return -1;
+            name.append('$');
+            offset = end + 1;
+        }
+    }
+
+    /**
+     * Adds all classes found in the specified field or method descriptor to the specified set.
+     * @param descriptor descriptor to analyse.
+     * @param classes    where to store class names.
+     */
+    private static void addDescriptorClasses(String descriptor, Set<String> classes) {
+        int length;
+
+        length = descriptor.length();
+        for(int i = 0; i < length; i++) {
+            if(descriptor.charAt(i) == 'L') {
+                int end;
+
+                if((end = descriptor.indexOf(';', i)) == -1)
+                    return;
+                classes.add(descriptor.substring(i + 1, end));
+                i = end;
+            }
+        }
+    }
+
+
+
+    // - Constant pool access ------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the number of slots in the constant pool, including the unused slot 0.
+     * @return the number of slots in the constant pool.
+     */
+    public int getConstantCount() {return tags.length;}
+
+    /**
+     * Returns the tag of the specified constant pool entry.
+     * @param  index index of the constant pool entry.
+     * @return       the tag of the specified entry, 0 if the slot is not usable.
+     */
+    public int getTag(int index) {return tags[index];}
+
+    /**
+     * Returns the value of the specified <code>CONSTANT_Utf8</code> entry.
+     * @param  index index of the constant pool entry.
+     * @return       the value of the specified entry.
+     */
+    public synchronized String getUtf8(int index) {
+        String value;
+
+        if(tags[index] != CONSTANT_UTF8)
+            throw new IllegalArgumentException("Not a CONSTANT_Utf8 entry: " + index);
+
+        if((value = strings[index]) == null)
+            strings[index] = value = decodeUtf8(offsets[index]);
+
+        return value;
+    }
+
+    /**
+     * Returns the name of the specified <code>CONSTANT_Class</code>, <code>CONSTANT_Module</code> or
+     * <code>CONSTANT_Package</code> entry.
+     * @param  index index of the constant pool entry.
+     * @return       the name of the specified entry.
+     */
+    public String getClassName(int index) {
+        if(tags[index] != CONSTANT_CLASS && tags[index] != CONSTANT_MODULE && tags[index] != CONSTANT_PACKAGE)
+            throw new IllegalArgumentException("Not a named constant pool entry: " + index);
+        return getUtf8(readUnsignedShort(data, offsets[index]));
+    }
+
+    /**
+     * Decodes the modified UTF-8 string stored at the specified offset.
+     * @param  offset offset of the string's length.
+     * @return        the decoded string.
+     */
+    private String decodeUtf8(int offset) {
+        int    length;
+        char[] chars;
+
+        length = readUnsignedShort(data, offset);
+        chars  = new char[length];
+
+        // Most class file strings are plain ASCII: deals with them without going through a decoder.
+        for(int i = 0; i < length; i++) {
+            int b;
+
+            if((b = data[offset + 2 + i]) < 0) {
+                try {return new DataInputStream(new ByteArrayInputStream(data, offset, length + 2)).readUTF();}
+                catch(IOException e) {throw new IllegalStateException("Malformed constant pool string", e);}
+            }
+            chars[i] = (char)b;
+        }
+
+        return new String(chars);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads an unsigned 16 bit big-endian value at the specified offset.
+     * @param  data   where to read the value from.
+     * @param  offset offset of the value.
+     * @return        the value.
+     */
+    public static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Reads a 32 bit big-endian value at the specified offset.
+     * @param  data   where to read the value from.
+     * @param  offset offset of the value.
+     * @return        the value.
+     */
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+               | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Removes unreachable classes from a set of JAR files.
+ * <p>
+ * Reachability is computed from the constant pool of each class: starting from a set of root classes, typically the
+ * application's main class, every class referenced by a reachable class is itself reachable. This is conservative,
+ * since a referenced class might never actually be used, but never removes a class that the JVM could need to link
+ * the application. Classes that are only loaded through reflection are invisible to such an analysis, however, and
+ * must be described by keep patterns. In order to limit how many of these are necessary:
+ * <ul>
+ *   <li>String literals that name a known class are treated as references, which covers most uses of
+ *   <code>Class.forName</code>.</li>
+ *   <li>Providers listed in <code>META-INF/services</code> are reachable as soon as their service is.</li>
+ *   <li><code>module-info</code> and <code>package-info</code> classes are always kept.</li>
+ * </ul>
+ * Versioned entries of multi-release JAR files share the fate of the class they override. Resources are never
+ * removed.
+ * </p>
+ * <p>
+ * JAR files are analysed concurrently, after which any number of them can be written concurrently as well. Kept
+ * entries are copied without being recompressed.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ClassShrinker {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Extension of class files. */
+    private static final String CLASS_EXTENSION = ".class";
+    /** Folder that contains versioned entries in multi-release JAR files. */
+    private static final String VERSIONS        = "META-INF/versions/";
+    /** Folder that contains service provider configuration files. */
+    private static final String SERVICES        = "META-INF/services/";
+    /** Name of module descriptors. */
+    private static final String MODULE_INFO     = "module-info";
+    /** Name of package descriptors. */
+    private static final String PACKAGE_INFO    = "package-info";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Internal names of the classes from which reachability is computed. */
+    private final List<String>       roots;
+    /** Patterns describing classes that must be kept, in internal form. */
+    private final List<String>       keeps;
+    /** Internal names of all reachable classes, <code>null</code> until the JAR files have been analysed. */
+    private Set<String>              reachable;
+    /** Classes referenced by each analysed class, <code>null</code> until the JAR files have been analysed. */
+    private Map<String, Set<String>> references;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new shrinker.
+     */
+    public ClassShrinker() {
+        roots = new ArrayList<String>();
+        keeps = new ArrayList<String>();
+    }
+
+    /**
+     * Adds a class from which reachability is computed.
+     * @param name fully qualified name of the class.
+     */
+    public void addRoot(String name) {roots.add(name.replace('.', '/'));}
+
+    /**
+     * Adds a pattern describing classes that must be kept, along with all the classes they reference.
+     * @param pattern fully qualified class name, possibly containing <code>*</code> and <code>**</code> wildcards.
+     * @see   KeepElement
+     */
+    public void addKeep(String pattern) {keeps.add(pattern.replace('.', '/'));}
+
+
+
+    // - Manifest access -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the main class declared in the manifest of the specified JAR file.
+     * @param     jar         JAR file to analyse.
+     * @return                the fully qualified name of the main class, <code>null</code> if none is declared.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    public static String getMainClass(File jar) throws IOException {
+        JarFile  file;
+        Manifest manifest;
+
+        file = new JarFile(jar, false);
+        try {
+            if((manifest = file.getManifest()) == null)
+                return null;
+            return manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+        }
+        finally {file.close();}
+    }
+
+
+
+    // - Analysis ------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes which classes of the specified JAR files are reachable.
+     * <p>
+     * All JAR files that make up the application's classpath must be analysed together, even if only some of them
+     * are to be shrunk.
+     * </p>
+     * @param     jars           JAR files to analyse.
+     * @param     threads        maximum number of threads to use.
+     * @exception BuildException thrown if a JAR file cannot be analysed or a root class cannot be found.
+     */
+    public void analyse(List<File> jars, int threads) throws BuildException {
+        List<Callable<Analysis>>  work;
+        Map<String, Set<String>>  references;
+        Map<String, List<String>> services;
+        Queue<String>             queue;
+        Set<String>               found;
+        Set<String>               existing;
+
+        // Analyses all JAR files concurrently.
+        work = new ArrayList<Callable<Analysis>>();
+        for(final File jar : jars) {
+            work.add(new Callable<Analysis>() {
+                public Analysis call() throws IOException {return Analysis.read(jar);}
+            });
+        }
+        references = new HashMap<String, Set<String>>();
+        services   = new HashMap<String, List<String>>();
+        for(Analysis analysis : ParallelRunner.run(work, threads)) {
+            for(Map.Entry<String, Set<String>> entry : analysis.references.entrySet()) {
+                if((existing = references.get(entry.getKey())) == null)
+                    references.put(entry.getKey(), entry.getValue());
+                else
+                    existing.addAll(entry.getValue());
+            }
+            for(Map.Entry<String, List<String>> entry : analysis.services.entrySet()) {
+                if(services.containsKey(entry.getKey()))
+                    services.get(entry.getKey()).addAll(entry.getValue());
+                else
+                    services.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // Marks roots, kept classes and descriptors.
+        found = new HashSet<String>();
+        queue = new ArrayDeque<String>();
+        for(String root : roots) {
+            if(!references.containsKey(root))
+                throw new BuildException("Class not found: " + root.replace('/', '.'));
+            mark(root, found, queue);
+        }
+        for(String name : references.keySet())
+            if(isDescriptor(name) || isKept(name))
+                mark(name, found, queue);
+
+        // Follows references until no new class is found. Services, which are often JDK interfaces, are followed
+        // whether or not they're part of the analysed JAR files.
+        while(!queue.isEmpty()) {
+            for(String reference : references.get(queue.poll())) {
+                List<String> providers;
+
+                if(references.containsKey(reference))
+                    mark(reference, found, queue);
+                if((providers = services.remove(reference)) != null)
+                    for(String provider : providers)
+                        if(references.containsKey(provider))
+                            mark(provider, found, queue);
+            }
+        }
+
+        reachable       = found;
+        this.references = references;
+    }
+
+    /**
+     * Marks the specified class as reachable, queueing it for analysis if it wasn't already.
+     * @param name  internal name of the class.
+     * @param found classes that are known to be reachable.
+     * @param queue classes whose references still need to be followed.
+     */
+    private static void mark(String name, Set<String> found, Queue<String> queue) {
+        if(found.add(name))
+            queue.add(name);
+    }
+
+    /**
+     * Returns <code>true</code> if the specified class matches any of the keep patterns.
+     * @param  name internal name of the class.
+     * @return      <code>true</code> if the specified class matches any of the keep patterns.
+     */
+    private boolean isKept(String name) {
+        // Patterns are matched as paths, which Ant expects to use the platform's separator.
+        for(String keep : keeps)
+            if(SelectorUtils.matchPath(keep.replace('/', File.separatorChar), name.replace('/', File.separatorChar)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified class is a module or package descriptor.
+     * @param  name internal name of the class.
+     * @return      <code>true</code> if the specified class is a module or package descriptor.
+     */
+    private static boolean isDescriptor(String name) {
+        return name.equals(MODULE_INFO) || name.equals(PACKAGE_INFO) || name.endsWith('/' + PACKAGE_INFO);
+    }
+
+    /**
+     * Returns the number of reachable classes.
+     * @return the number of reachable classes.
+     */
+    public int getReachableCount() {return reachable.size();}
+
+    /**
+     * Returns <code>true</code> if the specified class is reachable.
+     * @param  name internal name of the class.
+     * @return      <code>true</code> if the specified class is reachable.
+     */
+    public boolean isReachable(String name) {return reachable.contains(name);}
+
+    /**
+     * Returns the classes referenced by the specified class.
+     * <p>
+     * This includes classes that are not part of the analysed JAR files, such as those of the JDK.
+     * </p>
+     * @param  name internal name of the class.
+     * @return      the internal names of the classes referenced by the specified class, <code>null</code> if it
+     *              wasn't analysed.
+     */
+    public Set<String> getReferences(String name) {return references.get(name);}
+
+    /**
+     * Returns the internal names of the classes stored in the specified JAR file.
+     * <p>
+     * Only the central directory of the JAR file is read.
+     * </p>
+     * @param     jar         JAR file to analyse.
+     * @return                the internal names of the classes stored in the specified JAR file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    public static Set<String> getClassNames(File jar) throws IOException {
+        Set<String> names;
+
+        names = new HashSet<String>();
+        for(ZipDirectory.Entry entry : ZipDirectory.read(jar).getEntries()) {
+            String name;
+
+            if((name = getClassName(entry)) != null)
+                names.add(name);
+        }
+
+        return names;
+    }
+
+
+
+    // - JAR writing ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes a copy of the specified JAR file without its unreachable classes.
+     * <p>
+     * The JAR file must have been analysed beforehand. This method can be called concurrently for different JAR
+     * files. The stream is flushed but not closed.
+     * </p>
+     * @param     jar         JAR file to shrink.
+     * @param     out         where to write the shrunk JAR file.
+     * @return                the number of classes that were removed.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    public int write(File jar, OutputStream out) throws IOException {
+        RandomAccessFile in;
+        RawZipWriter     writer;
+        int              count;
+
+        if(reachable == null)
+            throw new IllegalStateException("JAR files have not been analysed");
+
+        in = new RandomAccessFile(jar, "r");
+        try {
+            FileChannel channel;
+
+            channel = in.getChannel();
+            writer  = new RawZipWriter(out);
+            count   = 0;
+            for(ZipDirectory.Entry entry : ZipDirectory.read(channel).getEntriesByOffset()) {
+                String name;
+
+                if((name = getClassName(entry)) != null && !reachable.contains(name))
+                    count++;
+                else
+                    writer.copy(channel, entry);
+            }
+            writer.finish();
+        }
+        finally {in.close();}
+
+        return count;
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the internal name of the class stored in the specified entry.
+     * <p>
+     * Versioned entries are named after the class they override.
+     * </p>
+     * @param  entry entry to analyse.
+     * @return       the internal name of the class stored in the specified entry, <code>null</code> if it's not a class.
+     */
+    private static String getClassName(ZipDirectory.Entry entry) {
+        String name;
+        int    index;
+
+        name = entry.getName();
+        if(entry.isDirectory() || !name.endsWith(CLASS_EXTENSION))
+            return null;
+        if(name.startsWith(VERSIONS) && (index = name.indexOf('/', VERSIONS.length())) != -1)
+            name = name.substring(index + 1);
+
+        return name.substring(0, name.length() - CLASS_EXTENSION.length());
+    }
+
+    /**
+     * Returns <code>true</code> if the specified string could be the fully qualified name of a class.
+     * @param  s string to check.
+     * @return   <code>true</code> if the specified string could be the fully qualified name of a class.
+     */
+    private static boolean isClassName(String s) {
+        if(s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0)))
+            return false;
+        for(int i = 1; i < s.length(); i++) {
+            char c;
+
+            if(!Character.isJavaIdentifierPart(c = s.charAt(i)) && c != '.' && c != '/')
+                return false;
+        }
+        return true;
+    }
+
+
+
+    // - Analysis class ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Classes and service providers of a single JAR file.
+     * @author Nicolas Rinaudo
+     */
+    private static class Analysis {
+        /** Classes referenced by each class, including class names found in string literals. */
+        private final Map<String, Set<String>>  references;
+        /** Providers of each service. */
+        private final Map<String, List<String>> services;
+
+        /**
+         * Creates a new empty analysis.
+         */
+        private Analysis() {
+            references = new HashMap<String, Set<String>>();
+            services   = new HashMap<String, List<String>>();
+        }
+
+        /**
+         * Analyses the specified JAR file.
+         * @param     jar         JAR file to analyse.
+         * @return                the classes and service providers of the specified JAR file.
+         * @exception IOException thrown if any IO related error occurs.
+         */
+        static Analysis read(File jar) throws IOException {
+            RandomAccessFile in;
+            Analysis         analysis;
+
+            analysis = new Analysis();
+            in       = new RandomAccessFile(jar, "r");
+            try {
+                FileChannel channel;
+
+                channel = in.getChannel();
+                for(ZipDirectory.Entry entry : ZipDirectory.read(channel).getEntries()) {
+                    String name;
+
+                    if((name = getClassName(entry)) != null)
+                        analysis.addClass(name, ZipDirectory.readContent(channel, entry));
+                    else if(!entry.isDirectory() && entry.getName().startsWith(SERVICES)
+                            && entry.getName().indexOf('/', SERVICES.length()) == -1)
+                        analysis.addService(entry.getName().substring(SERVICES.length()),
+                                            ZipDirectory.readContent(channel, entry));
+                }
+            }
+            catch(IOException e) {throw new IOException("Could not analyse " + jar + ": " + e.getMessage(), e);}
+            finally {in.close();}
+
+            return analysis;
+        }
+
+        /**
+         * Records the references of the specified class.
+         * @param     name        internal name of the class.
+         * @param     data        content of the class file.
+         * @exception IOException if <code>data</code> is not a valid class file.
+         */
+        private void addClass(String name, byte[] data) throws IOException {
+            ClassFile   file;
+            Set<String> classes;
+
+            file    = ClassFile.parse(data);
+            classes = file.getReferencedClasses();
+            for(String constant : file.getStringConstants())
+                if(isClassName(constant))
+                    classes.add(constant.replace('.', '/'));
+
+            // Versioned entries add to the references of the class they override.
+            if(references.containsKey(name))
+                references.get(name).addAll(classes);
+            else
+                references.put(name, classes);
+        }
+
+        /**
+         * Records the providers of the specified service.
+         * @param     service     fully qualified name of the service.
+         * @param     data        content of the service provider configuration file.
+         * @exception IOException if any IO related error occurs.
+         */
+        private void addService(String service, byte[] data) throws IOException {
+            BufferedReader reader;
+            List<String>   providers;
+            String         line;
+
+            providers = new ArrayList<String>();
+            reader    = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"));
+            while((line = reader.readLine()) != null) {
+                int index;
+
+                if((index = line.indexOf('#')) != -1)
+                    line = line.substring(0, index);
+                if((line = line.trim()).length() != 0)
+                    providers.add(line.replace('.', '/'));
+            }
+            services.put(service.replace('.', '/'), providers);
+        }
+    }
+}
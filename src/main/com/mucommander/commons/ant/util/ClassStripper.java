@@ -0,0 +1,462 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.jar.Manifest;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Removes attributes from class files, typically debugging information that's not needed in production.
+ * <p>
+ * Class files are rewritten by walking their structure: named attributes are dropped at class, field and method
+ * level as well as from <code>Code</code> attributes, and everything else is copied as is. The constant pool is left
+ * untouched, which keeps all indexes valid. Attributes that the JVM needs to run a class, such as
+ * <code>StackMapTable</code>, cannot be removed.
+ * </p>
+ * <p>
+ * JAR files are processed in batches of bounded size: each batch is stripped and recompressed concurrently, then
+ * written in the original order. Entries that are not classes, or that contain none of the attributes to remove,
+ * are copied without being recompressed. Stripped JAR files are cached by content and attribute set, so that
+ * unchanged JAR files are only processed once.
+ * </p>
+ * <p>
+ * Signature files and manifest digests are removed, since stripped classes would no longer match them: stripping a
+ * signed JAR file yields an unsigned one, which must be signed again if needed.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ClassStripper {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Attributes removed by default, all of which only contain debugging information. */
+    public static final String        DEFAULT_ATTRIBUTES = "LineNumberTable,LocalVariableTable,LocalVariableTypeTable,"
+                                                           + "SourceFile,SourceDebugExtension";
+    /** Attributes needed by the JVM to load, verify or link classes. */
+    private static final List<String> REQUIRED           = Arrays.asList("Code", "ConstantValue", "StackMapTable",
+                                                                         "BootstrapMethods", "NestHost", "NestMembers",
+                                                                         "PermittedSubclasses", "Module",
+                                                                         "ModulePackages", "ModuleMainClass");
+    /** Name of the attribute that contains method bytecode. */
+    private static final String       CODE               = "Code";
+    /** Extension of class files. */
+    private static final String       CLASS_EXTENSION    = ".class";
+    /** Extension of cached JAR files. */
+    private static final String       JAR_EXTENSION      = ".jar";
+    /** Version of the stripping process, used to invalidate the cache should it change. */
+    private static final String       VERSION            = "2";
+    /** Maximum amount of uncompressed data held in memory at any given time. */
+    private static final long         BATCH_SIZE         = 32 * 1024 * 1024;
+    /** Maximum number of entries in a batch. */
+    private static final int          BATCH_ENTRIES      = 1024;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Names of the attributes to remove. */
+    private final Set<String> attributes;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new stripper.
+     * @param     attributes     names of the attributes to remove.
+     * @exception BuildException thrown if any of the attributes is needed to run classes.
+     */
+    public ClassStripper(Collection<String> attributes) throws BuildException {
+        for(String attribute : attributes)
+            if(REQUIRED.contains(attribute))
+                throw new BuildException("Attribute " + attribute + " cannot be stripped.");
+        this.attributes = new TreeSet<String>(attributes);
+    }
+
+    /**
+     * Parses a comma separated list of attribute names.
+     * @param  list comma separated list of attribute names.
+     * @return      the attribute names found in <code>list</code>.
+     */
+    public static List<String> parseAttributes(String list) {
+        List<String> names;
+
+        names = new ArrayList<String>();
+        for(String name : list.split(","))
+            if((name = name.trim()).length() != 0)
+                names.add(name);
+
+        return names;
+    }
+
+    /**
+     * Returns the default folder in which to cache stripped JAR files.
+     * @return the default folder in which to cache stripped JAR files.
+     */
+    public static File getDefaultFolder() {
+        return new File(System.getProperty("user.home"), ".mkapp" + File.separator + "stripped");
+    }
+
+
+
+    // - Class stripping -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Removes attributes from the specified class file.
+     * @param     data        class file to strip.
+     * @return                the stripped class file, <code>data</code> itself if no attribute was removed.
+     * @exception IOException if <code>data</code> is not a valid class file.
+     */
+    public byte[] strip(byte[] data) throws IOException {
+        ClassFile             file;
+        ByteArrayOutputStream out;
+        int                   offset;
+
+        file = ClassFile.parse(data);
+        out  = new ByteArrayOutputStream(data.length);
+
+        // Copies the constant pool and the class' header, up to and including its interfaces.
+        offset = file.getStructureOffset() + 6;
+        offset += 2 + 2 * ClassFile.readUnsignedShort(data, offset);
+        out.write(data, 0, offset);
+
+        // Strips fields, methods and class attributes.
+        offset = copyMembers(file, data, offset, out);
+        offset = copyMembers(file, data, offset, out);
+        copyAttributes(file, data, offset, out);
+
+        // Attributes can only be removed, which means that an unchanged size is an unchanged class.
+        return out.size() == data.length ? data : out.toByteArray();
+    }
+
+    /**
+     * Copies fields or methods, without the attributes that must be removed.
+     * @param  file   class being stripped.
+     * @param  data   raw content of the class.
+     * @param  offset offset of the members count.
+     * @param  out    where to write the stripped members.
+     * @return        the offset of the first byte after the members.
+     */
+    private int copyMembers(ClassFile file, byte[] data, int offset, ByteArrayOutputStream out) {
+        int count;
+
+        count = ClassFile.readUnsignedShort(data, offset);
+        out.write(data, offset, 2);
+        offset += 2;
+        for(int i = 0; i < count; i++) {
+            // Access flags, name and descriptor.
+            out.write(data, offset, 6);
+            offset = copyAttributes(file, data, offset + 6, out);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Copies a list of attributes, without the ones that must be removed.
+     * @param  file   class being stripped.
+     * @param  data   raw content of the class.
+     * @param  offset offset of the attributes count.
+     * @param  out    where to write the stripped attributes.
+     * @return        the offset of the first byte after the attributes.
+     */
+    private int copyAttributes(ClassFile file, byte[] data, int offset, ByteArrayOutputStream out) {
+        ByteArrayOutputStream kept;
+        int                   count;
+        int                   keptCount;
+
+        count     = ClassFile.readUnsignedShort(data, offset);
+        offset   += 2;
+        kept      = new ByteArrayOutputStream();
+        keptCount = 0;
+        for(int i = 0; i < count; i++) {
+            String name;
+            int    length;
+
+            name   = file.getUtf8(ClassFile.readUnsignedShort(data, offset));
+            length = ClassFile.readInt(data, offset + 2);
+            if(!attributes.contains(name)) {
+                if(name.equals(CODE))
+                    copyCode(file, data, offset, kept);
+                else
+                    kept.write(data, offset, 6 + length);
+                keptCount++;
+            }
+            offset += 6 + length;
+        }
+
+        writeShort(out, keptCount);
+        out.write(kept.toByteArray(), 0, kept.size());
+
+        return offset;
+    }
+
+    /**
+     * Copies a <code>Code</code> attribute, without the nested attributes that must be removed.
+     * @param file   class being stripped.
+     * @param data   raw content of the class.
+     * @param offset offset of the attribute.
+     * @param out    where to write the stripped attribute.
+     */
+    private void copyCode(ClassFile file, byte[] data, int offset, ByteArrayOutputStream out) {
+        ByteArrayOutputStream body;
+        int                   start;
+        int                   end;
+
+        // Maximum stack and locals, code and exception table are copied as is.
+        start = offset + 6;
+        end   = start + 8 + ClassFile.readInt(data, start + 4);
+        end  += 2 + 8 * ClassFile.readUnsignedShort(data, end);
+        body  = new ByteArrayOutputStream();
+        body.write(data, start, end - start);
+        copyAttributes(file, data, end, body);
+
+        out.write(data, offset, 2);
+        writeInt(out, body.size());
+        out.write(body.toByteArray(), 0, body.size());
+    }
+
+
+
+    // - JAR stripping -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns a stripped version of the specified JAR file, generating it if it's not in the cache.
+     * @param     jar         JAR file to strip.
+     * @param     folder      cache folder.
+     * @param     threads     maximum number of threads to use.
+     * @return                the cached stripped JAR file.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    public File getStripped(File jar, File folder, int threads) throws IOException {
+        File          stripped;
+        File          temp;
+        OutputStream  out;
+        MessageDigest digest;
+
+        // Looks for the JAR file in the cache.
+        digest = Digests.newSha256();
+        Digests.update(digest, jar);
+        digest.update((VERSION + attributes).getBytes("UTF-8"));
+        if((stripped = new File(folder, Digests.toHex(digest.digest()) + JAR_EXTENSION)).isFile())
+            return stripped;
+
+        // Strips the JAR file in a temporary file, and moves it to the cache once complete.
+        if(!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory())
+            throw new IOException("Could not create directory " + folder);
+        temp = new File(folder, stripped.getName() + ".tmp" + System.nanoTime());
+        try {
+            out = new FileOutputStream(temp);
+            try {write(jar, out, threads);}
+            finally {out.close();}
+
+            if(!temp.renameTo(stripped) && !stripped.isFile())
+                throw new IOException("Could not move " + temp + " to " + stripped);
+        }
+        finally {temp.delete();}
+
+        return stripped;
+    }
+
+    /**
+     * Writes a stripped copy of the specified JAR file to the specified stream.
+     * <p>
+     * The stream is flushed but not closed.
+     * </p>
+     * @param     jar         JAR file to strip.
+     * @param     out         where to write the stripped JAR file.
+     * @param     threads     maximum number of threads to use.
+     * @exception IOException thrown if the JAR file is not supported or corrupt, or if any IO related error occurs.
+     */
+    public void write(File jar, OutputStream out, int threads) throws IOException {
+        RandomAccessFile         in;
+        List<ZipDirectory.Entry> entries;
+        RawZipWriter             writer;
+
+        in = new RandomAccessFile(jar, "r");
+        try {
+            final FileChannel channel;
+
+            channel = in.getChannel();
+            entries = ZipDirectory.read(channel).getEntriesByOffset();
+            writer  = new RawZipWriter(out);
+
+            for(int start = 0; start < entries.size(); ) {
+                List<Callable<Stripped>> work;
+                List<Stripped>           data;
+                long                     size;
+                int                      end;
+
+                // Strips the next batch concurrently.
+                work = new ArrayList<Callable<Stripped>>();
+                size = 0;
+                for(end = start; end < entries.size() && end - start < BATCH_ENTRIES && size < BATCH_SIZE; end++) {
+                    final ZipDirectory.Entry entry;
+
+                    entry = entries.get(end);
+                    size += entry.getSize();
+                    work.add(new Callable<Stripped>() {
+                        public Stripped call() throws IOException {return strip(channel, entry);}
+                    });
+                }
+                data = ParallelRunner.run(work, threads);
+
+                // Writes it in order, without the signature files that stripped classes would invalidate.
+                for(int i = start; i < end; i++) {
+                    Stripped content;
+
+                    if(JarSignatures.isSignature(entries.get(i).getName()))
+                        continue;
+                    if((content = data.get(i - start)) == null)
+                        writer.copy(channel, entries.get(i));
+                    else if(content.compressed == null)
+                        writer.replace(entries.get(i), content.data);
+                    else
+                        writer.replace(entries.get(i), content.data, content.compressed);
+                }
+                start = end;
+            }
+            writer.finish();
+        }
+        finally {in.close();}
+    }
+
+    /**
+     * Strips the specified entry, compressing the result if the entry was compressed.
+     * <p>
+     * The manifest is stripped of its signature digests.
+     * </p>
+     * @param     channel     archive that contains the entry.
+     * @param     entry       entry to strip.
+     * @return                the stripped entry, <code>null</code> if it must be copied as is.
+     * @exception IOException thrown if the entry cannot be read or is not a valid class file.
+     */
+    private Stripped strip(FileChannel channel, ZipDirectory.Entry entry) throws IOException {
+        byte[] data;
+        byte[] stripped;
+
+        if(entry.getName().equals(JarSignatures.MANIFEST)) {
+            Manifest              manifest;
+            ByteArrayOutputStream buffer;
+
+            manifest = new Manifest(new ByteArrayInputStream(ZipDirectory.readContent(channel, entry)));
+            if(!JarSignatures.removeDigests(manifest))
+                return null;
+            buffer = new ByteArrayOutputStream();
+            manifest.write(buffer);
+            stripped = buffer.toByteArray();
+        }
+        else if(entry.isDirectory() || !entry.getName().endsWith(CLASS_EXTENSION))
+            return null;
+        else if((stripped = strip(data = ZipDirectory.readContent(channel, entry))) == data)
+            return null;
+
+        return new Stripped(stripped, entry.getMethod() == ZipEntry.STORED ? null : deflate(stripped));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compresses the specified data as a raw deflate stream.
+     * @param  data data to compress.
+     * @return      the compressed data.
+     */
+    private static byte[] deflate(byte[] data) {
+        ByteArrayOutputStream out;
+        Deflater              deflater;
+        byte[]                buffer;
+
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            out    = new ByteArrayOutputStream(data.length / 2 + 64);
+            buffer = new byte[8192];
+            while(!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        finally {deflater.end();}
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a 16 bit big-endian value to the specified stream.
+     * @param out   where to write the value.
+     * @param value value to write.
+     */
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Writes a 32 bit big-endian value to the specified stream.
+     * @param out   where to write the value.
+     * @param value value to write.
+     */
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+
+
+
+    // - Stripped class ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Content of a stripped entry.
+     * @author Nicolas Rinaudo
+     */
+    private static class Stripped {
+        /** Uncompressed content of the entry. */
+        private final byte[] data;
+        /** Compressed content of the entry, <code>null</code> if it's stored. */
+        private final byte[] compressed;
+
+        /**
+         * Creates a new stripped entry.
+         * @param data       uncompressed content of the entry.
+         * @param compressed compressed content of the entry, <code>null</code> if it's stored.
+         */
+        Stripped(byte[] data, byte[] compressed) {
+            this.data       = data;
+            this.compressed = compressed;
+        }
+    }
+}
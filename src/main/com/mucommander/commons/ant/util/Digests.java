@@ -0,0 +1,159 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helper methods for computing and printing message digests.
+ * @author Nicolas Rinaudo
+ */
+public class Digests {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the digest algorithm used throughout the Ant tasks. */
+    public static final String SHA_256       = "SHA-256";
+    /** Files larger than this are memory-mapped rather than read through a stream. */
+    private static final long  MAP_THRESHOLD = 4 * 1024 * 1024;
+    /** Size of the regions in which large files are mapped. */
+    private static final long  MAP_REGION    = 64 * 1024 * 1024;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private Digests() {}
+
+
+
+    // - Digest computation --------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new SHA-256 digest.
+     * <p>
+     * All compliant JVMs are required to support SHA-256, so failure to create the digest is reported as a
+     * {@link BuildException}.
+     * </p>
+     * @return a new SHA-256 digest.
+     */
+    public static MessageDigest newSha256() {
+        try {return MessageDigest.getInstance(SHA_256);}
+        catch(NoSuchAlgorithmException e) {throw new BuildException(e);}
+    }
+
+    /**
+     * Updates the specified digest with the content of the specified file.
+     * <p>
+     * Large files are memory-mapped, which spares copying their content to the heap.
+     * </p>
+     * @param     digest      digest to update.
+     * @param     file        file whose content should be digested.
+     * @exception IOException thrown if the file could not be read.
+     */
+    public static void update(MessageDigest digest, File file) throws IOException {
+        InputStream in;
+        byte[]      buffer;
+        int         count;
+
+        if(file.length() > MAP_THRESHOLD) {
+            updateMapped(digest, file);
+            return;
+        }
+
+        buffer = new byte[8192];
+        in     = new FileInputStream(file);
+        try {
+            while((count = in.read(buffer)) != -1)
+                digest.update(buffer, 0, count);
+        }
+        finally {
+            try {in.close();}
+            catch(Exception e) {}
+        }
+    }
+
+    /**
+     * Updates the specified digest with the content of the specified file, mapping it in memory one region at a time.
+     * @param     digest      digest to update.
+     * @param     file        file whose content should be digested.
+     * @exception IOException thrown if the file could not be read.
+     */
+    private static void updateMapped(MessageDigest digest, File file) throws IOException {
+        RandomAccessFile in;
+        FileChannel      channel;
+        long             size;
+
+        in = new RandomAccessFile(file, "r");
+        try {
+            channel = in.getChannel();
+            size    = channel.size();
+            for(long position = 0; position < size; position += MAP_REGION)
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION, size - position)));
+        }
+        finally {
+            try {in.close();}
+            catch(Exception e) {}
+        }
+    }
+
+    /**
+     * Computes the SHA-256 digest of the specified file.
+     * @param     file        file whose content should be digested.
+     * @return                the SHA-256 digest of the specified file.
+     * @exception IOException thrown if the file could not be read.
+     */
+    public static byte[] sha256(File file) throws IOException {
+        MessageDigest digest;
+
+        update(digest = newSha256(), file);
+
+        return digest.digest();
+    }
+
+
+
+    // - Formatting ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the lowercase hexadecimal representation of the specified bytes.
+     * @param  bytes bytes to represent.
+     * @return       the lowercase hexadecimal representation of the specified bytes.
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder buffer;
+
+        buffer = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+            buffer.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Generates precompressed gzip siblings of files, which web servers can send as is to clients that accept gzip.
+ * <p>
+ * Files are compressed at maximum compression. Large files are split in blocks that are compressed concurrently:
+ * each block is primed with the last 32KB of the previous one, which preserves most of the compression ratio, and
+ * ends with a sync flush, so that concatenating all blocks yields a single valid deflate stream. Only a few blocks
+ * are held in memory at any given time.
+ * </p>
+ * <p>
+ * Siblings are written next to their file with a <code>.gz</code> extension, through a temporary file, and are
+ * considered up to date if they're not older than their file.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class Gzip {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Extension of gzip siblings. */
+    public static final String  EXTENSION       = ".gz";
+    /** Size of the blocks in which large files are compressed concurrently. */
+    public static final int     BLOCK_SIZE      = 1024 * 1024;
+    /** Size of the deflate window, and of the dictionary used to prime each block. */
+    private static final int    DICTIONARY_SIZE = 32 * 1024;
+    /** Gzip header: magic number, deflate, no flags, no date, maximum compression, unknown OS. */
+    private static final byte[] HEADER          = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 2, (byte)0xff};
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private Gzip() {}
+
+
+
+    // - Siblings ------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the gzip sibling of the specified file.
+     * @param  file file whose sibling should be returned.
+     * @return      the gzip sibling of the specified file.
+     */
+    public static File getSibling(File file) {
+        return new File(file.getPath() + EXTENSION);
+    }
+
+    /**
+     * Returns <code>true</code> if the gzip sibling of the specified file exists and is not older than the file.
+     * @param  file file whose sibling should be checked.
+     * @return      <code>true</code> if the gzip sibling of the specified file is up to date.
+     */
+    public static boolean isUpToDate(File file) {
+        File sibling;
+
+        sibling = getSibling(file);
+        return sibling.isFile() && sibling.lastModified() >= file.lastModified();
+    }
+
+    /**
+     * Generates the gzip siblings of the specified files, unless they're up to date.
+     * <p>
+     * Small files are compressed concurrently, large ones one at a time, each with all available threads.
+     * </p>
+     * @param     files          files whose siblings should be generated.
+     * @param     threads        maximum number of threads to use.
+     * @return                   the number of siblings that were generated.
+     * @exception BuildException thrown if any error occurs.
+     */
+    public static int compressSiblings(List<File> files, final int threads) throws BuildException {
+        List<Callable<Void>> work;
+        List<File>           large;
+
+        work  = new ArrayList<Callable<Void>>();
+        large = new ArrayList<File>();
+        for(final File file : files) {
+            if(!file.isFile())
+                throw new BuildException("File not found: " + file);
+            if(isUpToDate(file))
+                continue;
+
+            if(file.length() > BLOCK_SIZE)
+                large.add(file);
+            else {
+                work.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        compress(file, getSibling(file), 1);
+                        return null;
+                    }
+                });
+            }
+        }
+        ParallelRunner.run(work, threads);
+
+        for(File file : large) {
+            try {compress(file, getSibling(file), threads);}
+            catch(IOException e) {throw new BuildException("Could not compress " + file, e);}
+        }
+
+        return work.size() + large.size();
+    }
+
+
+
+    // - Compression ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compresses the specified file.
+     * <p>
+     * The compressed file is written next to its destination and moved in place once complete.
+     * </p>
+     * @param     from        file to compress.
+     * @param     to          where to write the compressed file.
+     * @param     threads     maximum number of threads to use.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    public static void compress(File from, File to, int threads) throws IOException {
+        InputStream  in;
+        OutputStream out;
+        File         temp;
+
+        temp = new File(to.getPath() + ".tmp" + System.nanoTime() + Thread.currentThread().getId());
+        try {
+            in = new FileInputStream(from);
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(temp));
+                try {compress(in, from.length(), out, threads);}
+                finally {out.close();}
+            }
+            finally {in.close();}
+            Files.move(temp.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {temp.delete();}
+    }
+
+    /**
+     * Compresses the specified stream.
+     * <p>
+     * Neither stream is closed by this method.
+     * </p>
+     * @param     in          stream to compress.
+     * @param     size        number of bytes to read from <code>in</code>.
+     * @param     out         where to write the compressed stream.
+     * @param     threads     maximum number of threads to use.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static void compress(InputStream in, final long size, OutputStream out, int threads) throws IOException {
+        byte[] window;
+        byte[] dictionary;
+        CRC32  crc;
+        long   position;
+
+        threads    = (int)Math.max(1, Math.min(threads, (size + BLOCK_SIZE - 1) / BLOCK_SIZE));
+        window     = new byte[(int)Math.min(size, (long)threads * BLOCK_SIZE)];
+        dictionary = null;
+        crc        = new CRC32();
+        position   = 0;
+
+        out.write(HEADER);
+        do {
+            List<Callable<byte[]>> work;
+            int                    count;
+
+            // Reads as many blocks as there are threads.
+            count = (int)Math.min(window.length, size - position);
+            readFully(in, window, count);
+            crc.update(window, 0, count);
+
+            // Compresses them concurrently.
+            work = new ArrayList<Callable<byte[]>>();
+            for(int offset = 0; offset < count || offset == 0; offset += BLOCK_SIZE)
+                work.add(new Block(window, offset, Math.min(BLOCK_SIZE, count - offset), dictionary,
+                                   position + offset + BLOCK_SIZE >= size));
+            for(byte[] block : ParallelRunner.run(work, threads))
+                out.write(block);
+
+            // Keeps the end of the window to prime the next block.
+            if(count >= DICTIONARY_SIZE) {
+                dictionary = new byte[DICTIONARY_SIZE];
+                System.arraycopy(window, count - DICTIONARY_SIZE, dictionary, 0, DICTIONARY_SIZE);
+            }
+            position += count;
+        }
+        while(position < size);
+
+        writeInt(out, (int)crc.getValue());
+        writeInt(out, (int)size);
+    }
+
+    /**
+     * Reads exactly <code>count</code> bytes from the specified stream.
+     * @param     in          stream to read from.
+     * @param     buffer      where to store the bytes.
+     * @param     count       number of bytes to read.
+     * @exception IOException thrown if the stream ends early, or if any IO related error occurs.
+     */
+    private static void readFully(InputStream in, byte[] buffer, int count) throws IOException {
+        int read;
+
+        for(int offset = 0; offset < count; offset += read)
+            if((read = in.read(buffer, offset, count - offset)) == -1)
+                throw new EOFException("Expected " + count + " bytes, found " + offset);
+    }
+
+    /**
+     * Writes the specified value in little-endian order.
+     * @param     out         where to write the value.
+     * @param     value       value to write.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+
+
+    // - Block class ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compresses a block of data as part of a larger deflate stream.
+     * @author Nicolas Rinaudo
+     */
+    private static class Block implements Callable<byte[]> {
+        /** Contains the block. */
+        private final byte[]  data;
+        /** Where the block starts in {@link #data}. */
+        private final int     offset;
+        /** Length of the block. */
+        private final int     length;
+        /** Data that precedes {@link #data}, <code>null</code> if none. */
+        private final byte[]  previous;
+        /** Whether this is the last block of the stream. */
+        private final boolean last;
+
+        /**
+         * Creates a new block.
+         * @param data     contains the block.
+         * @param offset   where the block starts in <code>data</code>.
+         * @param length   length of the block.
+         * @param previous data that precedes <code>data</code>, <code>null</code> if none.
+         * @param last     whether this is the last block of the stream.
+         */
+        private Block(byte[] data, int offset, int length, byte[] previous, boolean last) {
+            this.data     = data;
+            this.offset   = offset;
+            this.length   = length;
+            this.previous = previous;
+            this.last     = last;
+        }
+
+        /**
+         * Compresses the block.
+         * @return the compressed block.
+         */
+        public byte[] call() {
+            ByteArrayOutputStream out;
+            Deflater              deflater;
+            byte[]                buffer;
+            int                   count;
+
+            out      = new ByteArrayOutputStream(length / 2 + 64);
+            buffer   = new byte[65536];
+            deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            try {
+                // Primes the block with the data that precedes it, so that it can refer to it.
+                if(offset >= DICTIONARY_SIZE)
+                    deflater.setDictionary(data, offset - DICTIONARY_SIZE, DICTIONARY_SIZE);
+                else if(offset > 0)
+                    deflater.setDictionary(data, 0, offset);
+                else if(previous != null)
+                    deflater.setDictionary(previous);
+
+                deflater.setInput(data, offset, length);
+                if(last) {
+                    deflater.finish();
+                    while(!deflater.finished())
+                        out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                // Ends on a byte boundary without ending the stream, so that the next block can be appended.
+                else {
+                    do {
+                        count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, count);
+                    }
+                    while(count == buffer.length);
+                }
+            }
+            finally {deflater.end();}
+
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of SHA-256 file digests.
+ * <p>
+ * Digests are indexed by the absolute path of their file, and are considered valid for as long as the file's size
+ * and last modification date don't change. This spares hashing large sets of files that are mostly unchanged from
+ * one build to the next, such as the resources of a JNLP application.
+ * </p>
+ * <p>
+ * Instances of this class can be used by several threads at once. The cache is stored as a text file, one entry per
+ * line, and is only rewritten by {@link #save()} if it changed. Entries whose file no longer exists are dropped when
+ * the cache is saved.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class HashCache {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Where the cache is stored. */
+    private final File               file;
+    /** Known digests, indexed by absolute path. */
+    private final Map<String, Entry> entries;
+    /** Whether the cache changed since it was loaded. */
+    private volatile boolean         modified;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new, empty cache.
+     * @param file where the cache is stored.
+     */
+    private HashCache(File file) {
+        this.file = file;
+        entries   = new ConcurrentHashMap<String, Entry>();
+    }
+
+    /**
+     * Loads the specified cache.
+     * <p>
+     * Missing or corrupt cache files result in an empty cache.
+     * </p>
+     * @param  file where the cache is stored.
+     * @return      the cache stored in the specified file.
+     */
+    public static HashCache load(File file) {
+        HashCache      cache;
+        BufferedReader in;
+        String         line;
+
+        cache = new HashCache(file);
+        if(!file.isFile())
+            return cache;
+
+        in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+            while((line = in.readLine()) != null) {
+                String[] fields;
+
+                if((fields = line.split("\t", 4)).length == 4)
+                    cache.entries.put(fields[3], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                                           fields[0]));
+            }
+        }
+        catch(IOException e) {cache.entries.clear();}
+        catch(NumberFormatException e) {cache.entries.clear();}
+        finally {close(in);}
+
+        return cache;
+    }
+
+    /**
+     * Closes the specified stream, ignoring errors.
+     * @param stream stream to close, <code>null</code> if it couldn't be opened.
+     */
+    private static void close(Reader stream) {
+        if(stream != null) {
+            try {stream.close();}
+            catch(Exception e) {}
+        }
+    }
+
+
+
+    // - Digest access -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the hexadecimal SHA-256 digest of the specified file, computing it if it's not known yet.
+     * @param     file        file whose digest should be returned.
+     * @return                the hexadecimal SHA-256 digest of the specified file.
+     * @exception IOException thrown if the file could not be read.
+     */
+    public String sha256(File file) throws IOException {
+        String path;
+        Entry  entry;
+        long   size;
+        long   date;
+
+        path = file.getAbsolutePath();
+        size = file.length();
+        date = file.lastModified();
+        if((entry = entries.get(path)) != null && entry.size == size && entry.date == date)
+            return entry.digest;
+
+        entries.put(path, entry = new Entry(size, date, Digests.toHex(Digests.sha256(file))));
+        modified = true;
+
+        return entry.digest;
+    }
+
+    /**
+     * Stores the cache, if it changed since it was loaded.
+     * @exception IOException thrown if the cache could not be written.
+     */
+    public void save() throws IOException {
+        Writer out;
+        File   temp;
+
+        if(!modified)
+            return;
+        if(!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+            throw new IOException("Could not create directory " + file.getParentFile());
+
+        // Writes the cache next to its destination, which keeps concurrent builds from reading a partial file.
+        temp = new File(file.getPath() + ".tmp" + System.nanoTime());
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), Charset.forName("UTF-8")));
+            try {
+                for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value;
+
+                    if(!new File(entry.getKey()).isFile())
+                        continue;
+                    value = entry.getValue();
+                    out.write(value.digest + '\t' + value.size + '\t' + value.date + '\t' + entry.getKey() + '\n');
+                }
+            }
+            finally {out.close();}
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {temp.delete();}
+
+        modified = false;
+    }
+
+
+
+    // - Entry class ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Digest of a file, as it was when the digest was computed.
+     * @author Nicolas Rinaudo
+     */
+    private static class Entry {
+        /** Size of the file. */
+        private final long   size;
+        /** Last modification date of the file. */
+        private final long   date;
+        /** Hexadecimal SHA-256 digest of the file. */
+        private final String digest;
+
+        /**
+         * Creates a new entry.
+         * @param size   size of the file.
+         * @param date   last modification date of the file.
+         * @param digest hexadecimal SHA-256 digest of the file.
+         */
+        private Entry(long size, long date, String digest) {
+            this.size   = size;
+            this.date   = date;
+            this.digest = digest;
+        }
+    }
+}
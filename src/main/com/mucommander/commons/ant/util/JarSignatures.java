@@ -0,0 +1,117 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Helper methods for dealing with signed JAR files.
+ * <p>
+ * Tasks that rewrite the content of JAR files invalidate their signature: the JVM refuses to load classes whose
+ * digest doesn't match the one recorded in the manifest. Such tasks must remove signature files and digest
+ * attributes, which leaves an unsigned JAR file that needs to be signed again.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class JarSignatures {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Path of the JAR manifest. */
+    public static final String  MANIFEST = "META-INF/MANIFEST.MF";
+    /** Folder that contains signature files. */
+    private static final String META_INF = "META-INF/";
+    /** Suffix of the manifest attributes that contain signature digests. */
+    private static final String DIGEST   = "-Digest";
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private JarSignatures() {}
+
+
+
+    // - Signature detection -------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns <code>true</code> if the specified entry is part of a JAR file's signature.
+     * @param  name name of the entry.
+     * @return      <code>true</code> if the specified entry is part of a JAR file's signature.
+     */
+    public static boolean isSignature(String name) {
+        if(!name.regionMatches(true, 0, META_INF, 0, META_INF.length()) || name.indexOf('/', META_INF.length()) != -1)
+            return false;
+
+        name = name.substring(META_INF.length()).toUpperCase(Locale.ENGLISH);
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC")
+               || name.startsWith("SIG-");
+    }
+
+    /**
+     * Returns <code>true</code> if the specified JAR file contains signature files.
+     * @param     jar         JAR file to analyse.
+     * @return                <code>true</code> if the specified JAR file contains signature files.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    public static boolean isSigned(File jar) throws IOException {
+        for(ZipDirectory.Entry entry : ZipDirectory.read(jar).getEntries())
+            if(isSignature(entry.getName()))
+                return true;
+        return false;
+    }
+
+
+
+    // - Signature removal ---------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Removes signature digests from the specified manifest, as well as the sections that only contained them.
+     * @param  manifest manifest to clean up.
+     * @return          <code>true</code> if the manifest was modified.
+     */
+    public static boolean removeDigests(Manifest manifest) {
+        Iterator<Attributes> sections;
+        boolean              changed;
+
+        changed  = false;
+        sections = manifest.getEntries().values().iterator();
+        while(sections.hasNext()) {
+            Attributes section;
+
+            section = sections.next();
+            for(Iterator<Object> names = section.keySet().iterator(); names.hasNext(); ) {
+                if(names.next().toString().endsWith(DIGEST)) {
+                    names.remove();
+                    changed = true;
+                }
+            }
+            if(section.isEmpty())
+                sections.remove();
+        }
+
+        return changed;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+/**
+ * Describes classes that must be kept when shrinking JAR files, typically because they're only loaded through
+ * reflection.
+ * <p>
+ * The <code>pattern</code> attribute is a fully qualified class name in which <code>*</code> matches any part of a
+ * package or class name and <code>**</code> matches any number of packages, such as <code>com.foo.plugins.**</code>.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class KeepElement {
+    private String pattern;
+
+    public String getPattern() {return pattern;}
+    public void setPattern(String s) {pattern = s;}
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs independent units of work concurrently on a small, short-lived thread pool.
+ * <p>
+ * This is meant for tasks that need to perform a handful of independent, IO bound operations. Each call to
+ * {@link #run(List)} creates its own pool, waits for all submitted work to be done and releases the pool, which
+ * means that callers don't need to worry about the life-cycle of the threads.
+ * </p>
+ * <p>
+ * Errors are reported as {@link BuildException BuildExceptions}: if any unit of work fails, all pending work is
+ * cancelled and the first error, in submission order, is rethrown once the units of work that were already running
+ * have stopped. No thread of the pool ever outlives the call that created it.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ParallelRunner {
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private ParallelRunner() {}
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the default number of threads used to run concurrent work.
+     * @return the default number of threads used to run concurrent work.
+     */
+    public static int getDefaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Runs the specified units of work using at most {@link #getDefaultThreads()} threads.
+     * @param     work           units of work to run.
+     * @return                   the result of each unit of work, in submission order.
+     * @exception BuildException thrown if any unit of work failed.
+     */
+    public static <T> List<T> run(List<? extends Callable<T>> work) throws BuildException {
+        return run(work, getDefaultThreads());
+    }
+
+    /**
+     * Runs the specified units of work using at most <code>threads</code> threads.
+     * <p>
+     * If only one thread is needed, work is run in the calling thread.
+     * </p>
+     * @param     work           units of work to run.
+     * @param     threads        maximum number of threads to use.
+     * @return                   the result of each unit of work, in submission order.
+     * @exception BuildException thrown if any unit of work failed.
+     */
+    public static <T> List<T> run(List<? extends Callable<T>> work, int threads) throws BuildException {
+        List<T>         results;
+        List<Future<T>> futures;
+        ExecutorService executor;
+
+        results = new ArrayList<T>(work.size());
+        threads = Math.max(1, Math.min(threads, work.size()));
+
+        // Runs the work in the current thread if there's no point in creating a pool.
+        if(threads == 1) {
+            for(Callable<T> callable : work) {
+                try {results.add(callable.call());}
+                catch(Exception e) {throw toBuildException(e);}
+            }
+            return results;
+        }
+
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            futures = new ArrayList<Future<T>>(work.size());
+            for(Callable<T> callable : work)
+                futures.add(executor.submit(callable));
+
+            for(Future<T> future : futures) {
+                try {results.add(future.get());}
+                catch(ExecutionException e) {throw toBuildException(e.getCause());}
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while waiting for concurrent work to finish", e);
+                }
+            }
+        }
+        // Releases the pool, cancelling any pending work if we're exiting on an error.
+        finally {shutdown(executor);}
+
+        return results;
+    }
+
+    /**
+     * Shuts the specified pool down and waits for all its threads to stop.
+     * <p>
+     * Running work is interrupted, but work that doesn't react to interruptions, such as blocking IO, is waited for:
+     * callers must be able to rely on no unit of work still running once {@link #run(List, int)} returns. If the
+     * calling thread is interrupted while waiting, its interrupted status is restored once the pool has stopped.
+     * </p>
+     * @param executor pool to shut down.
+     */
+    private static void shutdown(ExecutorService executor) {
+        boolean interrupted;
+
+        interrupted = false;
+        executor.shutdownNow();
+        while(true) {
+            try {
+                if(executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+                    break;
+            }
+            catch(InterruptedException e) {interrupted = true;}
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Wraps the specified error in a {@link BuildException} if necessary.
+     * @param  e error to wrap.
+     * @return   a {@link BuildException} describing the specified error.
+     */
+    private static BuildException toBuildException(Throwable e) {
+        if(e instanceof BuildException)
+            return (BuildException)e;
+        if(e instanceof Error)
+            throw (Error)e;
+        return new BuildException(e);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes ZIP archives by copying raw entries from other archives.
+ * <p>
+ * Entries are copied as they're stored - local header, compressed data and data descriptor - without being inflated
+ * or recompressed, and the central directory is rebuilt from the source records with updated offsets. This makes
+ * reordering or merging archives about as fast as copying files.
+ * </p>
+ * <p>
+ * Entries can also be re-emitted uncompressed through {@link #store(ZipDirectory.Entry, byte[])}, in which case
+ * their metadata is taken from the source record, or be given new content through
+ * {@link #replace(ZipDirectory.Entry, byte[])} and {@link #replace(ZipDirectory.Entry, byte[], byte[])}. Entries
+ * that don't exist in any source archive are added through {@link #add(String, long, byte[])}.
+ * </p>
+ * <p>
+ * As with {@link ZipDirectory}, ZIP64 archives are not supported.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class RawZipWriter {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Signature of the end of central directory record. */
+    private static final int  END_SIGNATURE    = 0x06054b50;
+    /** Signature of central directory records. */
+    private static final int  RECORD_SIGNATURE = 0x02014b50;
+    /** Signature of local file headers. */
+    private static final int  LOCAL_SIGNATURE  = 0x04034b50;
+    /** Size of local file headers, without their variable length fields. */
+    private static final int  LOCAL_SIZE       = 30;
+    /** Size of central directory records, without their variable length fields. */
+    private static final int  RECORD_SIZE      = 46;
+    /** General purpose flag set when sizes and CRC are stored in a data descriptor. */
+    private static final int  FLAG_DESCRIPTOR  = 0x0008;
+    /** General purpose flag set when names are encoded in UTF-8. */
+    private static final int  FLAG_UTF8        = 0x0800;
+    /** Version of the ZIP specifications needed to extract stored entries. */
+    private static final int  VERSION_STORED   = 10;
+    /** Offset of the local header offset field in central directory records. */
+    private static final int  OFFSET_FIELD     = 42;
+    /** Maximum number of entries in an archive. */
+    private static final int  MAX_ENTRIES      = 0xFFFF;
+    /** Maximum offset in an archive. */
+    private static final long MAX_OFFSET       = 0xFFFFFFFFL;
+    /** Size of the buffer used to copy entries. */
+    private static final int  BUFFER_SIZE      = 65536;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Where to write the archive. */
+    private final OutputStream          out;
+    /** Central directory of the archive. */
+    private final ByteArrayOutputStream directory;
+    /** Used to copy entries. */
+    private final ByteBuffer            buffer;
+    /** Number of bytes written so far. */
+    private long                        position;
+    /** Number of entries written so far. */
+    private int                         count;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new writer on the specified stream.
+     * @param out where to write the archive.
+     */
+    public RawZipWriter(OutputStream out) {
+        this.out  = out;
+        directory = new ByteArrayOutputStream();
+        buffer    = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+
+
+    // - Archive writing -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Copies the specified entry.
+     * @param     from         archive that contains the entry.
+     * @param     entry        entry to copy, as read from <code>from</code>.
+     * @exception ZipException thrown if the archive grows too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public void copy(FileChannel from, ZipDirectory.Entry entry) throws IOException {
+        byte[] record;
+        long   offset;
+        long   length;
+
+        if(count == MAX_ENTRIES || position > MAX_OFFSET)
+            throw new ZipException("ZIP64 archives are not supported");
+
+        // Records the entry with its new offset.
+        record = entry.getRecord();
+        ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).putInt(OFFSET_FIELD, (int)position);
+        directory.write(record);
+        count++;
+
+        // Copies the entry's block.
+        offset = entry.getHeaderOffset();
+        length = entry.getEndOffset() - offset;
+        while(length > 0) {
+            int size;
+
+            size = (int)Math.min(length, BUFFER_SIZE);
+            buffer.clear().limit(size);
+            ZipDirectory.readFully(from, buffer, offset);
+            out.write(buffer.array(), 0, size);
+            position += size;
+            offset   += size;
+            length   -= size;
+        }
+    }
+
+    /**
+     * Writes the specified entry, uncompressed.
+     * <p>
+     * The entry's name, dates, CRC and extra fields are taken from its source record. It's up to the caller to make
+     * sure that <code>data</code> matches that CRC.
+     * </p>
+     * @param     entry        entry to write, as read from its source archive.
+     * @param     data         uncompressed content of the entry.
+     * @exception ZipException thrown if the archive grows too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public void store(ZipDirectory.Entry entry, byte[] data) throws IOException {
+        write(entry.getRecord(), ZipEntry.STORED, entry.getCrc(), data.length, data);
+    }
+
+    /**
+     * Writes the specified entry with new content, uncompressed.
+     * <p>
+     * The entry's name, dates and extra fields are taken from its source record, while its CRC is computed from
+     * <code>data</code>.
+     * </p>
+     * @param     entry        entry to write, as read from its source archive.
+     * @param     data         new uncompressed content of the entry.
+     * @exception ZipException thrown if the archive grows too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public void replace(ZipDirectory.Entry entry, byte[] data) throws IOException {
+        write(entry.getRecord(), ZipEntry.STORED, getCrc(data), data.length, data);
+    }
+
+    /**
+     * Writes the specified entry with new, deflated content.
+     * <p>
+     * This allows callers to compress entries concurrently before writing them in order.
+     * </p>
+     * @param     entry        entry to write, as read from its source archive.
+     * @param     data         new uncompressed content of the entry.
+     * @param     compressed   <code>data</code>, compressed as a raw deflate stream.
+     * @exception ZipException thrown if the archive grows too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public void replace(ZipDirectory.Entry entry, byte[] data, byte[] compressed) throws IOException {
+        write(entry.getRecord(), ZipEntry.DEFLATED, getCrc(data), data.length, compressed);
+    }
+
+    /**
+     * Writes a new entry, uncompressed.
+     * @param     name         name of the entry.
+     * @param     time         last modification date of the entry, in milliseconds since the epoch.
+     * @param     data         content of the entry.
+     * @exception ZipException thrown if the archive grows too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public void add(String name, long time, byte[] data) throws IOException {
+        ByteBuffer record;
+        Calendar   calendar;
+        byte[]     bytes;
+
+        bytes    = name.getBytes(Charset.forName("UTF-8"));
+        calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        // Builds a source record for the entry, which write will complete. Dates before 1980 cannot be represented.
+        record = ByteBuffer.allocate(RECORD_SIZE + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(RECORD_SIGNATURE);
+        record.putShort((short)VERSION_STORED);
+        record.putShort((short)VERSION_STORED);
+        record.putShort((short)FLAG_UTF8);
+        record.putShort((short)ZipEntry.STORED);
+        if(calendar.get(Calendar.YEAR) < 1980) {
+            record.putShort((short)0);
+            record.putShort((short)((1 << 5) | 1));
+        }
+        else {
+            record.putShort((short)((calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+                                    | (calendar.get(Calendar.SECOND) >> 1)));
+            record.putShort((short)(((calendar.get(Calendar.YEAR) - 1980) << 9)
+                                    | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH)));
+        }
+        record.position(28);
+        record.putShort((short)bytes.length);
+        record.position(RECORD_SIZE);
+        record.put(bytes);
+
+        write(record.array(), ZipEntry.STORED, getCrc(data), data.length, data);
+    }
+
+    /**
+     * Returns the CRC-32 of the specified data.
+     * @param  data data to analyse.
+     * @return      the CRC-32 of the specified data.
+     */
+    private static long getCrc(byte[] data) {
+        CRC32 crc;
+
+        crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the specified entry with the specified content.
+     * @param     source       central directory record of the entry in its source archive.
+     * @param     method       compression method of <code>content</code>.
+     * @param     crc          CRC-32 of the entry's uncompressed data.
+     * @param     size         size of the entry's uncompressed data.
+     * @param     content      content of the entry, as stored in the archive.
+     * @exception ZipException thrown if the archive grows too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    private void write(byte[] source, int method, long crc, int size, byte[] content) throws IOException {
+        ByteBuffer record;
+        ByteBuffer header;
+        int        nameLength;
+        int        flags;
+
+        if(count == MAX_ENTRIES || position > MAX_OFFSET)
+            throw new ZipException("ZIP64 archives are not supported");
+
+        // Updates the source record: no data descriptor, new content.
+        record     = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+        nameLength = record.getShort(28) & 0xFFFF;
+        flags      = (record.getShort(8) & 0xFFFF) & ~FLAG_DESCRIPTOR;
+        record.putShort(8, (short)flags);
+        record.putShort(10, (short)method);
+        record.putInt(16, (int)crc);
+        record.putInt(20, content.length);
+        record.putInt(24, size);
+        record.putInt(OFFSET_FIELD, (int)position);
+        directory.write(record.array());
+        count++;
+
+        // Writes the matching local header, without extra fields.
+        header = ByteBuffer.allocate(LOCAL_SIZE + nameLength).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_SIGNATURE);
+        header.putShort(record.getShort(6));
+        header.putShort((short)flags);
+        header.putShort((short)method);
+        header.putShort(record.getShort(12));
+        header.putShort(record.getShort(14));
+        header.putInt(record.getInt(16));
+        header.putInt(content.length);
+        header.putInt(size);
+        header.putShort((short)nameLength);
+        header.putShort((short)0);
+        header.put(record.array(), RECORD_SIZE, nameLength);
+
+        out.write(header.array());
+        out.write(content);
+        position += header.capacity() + content.length;
+    }
+
+    /**
+     * Writes the central directory of the archive.
+     * <p>
+     * The underlying stream is flushed but not closed.
+     * </p>
+     * @exception ZipException thrown if the archive is too large.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public void finish() throws IOException {
+        ByteBuffer end;
+
+        if(position > MAX_OFFSET || directory.size() > MAX_OFFSET - position)
+            throw new ZipException("ZIP64 archives are not supported");
+
+        end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short)0);
+        end.putShort((short)0);
+        end.putShort((short)count);
+        end.putShort((short)count);
+        end.putInt(directory.size());
+        end.putInt((int)position);
+        end.putShort((short)0);
+
+        directory.writeTo(out);
+        out.write(end.array());
+        out.flush();
+        position += directory.size() + end.capacity();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Ant task used to remove unreachable classes from a set of JAR files, such as the resources of a JNLP application.
+ * <p>
+ * Reachability is computed from the class specified by the <code>main</code> attribute, which should be the same as
+ * the <code>main</code> attribute of the JNLP file's <code>application-desc</code> element. If not set, the
+ * <code>Main-Class</code> declared by the manifest of the first JAR file is used. Classes that are only loaded
+ * through reflection must be described by nested <code>keep</code> elements. See {@link ClassShrinker} for details.
+ * </p>
+ * <p>
+ * All JAR files described by the nested filesets are analysed together, and their shrunk copies are written to the
+ * folder specified by the <code>todir</code> attribute, under the same relative paths. This folder can be the source
+ * folder, in which case JAR files are shrunk in place. JAR files are analysed and written concurrently, and the
+ * number of bytes saved is reported for each of them.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ShrinkTask extends Task {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Class from which reachability is computed. */
+    private String            main;
+    /** Where to write shrunk JAR files. */
+    private File              destination;
+    /** Maximum number of threads to use. */
+    private int               threads;
+    /** JAR files to shrink. */
+    private List<FileSet>     files;
+    /** Classes that must be kept. */
+    private List<KeepElement> keeps;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises a ShrinkTask.
+     */
+    public ShrinkTask() {}
+
+    /**
+     * Initialises the ShrinkTask.
+     */
+    public void init() {
+        main        = null;
+        destination = null;
+        threads     = ParallelRunner.getDefaultThreads();
+        files       = new ArrayList<FileSet>();
+        keeps       = new ArrayList<KeepElement>();
+    }
+
+
+
+    // - Parameters ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Fully qualified name of the class from which reachability is computed.
+     * <p>
+     * Defaults to the <code>Main-Class</code> declared by the manifest of the first JAR file.
+     * </p>
+     */
+    public void setMain(String s) {main = s;}
+
+    /**
+     * Where to write shrunk JAR files.
+     */
+    public void setTodir(File f) {destination = f;}
+
+    /**
+     * Maximum number of threads to use.
+     * <p>
+     * Defaults to the number of available processors.
+     * </p>
+     */
+    public void setThreads(int i) {threads = i;}
+
+
+
+    // - Nested elements -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    public void addFileset(FileSet f) {files.add(f);}
+
+    public KeepElement createKeep() {
+        KeepElement keep;
+
+        keep = new KeepElement();
+        keeps.add(keep);
+
+        return keep;
+    }
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure all parameters have been properly initialised.
+     */
+    private void check() throws BuildException {
+        if(destination == null)
+            throw new BuildException("No destination folder specified. Please fill in the todir argument.");
+        if(files.isEmpty())
+            throw new BuildException("No JAR file specified. Please add a nested fileset.");
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+        for(KeepElement keep : keeps)
+            if(keep.getPattern() == null)
+                throw new BuildException("No pattern specified for keep element.");
+    }
+
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs while shrinking JAR files.
+     */
+    public void execute() throws BuildException {
+        final ClassShrinker    shrinker;
+        List<File>             jars;
+        List<File>             targets;
+        List<Callable<Result>> work;
+        List<Result>           results;
+        long                   total;
+
+        check();
+
+        // Lists the JAR files to shrink.
+        jars    = new ArrayList<File>();
+        targets = new ArrayList<File>();
+        for(FileSet set : files) {
+            DirectoryScanner scanner;
+
+            scanner = set.getDirectoryScanner(getProject());
+            for(String path : scanner.getIncludedFiles()) {
+                jars.add(new File(set.getDir(getProject()), path));
+                targets.add(new File(destination, path));
+            }
+        }
+        if(jars.isEmpty())
+            throw new BuildException("No JAR file found.");
+
+        // Computes which classes are reachable.
+        shrinker = new ClassShrinker();
+        try {
+            if(main == null && (main = ClassShrinker.getMainClass(jars.get(0))) == null)
+                throw new BuildException("No main class specified. Please fill in the main argument.");
+        }
+        catch(IOException e) {throw new BuildException("Could not read " + jars.get(0), e);}
+        shrinker.addRoot(main);
+        for(KeepElement keep : keeps)
+            shrinker.addKeep(keep.getPattern());
+        shrinker.analyse(jars, threads);
+
+        // Writes all JAR files concurrently.
+        work = new ArrayList<Callable<Result>>();
+        for(int i = 0; i < jars.size(); i++) {
+            final File jar;
+            final File target;
+
+            jar    = jars.get(i);
+            target = targets.get(i);
+            work.add(new Callable<Result>() {
+                public Result call() throws IOException {return shrink(shrinker, jar, target);}
+            });
+        }
+        results = ParallelRunner.run(work, threads);
+
+        // Reports savings.
+        total = 0;
+        for(int i = 0; i < jars.size(); i++) {
+            Result result;
+            long   saved;
+
+            result = results.get(i);
+            saved  = result.size - result.shrunkSize;
+            total += saved;
+            log("Shrunk " + jars.get(i).getName() + ": removed " + result.classes + " classes, saved " + saved
+                + " bytes (" + (result.size == 0 ? 0 : Math.round(saved * 100.0 / result.size)) + "%).");
+        }
+        log(shrinker.getReachableCount() + " reachable classes, saved " + total + " bytes in total.");
+    }
+
+    /**
+     * Shrinks the specified JAR file.
+     * <p>
+     * The shrunk JAR file is written next to its destination and moved in place once complete, which allows JAR files
+     * to be shrunk in place.
+     * </p>
+     * @param     shrinker    used to shrink the JAR file.
+     * @param     jar         JAR file to shrink.
+     * @param     target      where to write the shrunk JAR file.
+     * @return                how much the JAR file was shrunk.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static Result shrink(ClassShrinker shrinker, File jar, File target) throws IOException {
+        OutputStream out;
+        File         temp;
+        long         size;
+        int          count;
+
+        size = jar.length();
+        if(!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs())
+            throw new IOException("Could not create directory " + target.getParentFile());
+
+        temp = new File(target.getPath() + ".tmp");
+        try {
+            out = new FileOutputStream(temp);
+            try {count = shrinker.write(jar, out);}
+            finally {out.close();}
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {temp.delete();}
+
+        return new Result(count, size, target.length());
+    }
+
+
+
+    // - Result class --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Describes how much a JAR file was shrunk.
+     * @author Nicolas Rinaudo
+     */
+    private static class Result {
+        /** Number of classes that were removed. */
+        private final int  classes;
+        /** Size of the original JAR file. */
+        private final long size;
+        /** Size of the shrunk JAR file. */
+        private final long shrunkSize;
+
+        /**
+         * Creates a new result.
+         * @param classes    number of classes that were removed.
+         * @param size       size of the original JAR file.
+         * @param shrunkSize size of the shrunk JAR file.
+         */
+        Result(int classes, long size, long shrunkSize) {
+            this.classes    = classes;
+            this.size       = size;
+            this.shrunkSize = shrunkSize;
+        }
+    }
+}
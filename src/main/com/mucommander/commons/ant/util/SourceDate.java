@@ -0,0 +1,82 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Gives access to the <code>SOURCE_DATE_EPOCH</code> environment variable.
+ * <p>
+ * <code>SOURCE_DATE_EPOCH</code> is the de facto standard way of telling build tools which timestamp to use
+ * instead of the current time, so that two builds of the same sources yield byte-identical artifacts. Its
+ * value is a number of seconds since 1970-01-01T00:00:00Z.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class SourceDate {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the environment variable that holds the source date. */
+    public static final String VARIABLE = "SOURCE_DATE_EPOCH";
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private SourceDate() {}
+
+
+
+    // - Source date access --------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns <code>true</code> if the source date has been set.
+     * @return <code>true</code> if the source date has been set, <code>false</code> otherwise.
+     */
+    public static boolean isSet() {
+        String value;
+
+        return (value = System.getenv(VARIABLE)) != null && value.trim().length() != 0;
+    }
+
+    /**
+     * Returns the source date, in milliseconds since 1970-01-01T00:00:00Z.
+     * @return                   the source date, or <code>null</code> if it hasn't been set.
+     * @exception BuildException thrown if the variable is set to an illegal value.
+     */
+    public static Long getTime() throws BuildException {
+        String value;
+
+        if(!isSet())
+            return null;
+
+        value = System.getenv(VARIABLE).trim();
+        try {
+            long seconds;
+
+            if((seconds = Long.parseLong(value)) < 0)
+                throw new BuildException("Illegal " + VARIABLE + " value: " + value);
+            return seconds * 1000;
+        }
+        catch(NumberFormatException e) {throw new BuildException("Illegal " + VARIABLE + " value: " + value, e);}
+    }
+}
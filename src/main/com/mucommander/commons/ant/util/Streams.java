@@ -0,0 +1,77 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helper methods for dealing with streams.
+ * @author Nicolas Rinaudo
+ */
+public class Streams {
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private Streams() {}
+
+
+
+    // - Stream reading ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads the whole content of the specified stream.
+     * <p>
+     * If the size of the content is known, as is the case for files and JAR entries, it's read straight into an
+     * array of the right size. The stream is not closed by this method.
+     * </p>
+     * @param     in          stream to read.
+     * @param     size        size of the content, or <code>-1</code> if unknown.
+     * @return                the content of the stream.
+     * @exception IOException thrown if an error occurs while reading the stream.
+     */
+    public static byte[] readFully(InputStream in, long size) throws IOException {
+        byte[] buffer;
+        int    count;
+
+        // Unknown size, buffers the content.
+        if(size < 0 || size > Integer.MAX_VALUE) {
+            ByteArrayOutputStream out;
+
+            out    = new ByteArrayOutputStream();
+            buffer = new byte[8192];
+            while((count = in.read(buffer)) != -1)
+                out.write(buffer, 0, count);
+
+            return out.toByteArray();
+        }
+
+        // Known size, reads the content in place.
+        buffer = new byte[(int)size];
+        for(int length = 0; length < buffer.length; length += count)
+            if((count = in.read(buffer, length, buffer.length - length)) == -1)
+                throw new EOFException("Expected " + size + " bytes, found " + length);
+
+        return buffer;
+    }
+}
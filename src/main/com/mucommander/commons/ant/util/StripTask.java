@@ -0,0 +1,194 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ant task used to remove debugging attributes from the classes of a set of JAR files, such as the resources of a
+ * JNLP application.
+ * <p>
+ * The attributes to remove are described by the <code>attributes</code> attribute, a comma separated list that
+ * defaults to <code>LineNumberTable</code>, <code>LocalVariableTable</code>, <code>LocalVariableTypeTable</code>,
+ * <code>SourceFile</code> and <code>SourceDebugExtension</code>. Stripped copies of the JAR files are written to the
+ * folder specified by the <code>todir</code> attribute, under the same relative paths. This folder can be the source
+ * folder, in which case JAR files are stripped in place.
+ * </p>
+ * <p>
+ * Classes are stripped concurrently, and stripped JAR files are cached by content in the folder specified by the
+ * <code>cache</code> attribute, which defaults to <code>~/.mkapp/stripped</code>. See {@link ClassStripper} for
+ * details.
+ * </p>
+ * <p>
+ * Stripping a signed JAR file removes its signature, since it would no longer match the stripped classes. A warning
+ * is logged for such JAR files, which must be signed again.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class StripTask extends Task {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Comma separated list of the attributes to remove. */
+    private String        attributes;
+    /** Where to write stripped JAR files. */
+    private File          destination;
+    /** Where to cache stripped JAR files. */
+    private File          cache;
+    /** Maximum number of threads to use. */
+    private int           threads;
+    /** JAR files to strip. */
+    private List<FileSet> files;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Builds and initialises a StripTask.
+     */
+    public StripTask() {}
+
+    /**
+     * Initialises the StripTask.
+     */
+    public void init() {
+        attributes  = ClassStripper.DEFAULT_ATTRIBUTES;
+        destination = null;
+        cache       = ClassStripper.getDefaultFolder();
+        threads     = ParallelRunner.getDefaultThreads();
+        files       = new ArrayList<FileSet>();
+    }
+
+
+
+    // - Parameters ----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Comma separated list of the attributes to remove.
+     * <p>
+     * Defaults to all debugging attributes.
+     * </p>
+     */
+    public void setAttributes(String s) {attributes = s;}
+
+    /**
+     * Where to write stripped JAR files.
+     */
+    public void setTodir(File f) {destination = f;}
+
+    /**
+     * Where to cache stripped JAR files.
+     * <p>
+     * Defaults to <code>~/.mkapp/stripped</code>.
+     * </p>
+     */
+    public void setCache(File f) {cache = f;}
+
+    /**
+     * Maximum number of threads to use.
+     * <p>
+     * Defaults to the number of available processors.
+     * </p>
+     */
+    public void setThreads(int i) {threads = i;}
+
+
+
+    // - Nested elements -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    public void addFileset(FileSet f) {files.add(f);}
+
+
+
+    // - Execution -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure all parameters have been properly initialised.
+     */
+    private void check() throws BuildException {
+        if(destination == null)
+            throw new BuildException("No destination folder specified. Please fill in the todir argument.");
+        if(files.isEmpty())
+            throw new BuildException("No JAR file specified. Please add a nested fileset.");
+        if(ClassStripper.parseAttributes(attributes).isEmpty())
+            throw new BuildException("No attribute specified. Please fill in the attributes argument.");
+        if(threads < 1)
+            throw new BuildException("Illegal threads value: " + threads);
+    }
+
+    /**
+     * Entry point of the task.
+     * @exception BuildException thrown if any error occurs while stripping JAR files.
+     */
+    public void execute() throws BuildException {
+        ClassStripper stripper;
+        long          total;
+
+        check();
+        stripper = new ClassStripper(ClassStripper.parseAttributes(attributes));
+
+        // JAR files are stripped one at a time, each of them using all threads.
+        total = 0;
+        for(FileSet set : files) {
+            DirectoryScanner scanner;
+
+            scanner = set.getDirectoryScanner(getProject());
+            for(String path : scanner.getIncludedFiles()) {
+                File jar;
+                File target;
+                File temp;
+                long size;
+                long saved;
+
+                jar    = new File(set.getDir(getProject()), path);
+                target = new File(destination, path);
+                size   = jar.length();
+                temp   = new File(target.getPath() + ".tmp");
+                try {
+                    if(!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs())
+                        throw new IOException("Could not create directory " + target.getParentFile());
+                    if(JarSignatures.isSigned(jar))
+                        log(jar.getName() + " is signed: its signature was removed and it must be signed again.",
+                            Project.MSG_WARN);
+                    Files.copy(stripper.getStripped(jar, cache, threads).toPath(), temp.toPath(),
+                               StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch(IOException e) {throw new BuildException("Could not strip " + jar, e);}
+                finally {temp.delete();}
+
+                saved  = size - target.length();
+                total += saved;
+                log("Stripped " + jar.getName() + ": saved " + saved + " bytes ("
+                    + (size == 0 ? 0 : Math.round(saved * 100.0 / size)) + "%).");
+            }
+        }
+        log("Saved " + total + " bytes in total.");
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Serialises SAX events straight to UTF-8 bytes.
+ * <p>
+ * Output is indented the same way as that of {@link XmlWriter}'s default handler: elements that only contain text
+ * are written on a single line, empty elements are collapsed and nested elements are indented by four spaces. This
+ * handler doesn't support mixed content, which none of the formats generated by this library use.
+ * </p>
+ * <p>
+ * Unlike a JAXP transformer, this handler is cheap to create and can start at any depth, which makes it possible to
+ * render part of a document once and splice it, through {@link #fragment(byte[])}, into several documents. A
+ * fragment can be spliced into any document, as long as it's at the same depth as the one it was rendered at.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class XmlSerializer implements ContentHandler {
+    // - Constants -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Encoding of all serialised documents. */
+    public static final Charset UTF8        = Charset.forName("UTF-8");
+    /** XML declaration of all serialised documents. */
+    private static final byte[] DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+                                              .getBytes(UTF8);
+    /** Line separator, as used by JAXP transformers. */
+    private static final byte[] NEW_LINE    = System.getProperty("line.separator", "\n").getBytes(UTF8);
+    /** Number of spaces per indentation level. */
+    private static final int    INDENT      = 4;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Where to write the document. */
+    private final OutputStream out;
+    /** Current depth. */
+    private int                depth;
+    /** Whether the last start tag is still open. */
+    private boolean            open;
+    /** Whether the current element contains text. */
+    private boolean            text;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new serialiser that writes a document to the specified stream.
+     * @param out where to write the document.
+     */
+    public XmlSerializer(OutputStream out) {
+        this(out, 0);
+    }
+
+    /**
+     * Creates a new serialiser that writes a fragment at the specified depth to the specified stream.
+     * @param out   where to write the fragment.
+     * @param depth depth of the fragment, <code>1</code> for the children of the root element.
+     */
+    public XmlSerializer(OutputStream out, int depth) {
+        this.out   = out;
+        this.depth = depth;
+    }
+
+
+
+    // - Fragments -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the specified fragment at the current position.
+     * <p>
+     * The fragment must have been rendered by a serialiser created at the current depth.
+     * </p>
+     * @param     fragment     fragment to write.
+     * @exception SAXException thrown if an IO error occurs.
+     */
+    public void fragment(byte[] fragment) throws SAXException {
+        try {
+            closeStartTag(true);
+            out.write(fragment);
+        }
+        catch(IOException e) {throw new SAXException(e);}
+    }
+
+
+
+    // - Escaping ------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the specified value, escaped, to the specified stream.
+     * <p>
+     * ASCII characters are written without allocating memory, which makes this method suitable for values that are
+     * escaped on every request.
+     * </p>
+     * @param     out         where to write the value.
+     * @param     value       value to escape.
+     * @param     attribute   whether the value is that of an attribute, in which case quotes and whitespace are
+     *                        escaped as well.
+     * @exception IOException thrown if an IO error occurs.
+     */
+    public static void escape(OutputStream out, CharSequence value, boolean attribute) throws IOException {
+        int length;
+
+        length = value.length();
+        for(int i = 0; i < length; i++) {
+            char c;
+
+            c = value.charAt(i);
+            switch(c) {
+            case '&':
+                writeAscii(out, "&amp;");
+                break;
+
+            case '<':
+                writeAscii(out, "&lt;");
+                break;
+
+            case '>':
+                writeAscii(out, "&gt;");
+                break;
+
+            case '"':
+                if(attribute)
+                    writeAscii(out, "&quot;");
+                else
+                    out.write(c);
+                break;
+
+            case '\n':
+            case '\t':
+                if(attribute)
+                    writeAscii(out, "&#" + (int)c + ';');
+                else
+                    out.write(c);
+                break;
+
+            case '\r':
+                writeAscii(out, "&#13;");
+                break;
+
+            default:
+                if(c < 0x80)
+                    out.write(c);
+
+                // Encodes runs of non-ASCII characters at once, which keeps surrogate pairs together.
+                else {
+                    int end;
+
+                    for(end = i + 1; end < length && value.charAt(end) >= 0x80; end++);
+                    out.write(value.subSequence(i, end).toString().getBytes(UTF8));
+                    i = end - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the specified ASCII string to the specified stream.
+     * @param     out         where to write the string.
+     * @param     s           string to write.
+     * @exception IOException thrown if an IO error occurs.
+     */
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        for(int i = 0; i < s.length(); i++)
+            out.write(s.charAt(i));
+    }
+
+
+
+    // - Serialisation -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes the indentation of the current depth.
+     * @exception IOException thrown if an IO error occurs.
+     */
+    private void indent() throws IOException {
+        for(int i = 0; i < depth * INDENT; i++)
+            out.write(' ');
+    }
+
+    /**
+     * Closes the last start tag, if still open.
+     * @param     children     whether the element is about to receive child elements rather than text.
+     * @exception IOException  thrown if an IO error occurs.
+     */
+    private void closeStartTag(boolean children) throws IOException {
+        if(open) {
+            out.write('>');
+            if(children)
+                out.write(NEW_LINE);
+            open = false;
+        }
+    }
+
+    public void startDocument() throws SAXException {
+        try {
+            out.write(DECLARATION);
+            out.write(NEW_LINE);
+        }
+        catch(IOException e) {throw new SAXException(e);}
+    }
+
+    public void endDocument() throws SAXException {
+        try {out.flush();}
+        catch(IOException e) {throw new SAXException(e);}
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        try {
+            closeStartTag(true);
+            indent();
+            out.write('<');
+            writeAscii(out, qName);
+            for(int i = 0; i < atts.getLength(); i++) {
+                out.write(' ');
+                writeAscii(out, atts.getQName(i));
+                out.write('=');
+                out.write('"');
+                escape(out, atts.getValue(i), true);
+                out.write('"');
+            }
+        }
+        catch(IOException e) {throw new SAXException(e);}
+
+        open = true;
+        text = false;
+        depth++;
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        depth--;
+        try {
+            if(open)
+                out.write('/');
+            else {
+                if(!text)
+                    indent();
+                out.write('<');
+                out.write('/');
+                writeAscii(out, qName);
+            }
+            out.write('>');
+            out.write(NEW_LINE);
+        }
+        catch(IOException e) {throw new SAXException(e);}
+
+        open = false;
+        text = false;
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if(length == 0)
+            return;
+
+        try {
+            closeStartTag(false);
+            escape(out, new String(ch, start, length), false);
+        }
+        catch(IOException e) {throw new SAXException(e);}
+        text = true;
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) {}
+    public void setDocumentLocator(Locator locator) {}
+    public void startPrefixMapping(String prefix, String uri) {}
+    public void endPrefixMapping(String prefix) {}
+    public void processingInstruction(String target, String data) {}
+    public void skippedEntity(String name) {}
+}
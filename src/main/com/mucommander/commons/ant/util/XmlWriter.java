@@ -48,6 +48,10 @@ public class XmlWriter implements ContentHandler {
         this.out = createHandler(out, docType);
     }
 
+    public XmlWriter(ContentHandler out) {
+        this.out = out;
+    }
+
     private static ContentHandler createHandler(OutputStream out, String doctType) {
         SAXTransformerFactory factory;
         TransformerHandler    transformer;
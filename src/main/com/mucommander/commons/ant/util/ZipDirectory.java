@@ -0,0 +1,460 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mucommander.commons.ant.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Raw view of the central directory of a ZIP file.
+ * <p>
+ * Unlike <code>java.util.zip</code>, this class exposes where each entry's compressed data is stored in the archive,
+ * which allows tools to copy, compare or hash entries without inflating them. Only the central directory and local
+ * headers are read: entry data is left untouched unless explicitly requested through
+ * {@link #readContent(FileChannel, Entry)}.
+ * </p>
+ * <p>
+ * ZIP64 and multi-volume archives are not supported, which is not an issue for JAR files under 4GB.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class ZipDirectory {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Signature of the end of central directory record. */
+    private static final int END_SIGNATURE   = 0x06054b50;
+    /** Signature of central directory entries. */
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    /** Signature of local file headers. */
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    /** Size of the end of central directory record, without its comment. */
+    private static final int END_SIZE        = 22;
+    /** Size of central directory entries, without their variable length fields. */
+    private static final int ENTRY_SIZE      = 46;
+    /** Size of local file headers, without their variable length fields. */
+    private static final int LOCAL_SIZE      = 30;
+    /** Maximum length of the archive comment. */
+    private static final int MAX_COMMENT     = 0xFFFF;
+    /** Orders entries by position in the archive. */
+    private static final Comparator<Entry> BY_OFFSET = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.headerOffset < b.headerOffset ? -1 : a.headerOffset == b.headerOffset ? 0 : 1;
+        }
+    };
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Entries of the archive, in central directory order. */
+    private final List<Entry> entries;
+    /** Offset of the central directory in the archive. */
+    private final long        directoryOffset;
+    /** Size of the archive. */
+    private final long        length;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new ZIP directory.
+     * @param entries         entries of the archive, in central directory order.
+     * @param directoryOffset offset of the central directory in the archive.
+     * @param length          size of the archive.
+     */
+    private ZipDirectory(List<Entry> entries, long directoryOffset, long length) {
+        this.entries         = Collections.unmodifiableList(entries);
+        this.directoryOffset = directoryOffset;
+        this.length          = length;
+    }
+
+    /**
+     * Reads the central directory of the specified archive.
+     * @param     file         archive to read.
+     * @return                 the central directory of the specified archive.
+     * @exception ZipException thrown if the file is not a supported ZIP archive.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public static ZipDirectory read(File file) throws IOException {
+        RandomAccessFile in;
+
+        in = new RandomAccessFile(file, "r");
+        try {return read(in.getChannel());}
+        finally {
+            try {in.close();}
+            catch(Exception e) {}
+        }
+    }
+
+    /**
+     * Reads the central directory of the specified archive.
+     * @param     channel      channel on the archive to read.
+     * @return                 the central directory of the specified archive.
+     * @exception ZipException thrown if the file is not a supported ZIP archive.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public static ZipDirectory read(FileChannel channel) throws IOException {
+        ByteBuffer  buffer;
+        ByteBuffer  header;
+        List<Entry> entries;
+        List<Entry> sorted;
+        long        size;
+        long        offset;
+        int         count;
+        int         position;
+
+        // Looks for the end of central directory record, which is followed by a comment of up to 64K.
+        size   = channel.size();
+        buffer = read(channel, Math.max(0, size - END_SIZE - MAX_COMMENT), (int)Math.min(size, END_SIZE + MAX_COMMENT));
+        for(position = buffer.limit() - END_SIZE; position >= 0; position--)
+            if(buffer.getInt(position) == END_SIGNATURE)
+                break;
+        if(position < 0)
+            throw new ZipException("End of central directory not found");
+
+        count  = buffer.getShort(position + 10) & 0xFFFF;
+        offset = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+        if(count == 0xFFFF || offset == 0xFFFFFFFFL || (buffer.getShort(position + 4) & 0xFFFF) != 0)
+            throw new ZipException("ZIP64 and multi-volume archives are not supported");
+
+        // Reads the central directory.
+        buffer  = read(channel, offset, (int)(buffer.getInt(position + 12) & 0xFFFFFFFFL));
+        entries = new ArrayList<Entry>(count);
+        header  = ByteBuffer.allocate(LOCAL_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < count; i++) {
+            Entry  entry;
+            byte[] name;
+            int    flags;
+            int    nameLength;
+
+            if(buffer.remaining() < ENTRY_SIZE || buffer.getInt(buffer.position()) != ENTRY_SIGNATURE)
+                throw new ZipException("Invalid central directory entry #" + i);
+            position   = buffer.position();
+            flags      = buffer.getShort(position + 8) & 0xFFFF;
+            nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            name       = new byte[nameLength];
+            buffer.position(position + ENTRY_SIZE);
+            buffer.get(name);
+
+            // Names are decoded as UTF-8 even without the matching flag, as that's what the JAR tools do.
+            entry = new Entry(new String(name, "UTF-8"), flags,
+                              buffer.getShort(position + 10) & 0xFFFF,
+                              buffer.getInt(position + 16) & 0xFFFFFFFFL,
+                              buffer.getInt(position + 20) & 0xFFFFFFFFL,
+                              buffer.getInt(position + 24) & 0xFFFFFFFFL,
+                              buffer.getInt(position + 42) & 0xFFFFFFFFL);
+            if(entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.headerOffset == 0xFFFFFFFFL)
+                throw new ZipException("ZIP64 entries are not supported: " + entry.name);
+            buffer.position(position + ENTRY_SIZE + nameLength + (buffer.getShort(position + 30) & 0xFFFF)
+                            + (buffer.getShort(position + 32) & 0xFFFF));
+            entry.record = new byte[buffer.position() - position];
+            buffer.position(position);
+            buffer.get(entry.record);
+
+            // Finds where the entry's data starts, as local headers have their own variable length fields.
+            header.clear();
+            readFully(channel, header, entry.headerOffset);
+            if(header.getInt(0) != LOCAL_SIGNATURE)
+                throw new ZipException("Invalid local header: " + entry.name);
+            entry.dataOffset = entry.headerOffset + LOCAL_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+            entries.add(entry);
+        }
+
+        // Each entry's block runs until the next local header, which includes data descriptors.
+        sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, BY_OFFSET);
+        for(int i = 0; i < sorted.size(); i++)
+            sorted.get(i).endOffset = i + 1 < sorted.size() ? sorted.get(i + 1).headerOffset : offset;
+
+        return new ZipDirectory(entries, offset, size);
+    }
+
+    /**
+     * Reads the specified region of a channel.
+     * @param     channel     channel to read from.
+     * @param     offset      where to start reading.
+     * @param     length      number of bytes to read.
+     * @return                a little-endian buffer containing the requested bytes.
+     * @exception IOException thrown if any IO related error occurs.
+     */
+    private static ByteBuffer read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer;
+
+        buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, offset);
+
+        return buffer;
+    }
+
+    /**
+     * Fills the specified buffer with the content of the specified channel, starting at the specified offset.
+     * <p>
+     * This uses positional reads, which means that the same channel can safely be read by concurrent threads.
+     * </p>
+     * @param     channel      channel to read from.
+     * @param     buffer       buffer to fill.
+     * @param     offset       where to start reading.
+     * @exception EOFException thrown if the channel doesn't contain enough data.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        int count;
+
+        while(buffer.hasRemaining()) {
+            if((count = channel.read(buffer, offset)) == -1)
+                throw new EOFException("Unexpected end of file at " + offset);
+            offset += count;
+        }
+        buffer.flip();
+    }
+
+
+
+    // - Entry content -------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads the uncompressed content of the specified entry and checks its CRC.
+     * <p>
+     * This uses positional reads, which means that entries of the same channel can safely be read concurrently.
+     * </p>
+     * @param     channel      archive that contains the entry.
+     * @param     entry        entry to read.
+     * @return                 the uncompressed content of the entry.
+     * @exception ZipException thrown if the entry is corrupt or uses an unsupported compression method.
+     * @exception IOException  thrown if any IO related error occurs.
+     */
+    public static byte[] readContent(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer compressed;
+        CRC32      crc;
+        byte[]     data;
+
+        if(entry.getMethod() != ZipEntry.STORED && entry.getMethod() != ZipEntry.DEFLATED)
+            throw new ZipException("Unsupported compression method " + entry.getMethod() + ": " + entry.getName());
+        if(entry.getSize() > Integer.MAX_VALUE || entry.getCompressedSize() >= Integer.MAX_VALUE)
+            throw new ZipException("Entry too large: " + entry.getName());
+
+        // Reads the compressed data, followed by the dummy byte raw inflaters may need.
+        compressed = ByteBuffer.allocate((int)entry.getCompressedSize() + 1);
+        compressed.limit((int)entry.getCompressedSize());
+        readFully(channel, compressed, entry.getDataOffset());
+
+        if(entry.getMethod() == ZipEntry.STORED) {
+            if(entry.getSize() != entry.getCompressedSize())
+                throw new ZipException("Invalid stored entry: " + entry.getName());
+            data = new byte[(int)entry.getSize()];
+            compressed.get(data);
+        }
+        else {
+            Inflater inflater;
+
+            inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed.array(), 0, (int)entry.getCompressedSize() + 1);
+                data = new byte[(int)entry.getSize()];
+                for(int length = 0; length < data.length; ) {
+                    int count;
+
+                    if((count = inflater.inflate(data, length, data.length - length)) == 0
+                       && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        throw new ZipException("Invalid compressed data: " + entry.getName());
+                    length += count;
+                }
+            }
+            catch(DataFormatException e) {throw new ZipException("Invalid compressed data: " + entry.getName());}
+            finally {inflater.end();}
+        }
+
+        crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if(crc.getValue() != entry.getCrc())
+            throw new ZipException("CRC mismatch: " + entry.getName());
+
+        return data;
+    }
+
+
+
+    // - Archive access ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the entries of the archive, in central directory order.
+     * @return the entries of the archive, in central directory order.
+     */
+    public List<Entry> getEntries() {return entries;}
+
+    /**
+     * Returns the entries of the archive, in the order in which they're stored.
+     * @return the entries of the archive, in the order in which they're stored.
+     */
+    public List<Entry> getEntriesByOffset() {
+        List<Entry> sorted;
+
+        sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, BY_OFFSET);
+
+        return sorted;
+    }
+
+    /**
+     * Returns the offset of the central directory in the archive.
+     * @return the offset of the central directory in the archive.
+     */
+    public long getDirectoryOffset() {return directoryOffset;}
+
+    /**
+     * Returns the size of the archive.
+     * @return the size of the archive.
+     */
+    public long getLength() {return length;}
+
+
+
+    // - Entry class ---------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Describes an entry of a ZIP archive as stored in its central directory.
+     * @author Nicolas Rinaudo
+     */
+    public static class Entry {
+        /** Name of the entry. */
+        private final String name;
+        /** General purpose flags of the entry. */
+        private final int    flags;
+        /** Compression method of the entry. */
+        private final int    method;
+        /** CRC-32 of the entry's uncompressed data. */
+        private final long   crc;
+        /** Size of the entry's compressed data. */
+        private final long   compressedSize;
+        /** Size of the entry's uncompressed data. */
+        private final long   size;
+        /** Offset of the entry's local header in the archive. */
+        private final long   headerOffset;
+        /** Offset of the entry's compressed data in the archive. */
+        private long         dataOffset;
+        /** Offset at which the entry's block - local header, data and data descriptor - ends. */
+        private long         endOffset;
+        /** Raw central directory record of the entry. */
+        private byte[]       record;
+
+        /**
+         * Creates a new entry.
+         * @param name           name of the entry.
+         * @param flags          general purpose flags of the entry.
+         * @param method         compression method of the entry.
+         * @param crc            CRC-32 of the entry's uncompressed data.
+         * @param compressedSize size of the entry's compressed data.
+         * @param size           size of the entry's uncompressed data.
+         * @param headerOffset   offset of the entry's local header in the archive.
+         */
+        Entry(String name, int flags, int method, long crc, long compressedSize, long size, long headerOffset) {
+            this.name           = name;
+            this.flags          = flags;
+            this.method         = method;
+            this.crc            = crc;
+            this.compressedSize = compressedSize;
+            this.size           = size;
+            this.headerOffset   = headerOffset;
+        }
+
+        /**
+         * Returns the name of the entry.
+         * @return the name of the entry.
+         */
+        public String getName() {return name;}
+
+        /**
+         * Returns the general purpose flags of the entry.
+         * @return the general purpose flags of the entry.
+         */
+        public int getFlags() {return flags;}
+
+        /**
+         * Returns the compression method of the entry.
+         * @return the compression method of the entry.
+         */
+        public int getMethod() {return method;}
+
+        /**
+         * Returns the CRC-32 of the entry's uncompressed data.
+         * @return the CRC-32 of the entry's uncompressed data.
+         */
+        public long getCrc() {return crc;}
+
+        /**
+         * Returns the size of the entry's compressed data.
+         * @return the size of the entry's compressed data.
+         */
+        public long getCompressedSize() {return compressedSize;}
+
+        /**
+         * Returns the size of the entry's uncompressed data.
+         * @return the size of the entry's uncompressed data.
+         */
+        public long getSize() {return size;}
+
+        /**
+         * Returns the offset of the entry's local header in the archive.
+         * @return the offset of the entry's local header in the archive.
+         */
+        public long getHeaderOffset() {return headerOffset;}
+
+        /**
+         * Returns the offset of the entry's compressed data in the archive.
+         * @return the offset of the entry's compressed data in the archive.
+         */
+        public long getDataOffset() {return dataOffset;}
+
+        /**
+         * Returns the offset at which the entry's block - local header, data and data descriptor - ends.
+         * <p>
+         * This is the offset of the next local header, or of the central directory for the last entry.
+         * </p>
+         * @return the offset at which the entry's block ends.
+         */
+        public long getEndOffset() {return endOffset;}
+
+        /**
+         * Returns a copy of the entry's raw central directory record.
+         * @return a copy of the entry's raw central directory record.
+         */
+        public byte[] getRecord() {return record.clone();}
+
+        /**
+         * Returns <code>true</code> if this entry is a directory.
+         * @return <code>true</code> if this entry is a directory.
+         */
+        public boolean isDirectory() {return name.endsWith("/");}
+    }
+}
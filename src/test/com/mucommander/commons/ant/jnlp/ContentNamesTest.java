@@ -0,0 +1,170 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.TestFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link ContentNames} class.
+ * @author Nicolas Rinaudo
+ */
+public class ContentNamesTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Folder that contains the original resources. */
+    private File baseDir;
+    /** Where content-addressed files are written. */
+    private File hashDir;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folders.
+     * @exception IOException if the folders could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root    = TestFiles.createTempFolder("names");
+        baseDir = new File(root, "base");
+        hashDir = new File(root, "hashed");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure content-addressed names keep the extension of their file.
+     */
+    @Test
+    public void testHashedName() {
+        String hash;
+
+        hash = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        assertEquals(ContentNames.getHashedName("app.jar", hash), "app-0123456789abcdef0123456789abcdef.jar");
+        assertEquals(ContentNames.getHashedName("native", hash), "native-0123456789abcdef0123456789abcdef");
+    }
+
+    /**
+     * Makes sure resources are copied to their content-addressed name, and only once.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testCopy() throws IOException {
+        JarElement resource;
+        File       original;
+        File       target;
+
+        original = TestFiles.write(new File(baseDir, "lib/app.jar"), TestFiles.bytes("content"));
+        resource = rename(ContentNames.COPY, "lib/app.jar", 1);
+        assertEquals(resource.getHref(), "lib/" + ContentNames.getHashedName("app.jar", sha256(original)));
+
+        target = new File(hashDir, resource.getHref());
+        assertTrue(Arrays.equals(TestFiles.read(target), TestFiles.bytes("content")));
+        assertFalse(Files.isSameFile(target.toPath(), original.toPath()));
+
+        rename(ContentNames.COPY, "lib/app.jar", 0);
+    }
+
+    /**
+     * Makes sure resources are linked to their content-addressed name in <code>link</code> mode, and that links
+     * whose content was modified through the original are replaced.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testLink() throws IOException {
+        File original;
+        File target;
+
+        original = TestFiles.write(new File(baseDir, "app.jar"), TestFiles.bytes("content"));
+        target   = new File(hashDir, rename(ContentNames.LINK, "app.jar", 1).getHref());
+        assertTrue(Files.isSameFile(target.toPath(), original.toPath()));
+        rename(ContentNames.LINK, "app.jar", 0);
+
+        // The original is modified in place, then replaced by its previous version: the link no longer matches its
+        // name and must be recreated.
+        TestFiles.write(original, TestFiles.bytes("CONTENT"));
+        original.delete();
+        TestFiles.write(original, TestFiles.bytes("content"));
+        assertEquals(new File(hashDir, rename(ContentNames.LINK, "app.jar", 1).getHref()), target);
+        assertTrue(Arrays.equals(TestFiles.read(target), TestFiles.bytes("content")));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Gives the specified resource its content-addressed name.
+     * @param  mode    either {@link ContentNames#COPY} or {@link ContentNames#LINK}.
+     * @param  href    path of the resource, relative to {@link #baseDir}.
+     * @param  created number of content-addressed files that are expected to be created.
+     * @return         the renamed resource.
+     */
+    private JarElement rename(String mode, String href, int created) {
+        ContentNames names;
+        JarElement   resource;
+
+        resource = new JarElement();
+        resource.setHref(href);
+
+        names = new ContentNames(hashDir, mode, HashCache.load(new File(root, "hashes")), 2);
+        names.rename(Collections.singletonList(resource), Collections.singletonList(new File(baseDir, href)));
+        assertEquals(names.getCount(), 1);
+        assertEquals(names.getCreatedCount(), created);
+
+        return resource;
+    }
+
+    /**
+     * Returns the hexadecimal SHA-256 digest of the specified file.
+     * @param     file        file to hash.
+     * @return                the hexadecimal SHA-256 digest of the specified file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static String sha256(File file) throws IOException {
+        return Digests.toHex(Digests.sha256(file));
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link JarDiffTask} class.
+ * <p>
+ * JarDiff files are checked by applying them to the old version of their JAR file the way Java Web Start clients do,
+ * and comparing the result with the new version.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class JarDiffTaskTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Previous release's codebase. */
+    private File oldDir;
+    /** Current release's codebase. */
+    private File newDir;
+    /** Where JarDiff files are written. */
+    private File diffDir;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folders.
+     * @exception IOException if the folders could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root    = TestFiles.createTempFolder("jardiff");
+        oldDir  = new File(root, "old");
+        newDir  = new File(root, "new");
+        diffDir = new File(root, "diff");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure JarDiff files are named after both versions they bridge.
+     */
+    @Test
+    public void testDiffPath() {
+        assertEquals(JarDiffTask.getDiffPath("lib/app.jar", "0123", "4567"), "lib/app__V0123__V4567.jardiff");
+        assertEquals(JarDiffTask.getDiffPath("app.JAR", "a", "b"), "app__Va__Vb.jardiff");
+        assertEquals(JarDiffTask.getDiffPath("lib/native", "a", "b"), "lib/native__Va__Vb.jardiff");
+    }
+
+    /**
+     * Makes sure applying a generated JarDiff file to the old JAR file yields the new one.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testApply() throws IOException {
+        Map<String, byte[]> oldEntries;
+        Map<String, byte[]> newEntries;
+        File                oldJar;
+        File                newJar;
+        File                diff;
+        byte[]              large;
+
+        // The unchanged entry is large enough for the JarDiff file to be worth writing.
+        large = new byte[256 * 1024];
+        new Random(0).nextBytes(large);
+
+        oldEntries = new TreeMap<String, byte[]>();
+        oldEntries.put("unchanged.bin", large);
+        oldEntries.put("pkg/Changed.class", TestFiles.bytes("old content"));
+        oldEntries.put("pkg/Removed.class", TestFiles.bytes("removed"));
+        oldEntries.put("with space.txt", TestFiles.bytes("removed as well"));
+
+        newEntries = new TreeMap<String, byte[]>();
+        newEntries.put("unchanged.bin", large);
+        newEntries.put("pkg/Changed.class", TestFiles.bytes("new content"));
+        newEntries.put("pkg/Added.class", TestFiles.bytes("added"));
+
+        oldJar = TestFiles.writeJar(new File(oldDir, "lib/app.jar"), oldEntries);
+        newJar = TestFiles.writeJar(new File(newDir, "lib/app.jar"), newEntries);
+        runTask();
+
+        diff = new File(diffDir, JarDiffTask.getDiffPath("lib/app.jar", ResourceStats.getHashVersion(oldJar, null),
+                                                         ResourceStats.getHashVersion(newJar, null)));
+        assertTrue(diff.isFile(), "Missing " + diff);
+        assertEquals(new File(diffDir, "lib").list().length, 1);
+        assertTrue(diff.length() < newJar.length());
+
+        assertEntries(apply(oldJar, diff), TestFiles.readJar(newJar));
+    }
+
+    /**
+     * Makes sure identical JAR files don't yield a JarDiff file.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testUnchanged() throws IOException {
+        Map<String, byte[]> entries;
+
+        entries = new TreeMap<String, byte[]>();
+        entries.put("pkg/Same.class", TestFiles.bytes("same"));
+        TestFiles.writeJar(new File(oldDir, "app.jar"), entries);
+        TestFiles.writeJar(new File(newDir, "app.jar"), entries);
+        runTask();
+
+        assertFalse(diffDir.isDirectory() && diffDir.list().length != 0);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Runs the task on the content of {@link #newDir}.
+     */
+    private void runTask() {
+        Project     project;
+        JarDiffTask task;
+        FileSet     set;
+
+        project = new Project();
+        project.init();
+
+        task = new JarDiffTask();
+        task.setProject(project);
+        task.init();
+        task.setOlddir(oldDir);
+        task.setTodir(diffDir);
+        task.setHashcache(new File(root, "hashes"));
+
+        set = new FileSet();
+        set.setProject(project);
+        set.setDir(newDir);
+        set.setIncludes("**/*.jar");
+        task.addFileset(set);
+
+        task.execute();
+    }
+
+    /**
+     * Applies the specified JarDiff file to the specified JAR file, the way Java Web Start clients do.
+     * @param     jar         old version of the JAR file.
+     * @param     diff        JarDiff file to apply.
+     * @return                the entries of the new version of the JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static Map<String, byte[]> apply(File jar, File diff) throws IOException {
+        Map<String, byte[]> entries;
+        Map<String, byte[]> patch;
+        String              index;
+
+        entries = TestFiles.readJar(jar);
+        patch   = TestFiles.readJar(diff);
+        index   = new String(patch.remove(JarDiff.INDEX), Charset.forName("UTF-8"));
+
+        assertTrue(index.startsWith("version 1.0\n"));
+        for(String line : index.split("\n")) {
+            if(line.startsWith("remove "))
+                assertTrue(entries.remove(unescape(line.substring(7))) != null, "Removed unknown entry: " + line);
+            else
+                assertEquals(line, "version 1.0");
+        }
+        entries.putAll(patch);
+
+        return entries;
+    }
+
+    /**
+     * Removes the escaping of spaces and backslashes from the specified JarDiff index name.
+     * @param  name name to unescape.
+     * @return      the unescaped name.
+     */
+    private static String unescape(String name) {
+        StringBuilder buffer;
+
+        buffer = new StringBuilder();
+        for(int i = 0; i < name.length(); i++) {
+            if(name.charAt(i) == '\\')
+                i++;
+            buffer.append(name.charAt(i));
+        }
+
+        return buffer.toString();
+    }
+
+    /**
+     * Makes sure both sets of entries are identical.
+     * @param actual   entries to check.
+     * @param expected expected entries.
+     */
+    private static void assertEntries(Map<String, byte[]> actual, Map<String, byte[]> expected) {
+        assertEquals(actual.keySet(), expected.keySet());
+        for(Map.Entry<String, byte[]> entry : expected.entrySet())
+            assertTrue(Arrays.equals(actual.get(entry.getKey()), entry.getValue()), "Mismatch: " + entry.getKey());
+    }
+}
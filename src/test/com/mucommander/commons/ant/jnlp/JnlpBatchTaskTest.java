@@ -0,0 +1,222 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the {@link JnlpBatchTask} class.
+ * @author Nicolas Rinaudo
+ */
+public class JnlpBatchTaskTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File          root;
+    /** Task being tested. */
+    private JnlpBatchTask task;
+    /** Operating system axis of {@link #task}. */
+    private AxisElement   os;
+    /** Locale axis of {@link #task}. */
+    private AxisElement   locale;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a task that describes a minimal application.
+     * @exception IOException if the test folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        Project            project;
+        InformationElement information;
+
+        root = TestFiles.createTempFolder("mkjnlps");
+
+        project = new Project();
+        project.init();
+        task = new JnlpBatchTask();
+        task.setProject(project);
+        task.init();
+        task.setCodeBase("http://example.com/");
+        task.setHref("app-@os@-@locale@.jnlp");
+        task.setOut(new File(root, "app-@os@-@locale@.jnlp"));
+        task.createApplicationDesc().setMain("app.Main");
+        information = task.createInformation();
+        information.setTitle("App");
+        information.setVendor("Vendor");
+        task.createResources().createJar().setHref("app.jar");
+        os = task.createAxis();
+        os.setName("os");
+        locale = task.createAxis();
+        locale.setName("locale");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure one file is written per combination of variants, with the base content and that of its variants.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testCombinations() throws Exception {
+        addOs("windows", "Windows", "windows.jar");
+        addOs("linux", "Linux", "linux.jar");
+        addLocale("en");
+        addLocale("fr");
+        task.execute();
+
+        assertEquals(root.list().length, 4);
+        for(String system : Arrays.asList("windows", "linux")) {
+            for(String language : Arrays.asList("en", "fr")) {
+                Document document;
+                String   name;
+
+                name     = "app-" + system + "-" + language + ".jnlp";
+                document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(root, name));
+
+                assertEquals(document.getDocumentElement().getAttribute("href"), name);
+                assertEquals(getValues(document, "information", "locale"), Arrays.asList("", language));
+                assertEquals(getValues(document, "resources", "os"),
+                             Arrays.asList("", system.equals("linux") ? "Linux" : "Windows"));
+                assertEquals(getValues(document, "jar", "href"), Arrays.asList("app.jar", system + ".jar"));
+                assertEquals(document.getElementsByTagName("argument").item(0).getTextContent(), "--lang=" + language);
+            }
+        }
+    }
+
+    /**
+     * Makes sure combinations that would be written to the same file are refused.
+     */
+    @Test(expectedExceptions = BuildException.class, expectedExceptionsMessageRegExp = "Several variants.*")
+    public void testSameOutput() {
+        task.setOut(new File(root, "app-@os@.jnlp"));
+        addOs("windows", "Windows", "windows.jar");
+        addLocale("en");
+        addLocale("fr");
+        task.execute();
+    }
+
+    /**
+     * Makes sure variants must be unique within their axis.
+     */
+    @Test(expectedExceptions = BuildException.class, expectedExceptionsMessageRegExp = "Duplicate variant.*")
+    public void testDuplicateVariant() {
+        addOs("windows", "Windows", "windows.jar");
+        addLocale("en");
+        addLocale("en");
+        task.execute();
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Adds a variant to the specified axis.
+     * @param  axis  axis to which the variant should be added.
+     * @param  value value of the variant.
+     * @return       the new variant.
+     */
+    private static VariantElement createVariant(AxisElement axis, String value) {
+        VariantElement variant;
+
+        variant = axis.createVariant();
+        variant.setValue(value);
+
+        return variant;
+    }
+
+    /**
+     * Adds a variant to the <code>os</code> axis.
+     * @param value value of the variant.
+     * @param name  operating system of the variant's resources.
+     * @param jar   JAR file specific to the variant.
+     */
+    private void addOs(String value, String name, String jar) {
+        ResourcesElement resources;
+
+        resources = createVariant(os, value).createResources();
+        resources.setOs(name);
+        resources.createJar().setHref(jar);
+    }
+
+    /**
+     * Adds a variant to the <code>locale</code> axis.
+     * @param value value of the variant, used as its information locale and as an application argument.
+     */
+    private void addLocale(String value) {
+        VariantElement     variant;
+        InformationElement information;
+
+        variant     = createVariant(locale, value);
+        information = variant.createInformation();
+        information.setTitle("App (" + value + ")");
+        information.setVendor("Vendor");
+        information.setLocale(value);
+        variant.createArgument().addText("--lang=" + value);
+    }
+
+    /**
+     * Returns the value of the specified attribute for all elements with the specified name, in document order.
+     * @param  document  document to explore.
+     * @param  element   name of the elements.
+     * @param  attribute name of the attribute.
+     * @return           the values of the attribute, empty strings standing for missing ones.
+     */
+    private static List<String> getValues(Document document, String element, String attribute) {
+        List<String> values;
+        NodeList     nodes;
+
+        values = new ArrayList<String>();
+        nodes  = document.getElementsByTagName(element);
+        for(int i = 0; i < nodes.getLength(); i++)
+            values.add(((Element)nodes.item(i)).getAttribute(attribute));
+
+        return values;
+    }
+}
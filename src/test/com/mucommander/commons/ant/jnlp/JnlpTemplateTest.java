@@ -0,0 +1,397 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import com.mucommander.commons.ant.util.XmlSerializer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link JnlpTemplate} class.
+ * @author Nicolas Rinaudo
+ */
+public class JnlpTemplateTest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Number of concurrent clients in the load test. */
+    private static final int CLIENTS  = 8;
+    /** Number of requests sent by each client in the load test. */
+    private static final int REQUESTS = 250;
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure templates rendered without per-request values are exactly their static content, and valid.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testRenderEmpty() throws Exception {
+        JnlpTemplate template;
+        Document     document;
+        byte[]       jnlp;
+
+        template = createTemplate();
+        jnlp     = render(template, Collections.<String, String>emptyMap(), Collections.<String>emptyList());
+        document = parse(jnlp);
+
+        assertEquals(jnlp.length, template.getStaticSize());
+        assertEquals(document.getElementsByTagName("resources").getLength(), 1);
+        assertEquals(getArguments(document), Arrays.asList("-static"));
+        assertEquals(((Element)document.getElementsByTagName("jnlp").item(0)).getAttribute("codebase"),
+                     "http://example.com/app?a=1&b=2");
+    }
+
+    /**
+     * Makes sure properties and arguments are escaped, and are read back unchanged by XML parsers.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testRenderEscaping() throws Exception {
+        Map<String, String> properties;
+        Map<String, String> actual;
+        List<String>        arguments;
+        List<String>        expected;
+        NodeList            nodes;
+        Document            document;
+
+        properties = new LinkedHashMap<String, String>();
+        properties.put("user.name", "Tom & \"Jerry\"");
+        properties.put("a<b>", "<script>alert('x')</script>");
+        properties.put("whitespace", "line\nbreak\ttab\rreturn");
+        properties.put("unicode", "café 日本 😀");
+        arguments  = Arrays.asList("--file=a&b.txt", "</argument><argument>injected", "\"quoted\" 'single'",
+                                   "\r\n", "😀", "");
+
+        document = parse(render(createTemplate(), properties, arguments));
+
+        actual = new LinkedHashMap<String, String>();
+        nodes  = document.getElementsByTagName("property");
+        for(int i = 0; i < nodes.getLength(); i++)
+            actual.put(((Element)nodes.item(i)).getAttribute("name"), ((Element)nodes.item(i)).getAttribute("value"));
+        assertEquals(actual, properties);
+        assertEquals(document.getElementsByTagName("resources").getLength(), 2);
+
+        expected = new ArrayList<String>();
+        expected.add("-static");
+        expected.addAll(arguments);
+        assertEquals(getArguments(document), expected);
+    }
+
+    /**
+     * Makes sure templates are unchanged by being written and read back.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testReadWrite() throws Exception {
+        ByteArrayOutputStream out;
+        ByteArrayOutputStream second;
+        JnlpTemplate          template;
+        JnlpTemplate          copy;
+        Map<String, String>   properties;
+        List<String>          arguments;
+
+        template = createTemplate();
+        out      = new ByteArrayOutputStream();
+        template.write(out);
+        copy = JnlpTemplate.read(new ByteArrayInputStream(out.toByteArray()));
+
+        properties = Collections.singletonMap("key", "value");
+        arguments  = Arrays.asList("one", "two");
+        assertEquals(copy.getStaticSize(), template.getStaticSize());
+        assertTrue(Arrays.equals(render(copy, properties, arguments), render(template, properties, arguments)));
+
+        // Writing the copy must yield the same file.
+        second = new ByteArrayOutputStream();
+        copy.write(second);
+        assertTrue(Arrays.equals(second.toByteArray(), out.toByteArray()));
+    }
+
+    /**
+     * Makes sure files that are not templates are rejected.
+     * @exception IOException if the test succeeds.
+     */
+    @Test(expectedExceptions = IOException.class, expectedExceptionsMessageRegExp = "Not a JNLP template")
+    public void testReadInvalid() throws IOException {
+        JnlpTemplate.read(new ByteArrayInputStream(TestFiles.bytes("<?xml version=\"1.0\"?><jnlp/>")));
+    }
+
+    /**
+     * Makes sure unknown versions of the format are rejected.
+     * @exception IOException if the test succeeds.
+     */
+    @Test(expectedExceptions = IOException.class,
+          expectedExceptionsMessageRegExp = "Unsupported JNLP template version")
+    public void testReadUnsupportedVersion() throws IOException {
+        JnlpTemplate.read(new ByteArrayInputStream(new byte[] {'J', 'N', 'L', 'T', 0, 0, 0, 2}));
+    }
+
+    /**
+     * Makes sure truncated templates are rejected.
+     * @exception Exception if the test succeeds.
+     */
+    @Test(expectedExceptions = EOFException.class)
+    public void testReadTruncated() throws Exception {
+        ByteArrayOutputStream out;
+        byte[]                data;
+
+        out = new ByteArrayOutputStream();
+        createTemplate().write(out);
+        data = out.toByteArray();
+        JnlpTemplate.read(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 10)));
+    }
+
+    /**
+     * Serves a shared template through the JDK's HTTP server to concurrent clients, each of which checks that it
+     * received a valid JNLP file carrying its own per-request values.
+     * <p>
+     * The throughput is reported through the TestNG reporter.
+     * </p>
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testLoad() throws Exception {
+        final JnlpTemplate      template;
+        final String            base;
+        List<Callable<Integer>> clients;
+        ExecutorService         executor;
+        HttpServer              server;
+        long                    start;
+        int                     total;
+
+        template = createTemplate();
+        server   = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newFixedThreadPool(CLIENTS * 2);
+        server.setExecutor(Executors.newFixedThreadPool(CLIENTS));
+        server.createContext("/app.jnlp", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream buffer;
+                OutputStream          out;
+                String                user;
+
+                user   = URLDecoder.decode(exchange.getRequestURI().getRawQuery().substring(5), "UTF-8");
+                buffer = new ByteArrayOutputStream(template.getStaticSize() + 256);
+                out    = new BufferedOutputStream(buffer);
+                template.render(out, Collections.singletonMap("user", user), Collections.singletonList(user));
+                out.flush();
+
+                exchange.getResponseHeaders().set("Content-Type", "application/x-java-jnlp-file");
+                exchange.sendResponseHeaders(200, buffer.size());
+                out = exchange.getResponseBody();
+                try {buffer.writeTo(out);}
+                finally {out.close();}
+            }
+        });
+        server.start();
+
+        try {
+            base    = "http://127.0.0.1:" + server.getAddress().getPort() + "/app.jnlp?user=";
+            clients = new ArrayList<Callable<Integer>>();
+            for(int i = 0; i < CLIENTS; i++) {
+                final int client = i;
+
+                clients.add(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        for(int j = 0; j < REQUESTS; j++) {
+                            String   user;
+                            Document document;
+
+                            user     = "user " + client + '/' + j + " <&\"é\">";
+                            document = parse(get(new URL(base + URLEncoder.encode(user, "UTF-8"))));
+                            assertEquals(((Element)document.getElementsByTagName("property").item(0))
+                                         .getAttribute("value"), user);
+                            assertEquals(getArguments(document), Arrays.asList("-static", user));
+                        }
+                        return REQUESTS;
+                    }
+                });
+            }
+
+            start = System.nanoTime();
+            total = 0;
+            for(Future<Integer> result : executor.invokeAll(clients))
+                total += result.get();
+            start = System.nanoTime() - start;
+        }
+        finally {
+            executor.shutdownNow();
+            server.stop(0);
+            ((ExecutorService)server.getExecutor()).shutdownNow();
+        }
+
+        assertEquals(total, CLIENTS * REQUESTS);
+        Reporter.log("Served " + total + " JNLP files to " + CLIENTS + " clients in " + start / 1000000 + " ms ("
+                     + total * 1000000000L / start + " requests/s)", true);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compiles a minimal JNLP file into a template, the way {@link JnlpTask} does.
+     * @return                 the compiled template.
+     * @exception SAXException if any error occurs.
+     */
+    private static JnlpTemplate createTemplate() throws SAXException {
+        JnlpTemplate.Compiler compiler;
+        XmlSerializer         serializer;
+        AttributesImpl        attributes;
+
+        compiler   = new JnlpTemplate.Compiler();
+        serializer = compiler.getSerializer();
+        serializer.startDocument();
+
+        attributes = new AttributesImpl();
+        attributes.addAttribute("", "", "spec", "CDATA", "1.0+");
+        attributes.addAttribute("", "", "codebase", "CDATA", "http://example.com/app?a=1&b=2");
+        serializer.startElement("", "", "jnlp", attributes);
+
+        serializer.startElement("", "", "information", new AttributesImpl());
+        serializer.startElement("", "", "title", new AttributesImpl());
+        serializer.characters("Test & <application>".toCharArray(), 0, 20);
+        serializer.endElement("", "", "title");
+        serializer.endElement("", "", "information");
+
+        attributes = new AttributesImpl();
+        attributes.addAttribute("", "", "href", "CDATA", "app.jar");
+        serializer.startElement("", "", "resources", new AttributesImpl());
+        serializer.startElement("", "", "jar", attributes);
+        serializer.endElement("", "", "jar");
+        serializer.endElement("", "", "resources");
+        compiler.mark();
+
+        attributes = new AttributesImpl();
+        attributes.addAttribute("", "", "main-class", "CDATA", "app.Main");
+        serializer.startElement("", "", "application-desc", attributes);
+        serializer.startElement("", "", "argument", new AttributesImpl());
+        serializer.characters("-static".toCharArray(), 0, 7);
+        serializer.endElement("", "", "argument");
+        compiler.mark();
+        serializer.endElement("", "", "application-desc");
+
+        serializer.endElement("", "", "jnlp");
+        serializer.endDocument();
+
+        return compiler.compile();
+    }
+
+    /**
+     * Renders the specified template.
+     * @param     template    template to render.
+     * @param     properties  properties to render.
+     * @param     arguments   arguments to render.
+     * @return                the rendered JNLP file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static byte[] render(JnlpTemplate template, Map<String, String> properties, List<String> arguments)
+            throws IOException {
+        ByteArrayOutputStream out;
+
+        out = new ByteArrayOutputStream();
+        template.render(out, properties, arguments);
+        return out.toByteArray();
+    }
+
+    /**
+     * Parses the specified JNLP file.
+     * @param     jnlp                         JNLP file to parse.
+     * @return                                 the parsed document.
+     * @exception ParserConfigurationException if no XML parser is available.
+     * @exception SAXException                 if the file is not well-formed XML.
+     * @exception IOException                  if any IO related error occurs.
+     */
+    private static Document parse(byte[] jnlp) throws ParserConfigurationException, SAXException, IOException {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(jnlp));
+    }
+
+    /**
+     * Returns the text of all <code>argument</code> elements of the specified document.
+     * @param  document document to analyse.
+     * @return          the text of all <code>argument</code> elements of the specified document.
+     */
+    private static List<String> getArguments(Document document) {
+        List<String> arguments;
+        NodeList     nodes;
+
+        arguments = new ArrayList<String>();
+        nodes     = document.getElementsByTagName("argument");
+        for(int i = 0; i < nodes.getLength(); i++)
+            arguments.add(nodes.item(i).getTextContent());
+
+        return arguments;
+    }
+
+    /**
+     * Downloads the specified URL.
+     * @param     url         URL to download.
+     * @return                the content of the URL.
+     * @exception IOException if any IO related error occurs or the server doesn't answer with <code>200</code>.
+     */
+    private static byte[] get(URL url) throws IOException {
+        HttpURLConnection connection;
+        InputStream       in;
+
+        connection = (HttpURLConnection)url.openConnection();
+        if(connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+            throw new IOException("Unexpected response: " + connection.getResponseCode());
+        assertEquals(connection.getContentType(), "application/x-java-jnlp-file");
+
+        in = connection.getInputStream();
+        try {return TestFiles.readFully(in);}
+        finally {in.close();}
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * Tests the {@link LazyPartition} class.
+ * @author Nicolas Rinaudo
+ */
+public class LazyPartitionTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File                root;
+    /** Compiled classes of the test application, indexed by entry name. */
+    private Map<String, byte[]> classes;
+    /** JAR files of the test application, in declaration order. */
+    private List<File>          jars;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compiles the test application.
+     * @exception IOException if the application could not be compiled.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        Map<String, String> sources;
+
+        root    = TestFiles.createTempFolder("partition");
+        jars    = new ArrayList<File>();
+        sources = new TreeMap<String, String>();
+        sources.put("app.Main", "package app;\npublic class Main {eager.Util util;}\n");
+        sources.put("eager.Util", "package eager;\npublic class Util {}\n");
+        sources.put("c1.A", "package c1;\npublic class A {c2.B b;}\n");
+        sources.put("c2.B", "package c2;\npublic class B {c1.A a;}\n");
+        sources.put("o.O", "package o;\npublic class O {s.S s;}\n");
+        sources.put("s.S", "package s;\npublic class S {}\n");
+        sources.put("split.X", "package split;\npublic class X {}\n");
+        sources.put("split.Y", "package split;\npublic class Y {}\n");
+        sources.put("f.F", "package f;\npublic class F {}\n");
+        classes = TestFiles.compile(new File(root, "classes"), sources);
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure JAR files are split between eager ones and lazy parts that group mutually dependent JAR files and
+     * JAR files that share a package.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testPartition() throws IOException {
+        LazyPartition partition;
+        File          forced;
+
+        jar("app.jar", "app/Main.class");
+        jar("util.jar", "eager/Util.class");
+        jar("cycle1.jar", "c1/A.class");
+        jar("oneway.jar", "o/O.class");
+        jar("cycle2.jar", "c2/B.class");
+        jar("single.jar", "s/S.class");
+        jar("split1.jar", "split/X.class");
+        jar("split2.jar", "split/Y.class");
+        forced = jar("forced.jar", "f/F.class");
+
+        partition = LazyPartition.compute("app.Main", jars, Collections.singletonList(forced), 2);
+
+        // Eager JAR files: reachable from the main class, or explicitly marked as main.
+        assertNull(partition.getPart(jars.get(0)));
+        assertNull(partition.getPart(jars.get(1)));
+        assertNull(partition.getPart(forced));
+        assertEquals(partition.getEagerCount(), 3);
+
+        // Mutually dependent JAR files share a part, one-way dependencies don't.
+        assertEquals(partition.getPart(jars.get(2)), "cycle1");
+        assertEquals(partition.getPart(jars.get(4)), "cycle1");
+        assertEquals(partition.getPart(jars.get(3)), "oneway");
+        assertEquals(partition.getPart(jars.get(5)), "single");
+
+        // JAR files that share a package share a part.
+        assertEquals(partition.getPart(jars.get(6)), "split1");
+        assertEquals(partition.getPart(jars.get(7)), "split1");
+
+        assertEquals(partition.getLazyCount(), 6);
+        assertEquals(partition.getPartCount(), 4);
+    }
+
+    /**
+     * Makes sure part names are unique even when JAR files have the same name.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testPartNames() throws IOException {
+        LazyPartition partition;
+
+        jar("app.jar", "app/Main.class", "eager/Util.class");
+        jar("a/lib.jar", "o/O.class");
+        jar("b/lib.jar", "s/S.class");
+
+        partition = LazyPartition.compute("app.Main", jars, Collections.<File>emptyList(), 2);
+        assertEquals(partition.getPart(jars.get(1)), "lib");
+        assertEquals(partition.getPart(jars.get(2)), "lib-2");
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a JAR file that contains the specified classes, and adds it to {@link #jars}.
+     * @param     name        path of the JAR file, relative to {@link #root}.
+     * @param     entries     entry names of the classes to put in the JAR file.
+     * @return                the JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File jar(String name, String... entries) throws IOException {
+        Map<String, byte[]> content;
+        File                jar;
+
+        content = new TreeMap<String, byte[]>();
+        for(String entry : entries)
+            content.put(entry, classes.get(entry));
+        jars.add(jar = TestFiles.writeJar(new File(root, name), content));
+
+        return jar;
+    }
+}
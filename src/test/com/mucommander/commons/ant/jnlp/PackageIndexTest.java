@@ -0,0 +1,172 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link PackageIndex} class.
+ * @author Nicolas Rinaudo
+ */
+public class PackageIndexTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File         root;
+    /** JAR files to index. */
+    private List<File>   jars;
+    /** Part of each JAR file. */
+    private List<String> parts;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root  = TestFiles.createTempFolder("packages");
+        jars  = new ArrayList<File>();
+        parts = new ArrayList<String>();
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure class names are mapped to their package.
+     */
+    @Test
+    public void testPackage() {
+        assertEquals(PackageIndex.getPackage("com/acme/Main"), "com.acme");
+        assertNull(PackageIndex.getPackage("Main"));
+    }
+
+    /**
+     * Makes sure packages are collapsed into the shortest prefix that only the part owns.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testCollapse() throws IOException {
+        PackageIndex index;
+
+        jar(null, "com/acme/app/Main.class", "com/acme/Shared.class");
+        jar("ui", "com/acme/ui/Window.class", "com/acme/ui/dialogs/Open.class", "com/acme/ui/icons/Icon.class");
+        jar("net", "com/acme/net/Client.class", "org/library/Api.class");
+        jar("net", "org/library/impl/ApiImpl.class", "Default.class");
+
+        index = PackageIndex.read(jars, parts, 2);
+        assertEquals(index.getDeclarations("ui"), declarations("com.acme.ui", true));
+        assertEquals(index.getDeclarations("net"), declarations("com.acme.net", true, "org.library", true));
+    }
+
+    /**
+     * Makes sure prefixes whose sub-packages belong elsewhere are not collapsed.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testConflict() throws IOException {
+        PackageIndex index;
+
+        jar("ui", "com/acme/ui/Window.class", "com/acme/ui/dialogs/Open.class");
+        jar("bridge", "com/acme/ui/net/Bridge.class");
+        jar(null, "com/acme/ui/dialogs/eager/Eager.class");
+
+        index = PackageIndex.read(jars, parts, 2);
+        assertEquals(index.getDeclarations("ui"), declarations("com.acme.ui", false, "com.acme.ui.dialogs", false));
+        assertEquals(index.getDeclarations("bridge"), declarations("com.acme.ui.net", true));
+    }
+
+    /**
+     * Makes sure prefixes shorter than {@link PackageIndex#MIN_DEPTH} segments are never declared recursive.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testMinDepth() throws IOException {
+        PackageIndex index;
+
+        jar("single", "single/Main.class");
+
+        index = PackageIndex.read(jars, parts, 2);
+        assertEquals(index.getDeclarations("single"), declarations("single", false));
+        assertTrue(index.getDeclarations("unknown").isEmpty());
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a JAR file that contains the specified entries, and adds it to the files to index.
+     * @param     part        part of the JAR file, <code>null</code> if none.
+     * @param     entries     names of the entries of the JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private void jar(String part, String... entries) throws IOException {
+        Map<String, byte[]> content;
+
+        content = new TreeMap<String, byte[]>();
+        for(String entry : entries)
+            content.put(entry, new byte[0]);
+
+        jars.add(TestFiles.writeJar(new File(root, jars.size() + ".jar"), content));
+        parts.add(part);
+    }
+
+    /**
+     * Returns the specified declarations as a sorted map.
+     * @param  values package names, each followed by whether it's recursive.
+     * @return        the specified declarations as a sorted map.
+     */
+    private static SortedMap<String, Boolean> declarations(Object... values) {
+        SortedMap<String, Boolean> map;
+
+        map = new TreeMap<String, Boolean>();
+        for(int i = 0; i < values.length; i += 2)
+            map.put((String)values[i], (Boolean)values[i + 1]);
+
+        return map;
+    }
+}
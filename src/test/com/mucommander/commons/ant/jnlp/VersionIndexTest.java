@@ -0,0 +1,194 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.jnlp;
+
+import com.mucommander.commons.ant.util.HashCache;
+import com.mucommander.commons.ant.util.TestFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link VersionIndex} class.
+ * @author Nicolas Rinaudo
+ */
+public class VersionIndexTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Folder that contains the resources to index. */
+    private File baseDir;
+    /** Where versioned files are written. */
+    private File versionDir;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folders.
+     * @exception IOException if the folders could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root       = TestFiles.createTempFolder("versions");
+        baseDir    = new File(root, "base");
+        versionDir = new File(root, "versions");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure versioned names keep the extension of their file.
+     */
+    @Test
+    public void testVersionedName() {
+        assertEquals(VersionIndex.getVersionedName("app.jar", "0123"), "app__V0123.jar");
+        assertEquals(VersionIndex.getVersionedName("native", "0123"), "native__V0123");
+        assertEquals(VersionIndex.getVersionedName(".hidden", "0123"), ".hidden__V0123");
+    }
+
+    /**
+     * Makes sure resources are copied under their versioned name and described by the index of their folder.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testIndex() throws Exception {
+        Document document;
+        File     target;
+
+        assertEquals(index(resource("lib/app.jar", "0123", "content"), null), 1);
+
+        target = new File(versionDir, "lib/app__V0123.jar");
+        assertTrue(target.isFile(), "Missing " + target);
+        assertTrue(Arrays.equals(TestFiles.read(target), TestFiles.bytes("content")));
+
+        document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(target.getParentFile(),
+                                                                                            VersionIndex.FILE_NAME));
+        assertEquals(getText(document, "name"), "app.jar");
+        assertEquals(getText(document, "version-id"), "0123");
+        assertEquals(getText(document, "file"), "app__V0123.jar");
+    }
+
+    /**
+     * Makes sure versioned copies whose content matches that of their resource are not copied again.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testUnchanged() throws Exception {
+        JarElement resource;
+
+        resource = resource("app.jar", "0123", "content");
+        assertEquals(index(resource, null), 1);
+        assertEquals(index(resource, null), 0);
+        assertEquals(index(resource, HashCache.load(new File(root, "hashes"))), 0);
+    }
+
+    /**
+     * Makes sure versioned copies are replaced when their content differs from that of their resource, even if both
+     * have the same size.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testChanged() throws Exception {
+        File target;
+
+        target = TestFiles.write(new File(versionDir, "app__V0123.jar"), TestFiles.bytes("CONTENT"));
+        assertEquals(index(resource("app.jar", "0123", "content"), HashCache.load(new File(root, "hashes"))), 1);
+        assertTrue(Arrays.equals(TestFiles.read(target), TestFiles.bytes("content")));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a resource with the specified content in {@link #baseDir}.
+     * @param     href        path of the resource.
+     * @param     version     version of the resource.
+     * @param     content     content of the resource.
+     * @return                the resource.
+     * @exception IOException if the resource could not be written.
+     */
+    private JarElement resource(String href, String version, String content) throws IOException {
+        JarElement resource;
+
+        TestFiles.write(new File(baseDir, href), TestFiles.bytes(content));
+        resource = new JarElement();
+        resource.setHref(href);
+        resource.setVersion(version);
+
+        return resource;
+    }
+
+    /**
+     * Indexes the specified resource in {@link #versionDir}.
+     * @param  resource resource to index.
+     * @param  cache    cache of file digests, <code>null</code> if none.
+     * @return          the number of files that had to be copied.
+     */
+    private int index(JarElement resource, HashCache cache) {
+        VersionIndex index;
+        List<File>   files;
+
+        files = Collections.singletonList(new File(baseDir, resource.getHref()));
+        index = new VersionIndex(versionDir, cache, 2);
+        try {index.add(Collections.singletonList(resource), files, new ResourcesElement());}
+        finally {index.close(true);}
+
+        return index.getCopiedCount();
+    }
+
+    /**
+     * Returns the text of the only element with the specified name.
+     * @param  document document in which to look for the element.
+     * @param  name     name of the element.
+     * @return          the text of the only element with the specified name.
+     */
+    private static String getText(Document document, String name) {
+        NodeList nodes;
+
+        nodes = document.getElementsByTagName(name);
+        assertEquals(nodes.getLength(), 1);
+
+        return nodes.item(0).getTextContent();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link AppBatchTask} class.
+ * @author Nicolas Rinaudo
+ */
+public class AppBatchTaskTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("mkapps");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure files shared by several bundles are copied once and linked into the other bundles, while files that
+     * are specific to a bundle are not.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testSharedFiles() throws IOException {
+        AppBatchTask task;
+        File         shared;
+        File         other;
+        File         first;
+        File         second;
+        File         third;
+
+        shared = createJar("shared.jar", "shared");
+        other  = createJar("other.jar", "other");
+
+        task = createTask();
+        addApp(task, "First.app", shared);
+        addApp(task, "Second.app", shared);
+        addApp(task, "Third.app", other);
+        task.execute();
+
+        first  = getJar("First.app", shared);
+        second = getJar("Second.app", shared);
+        third  = getJar("Third.app", other);
+        assertTrue(Arrays.equals(TestFiles.read(first), TestFiles.read(shared)));
+        assertTrue(Arrays.equals(TestFiles.read(third), TestFiles.read(other)));
+        assertTrue(Files.isSameFile(first.toPath(), second.toPath()));
+        assertFalse(Files.isSameFile(first.toPath(), third.toPath()));
+
+        // All bundles get the same launcher.
+        assertTrue(Arrays.equals(TestFiles.read(getStub("First.app")), TestFiles.read(getStub("Third.app"))));
+        assertTrue(getStub("Second.app").canExecute());
+    }
+
+    /**
+     * Makes sure batches without bundles are refused.
+     */
+    @Test(expectedExceptions = BuildException.class)
+    public void testEmpty() {
+        createTask().execute();
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a JAR file that contains a single entry.
+     * @param     name        name of the JAR file.
+     * @param     content     content of the JAR file's entry.
+     * @return                the JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File createJar(String name, String content) throws IOException {
+        Map<String, byte[]> entries;
+
+        entries = new TreeMap<String, byte[]>();
+        entries.put("content.txt", TestFiles.bytes(content));
+
+        return TestFiles.writeJar(new File(root, name), entries);
+    }
+
+    /**
+     * Creates an empty batch.
+     * @return an empty batch.
+     */
+    private static AppBatchTask createTask() {
+        AppBatchTask task;
+        Project      project;
+
+        project = new Project();
+        project.init();
+        task = new AppBatchTask();
+        task.setProject(project);
+        task.init();
+        task.setThreads(2);
+
+        return task;
+    }
+
+    /**
+     * Adds a bundle of the specified JAR file to the specified batch.
+     * @param task batch to which to add the bundle.
+     * @param name name of the bundle.
+     * @param jar  JAR file to bundle.
+     */
+    private void addApp(AppBatchTask task, String name, File jar) {
+        AppTask app;
+
+        app = task.createApp();
+        app.setDest(new File(root, name));
+        app.setCreator("TEST");
+        app.setJar(jar);
+    }
+
+    /**
+     * Returns the copy of the specified JAR file in the specified bundle.
+     * @param  name name of the bundle.
+     * @param  jar  JAR file that was bundled.
+     * @return      the copy of the specified JAR file in the specified bundle.
+     */
+    private File getJar(String name, File jar) {
+        return new File(root, name + "/Contents/Resources/Java/" + jar.getName());
+    }
+
+    /**
+     * Returns the launcher of the specified bundle.
+     * @param  name name of the bundle.
+     * @return      the launcher of the specified bundle.
+     */
+    private File getStub(String name) {
+        return new File(root, name + "/Contents/MacOS/JavaApplicationStub");
+    }
+}
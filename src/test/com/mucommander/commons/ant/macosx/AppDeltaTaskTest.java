@@ -0,0 +1,270 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link AppDeltaTask mkdelta} and {@link AppPatchTask applydelta} tasks together.
+ * <p>
+ * Both versions of the bundle exercise every kind of operation: unchanged, moved, added and removed files, changed JAR
+ * files and binary diffs.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class AppDeltaTaskTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Old version of the bundle. */
+    private File from;
+    /** New version of the bundle. */
+    private File to;
+    /** Delta package. */
+    private File delta;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates both versions of the bundle.
+     * @exception IOException if any IO related error occurs.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        Map<String, byte[]> entries;
+        Random              random;
+        byte[]              data;
+
+        root   = TestFiles.createTempFolder("appdelta");
+        from   = new File(root, "v1/A.app");
+        to     = new File(root, "v2/A.app");
+        delta  = new File(root, "delta.zip");
+        random = new Random(0);
+
+        // Unchanged files, one of which is executable.
+        data = random(random, 5000);
+        TestFiles.write(new File(from, "Contents/MacOS/launcher"), data).setExecutable(true);
+        TestFiles.write(new File(to, "Contents/MacOS/launcher"), data).setExecutable(true);
+
+        // Moved file.
+        data = random(random, 3000);
+        TestFiles.write(new File(from, "Contents/Resources/old.txt"), data);
+        TestFiles.write(new File(to, "Contents/Resources/moved.txt"), data);
+
+        // Removed and added files.
+        TestFiles.write(new File(from, "Contents/Resources/removed.txt"), random(random, 100));
+        TestFiles.write(new File(to, "Contents/Resources/added.txt"), random(random, 100));
+
+        // Binary diff.
+        data = random(random, 50000);
+        TestFiles.write(new File(from, "Contents/Resources/data.bin"), data);
+        data[100]   += 1;
+        data[20000] += 1;
+        TestFiles.write(new File(to, "Contents/Resources/data.bin"), data);
+
+        // Changed JAR file.
+        entries = new TreeMap<String, byte[]>();
+        for(int i = 0; i < 50; i++)
+            entries.put("pkg/Class" + i + ".class", random(random, 1000));
+        TestFiles.writeJar(new File(from, "Contents/Resources/Java/app.jar"), entries);
+        entries.put("pkg/Class7.class", random(random, 1200));
+        TestFiles.writeJar(new File(to, "Contents/Resources/Java/app.jar"), entries);
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure applying a delta to the old bundle yields the new one exactly.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        File result;
+
+        createDelta();
+        applyDelta(result = new File(root, "out/A.app"));
+
+        assertTrue(delta.length() < size(to) / 2, "Delta package: " + delta.length() + " bytes");
+        assertSameTree(result, to);
+        assertTrue(new File(result, "Contents/MacOS/launcher").canExecute());
+    }
+
+    /**
+     * Makes sure a delta applied to a bundle it wasn't computed for fails verification.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(expectedExceptions = BuildException.class)
+    public void testWrongSource() throws IOException {
+        byte[] data;
+
+        createDelta();
+
+        // Binary diffs of a modified file yield the wrong content.
+        data = TestFiles.read(new File(from, "Contents/Resources/data.bin"));
+        data[30000] += 1;
+        TestFiles.write(new File(from, "Contents/Resources/data.bin"), data);
+
+        applyDelta(new File(root, "out/A.app"));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new project.
+     * @return a new project.
+     */
+    private static Project createProject() {
+        Project project;
+
+        project = new Project();
+        project.init();
+
+        return project;
+    }
+
+    /**
+     * Runs <code>mkdelta</code> between both versions of the bundle.
+     */
+    private void createDelta() {
+        AppDeltaTask task;
+
+        task = new AppDeltaTask();
+        task.setProject(createProject());
+        task.init();
+        task.setFrom(from);
+        task.setTo(to);
+        task.setDest(delta);
+        task.execute();
+    }
+
+    /**
+     * Runs <code>applydelta</code> on the old version of the bundle.
+     * @param destination where to create the new version of the bundle.
+     */
+    private void applyDelta(File destination) {
+        AppPatchTask task;
+
+        task = new AppPatchTask();
+        task.setProject(createProject());
+        task.init();
+        task.setFrom(from);
+        task.setDelta(delta);
+        task.setDest(destination);
+        task.execute();
+    }
+
+    /**
+     * Makes sure both folders have the same files, with the same content.
+     * @param     actual      folder to check.
+     * @param     expected    expected content.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static void assertSameTree(File actual, File expected) throws IOException {
+        Map<String, File> actualFiles;
+        Map<String, File> expectedFiles;
+
+        actualFiles   = list(actual, "", new TreeMap<String, File>());
+        expectedFiles = list(expected, "", new TreeMap<String, File>());
+        assertEquals(actualFiles.keySet(), expectedFiles.keySet());
+        for(Map.Entry<String, File> file : expectedFiles.entrySet())
+            assertTrue(Arrays.equals(TestFiles.read(actualFiles.get(file.getKey())), TestFiles.read(file.getValue())),
+                       "Mismatch: " + file.getKey());
+    }
+
+    /**
+     * Lists the files of the specified folder recursively.
+     * @param  folder folder to explore.
+     * @param  path   path of <code>folder</code> relative to the root of the exploration.
+     * @param  files  where to store files, indexed by relative path.
+     * @return        <code>files</code>.
+     */
+    private static Map<String, File> list(File folder, String path, Map<String, File> files) {
+        File[] children;
+
+        if((children = folder.listFiles()) != null) {
+            for(File child : children) {
+                if(child.isDirectory())
+                    list(child, path + child.getName() + '/', files);
+                else
+                    files.put(path + child.getName(), child);
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Returns the total size of the files of the specified folder.
+     * @param  folder folder to explore.
+     * @return        the total size of the files of the specified folder.
+     */
+    private static long size(File folder) {
+        long size;
+
+        size = 0;
+        for(File file : list(folder, "", new TreeMap<String, File>()).values())
+            size += file.length();
+
+        return size;
+    }
+
+    /**
+     * Returns random data.
+     * @param  random generator to use.
+     * @param  length length of the data.
+     * @return        random data.
+     */
+    private static byte[] random(Random random, int length) {
+        byte[] data;
+
+        data = new byte[length];
+        random.nextBytes(data);
+
+        return data;
+    }
+}
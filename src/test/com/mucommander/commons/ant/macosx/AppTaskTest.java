@@ -0,0 +1,267 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link AppTask} class.
+ * @author Nicolas Rinaudo
+ */
+public class AppTaskTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Bundle generated by the tests. */
+    private File bundle;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root   = TestFiles.createTempFolder("mkapp");
+        bundle = new File(root, "Test.app");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Shrinking tests -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure classes of the bundled JAR file that are only reachable from a classpath JAR file are kept.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testShrinkClassPath() throws IOException {
+        Map<String, String> sources;
+        AppTask             task;
+        File                lib;
+
+        // The library loads a callback by name, which the bundled JAR file never references.
+        sources = new TreeMap<String, String>();
+        sources.put("lib.Plugins", "package lib;\npublic class Plugins {\n"
+                                   + "    public static final String CALLBACK = \"app.Callback\";\n}\n");
+        lib = TestFiles.writeJar(new File(getJava(), "lib.jar"), TestFiles.compile(new File(root, "lib"), sources));
+
+        task = createTask(createApplication(true));
+        task.setShrink(true);
+        task.setClasspath("$JAVAROOT/lib.jar");
+        task.execute();
+
+        assertEquals(getBundledClasses(), set("app/Callback.class", "app/Main.class"));
+        assertEquals(TestFiles.readJar(lib).keySet(), set("lib/Plugins.class"));
+    }
+
+    /**
+     * Makes sure shrinking is refused when a classpath JAR file cannot be analysed.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(expectedExceptions = BuildException.class, expectedExceptionsMessageRegExp = ".*missing\\.jar.*")
+    public void testShrinkMissingClassPath() throws IOException {
+        AppTask task;
+
+        task = createTask(createApplication(true));
+        task.setShrink(true);
+        task.setClasspath("$JAVAROOT/missing.jar:/System/Library/Java");
+        task.execute();
+    }
+
+    /**
+     * Makes sure the <code>MainClass</code> key of the <code>Java</code> dictionary is used when the JAR file doesn't
+     * declare a main class.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testShrinkPlistMainClass() throws IOException {
+        AppTask   task;
+        DictKey   java;
+        StringKey main;
+
+        task = createTask(createApplication(false));
+        task.setShrink(true);
+        java = task.createDict();
+        java.setName("Java");
+        main = java.createString();
+        main.setName("MainClass");
+        main.setValue("app.Main");
+        task.execute();
+
+        assertEquals(getBundledClasses(), set("app/Main.class"));
+    }
+
+
+
+    // - Training run tests --------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure the CDS archive is created by the embedded runtime, which is then able to use it.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testCdsEmbeddedRuntime() throws Exception {
+        Map<String, String> sources;
+        Map<String, byte[]> entries;
+        AppTask             task;
+        File                home;
+        File                log;
+        Process             process;
+
+        // The application records which runtime it runs on.
+        sources = new TreeMap<String, String>();
+        sources.put("app.Main", "package app;\npublic class Main {\n"
+                                + "    public static void main(String[] args) throws Exception {\n"
+                                + "        java.nio.file.Files.write(java.nio.file.Paths.get(\"home.txt\"),\n"
+                                + "            System.getProperty(\"java.home\").getBytes(\"UTF-8\"));\n    }\n}\n");
+        entries = TestFiles.compile(new File(root, "app"), sources);
+        entries.put("META-INF/MANIFEST.MF", TestFiles.bytes("Manifest-Version: 1.0\r\nMain-Class: app.Main\r\n\r\n"));
+
+        task = createTask(TestFiles.writeJar(new File(root, "app.jar"), entries));
+        task.setRuntimeModules("java.base");
+        task.setRuntimeCache(new File(root, "runtimes"));
+        task.setCds(true);
+        task.execute();
+
+        home = new File(bundle, "Contents/PlugIns/runtime/Contents/Home");
+        assertEquals(task.getTrainingJvm(), new File(home, "bin/java"));
+        assertEquals(new File(new String(TestFiles.read(new File(getJava(), "home.txt")), "UTF-8")).getCanonicalFile(),
+                     home.getCanonicalFile());
+
+        // The embedded runtime must load the application from the archive.
+        log     = new File(root, "classes.log");
+        process = new ProcessBuilder(new File(home, "bin/java").getAbsolutePath(),
+                                     "-XX:SharedArchiveFile=" + new File(getJava(), "app.jar.jsa").getAbsolutePath(),
+                                     "-Xlog:class+load:file=" + log.getAbsolutePath(),
+                                     "-jar", new File(getJava(), "app.jar").getAbsolutePath())
+                .directory(getJava()).inheritIO().start();
+        assertEquals(process.waitFor(), 0);
+        assertTrue(new String(TestFiles.read(log), "UTF-8").contains("app.Main source: shared objects file (top)"));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the bundle's <code>Resources/Java</code> folder.
+     * @return the bundle's <code>Resources/Java</code> folder.
+     */
+    private File getJava() {
+        return new File(bundle, "Contents/Resources/Java");
+    }
+
+    /**
+     * Creates an application with a main class, a class that it doesn't reference and one that only a library
+     * references.
+     * @param     manifest    whether to declare the main class in the JAR file's manifest.
+     * @return                the application's JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File createApplication(boolean manifest) throws IOException {
+        Map<String, String> sources;
+        Map<String, byte[]> entries;
+
+        sources = new TreeMap<String, String>();
+        sources.put("app.Main", "package app;\npublic class Main {\n"
+                                + "    public static void main(String[] args) {System.out.println(\"Main\");}\n}\n");
+        sources.put("app.Callback", "package app;\npublic class Callback {}\n");
+        sources.put("app.Unused", "package app;\npublic class Unused {}\n");
+
+        entries = TestFiles.compile(new File(root, "app"), sources);
+        entries.put("META-INF/MANIFEST.MF", TestFiles.bytes("Manifest-Version: 1.0\r\n"
+                                                            + (manifest ? "Main-Class: app.Main\r\n" : "") + "\r\n"));
+
+        return TestFiles.writeJar(new File(root, "app.jar"), entries);
+    }
+
+    /**
+     * Creates a task that bundles the specified JAR file.
+     * @param  jar JAR file to bundle.
+     * @return     a task that bundles the specified JAR file.
+     */
+    private AppTask createTask(File jar) {
+        AppTask task;
+        Project project;
+
+        project = new Project();
+        project.init();
+        task = new AppTask();
+        task.setProject(project);
+        task.init();
+        task.setDest(bundle);
+        task.setCreator("TEST");
+        task.setJar(jar);
+
+        return task;
+    }
+
+    /**
+     * Returns the classes of the bundled JAR file.
+     * @return                the classes of the bundled JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private Set<String> getBundledClasses() throws IOException {
+        Set<String> classes;
+
+        classes = new TreeSet<String>();
+        for(String name : TestFiles.readJar(new File(getJava(), "app.jar")).keySet())
+            if(name.endsWith(".class"))
+                classes.add(name);
+
+        return classes;
+    }
+
+    /**
+     * Returns a sorted set that contains the specified values.
+     * @param  values values to put in the set.
+     * @return        a sorted set that contains the specified values.
+     */
+    private static Set<String> set(String... values) {
+        return new TreeSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.Digests;
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.Project;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the {@link BundleManifest} class.
+ * @author Nicolas Rinaudo
+ */
+public class BundleManifestTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Bundle described by the manifests. */
+    private File bundle;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root   = TestFiles.createTempFolder("manifest");
+        bundle = new File(root, "Test.app");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure recorded files are listed with the digest computed while writing them, files that were not recorded
+     * are hashed, and deleted files and the manifest itself are left out.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        BundleManifest manifest;
+        OutputStream   out;
+        File           file;
+
+        manifest = new BundleManifest(bundle);
+
+        // Recorded while written.
+        file = new File(bundle, "Contents/Recorded.txt");
+        file.getParentFile().mkdirs();
+        out = manifest.open(file);
+        try {out.write(TestFiles.bytes("recorded"));}
+        finally {out.close();}
+
+        // Recorded, then deleted.
+        file = TestFiles.write(new File(bundle, "Contents/Deleted.txt"), TestFiles.bytes("deleted"));
+        manifest.add(file, file.length(), Digests.sha256(file));
+        file.delete();
+
+        // Not recorded.
+        TestFiles.write(new File(bundle, "Contents/MacOS/Unrecorded"), TestFiles.bytes("unrecorded"));
+
+        file = new File(bundle, "Contents/manifest.txt");
+        manifest.write(file);
+        assertEquals(readLines(file), Arrays.asList(getLine("Contents/MacOS/Unrecorded", "unrecorded"),
+                                                    getLine("Contents/Recorded.txt", "recorded")));
+    }
+
+    /**
+     * Makes sure the manifest written by <code>mkapp</code> describes every file of the bundle.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testBundle() throws IOException {
+        Map<String, String> listed;
+        Map<String, String> actual;
+        Map<String, byte[]> entries;
+        AppTask             task;
+        Project             project;
+        File                file;
+
+        entries = new TreeMap<String, byte[]>();
+        entries.put("content.txt", TestFiles.bytes("content"));
+
+        project = new Project();
+        project.init();
+        task = new AppTask();
+        task.setProject(project);
+        task.init();
+        task.setDest(bundle);
+        task.setCreator("TEST");
+        task.setJar(TestFiles.writeJar(new File(root, "app.jar"), entries));
+        task.setManifest(file = new File(root, "manifest.txt"));
+        task.execute();
+
+        listed = new TreeMap<String, String>();
+        for(String line : readLines(file))
+            listed.put(line.substring(line.lastIndexOf(' ') + 1), line);
+
+        actual = new TreeMap<String, String>();
+        listFiles(bundle, "", actual);
+        assertEquals(listed, actual);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the manifest line that describes the specified content.
+     * @param  path    path of the file.
+     * @param  content content of the file.
+     * @return         the manifest line that describes the specified content.
+     */
+    private static String getLine(String path, String content) {
+        byte[] data;
+
+        data = TestFiles.bytes(content);
+        return Digests.toHex(Digests.newSha256().digest(data)) + " " + data.length + " " + path;
+    }
+
+    /**
+     * Adds the manifest line of all files of the specified folder, recursively, to the specified map.
+     * @param     folder      folder to explore.
+     * @param     prefix      path of <code>folder</code> relative to the bundle.
+     * @param     lines       where to store manifest lines, indexed by path.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static void listFiles(File folder, String prefix, Map<String, String> lines) throws IOException {
+        for(File file : folder.listFiles()) {
+            if(file.isDirectory())
+                listFiles(file, prefix + file.getName() + '/', lines);
+            else
+                lines.put(prefix + file.getName(), Digests.toHex(Digests.sha256(file)) + " " + file.length() + " "
+                                                   + prefix + file.getName());
+        }
+    }
+
+    /**
+     * Returns the lines of the specified manifest.
+     * @param     file        manifest to read.
+     * @return                the lines of the specified manifest.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines;
+
+        lines = new ArrayList<String>();
+        for(String line : new String(TestFiles.read(file), "UTF-8").split("\n"))
+            if(line.length() != 0)
+                lines.add(line);
+
+        return lines;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import com.mucommander.commons.ant.util.ZipDirectory;
+import org.testng.Reporter;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link ClassLoadOrder} class, and benchmarks its effect on cold cache startup.
+ * @author Nicolas Rinaudo
+ */
+public class ClassLoadOrderTest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Number of classes in the benchmark application. */
+    private static final int CLASSES   = 1500;
+    /** Number of characters of constant data in each class of the benchmark application. */
+    private static final int DATA_SIZE = 6000;
+    /** Number of cold cache runs of each version of the benchmark application. */
+    private static final int RUNS      = 5;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("loadorder");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure both supported log formats are parsed, and that classes are only listed the first time they appear.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testRead() throws IOException {
+        File log;
+
+        log = TestFiles.write(new File(root, "classes.log"), TestFiles.bytes(
+                "[0.010s][info][class,load] java.lang.Object source: shared objects file\n"
+                + "[0.150s][info][class,load] com.foo.Bar source: file:/app.jar\n"
+                + "[0.151s][info][class,load] com.foo.Bar$Inner source: file:/app.jar\n"
+                + "# Comment\n"
+                + "\n"
+                + "com/foo/Baz id: 42\n"
+                + "com/foo/Bar\n"
+                + "[0.200s][info][gc] Unrelated line\n"));
+
+        assertEquals(ClassLoadOrder.read(log), Arrays.asList("java/lang/Object.class", "com/foo/Bar.class",
+                                                             "com/foo/Bar$Inner.class", "com/foo/Baz.class"));
+    }
+
+    /**
+     * Makes sure entries are stored manifest first, then in load order, then in their original order, and that their
+     * content is left untouched.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testReorder() throws IOException {
+        Map<String, byte[]> entries;
+        List<String>        names;
+        JarInputStream      in;
+        File                jar;
+        File                reordered;
+
+        entries = new TreeMap<String, byte[]>();
+        entries.put("META-INF/MANIFEST.MF", TestFiles.bytes("Manifest-Version: 1.0\r\nMain-Class: a.Main\r\n\r\n"));
+        for(String name : new String[] {"a/A.class", "a/B.class", "a/C.class", "a/D.class", "a/Main.class", "x.txt"})
+            entries.put(name, TestFiles.bytes(name));
+        jar = TestFiles.writeJar(new File(root, "app.jar"), entries);
+
+        reordered = reorder(jar, Arrays.asList("a/Main.class", "a/C.class", "missing/Class.class", "a/A.class"), 3);
+
+        names = new ArrayList<String>();
+        for(ZipDirectory.Entry entry : ZipDirectory.read(reordered).getEntriesByOffset())
+            names.add(entry.getName());
+        assertEquals(names, Arrays.asList("META-INF/MANIFEST.MF", "a/Main.class", "a/C.class", "a/A.class",
+                                          "a/B.class", "a/D.class", "x.txt"));
+        assertEquals(TestFiles.readJar(reordered).keySet(), entries.keySet());
+        for(Map.Entry<String, byte[]> entry : TestFiles.readJar(reordered).entrySet())
+            assertTrue(Arrays.equals(entry.getValue(), entries.get(entry.getKey())), entry.getKey());
+
+        // JarInputStream only finds manifests stored first.
+        in = new JarInputStream(new FileInputStream(reordered));
+        try {assertNotNull(in.getManifest());}
+        finally {in.close();}
+    }
+
+    /**
+     * Benchmarks the startup of an application with a cold cache, before and after reordering its JAR file.
+     * <p>
+     * The load order is recorded with <code>-Xlog:class+load</code>. The reordered JAR file must then be read
+     * sequentially at startup: the distance the JVM has to seek between consecutive class reads is measured from the
+     * JAR files' layout and must shrink to nearly nothing. Cold cache startup times are measured by dropping the
+     * page cache before each run and reported, but not asserted, since they depend on the storage device. They are
+     * skipped when the page cache cannot be dropped.
+     * </p>
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void benchmarkColdStartup() throws IOException {
+        List<String> order;
+        long[]       before;
+        long[]       after;
+        long         originalSeeks;
+        long         reorderedSeeks;
+        File         jar;
+        File         reordered;
+
+        jar   = StartupBenchmark.createApplication(new File(root, "app"), CLASSES, DATA_SIZE);
+        StartupBenchmark.run(jar, "-Xshare:auto", "-Xlog:class+load:file=" + new File(root, "classes.log"));
+        order = ClassLoadOrder.read(new File(root, "classes.log"));
+        reordered = reorder(jar, order, CLASSES + 1);
+
+        // Reads must become sequential.
+        originalSeeks  = getSeekDistance(jar, order);
+        reorderedSeeks = getSeekDistance(reordered, order);
+        Reporter.log("Seek distance: " + originalSeeks + " bytes originally, " + reorderedSeeks + " once reordered",
+                     true);
+        assertTrue(reorderedSeeks * 100 < originalSeeks, reorderedSeeks + " vs " + originalSeeks);
+
+        if(!StartupBenchmark.canDropCaches())
+            throw new SkipException("Cold cache startup times need root privileges on Linux.");
+        before = new long[RUNS];
+        after  = new long[RUNS];
+        for(int i = 0; i < RUNS; i++) {
+            StartupBenchmark.dropCaches();
+            before[i] = StartupBenchmark.run(jar);
+            StartupBenchmark.dropCaches();
+            after[i] = StartupBenchmark.run(reordered);
+        }
+        StartupBenchmark.report("Cold startup, original JAR file", before);
+        StartupBenchmark.report("Cold startup, reordered JAR file", after);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reorders the specified JAR file.
+     * @param     jar         JAR file to reorder.
+     * @param     order       load order.
+     * @param     expected    number of entries of <code>order</code> that are expected to be found in the JAR file.
+     * @return                the reordered JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File reorder(File jar, List<String> order, int expected) throws IOException {
+        OutputStream out;
+        File         reordered;
+
+        reordered = new File(jar.getParentFile(), "reordered.jar");
+        out       = new FileOutputStream(reordered);
+        try {assertEquals(ClassLoadOrder.reorder(jar, order, out), expected);}
+        finally {out.close();}
+
+        return reordered;
+    }
+
+    /**
+     * Returns the total distance between the end of each class and the start of the next one, in load order.
+     * <p>
+     * This is how far a disk would have to seek while loading classes on a cold cache, ignoring read-ahead.
+     * </p>
+     * @param     jar         JAR file to analyse.
+     * @param     order       load order.
+     * @return                the total seek distance, in bytes.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static long getSeekDistance(File jar, List<String> order) throws IOException {
+        Map<String, ZipDirectory.Entry> entries;
+        long                            distance;
+        long                            position;
+
+        entries = new HashMap<String, ZipDirectory.Entry>();
+        for(ZipDirectory.Entry entry : ZipDirectory.read(jar).getEntries())
+            entries.put(entry.getName(), entry);
+
+        distance = 0;
+        position = -1;
+        for(String name : order) {
+            ZipDirectory.Entry entry;
+
+            if((entry = entries.get(name)) == null)
+                continue;
+            if(position != -1)
+                distance += Math.abs(entry.getHeaderOffset() - position);
+            position = entry.getEndOffset();
+        }
+
+        return distance;
+    }
+}
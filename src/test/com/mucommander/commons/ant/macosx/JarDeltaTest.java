@@ -0,0 +1,205 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link JarDelta} class.
+ * @author Nicolas Rinaudo
+ */
+public class JarDeltaTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("jardelta");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+    /**
+     * Returns the number of threads to test with.
+     * @return the number of threads to test with.
+     */
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][] {{1}, {4}};
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure applying a delta rebuilds the new version byte for byte, and ships little more than what changed.
+     * <p>
+     * The JAR files have more entries than a single slice of work, so that concurrent comparison is exercised.
+     * </p>
+     * @param     threads     number of threads to use.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(dataProvider = "threads")
+    public void testRoundTrip(int threads) throws IOException {
+        Map<String, byte[]> oldEntries;
+        Map<String, byte[]> newEntries;
+        Random              random;
+        long                literals;
+        File                from;
+        File                to;
+
+        random     = new Random(0);
+        oldEntries = new TreeMap<String, byte[]>();
+        for(int i = 0; i < 1500; i++)
+            oldEntries.put(String.format("pkg/Class%04d.class", i), random(random, 200 + random.nextInt(2000)));
+
+        newEntries = new TreeMap<String, byte[]>(oldEntries);
+        newEntries.put("pkg/Class0010.class", random(random, 500));
+        newEntries.put("pkg/Class0700.class", random(random, 800));
+        newEntries.remove("pkg/Class1200.class");
+        newEntries.put("pkg/Added.class", random(random, 300));
+        newEntries.put("renamed/Class0042.class", newEntries.remove("pkg/Class0042.class"));
+
+        from = TestFiles.writeJar(new File(root, "old.jar"), oldEntries);
+        to   = TestFiles.writeJar(new File(root, "new.jar"), newEntries);
+
+        literals = assertRoundTrip(from, to, threads);
+
+        // Changed entries and the central directory must be shipped, but most of the file must be copied.
+        assertTrue(literals < to.length() / 5, literals + " literal bytes out of " + to.length());
+    }
+
+    /**
+     * Makes sure files that share no entry are still rebuilt properly.
+     * @param     threads     number of threads to use.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(dataProvider = "threads")
+    public void testUnrelated(int threads) throws IOException {
+        Map<String, byte[]> oldEntries;
+        Map<String, byte[]> newEntries;
+        Random              random;
+
+        random     = new Random(1);
+        oldEntries = new TreeMap<String, byte[]>();
+        newEntries = new TreeMap<String, byte[]>();
+        for(int i = 0; i < 20; i++) {
+            oldEntries.put("a/" + i, random(random, 1000));
+            newEntries.put("b/" + i, random(random, 1000));
+        }
+
+        assertRoundTrip(TestFiles.writeJar(new File(root, "old.jar"), oldEntries),
+                        TestFiles.writeJar(new File(root, "new.jar"), newEntries), threads);
+    }
+
+    /**
+     * Makes sure identical files are rebuilt without shipping their entries, only their central directory.
+     * @param     threads     number of threads to use.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(dataProvider = "threads")
+    public void testIdentical(int threads) throws IOException {
+        Map<String, byte[]> entries;
+        Random              random;
+        long                literals;
+        File                jar;
+
+        random  = new Random(2);
+        entries = new TreeMap<String, byte[]>();
+        for(int i = 0; i < 100; i++)
+            entries.put("pkg/" + i, random(random, 1000));
+        jar = TestFiles.writeJar(new File(root, "app.jar"), entries);
+
+        literals = assertRoundTrip(jar, jar, threads);
+        assertTrue(literals < jar.length() / 10, literals + " literal bytes out of " + jar.length());
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Computes, writes and applies the delta between two files, and makes sure the result is identical to the new one.
+     * @param     from        old version of the JAR file.
+     * @param     to          new version of the JAR file.
+     * @param     threads     number of threads to use.
+     * @return                the number of literal bytes in the delta.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static long assertRoundTrip(File from, File to, int threads) throws IOException {
+        ByteArrayOutputStream delta;
+        ByteArrayOutputStream result;
+        long                  literals;
+
+        delta    = new ByteArrayOutputStream();
+        literals = JarDelta.write(JarDelta.diff(from, to, threads), to, delta);
+
+        result = new ByteArrayOutputStream();
+        JarDelta.apply(from, new ByteArrayInputStream(delta.toByteArray()), result);
+        assertTrue(Arrays.equals(result.toByteArray(), TestFiles.read(to)), "Rebuilt JAR file differs");
+
+        return literals;
+    }
+
+    /**
+     * Returns random data.
+     * @param  random generator to use.
+     * @param  length length of the data.
+     * @return        random data.
+     */
+    private static byte[] random(Random random, int length) {
+        byte[] data;
+
+        data = new byte[length];
+        random.nextBytes(data);
+
+        return data;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link JarMerger} class.
+ * @author Nicolas Rinaudo
+ */
+public class JarMergerTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File                   root;
+    /** Rules used to resolve duplicate entries. */
+    private List<DuplicateElement> rules;
+    /** Number of duplicate entries resolved by the last merge. */
+    private int                    count;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root  = TestFiles.createTempFolder("merge");
+        rules = new ArrayList<DuplicateElement>();
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure service provider configuration files are concatenated, whatever the default strategy.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testServices() throws IOException {
+        Map<String, byte[]> merged;
+
+        merged = merge(JarMerger.FAIL, jar("app.jar", "META-INF/services/api.Service", "app.Impl", "app/A.class", "A"),
+                       jar("lib.jar", "META-INF/services/api.Service", "lib.Impl\n", "lib/B.class", "B"));
+
+        assertEquals(count, 1);
+        assertEquals(new String(merged.get("META-INF/services/api.Service"), "UTF-8"), "app.Impl\nlib.Impl\n");
+        assertEquals(new String(merged.get("app/A.class"), "UTF-8"), "A");
+        assertEquals(new String(merged.get("lib/B.class"), "UTF-8"), "B");
+    }
+
+    /**
+     * Makes sure the <code>first</code> strategy keeps the entry of the first JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testFirst() throws IOException {
+        Map<String, byte[]> merged;
+
+        merged = merge(JarMerger.FIRST, jar("app.jar", "a.txt", "app"), jar("lib.jar", "a.txt", "lib"),
+                       jar("other.jar", "a.txt", "other"));
+
+        assertEquals(count, 1);
+        assertEquals(new String(merged.get("a.txt"), "UTF-8"), "app");
+    }
+
+    /**
+     * Makes sure the <code>fail</code> strategy refuses duplicate entries.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(expectedExceptions = ZipException.class, expectedExceptionsMessageRegExp = "Duplicate entry a\\.txt.*")
+    public void testFail() throws IOException {
+        merge(JarMerger.FAIL, jar("app.jar", "a.txt", "app"), jar("lib.jar", "a.txt", "lib"));
+    }
+
+    /**
+     * Makes sure rules take precedence over the default strategy, and that identical entries are not duplicates.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testRules() throws IOException {
+        Map<String, byte[]> merged;
+
+        addRule("**/*.properties", JarMerger.CONCAT);
+        addRule("**/*.txt", JarMerger.FIRST);
+        merged = merge(JarMerger.FAIL,
+                       jar("app.jar", "conf/a.properties", "a=1", "a.txt", "app", "same.bin", "same"),
+                       jar("lib.jar", "conf/a.properties", "b=2", "a.txt", "lib", "same.bin", "same"));
+
+        assertEquals(count, 2);
+        assertEquals(new String(merged.get("conf/a.properties"), "UTF-8"), "a=1\nb=2\n");
+        assertEquals(new String(merged.get("a.txt"), "UTF-8"), "app");
+        assertEquals(new String(merged.get("same.bin"), "UTF-8"), "same");
+    }
+
+    /**
+     * Makes sure the manifest of the first JAR file is kept, stripped of merged JAR files and marked as multi-release
+     * if any merged JAR file is.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testManifest() throws IOException {
+        Map<String, byte[]> merged;
+        Attributes          main;
+
+        merged = merge(JarMerger.FAIL,
+                       jar("app.jar", "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMain-Class: app.Main\r\n"
+                                                              + "Class-Path: lib/lib.jar other.jar\r\n\r\n"),
+                       jar("lib.jar", "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMulti-Release: true\r\n\r\n",
+                           "META-INF/versions/9/lib/B.class", "B"));
+
+        main = new Manifest(new ByteArrayInputStream(merged.get("META-INF/MANIFEST.MF"))).getMainAttributes();
+        assertEquals(main.getValue(Attributes.Name.MAIN_CLASS), "app.Main");
+        assertEquals(main.getValue(Attributes.Name.CLASS_PATH), "other.jar");
+        assertEquals(main.getValue("Multi-Release"), "true");
+        assertTrue(merged.containsKey("META-INF/versions/9/lib/B.class"));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Adds a duplicate resolution rule.
+     * @param pattern  entries to which the rule applies.
+     * @param strategy strategy used for these entries.
+     */
+    private void addRule(String pattern, String strategy) {
+        DuplicateElement rule;
+
+        rule = new DuplicateElement();
+        rule.setPattern(pattern);
+        rule.setStrategy(strategy);
+        rules.add(rule);
+    }
+
+    /**
+     * Creates a JAR file with the specified entries.
+     * @param     name        name of the JAR file.
+     * @param     entries     name and content of each entry.
+     * @return                the JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File jar(String name, String... entries) throws IOException {
+        Map<String, byte[]> content;
+
+        content = new TreeMap<String, byte[]>();
+        for(int i = 0; i < entries.length; i += 2)
+            content.put(entries[i], TestFiles.bytes(entries[i + 1]));
+
+        return TestFiles.writeJar(new File(root, name), content);
+    }
+
+    /**
+     * Merges the specified JAR files and returns the content of the result.
+     * @param     strategy    strategy used for duplicate entries that match none of the rules.
+     * @param     jars        JAR files to merge.
+     * @return                the entries of the merged JAR file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private Map<String, byte[]> merge(String strategy, File... jars) throws IOException {
+        OutputStream out;
+        Task         owner;
+        File         merged;
+
+        owner = new Task() {};
+        owner.setProject(new Project());
+
+        merged = new File(root, "merged.jar");
+        out    = new FileOutputStream(merged);
+        try {count = new JarMerger(owner, rules, strategy).merge(Arrays.asList(jars), out);}
+        finally {out.close();}
+
+        return TestFiles.readJar(merged);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.Project;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Tests the {@link JdkModulesTask} class.
+ * @author Nicolas Rinaudo
+ */
+public class JdkModulesTaskTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        if(System.getProperty("java.specification.version").startsWith("1."))
+            throw new SkipException("Java 9 or later is required");
+        root = TestFiles.createTempFolder("jdkmodules");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        if(root != null)
+            TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure referenced modules are found, and that modules required by others are left out.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testModules() throws IOException {
+        Map<String, String> sources;
+        File                jar;
+
+        // java.sql requires java.logging, which must therefore not be listed.
+        sources = new TreeMap<String, String>();
+        sources.put("app.Main", "package app;\n"
+                                + "public class Main {\n"
+                                + "    java.sql.Connection connection;\n"
+                                + "    java.util.logging.Logger logger;\n"
+                                + "    java.util.List<String> list;\n"
+                                + "}\n");
+        jar = TestFiles.writeJar(new File(root, "app.jar"), TestFiles.compile(new File(root, "app"), sources));
+
+        assertEquals(runTask(jar), "java.sql");
+    }
+
+    /**
+     * Makes sure <code>requires static</code> modules are not considered to be pulled in by the modules that
+     * declare them.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testStaticRequires() throws IOException {
+        Map<String, byte[]> entries;
+        Map<String, String> sources;
+        FileSystem          image;
+        File                file;
+
+        sources = new TreeMap<String, String>();
+        sources.put("module-info", "module app {\n"
+                                   + "    requires java.logging;\n"
+                                   + "    requires static java.sql;\n"
+                                   + "}\n");
+        entries = new TreeMap<String, byte[]>();
+        for(Map.Entry<String, byte[]> entry : TestFiles.compile(new File(root, "app"), sources).entrySet())
+            entries.put("modules/app/" + entry.getKey(), entry.getValue());
+        file = TestFiles.writeJar(new File(root, "image.jar"), entries);
+
+        image = FileSystems.newFileSystem(file.toPath(), (ClassLoader)null);
+        try {
+            assertEquals(JdkModulesTask.getRequires(image, "app", new HashMap<String, Set<String>>()),
+                         new TreeSet<String>(Arrays.asList("java.base", "java.logging")));
+        }
+        finally {image.close();}
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Runs the task on the specified JAR file, against the modules of the current JDK.
+     * @param  jar JAR file to analyse.
+     * @return     the list of modules computed by the task.
+     */
+    private static String runTask(File jar) {
+        JdkModulesTask task;
+        Project        project;
+
+        project = new Project();
+        project.init();
+
+        task = new JdkModulesTask();
+        task.setProject(project);
+        task.init();
+        task.setProperty("modules");
+        task.setJar(jar);
+        task.execute();
+
+        return project.getProperty("modules");
+    }
+}
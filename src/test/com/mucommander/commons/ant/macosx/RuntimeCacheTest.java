@@ -0,0 +1,122 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link RuntimeCache} class.
+ * @author Nicolas Rinaudo
+ */
+public class RuntimeCacheTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File         root;
+    /** Cache being tested. */
+    private RuntimeCache cache;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a cache in an empty folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        Task owner;
+
+        if(!new File(RuntimeCache.getDefaultJdk(), "bin/jlink").isFile())
+            throw new SkipException("jlink is not available");
+
+        owner = new Task() {};
+        owner.setProject(new Project());
+        owner.getProject().init();
+
+        root  = TestFiles.createTempFolder("runtimes");
+        cache = new RuntimeCache(owner, RuntimeCache.getDefaultJdk(), null, root, RuntimeCache.DEFAULT_OPTIONS);
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        if(root != null)
+            TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure images are linked once per set of modules, regardless of the order in which modules are listed.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testCache() throws IOException {
+        File image;
+        File marker;
+        File base;
+
+        image = cache.getImage(Arrays.asList("java.logging", "java.base"));
+        assertTrue(new File(image, "bin/java").isFile());
+        assertTrue(new String(TestFiles.read(new File(image, "release")), "UTF-8").contains("java.logging"));
+
+        // The same set of modules must yield the same image, which must not be linked again.
+        marker = TestFiles.write(new File(image, "marker"), TestFiles.bytes("marker"));
+        assertEquals(cache.getImage(Arrays.asList("java.base", "java.logging")), image);
+        assertTrue(marker.isFile());
+
+        // Other sets of modules must yield other images.
+        base = cache.getImage(Arrays.asList("java.base"));
+        assertFalse(base.equals(image));
+        assertFalse(new String(TestFiles.read(new File(base, "release")), "UTF-8").contains("java.logging"));
+
+        // Temporary folders must not be left behind.
+        assertEquals(root.list().length, 2);
+    }
+
+    /**
+     * Makes sure images linked from the JDK's own modules get a default CDS archive.
+     */
+    @Test
+    public void testBaseArchive() {
+        File image;
+
+        image = cache.getImage(Arrays.asList("java.base"));
+        assertTrue(new File(image, "lib/server/classes.jsa").isFile(), "Missing default CDS archive in " + image);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.testng.Reporter;
+import org.testng.SkipException;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Helper methods for benchmarks that measure how bundle optimisations affect application startup.
+ * <p>
+ * Benchmarks run a generated application made of many classes, each carrying a few kilobytes of constant data, whose
+ * main class loads all of them in an order that has nothing to do with the order in which they're stored. This is
+ * representative of a desktop application's startup, where thousands of classes are loaded from a large JAR file.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+class StartupBenchmark {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Package of the generated classes. */
+    static final String       PACKAGE     = "app";
+    /** Fully qualified name of the generated main class. */
+    static final String       MAIN_CLASS  = PACKAGE + ".Main";
+    /** File used to drop the kernel's page cache on Linux. */
+    private static final File DROP_CACHES = new File("/proc/sys/vm/drop_caches");
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private StartupBenchmark() {}
+
+
+
+    // - Application generation ----------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Generates, compiles and packages the benchmark application.
+     * <p>
+     * Classes are stored in alphabetical order, and loaded in a random order at startup.
+     * </p>
+     * @param     folder      where to generate the application.
+     * @param     classes     number of classes to generate.
+     * @param     size        number of characters of constant data in each class.
+     * @return                the application's JAR file, deflated.
+     * @exception IOException if any IO related error occurs.
+     */
+    static File createApplication(File folder, int classes, int size) throws IOException {
+        JavaCompiler  compiler;
+        List<String>  names;
+        List<String>  arguments;
+        Random        random;
+        StringBuilder main;
+        File          sources;
+        File          binaries;
+
+        if((compiler = ToolProvider.getSystemJavaCompiler()) == null)
+            throw new SkipException("No Java compiler available");
+
+        sources   = new File(folder, "src");
+        binaries  = new File(folder, "classes");
+        random    = new Random(0);
+        names     = new ArrayList<String>();
+        arguments = new ArrayList<String>(Arrays.asList("-nowarn", "-d", binaries.getPath()));
+        if(!binaries.mkdirs())
+            throw new IOException("Could not create directory " + binaries);
+
+        for(int i = 0; i < classes; i++) {
+            String name;
+
+            name = String.format("C%05d", i);
+            names.add(PACKAGE + '.' + name);
+            arguments.add(TestFiles.write(new File(sources, name + ".java"), TestFiles.bytes(
+                    "package " + PACKAGE + ";\npublic class " + name + " {\n    static final String DATA = \""
+                    + randomString(random, size) + "\";\n    public static int size() {return DATA.length();}\n}\n"))
+                    .getPath());
+        }
+
+        // The main class loads and initialises all classes, in random order.
+        Collections.shuffle(names, random);
+        main = new StringBuilder("package " + PACKAGE + ";\n");
+        main.append("public class Main {\n    static final String[] NAMES = {\n");
+        for(String name : names)
+            main.append("        \"").append(name).append("\",\n");
+        main.append("    };\n    public static void main(String[] args) throws Exception {\n        int count = 0;\n");
+        main.append("        for(String name : NAMES)\n            count += Class.forName(name).getName().length();\n");
+        main.append("        if(count == 0)\n            System.exit(1);\n    }\n}\n");
+        arguments.add(TestFiles.write(new File(sources, "Main.java"), TestFiles.bytes(main.toString())).getPath());
+
+        assertEquals(compiler.run(null, null, null, arguments.toArray(new String[arguments.size()])), 0);
+
+        return writeJar(new File(folder, "app.jar"), new File(binaries, PACKAGE));
+    }
+
+    /**
+     * Packages the specified classes with a manifest that declares the generated main class.
+     * @param     jar         where to write the JAR file.
+     * @param     classes     folder that contains the compiled classes.
+     * @return                <code>jar</code>.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static File writeJar(File jar, File classes) throws IOException {
+        JarOutputStream out;
+        Manifest        manifest;
+        String[]        names;
+
+        manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, MAIN_CLASS);
+
+        names = classes.list();
+        Arrays.sort(names);
+        out = new JarOutputStream(new FileOutputStream(jar), manifest);
+        try {
+            for(String name : names) {
+                out.putNextEntry(new JarEntry(PACKAGE + '/' + name));
+                out.write(TestFiles.read(new File(classes, name)));
+                out.closeEntry();
+            }
+        }
+        finally {out.close();}
+
+        return jar;
+    }
+
+    /**
+     * Returns a random string of letters and digits.
+     * @param  random generator to use.
+     * @param  length length of the string.
+     * @return        a random string of letters and digits.
+     */
+    private static String randomString(Random random, int length) {
+        String        alphabet;
+        StringBuilder buffer;
+
+        alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        buffer   = new StringBuilder(length);
+        for(int i = 0; i < length; i++)
+            buffer.append(alphabet.charAt(random.nextInt(alphabet.length())));
+
+        return buffer.toString();
+    }
+
+
+
+    // - Measurements --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the path to the <code>java</code> executable of the current JVM.
+     * @return the path to the <code>java</code> executable of the current JVM.
+     */
+    static String getJava() {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    }
+
+    /**
+     * Runs the specified JAR file with the specified JVM options, and returns how long it took.
+     * @param     jar         JAR file to run.
+     * @param     options     JVM options.
+     * @return                the wall clock duration of the run, in nanoseconds.
+     * @exception IOException if the JVM could not be started.
+     */
+    static long run(File jar, String... options) throws IOException {
+        List<String>   command;
+        ProcessBuilder builder;
+        Process        process;
+        long           start;
+        int            status;
+
+        command = new ArrayList<String>();
+        command.add(getJava());
+        command.addAll(Arrays.asList(options));
+        command.add("-jar");
+        command.add(jar.getAbsolutePath());
+
+        builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(jar.getParentFile(), "output.txt"));
+
+        start   = System.nanoTime();
+        process = builder.start();
+        try {status = process.waitFor();}
+        catch(InterruptedException e) {
+            process.destroy();
+            throw new IOException("Interrupted", e);
+        }
+        start = System.nanoTime() - start;
+
+        assertEquals(status, 0, "Benchmark run failed: " + command);
+        return start;
+    }
+
+    /**
+     * Returns <code>true</code> if the page cache can be dropped, which requires Linux and root privileges.
+     * @return <code>true</code> if the page cache can be dropped.
+     */
+    static boolean canDropCaches() {
+        return DROP_CACHES.exists() && DROP_CACHES.canWrite();
+    }
+
+    /**
+     * Flushes dirty pages and drops the kernel's page cache, so that the next run reads everything from the disk.
+     * @exception IOException if the cache could not be dropped.
+     */
+    static void dropCaches() throws IOException {
+        OutputStream out;
+
+        try {
+            if(new ProcessBuilder("sync").start().waitFor() != 0)
+                throw new IOException("sync failed");
+        }
+        catch(InterruptedException e) {throw new IOException("Interrupted", e);}
+
+        out = new FileOutputStream(DROP_CACHES);
+        try {out.write('3');}
+        finally {out.close();}
+    }
+
+    /**
+     * Returns the median of the specified durations.
+     * @param  durations durations to analyse.
+     * @return           the median of the specified durations.
+     */
+    static long median(long[] durations) {
+        long[] sorted;
+
+        sorted = durations.clone();
+        Arrays.sort(sorted);
+
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Reports the specified durations in the TestNG report and on the standard output.
+     * @param label     what was measured.
+     * @param durations durations of each run, in nanoseconds.
+     */
+    static void report(String label, long[] durations) {
+        StringBuilder message;
+
+        message = new StringBuilder(label).append(": median ").append(median(durations) / 1000000).append(" ms (");
+        for(int i = 0; i < durations.length; i++)
+            message.append(i == 0 ? "" : ", ").append(durations[i] / 1000000);
+        message.append(')');
+
+        Reporter.log(message.toString(), true);
+    }
+}
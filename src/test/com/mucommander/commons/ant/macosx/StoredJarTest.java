@@ -0,0 +1,242 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import com.mucommander.commons.ant.util.ZipDirectory;
+import org.testng.Reporter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link StoredJar} class, and benchmarks class loading from stored JAR files.
+ * @author Nicolas Rinaudo
+ */
+public class StoredJarTest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Number of entries in the test JAR file, enough to span several batches. */
+    private static final int ENTRIES   = 2500;
+    /** Number of classes in the benchmark application. */
+    private static final int CLASSES   = 1500;
+    /** Number of characters of constant data in each class of the benchmark application. */
+    private static final int DATA_SIZE = 6000;
+    /** Number of times all classes are loaded from each version of the benchmark application. */
+    private static final int ROUNDS    = 10;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("storedjar");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the number of threads to test with.
+     * @return the number of threads to test with.
+     */
+    @DataProvider(name = "threads")
+    public Object[][] threads() {
+        return new Object[][] {{1}, {4}};
+    }
+
+    /**
+     * Makes sure all entries are stored, in their original order, with their original content.
+     * @param     threads     number of threads to use.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(dataProvider = "threads")
+    public void testWrite(int threads) throws IOException {
+        Map<String, byte[]>      entries;
+        Map<String, byte[]>      actual;
+        List<ZipDirectory.Entry> original;
+        List<ZipDirectory.Entry> stored;
+        Random                   random;
+        File                     jar;
+        File                     target;
+
+        random  = new Random(threads);
+        entries = new TreeMap<String, byte[]>();
+        for(int i = 0; i < ENTRIES; i++) {
+            byte[] data;
+
+            // Mixes compressible, incompressible and empty entries.
+            data = new byte[i % 10 == 0 ? 0 : random.nextInt(4000)];
+            if(i % 2 == 0)
+                random.nextBytes(data);
+            entries.put(String.format("folder%d/entry%05d", i % 7, i), data);
+        }
+        jar    = TestFiles.writeJar(new File(root, "source.jar"), entries);
+        target = write(jar, threads);
+
+        original = ZipDirectory.read(jar).getEntriesByOffset();
+        stored   = ZipDirectory.read(target).getEntriesByOffset();
+        assertEquals(stored.size(), original.size());
+        for(int i = 0; i < stored.size(); i++) {
+            assertEquals(stored.get(i).getName(), original.get(i).getName());
+            assertEquals(stored.get(i).getMethod(), ZipEntry.STORED, stored.get(i).getName());
+            assertEquals(stored.get(i).getCrc(), original.get(i).getCrc(), stored.get(i).getName());
+        }
+
+        actual = TestFiles.readJar(target);
+        assertEquals(actual.keySet(), entries.keySet());
+        for(Map.Entry<String, byte[]> entry : actual.entrySet())
+            assertTrue(Arrays.equals(entry.getValue(), entries.get(entry.getKey())), entry.getKey());
+    }
+
+    /**
+     * Benchmarks class loading throughput from a deflated JAR file and from its stored copy.
+     * <p>
+     * Each round loads every class of a generated application through a fresh class loader, alternating between both
+     * JAR files so that they share the same conditions. Throughputs are reported through the TestNG reporter rather
+     * than asserted, since they depend on the machine the tests run on.
+     * </p>
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void benchmarkClassLoading() throws Exception {
+        List<String> names;
+        long[]       deflated;
+        long[]       stored;
+        File         jar;
+        File         target;
+
+        jar    = StartupBenchmark.createApplication(new File(root, "app"), CLASSES, DATA_SIZE);
+        target = write(jar, Runtime.getRuntime().availableProcessors());
+
+        names = new ArrayList<String>();
+        for(ZipDirectory.Entry entry : ZipDirectory.read(jar).getEntries())
+            if(entry.getName().endsWith(".class"))
+                names.add(entry.getName().substring(0, entry.getName().length() - 6).replace('/', '.'));
+
+        // Warms up the JIT before measuring anything.
+        loadClasses(jar, names);
+        loadClasses(target, names);
+
+        deflated = new long[ROUNDS];
+        stored   = new long[ROUNDS];
+        for(int i = 0; i < ROUNDS; i++) {
+            deflated[i] = loadClasses(jar, names);
+            stored[i]   = loadClasses(target, names);
+        }
+
+        StartupBenchmark.report("Loading " + names.size() + " classes, deflated JAR file", deflated);
+        StartupBenchmark.report("Loading " + names.size() + " classes, stored JAR file", stored);
+        Reporter.log("Class loading throughput: " + getThroughput(names.size(), deflated) + " classes/s deflated, "
+                     + getThroughput(names.size(), stored) + " classes/s stored", true);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes a stored copy of the specified JAR file.
+     * @param     jar         JAR file to copy.
+     * @param     threads     number of threads to use.
+     * @return                the stored copy.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File write(File jar, int threads) throws IOException {
+        OutputStream out;
+        File         target;
+
+        target = new File(root, "stored.jar");
+        out    = new FileOutputStream(target);
+        try {StoredJar.write(jar, out, threads);}
+        finally {out.close();}
+
+        return target;
+    }
+
+    /**
+     * Loads, without initialising them, all the specified classes from the specified JAR file.
+     * @param     jar       JAR file from which to load classes.
+     * @param     names     names of the classes to load.
+     * @return              how long loading took, in nanoseconds.
+     * @exception Exception if any error occurs.
+     */
+    private static long loadClasses(File jar, List<String> names) throws Exception {
+        URLClassLoader loader;
+        long           start;
+
+        start  = System.nanoTime();
+        loader = new URLClassLoader(new URL[] {jar.toURI().toURL()}, null);
+        try {
+            for(String name : names)
+                assertEquals(Class.forName(name, false, loader).getClassLoader(), loader);
+        }
+        finally {loader.close();}
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the median number of classes loaded per second.
+     * @param  classes   number of classes loaded in each round.
+     * @param  durations duration of each round, in nanoseconds.
+     * @return           the median number of classes loaded per second.
+     */
+    private static long getThroughput(int classes, long[] durations) {
+        return classes * 1000000000L / StartupBenchmark.median(durations);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.macosx;
+
+import com.mucommander.commons.ant.util.TestFiles;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests CDS archive generation through {@link TrainingRun}, and compares startup times with and without the archive.
+ * <p>
+ * The training run uses the same options as <code>AppTask</code> when its <code>cds</code> attribute is set. Dynamic
+ * CDS archives require Java 13 or later: these tests are skipped on older JVMs, or when the JVM could not write the
+ * archive.
+ * </p>
+ * @author Nicolas Rinaudo
+ */
+public class TrainingRunTest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Number of classes in the benchmark application. */
+    private static final int CLASSES   = 1500;
+    /** Number of characters of constant data in each class of the benchmark application. */
+    private static final int DATA_SIZE = 200;
+    /** Number of runs of the benchmark application with and without its CDS archive. */
+    private static final int RUNS      = 7;
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+    /** Benchmark application. */
+    private File jar;
+    /** CDS archive generated by the training run. */
+    private File archive;
+    /** Class list generated by the training run. */
+    private File classList;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Generates the benchmark application and its CDS archive.
+     * @exception IOException if any IO related error occurs.
+     */
+    @BeforeClass
+    public void setUp() throws IOException {
+        List<String> options;
+        Project      project;
+        Task         task;
+
+        if(Integer.parseInt(System.getProperty("java.specification.version").replaceFirst("^1\\.", "")) < 13)
+            throw new SkipException("Dynamic CDS archives require Java 13 or later");
+
+        root      = TestFiles.createTempFolder("trainingrun");
+        jar       = StartupBenchmark.createApplication(root, CLASSES, DATA_SIZE);
+        archive   = new File(root, jar.getName() + ".jsa");
+        classList = new File(root, jar.getName() + ".classlist");
+
+        project = new Project();
+        project.init();
+        task = new Task() {};
+        task.setProject(project);
+
+        options = new ArrayList<String>();
+        options.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        options.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+        new TrainingRun(task, null, null, TrainingRun.DEFAULT_TIMEOUT).run(jar, options);
+
+        if(!archive.isFile())
+            throw new SkipException("The JVM did not produce a CDS archive");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterClass(alwaysRun = true)
+    public void tearDown() {
+        if(root != null)
+            TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure the class list contains the application's classes.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testClassList() throws IOException {
+        List<String> classes;
+
+        classes = new ArrayList<String>();
+        for(String line : readLines(classList))
+            if(line.startsWith(StartupBenchmark.PACKAGE + '/'))
+                classes.add(line.split(" ")[0]);
+
+        assertEquals(classes.size(), CLASSES + 1);
+        assertTrue(classes.contains(StartupBenchmark.MAIN_CLASS.replace('.', '/')));
+    }
+
+    /**
+     * Makes sure the application's classes are loaded from the archive when it's used.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testArchiveUsed() throws IOException {
+        File log;
+        int  shared;
+        int  loaded;
+
+        log = new File(root, "classes.log");
+        StartupBenchmark.run(jar, "-XX:SharedArchiveFile=" + archive.getAbsolutePath(),
+                             "-Xlog:class+load:file=" + log.getAbsolutePath());
+
+        shared = 0;
+        loaded = 0;
+        for(String line : readLines(log)) {
+            if(line.contains("] " + StartupBenchmark.PACKAGE + '.')) {
+                loaded++;
+                if(line.endsWith("source: shared objects file (top)"))
+                    shared++;
+            }
+        }
+
+        assertEquals(loaded, CLASSES + 1);
+        assertEquals(shared, loaded);
+    }
+
+    /**
+     * Compares the application's startup time with and without its CDS archive.
+     * <p>
+     * Runs alternate between both configurations so that they share the same conditions, and medians are compared.
+     * The page cache is warm in both cases, as it would be for an application that's launched regularly.
+     * </p>
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void benchmarkStartup() throws IOException {
+        long[] plain;
+        long[] shared;
+
+        // Warms up the page cache.
+        StartupBenchmark.run(jar);
+        StartupBenchmark.run(jar, "-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+
+        plain  = new long[RUNS];
+        shared = new long[RUNS];
+        for(int i = 0; i < RUNS; i++) {
+            plain[i]  = StartupBenchmark.run(jar);
+            shared[i] = StartupBenchmark.run(jar, "-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        }
+        StartupBenchmark.report("Startup without CDS archive", plain);
+        StartupBenchmark.report("Startup with CDS archive", shared);
+
+        assertTrue(StartupBenchmark.median(shared) < StartupBenchmark.median(plain),
+                   "The CDS archive did not speed startup up");
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Reads all lines of the specified file.
+     * @param     file        file to read.
+     * @return                the lines of the specified file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static List<String> readLines(File file) throws IOException {
+        BufferedReader reader;
+        List<String>   lines;
+        String         line;
+
+        lines  = new ArrayList<String>();
+        reader = new BufferedReader(new FileReader(file));
+        try {
+            while((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        finally {reader.close();}
+
+        return lines;
+    }
+}
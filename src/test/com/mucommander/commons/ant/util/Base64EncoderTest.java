@@ -0,0 +1,196 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link Base64Encoder} class.
+ * @author Nicolas Rinaudo
+ */
+public class Base64EncoderTest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Base64 alphabet, used to decode encoded data. */
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+
+
+    // - Test data -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns the test vectors of RFC 4648.
+     * @return the test vectors of RFC 4648.
+     */
+    @DataProvider(name = "vectors")
+    public Object[][] vectors() {
+        return new Object[][] {
+            {"", ""},
+            {"f", "Zg=="},
+            {"fo", "Zm8="},
+            {"foo", "Zm9v"},
+            {"foob", "Zm9vYg=="},
+            {"fooba", "Zm9vYmE="},
+            {"foobar", "Zm9vYmFy"}
+        };
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure the RFC 4648 test vectors are encoded properly.
+     * @param input    data to encode.
+     * @param expected expected encoding.
+     */
+    @Test(dataProvider = "vectors")
+    public void testVectors(String input, String expected) {
+        assertEquals(encode(input.getBytes(Charset.forName("US-ASCII"))), expected);
+    }
+
+    /**
+     * Makes sure encoded lengths are computed properly, including padding.
+     */
+    @Test
+    public void testEncodedLength() {
+        assertEquals(Base64Encoder.getEncodedLength(0), 0);
+        for(int length = 1; length < 100; length++) {
+            assertEquals(Base64Encoder.getEncodedLength(length), ((length + 2) / 3) * 4);
+            assertEquals(encode(new byte[length]).length(), Base64Encoder.getEncodedLength(length));
+        }
+    }
+
+    /**
+     * Makes sure all byte values survive an encoding round trip, whatever the padding.
+     */
+    @Test
+    public void testRoundTrip() {
+        Random random;
+
+        random = new Random(0);
+        for(int length = 0; length < 300; length++) {
+            byte[] data;
+
+            data = new byte[length];
+            random.nextBytes(data);
+            assertTrue(Arrays.equals(decode(encode(data)), data), "Length " + length);
+        }
+    }
+
+    /**
+     * Makes sure that encoding data in chunks whose length is a multiple of {@link Base64Encoder#INPUT_BLOCK}, the way
+     * large data values are streamed, yields the same output as encoding it at once.
+     */
+    @Test
+    public void testChunks() {
+        StringBuilder chunked;
+        byte[]        data;
+        byte[]        chunk;
+        char[]        out;
+
+        data = new byte[10000];
+        new Random(1).nextBytes(data);
+
+        chunk   = new byte[Base64Encoder.INPUT_BLOCK * 100];
+        out     = new char[Base64Encoder.getEncodedLength(chunk.length)];
+        chunked = new StringBuilder();
+        for(int offset = 0; offset < data.length; offset += chunk.length) {
+            int length;
+
+            length = Math.min(chunk.length, data.length - offset);
+            System.arraycopy(data, offset, chunk, 0, length);
+            chunked.append(out, 0, Base64Encoder.encode(chunk, length, out));
+        }
+
+        assertEquals(chunked.toString(), encode(data));
+    }
+
+    /**
+     * Makes sure only the requested number of bytes is encoded, whatever the size of the buffer.
+     */
+    @Test
+    public void testPartialBuffer() {
+        char[] out;
+
+        out = new char[8];
+        assertEquals(Base64Encoder.encode("foobar".getBytes(Charset.forName("US-ASCII")), 4, out), 8);
+        assertEquals(new String(out), "Zm9vYg==");
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Encodes the specified data at once.
+     * @param  data data to encode.
+     * @return      the base64 encoding of <code>data</code>.
+     */
+    private static String encode(byte[] data) {
+        char[] out;
+
+        out = new char[Base64Encoder.getEncodedLength(data.length)];
+        return new String(out, 0, Base64Encoder.encode(data, data.length, out));
+    }
+
+    /**
+     * Decodes the specified base64 string.
+     * @param  encoded base64 string to decode.
+     * @return         the decoded data.
+     */
+    private static byte[] decode(String encoded) {
+        byte[] data;
+        int    length;
+        int    offset;
+
+        assertEquals(encoded.length() % 4, 0);
+        length = encoded.length() / 4 * 3;
+        if(encoded.endsWith("=="))
+            length -= 2;
+        else if(encoded.endsWith("="))
+            length--;
+
+        data   = new byte[length];
+        offset = 0;
+        for(int i = 0; i < encoded.length(); i += 4) {
+            int block;
+
+            block = 0;
+            for(int j = 0; j < 4; j++) {
+                int value;
+
+                value = encoded.charAt(i + j) == '=' ? 0 : ALPHABET.indexOf(encoded.charAt(i + j));
+                assertTrue(value >= 0, "Illegal character: " + encoded.charAt(i + j));
+                block = (block << 6) | value;
+            }
+            for(int j = 2; j >= 0 && offset < length; j--)
+                data[offset++] = (byte)(block >>> (8 * j));
+        }
+
+        return data;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link BinaryDiff} class.
+ * @author Nicolas Rinaudo
+ */
+public class BinaryDiffTest {
+    // - Test data -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns pairs of old and new contents.
+     * @return pairs of old and new contents.
+     */
+    @DataProvider(name = "pairs")
+    public Object[][] pairs() {
+        byte[] base;
+        byte[] text;
+
+        base = random(100000, 0);
+        text = TestFiles.bytes("the quick brown fox jumps over the lazy dog, again and again and again.");
+
+        return new Object[][] {
+            {"identical", base, base.clone()},
+            {"empty old", new byte[0], base},
+            {"empty new", base, new byte[0]},
+            {"both empty", new byte[0], new byte[0]},
+            {"unrelated", random(5000, 1), random(7000, 2)},
+            {"modified", base, modify(base, 2)},
+            {"inserted", base, insert(base, 5000, random(300, 3))},
+            {"deleted", base, delete(base, 40000, 1000)},
+            {"shifted", base, insert(delete(base, 0, 17), base.length - 17, random(17, 4))},
+            {"repetitive", text, insert(text, 10, text)}
+        };
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure applying a patch to the old content yields the new content.
+     * @param     name        description of the pair.
+     * @param     from        old content.
+     * @param     to          new content.
+     * @exception IOException if the patch cannot be applied.
+     */
+    @Test(dataProvider = "pairs")
+    public void testRoundTrip(String name, byte[] from, byte[] to) throws IOException {
+        assertTrue(Arrays.equals(apply(from, BinaryDiff.diff(from, to)), to), name);
+    }
+
+    /**
+     * Makes sure small changes to large contents yield small patches.
+     */
+    @Test
+    public void testSmallChange() {
+        BinaryDiff.Patch patch;
+        byte[]           from;
+
+        from  = random(100000, 5);
+        patch = BinaryDiff.diff(from, insert(modify(from, 10), 50000, random(100, 6)));
+
+        // The diff stream is mostly zeros and compresses away: only new bytes should be shipped as is.
+        assertTrue(patch.getExtra().length < 1000, "Extra stream: " + patch.getExtra().length);
+    }
+
+    /**
+     * Makes sure truncated patches are rejected rather than yielding garbage.
+     */
+    @Test(expectedExceptions = IOException.class)
+    public void testTruncated() throws IOException {
+        BinaryDiff.Patch patch;
+        byte[]           from;
+        byte[]           control;
+
+        from    = random(10000, 7);
+        patch   = BinaryDiff.diff(from, insert(from, 100, random(100, 8)));
+        control = Arrays.copyOf(patch.getControl(), patch.getControl().length / 2);
+        BinaryDiff.apply(from, patch.getLength(), new ByteArrayInputStream(control),
+                         new ByteArrayInputStream(patch.getDiff()), new ByteArrayInputStream(patch.getExtra()));
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Applies the specified patch.
+     * @param     from        old content.
+     * @param     patch       patch to apply.
+     * @return                the new content.
+     * @exception IOException if the patch cannot be applied.
+     */
+    private static byte[] apply(byte[] from, BinaryDiff.Patch patch) throws IOException {
+        return BinaryDiff.apply(from, patch.getLength(), new ByteArrayInputStream(patch.getControl()),
+                                new ByteArrayInputStream(patch.getDiff()), new ByteArrayInputStream(patch.getExtra()));
+    }
+
+    /**
+     * Returns random data.
+     * @param  length length of the data.
+     * @param  seed   seed of the random generator, which makes tests repeatable.
+     * @return        random data.
+     */
+    private static byte[] random(int length, long seed) {
+        byte[] data;
+
+        data = new byte[length];
+        new Random(seed).nextBytes(data);
+
+        return data;
+    }
+
+    /**
+     * Adds a small value to every n-th byte of the specified data, the way code changes shift offsets.
+     * @param  data  data to modify.
+     * @param  every distance between modified bytes, in thousands.
+     * @return       a modified copy of <code>data</code>.
+     */
+    private static byte[] modify(byte[] data, int every) {
+        byte[] copy;
+
+        copy = data.clone();
+        for(int i = 0; i < copy.length; i += every * 1000)
+            copy[i] += 4;
+
+        return copy;
+    }
+
+    /**
+     * Inserts bytes in the specified data.
+     * @param  data     data to modify.
+     * @param  offset   where to insert the bytes.
+     * @param  inserted bytes to insert.
+     * @return          a modified copy of <code>data</code>.
+     */
+    private static byte[] insert(byte[] data, int offset, byte[] inserted) {
+        byte[] copy;
+
+        copy = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, copy, 0, offset);
+        System.arraycopy(inserted, 0, copy, offset, inserted.length);
+        System.arraycopy(data, offset, copy, offset + inserted.length, data.length - offset);
+
+        return copy;
+    }
+
+    /**
+     * Removes bytes from the specified data.
+     * @param  data   data to modify.
+     * @param  offset offset of the first byte to remove.
+     * @param  length number of bytes to remove.
+     * @return        a modified copy of <code>data</code>.
+     */
+    private static byte[] delete(byte[] data, int offset, int length) {
+        byte[] copy;
+
+        copy = new byte[data.length - length];
+        System.arraycopy(data, 0, copy, 0, offset);
+        System.arraycopy(data, offset + length, copy, offset, copy.length - offset);
+
+        return copy;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.Manifest;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link ClassStripper} class.
+ * @author Nicolas Rinaudo
+ */
+public class ClassStripperTest {
+    // - Class fields --------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Name of the class used by the tests. */
+    private static final String CLASS_NAME  = "test.Sum";
+    /** Name of the entry of the class used by the tests. */
+    private static final String CLASS_ENTRY = "test/Sum.class";
+
+
+
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("strip");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure debugging attributes are removed and that stripped classes still run.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testStrip() throws Exception {
+        ClassStripper stripper;
+        byte[]        original;
+        byte[]        stripped;
+
+        original = compile();
+        assertTrue(ClassFile.parse(original).getAttributeNames().contains("SourceFile"));
+
+        stripper = createStripper(ClassStripper.DEFAULT_ATTRIBUTES);
+        stripped = stripper.strip(original);
+        assertTrue(stripped.length < original.length);
+        assertFalse(ClassFile.parse(stripped).getAttributeNames().contains("SourceFile"));
+        assertEquals(run(stripped), 55);
+
+        // Classes without any of the attributes must be returned as is.
+        assertSame(stripper.strip(stripped), stripped);
+    }
+
+    /**
+     * Makes sure attributes needed to run classes cannot be stripped.
+     */
+    @Test(expectedExceptions = BuildException.class)
+    public void testRequired() {
+        createStripper("LineNumberTable,StackMapTable");
+    }
+
+    /**
+     * Makes sure JAR files are stripped of their signatures as well as of debugging attributes, and that stripped
+     * JAR files are cached by content and attribute set.
+     * @exception Exception if any error occurs.
+     */
+    @Test
+    public void testJar() throws Exception {
+        Map<String, byte[]> entries;
+        ClassStripper       stripper;
+        Manifest            manifest;
+        File                cache;
+        File                stripped;
+        byte[]              original;
+
+        original = compile();
+        entries  = new TreeMap<String, byte[]>();
+        entries.put(CLASS_ENTRY, original);
+        entries.put("data.txt", TestFiles.bytes("data"));
+        entries.put("META-INF/APP.SF", TestFiles.bytes("signature"));
+        entries.put("META-INF/APP.RSA", TestFiles.bytes("key"));
+        entries.put(JarSignatures.MANIFEST, TestFiles.bytes("Manifest-Version: 1.0\r\nMain-Class: test.Sum\r\n\r\n"
+                                                            + "Name: test/Sum.class\r\nSHA-256-Digest: AAAA\r\n\r\n"));
+
+        cache    = new File(root, "cache");
+        stripper = createStripper(ClassStripper.DEFAULT_ATTRIBUTES);
+        stripped = stripper.getStripped(TestFiles.writeJar(new File(root, "app.jar"), entries), cache, 2);
+        entries  = TestFiles.readJar(stripped);
+
+        assertEquals(entries.keySet(), new TreeSet<String>(Arrays.asList(CLASS_ENTRY, "data.txt",
+                                                                          JarSignatures.MANIFEST)));
+        assertTrue(Arrays.equals(entries.get(CLASS_ENTRY), stripper.strip(original)));
+        assertTrue(Arrays.equals(entries.get("data.txt"), TestFiles.bytes("data")));
+        manifest = new Manifest(new ByteArrayInputStream(entries.get(JarSignatures.MANIFEST)));
+        assertEquals(manifest.getMainAttributes().getValue("Main-Class"), CLASS_NAME);
+        assertTrue(manifest.getEntries().isEmpty());
+
+        // The same JAR file and attributes must hit the cache, other attributes must not.
+        assertEquals(stripper.getStripped(new File(root, "app.jar"), cache, 2), stripped);
+        assertNotEquals(createStripper("SourceFile").getStripped(new File(root, "app.jar"), cache, 2), stripped);
+        assertEquals(cache.list().length, 2);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a stripper for the specified comma separated list of attributes.
+     * @param  attributes attributes to strip.
+     * @return            a stripper for the specified attributes.
+     */
+    private static ClassStripper createStripper(String attributes) {
+        return new ClassStripper(ClassStripper.parseAttributes(attributes));
+    }
+
+    /**
+     * Compiles the class used by the tests, with debugging information.
+     * @return                the compiled class.
+     * @exception IOException if any IO related error occurs.
+     */
+    private byte[] compile() throws IOException {
+        return TestFiles.compile(new File(root, "classes"), Collections.singletonMap(CLASS_NAME,
+                "package test;\npublic class Sum {\n"
+                + "    public static int sum(int max) {\n"
+                + "        int total = 0;\n"
+                + "        for(int i = 1; i <= max; i++)\n"
+                + "            total += i;\n"
+                + "        return total;\n"
+                + "    }\n}\n")).get(CLASS_ENTRY);
+    }
+
+    /**
+     * Loads the specified class and returns the sum of the first ten integers as computed by it.
+     * @param     data      content of the class.
+     * @return              the value computed by the class.
+     * @exception Exception if the class could not be loaded or run.
+     */
+    private static int run(final byte[] data) throws Exception {
+        ClassLoader loader;
+
+        loader = new ClassLoader(ClassStripperTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if(!name.equals(CLASS_NAME))
+                    throw new ClassNotFoundException(name);
+                return defineClass(name, data, 0, data.length);
+            }
+        };
+
+        return (Integer)loader.loadClass(CLASS_NAME).getMethod("sum", int.class).invoke(null, 10);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link Gzip} class.
+ * @author Nicolas Rinaudo
+ */
+public class GzipTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("gzip");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Test data -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns sizes around block boundaries, combined with various numbers of threads.
+     * @return sizes around block boundaries, combined with various numbers of threads.
+     */
+    @DataProvider(name = "sizes")
+    public Object[][] sizes() {
+        List<Object[]> data;
+
+        data = new ArrayList<Object[]>();
+        for(int size : new int[] {0, 1, 1000, Gzip.BLOCK_SIZE - 1, Gzip.BLOCK_SIZE, Gzip.BLOCK_SIZE + 1,
+                                  3 * Gzip.BLOCK_SIZE + 12345})
+            for(int threads : new int[] {1, 2, 4})
+                data.add(new Object[] {size, threads});
+
+        return data.toArray(new Object[data.size()][]);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure compressed files are valid gzip streams that decompress to their source.
+     * @param     size        size of the file to compress.
+     * @param     threads     number of threads to use.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(dataProvider = "sizes")
+    public void testCompress(int size, int threads) throws IOException {
+        File   file;
+        byte[] data;
+
+        data = createData(size, size);
+        file = TestFiles.write(new File(root, "file.txt"), data);
+        Gzip.compress(file, Gzip.getSibling(file), threads);
+
+        assertTrue(Arrays.equals(gunzip(Gzip.getSibling(file)), data));
+    }
+
+    /**
+     * Makes sure blocks primed with the preceding data compress about as well as a single stream.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testRatio() throws IOException {
+        File single;
+        File parallel;
+        File file;
+
+        file     = TestFiles.write(new File(root, "file.txt"), createData(4 * Gzip.BLOCK_SIZE, 0));
+        single   = new File(root, "single.gz");
+        parallel = new File(root, "parallel.gz");
+        Gzip.compress(file, single, 1);
+        Gzip.compress(file, parallel, 4);
+
+        assertTrue(parallel.length() < file.length() / 2);
+        assertTrue(parallel.length() <= single.length() * 101 / 100, parallel.length() + " vs " + single.length());
+    }
+
+    /**
+     * Makes sure siblings are only generated when missing or out of date.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testCompressSiblings() throws IOException {
+        List<File> files;
+        byte[]     data;
+
+        files = new ArrayList<File>();
+        for(int i = 0; i < 3; i++)
+            files.add(TestFiles.write(new File(root, "file" + i + ".txt"), createData(1000 * i, i)));
+        files.add(TestFiles.write(new File(root, "large.txt"), createData(2 * Gzip.BLOCK_SIZE + 1, 3)));
+
+        assertEquals(Gzip.compressSiblings(files, 2), files.size());
+        for(File file : files) {
+            assertTrue(Gzip.isUpToDate(file), file.getName());
+            assertTrue(Arrays.equals(gunzip(Gzip.getSibling(file)), TestFiles.read(file)), file.getName());
+        }
+        assertEquals(Gzip.compressSiblings(files, 2), 0);
+
+        // Modifies a file and makes its sibling older.
+        data = createData(500, 4);
+        TestFiles.write(files.get(1), data);
+        assertTrue(Gzip.getSibling(files.get(1)).setLastModified(files.get(1).lastModified() - 10000));
+        assertFalse(Gzip.isUpToDate(files.get(1)));
+        assertEquals(Gzip.compressSiblings(files, 2), 1);
+        assertTrue(Arrays.equals(gunzip(Gzip.getSibling(files.get(1))), data));
+    }
+
+    /**
+     * Makes sure missing files are reported.
+     */
+    @Test(expectedExceptions = BuildException.class)
+    public void testMissingFile() {
+        Gzip.compressSiblings(Arrays.asList(new File(root, "missing.txt")), 1);
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Returns compressible data: random words from a small vocabulary.
+     * @param  size size of the data.
+     * @param  seed seed of the random generator.
+     * @return      compressible data.
+     */
+    private static byte[] createData(int size, long seed) {
+        String[] words;
+        Random   random;
+        byte[]   data;
+        int      position;
+
+        words    = new String[] {"jar ", "class ", "bundle ", "launcher ", "resource ", "\n", "muCommander ", "42 "};
+        random   = new Random(seed);
+        data     = new byte[size];
+        position = 0;
+        while(position < size) {
+            byte[] word;
+
+            word = TestFiles.bytes(words[random.nextInt(words.length)]);
+            System.arraycopy(word, 0, data, position, Math.min(word.length, size - position));
+            position += word.length;
+        }
+
+        return data;
+    }
+
+    /**
+     * Decompresses the specified gzip file.
+     * @param     file        file to decompress.
+     * @return                the decompressed content of the file.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static byte[] gunzip(File file) throws IOException {
+        GZIPInputStream in;
+
+        in = new GZIPInputStream(new FileInputStream(file));
+        try {return TestFiles.readFully(in);}
+        finally {in.close();}
+    }
+}
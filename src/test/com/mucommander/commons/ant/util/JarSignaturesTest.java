@@ -0,0 +1,76 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.jar.Manifest;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link JarSignatures} class.
+ * @author Nicolas Rinaudo
+ */
+public class JarSignaturesTest {
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure signature files are recognised, whatever their case, but only at the root of <code>META-INF</code>.
+     */
+    @Test
+    public void testIsSignature() {
+        assertTrue(JarSignatures.isSignature("META-INF/APP.SF"));
+        assertTrue(JarSignatures.isSignature("META-INF/app.rsa"));
+        assertTrue(JarSignatures.isSignature("meta-inf/APP.DSA"));
+        assertTrue(JarSignatures.isSignature("META-INF/APP.EC"));
+        assertTrue(JarSignatures.isSignature("META-INF/SIG-APP"));
+
+        assertFalse(JarSignatures.isSignature(JarSignatures.MANIFEST));
+        assertFalse(JarSignatures.isSignature("META-INF/services/APP.SF"));
+        assertFalse(JarSignatures.isSignature("APP.SF"));
+        assertFalse(JarSignatures.isSignature("META-INF/APP.SF.txt"));
+    }
+
+    /**
+     * Makes sure digests are removed from manifests, along with the sections that only contained them.
+     * @exception IOException if the manifest could not be parsed.
+     */
+    @Test
+    public void testRemoveDigests() throws IOException {
+        Manifest manifest;
+
+        manifest = new Manifest(new ByteArrayInputStream(TestFiles.bytes(
+                "Manifest-Version: 1.0\r\nMain-Class: app.Main\r\n\r\n"
+                + "Name: app/Main.class\r\nSHA-256-Digest: AAAA\r\n\r\n"
+                + "Name: app/\r\nSHA1-Digest: BBBB\r\nSealed: true\r\n\r\n")));
+
+        assertTrue(JarSignatures.removeDigests(manifest));
+        assertEquals(manifest.getMainAttributes().getValue("Main-Class"), "app.Main");
+        assertEquals(manifest.getEntries().keySet().size(), 1);
+        assertEquals(manifest.getAttributes("app/").size(), 1);
+        assertEquals(manifest.getAttributes("app/").getValue("Sealed"), "true");
+
+        // Nothing left to remove.
+        assertFalse(JarSignatures.removeDigests(manifest));
+    }
+}
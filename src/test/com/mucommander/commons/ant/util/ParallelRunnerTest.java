@@ -0,0 +1,162 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.apache.tools.ant.BuildException;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests the {@link ParallelRunner} class.
+ * @author Nicolas Rinaudo
+ */
+public class ParallelRunnerTest {
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure results are returned in submission order, whatever the order in which work completes.
+     */
+    @Test
+    public void testResults() {
+        List<Callable<Integer>> work;
+
+        work = new ArrayList<Callable<Integer>>();
+        for(int i = 0; i < 20; i++) {
+            final int value = i;
+
+            work.add(new Callable<Integer>() {
+                public Integer call() throws InterruptedException {
+                    Thread.sleep(20 - value);
+                    return value;
+                }
+            });
+        }
+
+        assertEquals(ParallelRunner.run(work, 4).size(), 20);
+        for(int i = 0; i < 20; i++)
+            assertEquals(ParallelRunner.run(work, 4).get(i).intValue(), i);
+    }
+
+    /**
+     * Makes sure work is run in the calling thread when a single thread is requested.
+     */
+    @Test
+    public void testSingleThread() {
+        final Thread caller;
+
+        caller = Thread.currentThread();
+        assertEquals(ParallelRunner.run(Arrays.asList(new Callable<Thread>() {
+            public Thread call() {return Thread.currentThread();}
+        }, new Callable<Thread>() {
+            public Thread call() {return Thread.currentThread();}
+        }), 1), Arrays.asList(caller, caller));
+    }
+
+    /**
+     * Makes sure checked exceptions are wrapped in build exceptions, and that build exceptions are rethrown as is.
+     */
+    @Test
+    public void testErrors() {
+        final IOException    io;
+        final BuildException build;
+
+        io    = new IOException("IO");
+        build = new BuildException("Build");
+        for(int threads = 1; threads <= 2; threads++) {
+            try {
+                ParallelRunner.run(Arrays.asList(new Callable<Void>() {
+                    public Void call() throws IOException {throw io;}
+                }, new Callable<Void>() {
+                    public Void call() {return null;}
+                }), threads);
+                fail();
+            }
+            catch(BuildException e) {assertSame(e.getCause(), io);}
+
+            try {
+                ParallelRunner.run(Arrays.asList(new Callable<Void>() {
+                    public Void call() {throw build;}
+                }, new Callable<Void>() {
+                    public Void call() {return null;}
+                }), threads);
+                fail();
+            }
+            catch(BuildException e) {assertSame(e, build);}
+        }
+    }
+
+    /**
+     * Makes sure that, when a unit of work fails, work that was already running has stopped by the time the error
+     * is reported, even if it ignores interruptions.
+     */
+    @Test
+    public void testFailure() {
+        final CountDownLatch started;
+        final AtomicBoolean  finished;
+        List<Callable<Void>> work;
+
+        started  = new CountDownLatch(1);
+        finished = new AtomicBoolean();
+        work     = new ArrayList<Callable<Void>>();
+
+        // Fails as soon as the second unit of work is running.
+        work.add(new Callable<Void>() {
+            public Void call() throws Exception {
+                started.await();
+                throw new IOException("Failure");
+            }
+        });
+
+        // Keeps working for a while, ignoring interruptions, as blocking IO would.
+        work.add(new Callable<Void>() {
+            public Void call() {
+                long end;
+
+                started.countDown();
+                end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+                while(System.nanoTime() < end) {
+                    try {Thread.sleep(10);}
+                    catch(InterruptedException e) {}
+                }
+                finished.set(true);
+                return null;
+            }
+        });
+
+        try {
+            ParallelRunner.run(work, 2);
+            fail();
+        }
+        catch(BuildException e) {assertEquals(e.getCause().getMessage(), "Failure");}
+
+        assertTrue(finished.get(), "Running work outlived ParallelRunner.run");
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link RawZipWriter} class.
+ * @author Nicolas Rinaudo
+ */
+public class RawZipWriterTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File                root;
+    /** Source archive used by all tests. */
+    private File                source;
+    /** Content of {@link #source}, indexed by entry name. */
+    private Map<String, byte[]> entries;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder and source archive.
+     * @exception IOException if any IO related error occurs.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root    = TestFiles.createTempFolder("rawzipwriter");
+        entries = new TreeMap<String, byte[]>();
+        entries.put("META-INF/MANIFEST.MF", TestFiles.bytes("Manifest-Version: 1.0\r\n\r\n"));
+        entries.put("a/compressible.txt", TestFiles.bytes("Compressible content, compressible content, compressible."));
+        entries.put("a/random.bin", ZipDirectoryTest.random(20000, 1));
+        entries.put("b/empty.txt", new byte[0]);
+        source = TestFiles.writeJar(new File(root, "source.jar"), entries);
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure copied entries are readable in any order, both through the central directory and sequentially.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testCopy() throws IOException {
+        List<ZipDirectory.Entry> list;
+        List<String>             names;
+        RandomAccessFile         in;
+        RawZipWriter             writer;
+        OutputStream             out;
+        File                     target;
+
+        target = new File(root, "target.jar");
+        in     = new RandomAccessFile(source, "r");
+        try {
+            list = new ArrayList<ZipDirectory.Entry>(ZipDirectory.read(in.getChannel()).getEntries());
+            Collections.reverse(list);
+
+            out = new FileOutputStream(target);
+            try {
+                writer = new RawZipWriter(out);
+                for(ZipDirectory.Entry entry : list)
+                    writer.copy(in.getChannel(), entry);
+                writer.finish();
+            }
+            finally {out.close();}
+        }
+        finally {in.close();}
+
+        names = new ArrayList<String>();
+        for(ZipDirectory.Entry entry : ZipDirectory.read(target).getEntriesByOffset())
+            names.add(entry.getName());
+        assertEquals(names, Arrays.asList("b/empty.txt", "a/random.bin", "a/compressible.txt", "META-INF/MANIFEST.MF"));
+        assertContent(target, entries);
+    }
+
+    /**
+     * Makes sure stored, replaced and added entries are readable, both through the central directory and sequentially.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        Map<String, byte[]> expected;
+        ZipDirectory        directory;
+        RandomAccessFile    in;
+        RawZipWriter        writer;
+        OutputStream        out;
+        FileChannel         channel;
+        File                target;
+        byte[]              replaced;
+
+        expected = new TreeMap<String, byte[]>(entries);
+        replaced = TestFiles.bytes("Replaced content, replaced content, replaced content.");
+        target   = new File(root, "target.jar");
+        in       = new RandomAccessFile(source, "r");
+        try {
+            channel   = in.getChannel();
+            directory = ZipDirectory.read(channel);
+            out       = new FileOutputStream(target);
+            try {
+                writer = new RawZipWriter(out);
+                for(ZipDirectory.Entry entry : directory.getEntries()) {
+                    if(entry.getName().equals("a/compressible.txt")) {
+                        writer.replace(entry, replaced, deflate(replaced));
+                        expected.put(entry.getName(), replaced);
+                    }
+                    else if(entry.getName().equals("b/empty.txt")) {
+                        writer.replace(entry, replaced);
+                        expected.put(entry.getName(), replaced);
+                    }
+                    else
+                        writer.store(entry, ZipDirectory.readContent(channel, entry));
+                }
+                writer.add("c/added.txt", System.currentTimeMillis(), TestFiles.bytes("Added"));
+                writer.add("c/old.txt", 0, TestFiles.bytes("Old"));
+                writer.finish();
+            }
+            finally {out.close();}
+        }
+        finally {in.close();}
+        expected.put("c/added.txt", TestFiles.bytes("Added"));
+        expected.put("c/old.txt", TestFiles.bytes("Old"));
+
+        for(ZipDirectory.Entry entry : ZipDirectory.read(target).getEntries())
+            assertEquals(entry.getMethod(), entry.getName().equals("a/compressible.txt") ? ZipEntry.DEFLATED
+                                                                                          : ZipEntry.STORED);
+        assertContent(target, expected);
+    }
+
+    /**
+     * Makes sure added entries keep their modification date, to the 2 seconds precision of ZIP archives.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testAddTime() throws IOException {
+        OutputStream out;
+        RawZipWriter writer;
+        ZipFile      zip;
+        File         target;
+        long         time;
+
+        time   = 1300000000000L;
+        target = new File(root, "target.zip");
+        out    = new FileOutputStream(target);
+        try {
+            writer = new RawZipWriter(out);
+            writer.add("file.txt", time, TestFiles.bytes("Content"));
+            writer.finish();
+        }
+        finally {out.close();}
+
+        zip = new ZipFile(target);
+        try {
+            ZipEntry entry;
+
+            assertNotNull(entry = zip.getEntry("file.txt"));
+            assertTrue(Math.abs(entry.getTime() - time) < 2000, entry.getTime() + " vs " + time);
+        }
+        finally {zip.close();}
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compresses the specified data as a raw deflate stream.
+     * @param     data        data to compress.
+     * @return                the compressed data.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out;
+        DeflaterOutputStream  deflater;
+
+        out      = new ByteArrayOutputStream();
+        deflater = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION, true));
+        deflater.write(data);
+        deflater.close();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Makes sure the specified archive has the expected content, both through its central directory and when read
+     * sequentially.
+     * @param     zip         archive to check.
+     * @param     expected    expected content of the archive, indexed by entry name.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static void assertContent(File zip, Map<String, byte[]> expected) throws IOException {
+        Map<String, byte[]> actual;
+        ZipInputStream      in;
+        ZipEntry            entry;
+
+        actual = TestFiles.readJar(zip);
+        assertEquals(actual.keySet(), expected.keySet());
+        for(Map.Entry<String, byte[]> e : actual.entrySet())
+            assertTrue(Arrays.equals(e.getValue(), expected.get(e.getKey())), e.getKey());
+
+        actual = new TreeMap<String, byte[]>();
+        in     = new ZipInputStream(new FileInputStream(zip));
+        try {
+            while((entry = in.getNextEntry()) != null)
+                actual.put(entry.getName(), TestFiles.readFully(in));
+        }
+        finally {in.close();}
+        assertEquals(actual.keySet(), expected.keySet());
+        for(Map.Entry<String, byte[]> e : actual.entrySet())
+            assertTrue(Arrays.equals(e.getValue(), expected.get(e.getKey())), e.getKey());
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.testng.SkipException;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Helper methods for tests that work on files, folders and JAR files.
+ * @author Nicolas Rinaudo
+ */
+public class TestFiles {
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Prevents instantiation of this class.
+     */
+    private TestFiles() {}
+
+
+
+    // - Files ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates a new temporary folder.
+     * @param     prefix      prefix of the folder's name.
+     * @return                the new folder.
+     * @exception IOException if the folder could not be created.
+     */
+    public static File createTempFolder(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * Deletes the specified file, recursively if it's a folder.
+     * @param file file to delete.
+     */
+    public static void delete(File file) {
+        File[] children;
+
+        if((children = file.listFiles()) != null)
+            for(File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    /**
+     * Writes the specified content to the specified file, creating its parent folders if necessary.
+     * @param     file        where to write the content.
+     * @param     data        content to write.
+     * @return                <code>file</code>.
+     * @exception IOException if any IO related error occurs.
+     */
+    public static File write(File file, byte[] data) throws IOException {
+        OutputStream out;
+
+        mkdirs(file.getParentFile());
+        out = new FileOutputStream(file);
+        try {out.write(data);}
+        finally {out.close();}
+
+        return file;
+    }
+
+    /**
+     * Reads the whole content of the specified file.
+     * @param     file        file to read.
+     * @return                the content of the file.
+     * @exception IOException if any IO related error occurs.
+     */
+    public static byte[] read(File file) throws IOException {
+        InputStream in;
+
+        in = new FileInputStream(file);
+        try {return readFully(in);}
+        finally {in.close();}
+    }
+
+    /**
+     * Reads the specified stream until its end.
+     * @param     in          stream to read.
+     * @return                the content of the stream.
+     * @exception IOException if any IO related error occurs.
+     */
+    public static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out;
+        byte[]                buffer;
+        int                   count;
+
+        out    = new ByteArrayOutputStream();
+        buffer = new byte[8192];
+        while((count = in.read(buffer)) != -1)
+            out.write(buffer, 0, count);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes the specified string in UTF-8.
+     * @param  value string to encode.
+     * @return       the UTF-8 encoding of <code>value</code>.
+     */
+    public static byte[] bytes(String value) {
+        return value.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Creates the specified folder and its parents, failing if that's not possible.
+     * @param     folder      folder to create.
+     * @exception IOException if the folder could not be created.
+     */
+    private static void mkdirs(File folder) throws IOException {
+        if(!folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Could not create directory " + folder);
+    }
+
+
+
+    // - JAR files -----------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Writes a JAR file with the specified entries, deflated and dated at the epoch.
+     * @param     file        where to write the JAR file.
+     * @param     entries     content of the JAR file, indexed by entry name.
+     * @return                <code>file</code>.
+     * @exception IOException if any IO related error occurs.
+     */
+    public static File writeJar(File file, Map<String, byte[]> entries) throws IOException {
+        JarOutputStream out;
+
+        mkdirs(file.getParentFile());
+        out = new JarOutputStream(new FileOutputStream(file));
+        try {
+            for(Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                JarEntry jarEntry;
+
+                jarEntry = new JarEntry(entry.getKey());
+                jarEntry.setTime(0);
+                out.putNextEntry(jarEntry);
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        finally {out.close();}
+
+        return file;
+    }
+
+    /**
+     * Reads the entries of the specified JAR file.
+     * @param     file        JAR file to read.
+     * @return                the entries of the specified JAR file, indexed by name.
+     * @exception IOException if any IO related error occurs.
+     */
+    public static Map<String, byte[]> readJar(File file) throws IOException {
+        Map<String, byte[]>             entries;
+        ZipFile                         zip;
+        Enumeration<? extends ZipEntry> list;
+
+        entries = new TreeMap<String, byte[]>();
+        zip     = new ZipFile(file);
+        try {
+            list = zip.entries();
+            while(list.hasMoreElements()) {
+                ZipEntry    entry;
+                InputStream in;
+
+                entry = list.nextElement();
+                in    = zip.getInputStream(entry);
+                try {entries.put(entry.getName(), readFully(in));}
+                finally {in.close();}
+            }
+        }
+        finally {zip.close();}
+
+        return entries;
+    }
+
+
+
+    // - Classes -------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Compiles the specified sources.
+     * <p>
+     * Tests are skipped if no Java compiler is available.
+     * </p>
+     * @param     folder      temporary folder in which to write sources and classes, deleted once done.
+     * @param     sources     source of each class, indexed by fully qualified class name.
+     * @param     classpath   JAR files the sources depend on.
+     * @return                the compiled classes, indexed by entry name.
+     * @exception IOException if any IO related error occurs, or if the sources don't compile.
+     */
+    public static Map<String, byte[]> compile(File folder, Map<String, String> sources, File... classpath)
+            throws IOException {
+        Map<String, byte[]> classes;
+        JavaCompiler        compiler;
+        List<String>        arguments;
+        StringBuilder       path;
+        File                binaries;
+
+        if((compiler = ToolProvider.getSystemJavaCompiler()) == null)
+            throw new SkipException("No Java compiler available");
+
+        binaries  = new File(folder, "classes");
+        arguments = new ArrayList<String>();
+        mkdirs(binaries);
+        arguments.add("-nowarn");
+        arguments.add("-d");
+        arguments.add(binaries.getPath());
+        if(classpath.length != 0) {
+            path = new StringBuilder();
+            for(File jar : classpath)
+                path.append(path.length() == 0 ? "" : File.pathSeparator).append(jar.getPath());
+            arguments.add("-cp");
+            arguments.add(path.toString());
+        }
+        for(Map.Entry<String, String> source : sources.entrySet())
+            arguments.add(write(new File(folder, "src/" + source.getKey().replace('.', '/') + ".java"),
+                                bytes(source.getValue())).getPath());
+
+        if(compiler.run(null, null, null, arguments.toArray(new String[arguments.size()])) != 0)
+            throw new IOException("Compilation failed");
+
+        classes = new TreeMap<String, byte[]>();
+        readClasses(binaries, "", classes);
+        delete(folder);
+
+        return classes;
+    }
+
+    /**
+     * Reads all class files of the specified folder, recursively.
+     * @param     folder      folder to explore.
+     * @param     prefix      entry name of <code>folder</code>.
+     * @param     classes     where to store the classes, indexed by entry name.
+     * @exception IOException if any IO related error occurs.
+     */
+    private static void readClasses(File folder, String prefix, Map<String, byte[]> classes) throws IOException {
+        for(File file : folder.listFiles()) {
+            if(file.isDirectory())
+                readClasses(file, prefix + file.getName() + '/', classes);
+            else
+                classes.put(prefix + file.getName(), read(file));
+        }
+    }
+}
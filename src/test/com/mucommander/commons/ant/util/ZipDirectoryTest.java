@@ -0,0 +1,247 @@
+/*
+ * This file is part of muCommander, http://www.mucommander.com
+ * Copyright (C) 2002-2010 Maxence Bernard
+ *
+ * muCommander is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * muCommander is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.mucommander.commons.ant.util;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the {@link ZipDirectory} class.
+ * @author Nicolas Rinaudo
+ */
+public class ZipDirectoryTest {
+    // - Instance fields -----------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /** Folder in which all test files are created. */
+    private File root;
+
+
+
+    // - Initialisation ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates the test folder.
+     * @exception IOException if the folder could not be created.
+     */
+    @BeforeMethod
+    public void setUp() throws IOException {
+        root = TestFiles.createTempFolder("zipdirectory");
+    }
+
+    /**
+     * Deletes all test files.
+     */
+    @AfterMethod
+    public void tearDown() {
+        TestFiles.delete(root);
+    }
+
+
+
+    // - Tests ---------------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Makes sure stored, deflated and directory entries are described and read correctly, including deflated entries
+     * followed by a data descriptor and archives with a comment.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testRead() throws IOException {
+        ZipDirectory             directory;
+        List<ZipDirectory.Entry> entries;
+        RandomAccessFile         file;
+        FileChannel              channel;
+        File                     zip;
+        byte[]                   stored;
+        byte[]                   deflated;
+
+        stored   = random(3000, 1);
+        deflated = TestFiles.bytes("Highly compressible content. Highly compressible content. Highly compressible.");
+        zip      = createZip(stored, deflated);
+
+        file = new RandomAccessFile(zip, "r");
+        try {
+            channel   = file.getChannel();
+            directory = ZipDirectory.read(channel);
+            entries   = directory.getEntries();
+
+            assertEquals(entries.size(), 3);
+            assertEquals(directory.getLength(), zip.length());
+            assertTrue(directory.getDirectoryOffset() < zip.length());
+
+            assertEquals(entries.get(0).getName(), "folder/");
+            assertTrue(entries.get(0).isDirectory());
+
+            assertEquals(entries.get(1).getName(), "folder/stored.bin");
+            assertFalse(entries.get(1).isDirectory());
+            assertEquals(entries.get(1).getMethod(), ZipEntry.STORED);
+            assertEquals(entries.get(1).getSize(), stored.length);
+            assertEquals(entries.get(1).getCompressedSize(), stored.length);
+            assertEquals(entries.get(1).getCrc(), getCrc(stored));
+            assertTrue(Arrays.equals(ZipDirectory.readContent(channel, entries.get(1)), stored));
+
+            assertEquals(entries.get(2).getName(), "deflated.txt");
+            assertEquals(entries.get(2).getMethod(), ZipEntry.DEFLATED);
+            assertTrue((entries.get(2).getFlags() & 8) != 0, "Expected a data descriptor");
+            assertEquals(entries.get(2).getSize(), deflated.length);
+            assertTrue(entries.get(2).getCompressedSize() < deflated.length);
+            assertEquals(entries.get(2).getCrc(), getCrc(deflated));
+            assertTrue(Arrays.equals(ZipDirectory.readContent(channel, entries.get(2)), deflated));
+        }
+        finally {file.close();}
+    }
+
+    /**
+     * Makes sure entries are sorted by offset, and that their blocks, data descriptors included, do not overlap.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test
+    public void testOffsets() throws IOException {
+        List<ZipDirectory.Entry> entries;
+        ZipDirectory             directory;
+        long                     position;
+
+        directory = ZipDirectory.read(createZip(random(100, 2), random(5000, 3)));
+        entries   = directory.getEntriesByOffset();
+
+        position = 0;
+        for(ZipDirectory.Entry entry : entries) {
+            assertEquals(entry.getHeaderOffset(), position, entry.getName());
+            assertTrue(entry.getDataOffset() > entry.getHeaderOffset(), entry.getName());
+            assertTrue(entry.getEndOffset() >= entry.getDataOffset() + entry.getCompressedSize(), entry.getName());
+            position = entry.getEndOffset();
+        }
+        assertEquals(position, directory.getDirectoryOffset());
+    }
+
+    /**
+     * Makes sure files that are not ZIP archives are rejected.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(expectedExceptions = ZipException.class)
+    public void testNotZip() throws IOException {
+        ZipDirectory.read(TestFiles.write(new File(root, "file.txt"), random(1000, 4)));
+    }
+
+    /**
+     * Makes sure corrupted entries are detected.
+     * @exception IOException if any IO related error occurs.
+     */
+    @Test(expectedExceptions = ZipException.class)
+    public void testCorrupted() throws IOException {
+        ZipDirectory.Entry entry;
+        RandomAccessFile   file;
+        File               zip;
+
+        zip   = createZip(random(3000, 5), random(10, 6));
+        entry = ZipDirectory.read(zip).getEntries().get(1);
+
+        file = new RandomAccessFile(zip, "rw");
+        try {
+            file.seek(entry.getDataOffset() + 10);
+            file.write(file.read() ^ 0xFF);
+            ZipDirectory.readContent(file.getChannel(), entry);
+        }
+        finally {file.close();}
+    }
+
+
+
+    // - Helper methods ------------------------------------------------------------------------------------------------
+    // -----------------------------------------------------------------------------------------------------------------
+    /**
+     * Creates an archive with a directory, a stored and a deflated entry, and a comment.
+     * @param     stored      content of the stored entry.
+     * @param     deflated    content of the deflated entry.
+     * @return                the archive.
+     * @exception IOException if any IO related error occurs.
+     */
+    private File createZip(byte[] stored, byte[] deflated) throws IOException {
+        ZipOutputStream out;
+        ZipEntry        entry;
+        File            zip;
+
+        zip = new File(root, "test.zip");
+        out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            out.setComment("Archive comment");
+            out.putNextEntry(new ZipEntry("folder/"));
+            out.closeEntry();
+
+            entry = new ZipEntry("folder/stored.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            entry.setCrc(getCrc(stored));
+            out.putNextEntry(entry);
+            out.write(stored);
+            out.closeEntry();
+
+            out.putNextEntry(new ZipEntry("deflated.txt"));
+            out.write(deflated);
+            out.closeEntry();
+        }
+        finally {out.close();}
+
+        return zip;
+    }
+
+    /**
+     * Returns the CRC-32 of the specified data.
+     * @param  data data to analyse.
+     * @return      the CRC-32 of <code>data</code>.
+     */
+    private static long getCrc(byte[] data) {
+        CRC32 crc;
+
+        crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Returns random, incompressible data.
+     * @param  length length of the data.
+     * @param  seed   seed of the random generator.
+     * @return        random data.
+     */
+    static byte[] random(int length, long seed) {
+        byte[] data;
+
+        data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}